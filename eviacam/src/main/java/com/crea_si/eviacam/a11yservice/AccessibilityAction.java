@@ -28,19 +28,18 @@ package com.crea_si.eviacam.a11yservice;
  import android.content.DialogInterface;
  import android.content.Intent;
  import android.content.IntentFilter;
- import android.content.SharedPreferences;
  import android.graphics.Path;
  import android.graphics.Point;
- import android.graphics.Rect;
  import android.net.Uri;
  import android.os.Build;
  import android.os.Handler;
+ import android.os.HandlerThread;
+ import android.os.SystemClock;
  import android.util.Log;
  import android.view.View;
  import android.view.WindowManager;
  import android.view.accessibility.AccessibilityEvent;
  import android.view.accessibility.AccessibilityNodeInfo;
- import android.view.accessibility.AccessibilityWindowInfo;
  import android.widget.CheckBox;
  import android.widget.CompoundButton;
 
@@ -56,8 +55,7 @@ package com.crea_si.eviacam.a11yservice;
  import com.crea_si.eviacam.common.Preferences;
  import com.crea_si.eviacam.util.AccessibilityNodeDebug;
 
- import java.util.ArrayList;
- import java.util.List;
+ import java.util.concurrent.ConcurrentLinkedQueue;
 
  /**
   * Manages actions relative to the Android accessibility API
@@ -68,8 +66,19 @@ package com.crea_si.eviacam.a11yservice;
  @TargetApi(Build.VERSION_CODES.KITKAT)
  class AccessibilityAction {
 
-    // delay after which an accessibility event is processed
+    /*
+     * Delay after which an accessibility event is processed. The actual delay
+     * adapts to the rate at which events arrive between the min and max values.
+     */
+    private static final long SCROLLING_SCAN_MIN_DELAY= 150;
     private static final long SCROLLING_SCAN_RUN_DELAY= 700;
+
+    // a continuous stream of events cannot postpone the scan for longer than this
+    private static final long SCROLLING_SCAN_MAX_WAIT= 2000;
+
+    // actions of the nodes for which scroll buttons are shown
+    private static final int SCROLL_ACTIONS= AccessibilityNodeInfo.ACTION_SCROLL_BACKWARD |
+            AccessibilityNodeInfo.ACTION_SCROLL_FORWARD;
     private static final int ALERT7_UID = 7;
 
     private static final String TAG = "AccessibilityAction";
@@ -119,12 +128,25 @@ package com.crea_si.eviacam.a11yservice;
     // handler to execute in the main thread
     private final Handler mHandler;
 
+    // thread and handler where the scrolling nodes scan runs
+    private final HandlerThread mScanThread;
+    private final Handler mScanHandler;
+
     // delegate to manage input method interaction
     private final InputMethodAction mInputMethodAction;
 
+    // clicks which the IME did not perform, run from the thread of the clicks
+    private final ConcurrentLinkedQueue<Point> mRejectedIMEClicks= new ConcurrentLinkedQueue<>();
+
     // accessibility actions we are interested on when searching nodes
     private final int FULL_ACTION_MASK;
 
+    // spatial index of the actionable nodes of each window
+    private final ActionableNodeIndex<AccessibilityNodeInfo> mNodeIndex;
+
+    // interactive windows, kept until the system reports a change
+    private final WindowCache<AccessibilityNodeInfo> mWindowCache;
+
     // tracks whether the contextual menu is open
     private boolean mContextMenuOpen= false;
 
@@ -134,16 +156,49 @@ package com.crea_si.eviacam.a11yservice;
     // node on which the action should be performed when context menu open
     private AccessibilityNodeInfo mNode;
 
+    // result of scroll buttons hit test, only used from the mouse event thread
+    private final ScrollLayerView.NodeAction mScrollNodeAction= new ScrollLayerView.NodeAction();
+
     // scroll buttons exploration enabled?
-    private boolean mScrollingScanEnabled= true;
+    private volatile boolean mScrollingScanEnabled= true;
 
-    // time stamp at which scrolling scan need to execute
-    private volatile long mRunScrollingScanTStamp = 0;
-    
-    // is set to true when scrolling scan needs to be run
-    private volatile boolean mNeedToRunScrollingScan = false;
+    /*
+     * Search of the scrollable nodes. Each time a scan is requested or cancelled
+     * a running scan aborts as soon as it notices it and its results are discarded.
+     */
+    private final ScrollingNodesScan<AccessibilityNodeInfo> mScrollingScan=
+            new ScrollingNodesScan<>(new ScrollingNodesScan.NodeSource<AccessibilityNodeInfo>() {
+        @Override
+        public boolean isVisibleToUser(@NonNull AccessibilityNodeInfo node) {
+            return node.isVisibleToUser();
+        }
+
+        @Override
+        public CharSequence getClassName(@NonNull AccessibilityNodeInfo node) {
+            return node.getClassName();
+        }
 
-    // the current node tree contains a web view?
+        @Override
+        public int getActions(@NonNull AccessibilityNodeInfo node) {
+            return node.getActions();
+        }
+
+        @Override
+        public int getChildCount(@NonNull AccessibilityNodeInfo node) {
+            return node.getChildCount();
+        }
+
+        @Override
+        public AccessibilityNodeInfo getChild(@NonNull AccessibilityNodeInfo node, int index) {
+            return node.getChild(index);
+        }
+    }, SCROLL_ACTIONS, "android.webkit.WebView");
+
+    // delay of the scrolling scan after each accessibility event
+    private final ScanDebouncer mScanDebouncer= new ScanDebouncer(SCROLLING_SCAN_MIN_DELAY,
+            SCROLLING_SCAN_RUN_DELAY, SCROLLING_SCAN_MAX_WAIT);
+
+    // the current node tree contains a web view? (main thread only)
     private boolean mContainsWebView = false;
 
     // navigation keyboard advice shown?
@@ -185,8 +240,22 @@ package com.crea_si.eviacam.a11yservice;
         mScrollLayerView= slv;
         
         mHandler = new Handler();
+
+        mWindowCache= new WindowCache<>(WindowCache.forService(as));
+
+        mScanThread= new HandlerThread("ScrollingScanThread");
+        mScanThread.start();
+        mScanHandler= new Handler(mScanThread.getLooper());
         
         mInputMethodAction= new InputMethodAction (cv.getContext());
+        mInputMethodAction.setOnClickNotPerformedListener(
+                new InputMethodAction.OnClickNotPerformedListener() {
+            @Override
+            public void onClickNotPerformed(int x, int y) {
+                // the IME rejected the click, give it to the rest of the screen
+                mRejectedIMEClicks.add(new Point(x, y));
+            }
+        });
         
         // populate actions to view & compute action mask
         int full_action_mask= 0;
@@ -196,6 +265,8 @@ package com.crea_si.eviacam.a11yservice;
         }
 
         FULL_ACTION_MASK= full_action_mask;
+        mNodeIndex= new ActionableNodeIndex<>(ActionableNodeIndex.forAccessibilityNodes(),
+                full_action_mask);
 
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
             AccessibilityServiceInfo asi= mAccessibilityService.getServiceInfo();
@@ -243,13 +314,20 @@ package com.crea_si.eviacam.a11yservice;
     
     public void cleanup () {
         mInputMethodAction.cleanup();
+        mNodeIndex.invalidateAll();
+        mWindowCache.invalidate();
+        cancelScrollingScan();
+        mScanThread.quitSafely();
     }
 
     void enableScrollingScan() {
         mScrollingScanEnabled= true;
-        mNeedToRunScrollingScan= true;
+        scheduleScrollingScan(0);
+    }
+    void disableScrollingScan() {
+        mScrollingScanEnabled= false;
+        cancelScrollingScan();
     }
-    void disableScrollingScan() { mScrollingScanEnabled= false; }
 
     /** Manages global actions, return false if action not generated */
     private boolean manageGlobalActions (@NonNull Point p,boolean generated) {
@@ -297,10 +375,12 @@ package com.crea_si.eviacam.a11yservice;
         case R.id.toggle_rest_mode:
             if (mDockPanelLayerView.getRestModeEnabled()) {
                 EVIACAM.ShortToast(getContext(), R.string.service_toast_rest_mode_enabled);
-                refreshScrollingButtons();
+                scheduleScrollingScan(0);
             }
             else {
                 EVIACAM.ShortToast(getContext(), R.string.service_toast_rest_mode_disabled);
+                // restore the scroll buttons
+                scheduleScrollingScan(0);
             }
             break;
 
@@ -332,8 +412,8 @@ package com.crea_si.eviacam.a11yservice;
     
     /** Checks and run scrolling actions */
     private boolean manageScrollActions(@NonNull Point p) {
-        ScrollLayerView.NodeAction na= mScrollLayerView.getContaining(p);
-        if (na == null) return false;
+        final ScrollLayerView.NodeAction na= mScrollNodeAction;
+        if (!mScrollLayerView.getContaining(p, na)) return false;
         
         /*
          * Workaround: give focus to the node to scroll. 
@@ -347,6 +427,7 @@ package com.crea_si.eviacam.a11yservice;
          */
         //na.node.performAction(AccessibilityNodeInfo.ACTION_FOCUS);
         na.node.performAction(na.actions);
+        na.node= null;
         
         return true;
     }
@@ -387,6 +468,7 @@ package com.crea_si.eviacam.a11yservice;
      * Reset internal state
      */
     public void reset () {
+        mRejectedIMEClicks.clear();
         if (mContextMenuOpen) {
             mContextMenuLayerView.hideContextMenu();
             mContextMenuOpen= false;
@@ -405,9 +487,8 @@ package com.crea_si.eviacam.a11yservice;
      */
     boolean isActionable(@NonNull Point p) {
 
-        SharedPreferences sp = Preferences.get().getSharedPreferences();
-        // get values from shared resources
-        Boolean enableclick = sp.getBoolean(Preferences.KEY_ENABLE_DWELL, false);
+        // called for each frame, use the settings snapshot
+        boolean enableclick = Preferences.get().getSettings().getEnableDwell();
 
         if (enableclick) {
 
@@ -492,7 +573,32 @@ package com.crea_si.eviacam.a11yservice;
      * @param generated - Hardware source click
      */
     void performAction(@NonNull Point pInt,boolean generated) {
+        performAction(pInt, generated, false);
+    }
+
+    /**
+     * Performs the clicks which the IME did not perform, skipping the IME
+     *
+     * Called from the thread of the clicks for each mouse event, so that
+     * performAction only runs on that thread.
+     */
+    void performRejectedIMEClicks() {
+        Point p;
+        while ((p= mRejectedIMEClicks.poll())!= null) performAction(p, false, true);
+    }
+
+    /**
+     * Performs action (click) on a specific location of the screen
+     *
+     * @param pInt - point in screen coordinates
+     * @param generated - Hardware source click
+     * @param ignoreIME - do not offer the click to the bundled keyboard
+     */
+    private void performAction(@NonNull Point pInt, boolean generated, boolean ignoreIME) {
         if (mContextMenuOpen && !mContextMenuHelpOpen) {
+            // the context menu opened after the click was sent to the IME
+            if (ignoreIME) return;
+
             /* When context menu open only check it */
             int action= mContextMenuLayerView.testClick(pInt);
             mContextMenuLayerView.hideContextMenu();
@@ -506,7 +612,7 @@ package com.crea_si.eviacam.a11yservice;
             // Manages clicks for scrolling buttons
             if (manageScrollActions(pInt)) return;
             
-            AccessibilityNodeInfo root= null;
+            AccessibilityNodeInfo root;
             
             //if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP_MR1) {
                 /*
@@ -534,32 +640,14 @@ package com.crea_si.eviacam.a11yservice;
 
                   [1] http://developer.android.com/reference/android/accessibilityservice/AccessibilityService.html#getWindows()
                  */
-                List<AccessibilityWindowInfo> l= mAccessibilityService.getWindows();
-                
-                Rect bounds = new Rect();
-                for (AccessibilityWindowInfo awi : l) {
-                    awi.getBoundsInScreen(bounds);
-                    if (bounds.contains(pInt.x, pInt.y)) {
-                        AccessibilityNodeInfo rootCandidate= awi.getRoot();
-                        if (rootCandidate == null) continue;
-                        /*
-                          Check bounds for the candidate root node. Sometimes windows bounds
-                           are larger than root bounds
-                         */
-                        rootCandidate.getBoundsInScreen(bounds);
-                        if (bounds.contains(pInt.x, pInt.y)) {
-                            root = rootCandidate;
-                            break;
-                        }
-                    }
-                }
+                root= mWindowCache.findRoot(pInt);
                 
                 /*
                   Give an opportunity to the bundled eviacam keyboard
                   TODO: check whether this is really needed (e.g. checking which IME is
                   currently active, if the node is already an IME)
                  */
-                if (mInputMethodAction.click(pInt.x, pInt.y)) return;
+                if (!ignoreIME && mInputMethodAction.click(pInt.x, pInt.y)) return;
             /*
             }
             else {
@@ -586,7 +674,7 @@ package com.crea_si.eviacam.a11yservice;
             /* Manages actions on an arbitrary position of the screen  */
 
             // Finds node under (x, y) and its available actions
-            AccessibilityNodeInfo node= findActionable (pInt, FULL_ACTION_MASK, root);
+            AccessibilityNodeInfo node= findActionable (pInt, root);
 
             //click instead -> so the most elements(keyboards, games, etc..) will work, others can be accessed through the context menu
             if (node == null) { realClick(pInt); return; }
@@ -710,73 +798,106 @@ package com.crea_si.eviacam.a11yservice;
     }
 
     /**
-     * Needs to be called at regular intervals
-     * 
-     * Remarks: checks whether needs to start a scrolling nodes exploration
+     * Scrolling nodes scan. Runs in mScanThread and walks the tree of the
+     * active window, which may take a while for complex layouts, then posts
+     * the results to the main thread.
      */
-    void refresh() {
-        if (mDockPanelLayerView.getRestModeEnabled()) return;
-        if (!mNeedToRunScrollingScan) return;
-        if (System.currentTimeMillis()< mRunScrollingScanTStamp) return;
-        mNeedToRunScrollingScan = false;
-        refreshScrollingButtons();
-    }
-
-    private Runnable mRefreshScrollingRunnable = new Runnable() {
-        List<AccessibilityNodeInfo> scrollableNodes = new ArrayList<>();
-
+    private final Runnable mScrollingScanRunnable = new Runnable() {
         @Override
         public void run() {
-            mScrollLayerView.clearScrollAreas();
+            mScanDebouncer.onScanStarted();
 
+            // when disabled or in rest mode an empty result removes the buttons
+            AccessibilityNodeInfo root= null;
             if (mScrollingScanEnabled && !mDockPanelLayerView.getRestModeEnabled()) {
-                scrollableNodes.clear();
-                mContainsWebView= findNodes (scrollableNodes,
-                        AccessibilityNodeInfo.ACTION_SCROLL_BACKWARD |
-                                AccessibilityNodeInfo.ACTION_SCROLL_FORWARD,
-                        "android.webkit.WebView");
-                if (mContainsWebView && !mNavigationKeyboardAdviceShown) {
-                    EVIACAM.LongToast(getContext(), R.string.service_toast_navigation_keyboard_advice);
-                    mNavigationKeyboardAdviceShown= true;
-                }
-                Log.d(EVIACAM.TAG+"->"+TAG, "Scroll areas refresh done. Found:" +
-                        scrollableNodes.size());
-                for (AccessibilityNodeInfo n : scrollableNodes) {
-                    mScrollLayerView.addScrollArea(n);
-                }
+                root= mAccessibilityService.getRootInActiveWindow();
             }
+
+            final ScrollingNodesScan.Result<AccessibilityNodeInfo> result=
+                    mScrollingScan.run(root);
+            if (result == null) {
+                Log.d(EVIACAM.TAG+"->"+TAG, "Scroll areas refresh cancelled");
+                return;
+            }
+
+            mHandler.post(new ScrollingScanResult(result));
         }
     };
 
-    private void refreshScrollingButtons() {
-        /* Interaction with the UI needs to be done in the main thread */
-        mHandler.post(mRefreshScrollingRunnable);
+    /**
+     * Results of a scrolling nodes scan, applied in the main thread
+     */
+    private class ScrollingScanResult implements Runnable {
+        private final ScrollingNodesScan.Result<AccessibilityNodeInfo> mResult;
+
+        ScrollingScanResult(@NonNull ScrollingNodesScan.Result<AccessibilityNodeInfo> result) {
+            mResult= result;
+        }
+
+        @Override
+        public void run() {
+            // a newer scan has been requested in the meantime
+            if (!mScrollingScan.isCurrent(mResult.generation)) return;
+
+            mContainsWebView= mResult.excludedFound;
+            if (mContainsWebView && !mNavigationKeyboardAdviceShown) {
+                EVIACAM.LongToast(getContext(), R.string.service_toast_navigation_keyboard_advice);
+                mNavigationKeyboardAdviceShown= true;
+            }
+            Log.d(EVIACAM.TAG+"->"+TAG, "Scroll areas refresh done. Found:" +
+                    mResult.nodes.size());
+            mScrollLayerView.updateScrollAreas(mResult.nodes);
+        }
+    }
+
+    /**
+     * Request a scrolling nodes scan, cancelling the pending or running one
+     *
+     * @param delay - delay in ms before starting the scan
+     */
+    private void scheduleScrollingScan(long delay) {
+        mScrollingScan.invalidate();
+        mScanHandler.removeCallbacks(mScrollingScanRunnable);
+        mScanHandler.postDelayed(mScrollingScanRunnable, delay);
+    }
+
+    private void cancelScrollingScan() {
+        mScrollingScan.invalidate();
+        mScanHandler.removeCallbacks(mScrollingScanRunnable);
+        mScanDebouncer.reset();
     }
 
     /**
      * Process events from accessibility service to refresh scrolling controls
+     * and to discard the actionable nodes index of the windows that changed
      * 
      * @param event - the event
      * 
-     * Expects three types of events: 
+     * Expects four types of events: 
      *  TYPE_WINDOW_STATE_CHANGED
      *  TYPE_WINDOW_CONTENT_CHANGED
      *  TYPE_VIEW_SCROLLED
+     *  TYPE_WINDOWS_CHANGED
      * 
      * Remarks: it seems that events come in short bursts so tries to save CPU 
      * time and improve responsiveness by delaying the execution of the scan
-     * so that consecutive events only fire an actual scan. 
+     * so that consecutive events only fire an actual scan. An event received
+     * while a scan is running cancels it.
      */
     void onAccessibilityEvent(@NonNull AccessibilityEvent event) {
         switch (event.getEventType()) {
+        case AccessibilityEvent.TYPE_WINDOWS_CHANGED:
+            // only affects the caches, scrolling scan works on the active window
+            mWindowCache.invalidate();
+            mNodeIndex.invalidateAll();
+            return;
+
         case AccessibilityEvent.TYPE_WINDOW_STATE_CHANGED:
+            mWindowCache.invalidate();
+            mNodeIndex.invalidateAll();
             break;
 
         case AccessibilityEvent.TYPE_WINDOW_CONTENT_CHANGED:
-
-            // If contains a WebView stop processing
-            if (mContainsWebView) return;
-
             if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
                 switch (event.getContentChangeTypes ()) {
                 case AccessibilityEvent.CONTENT_CHANGE_TYPE_CONTENT_DESCRIPTION:
@@ -787,9 +908,16 @@ package com.crea_si.eviacam.a11yservice;
                 case AccessibilityEvent.CONTENT_CHANGE_TYPE_UNDEFINED:
                 }
             }
+
+            mNodeIndex.invalidate(event.getWindowId());
+
+            // If contains a WebView stop processing
+            if (mContainsWebView) return;
             break;
 
         case AccessibilityEvent.TYPE_VIEW_SCROLLED:
+            mNodeIndex.invalidate(event.getWindowId());
+
             // If contains a WebView stop processing
             if (mContainsWebView) return;
 
@@ -800,128 +928,35 @@ package com.crea_si.eviacam.a11yservice;
             return;
         }
 
-        /* Schedule scrolling nodes scanning after SCROLLING_SCAN_RUN_DELAY ms */
-        mRunScrollingScanTStamp= System.currentTimeMillis() + SCROLLING_SCAN_RUN_DELAY;
-        mNeedToRunScrollingScan= true;
+        /* Schedule scrolling nodes scanning, consecutive events only fire one scan */
+        if (mScrollingScanEnabled) scheduleScrollingScan(
+                mScanDebouncer.onEvent(SystemClock.uptimeMillis()));
     } 
 
     /**
-     * Class to store information across recursive calls
-     */
-    private static class RecursionInfo {
-        final public Point p;
-        final Rect tmp= new Rect();
-        final public int actions;
-        
-        RecursionInfo (Point p, int actions) {
-            this.p = p;
-            this.actions= actions;
-        }
-    }
- 
-    /**
-     * Find recursively the node under (x, y) that accepts some or all
-     * actions encoded on the mask
+     * Find the node under (x, y) that accepts some or all actions
+     * encoded on FULL_ACTION_MASK
      */
-    private AccessibilityNodeInfo findActionable (@NonNull Point p, int actions,
+    private AccessibilityNodeInfo findActionable (@NonNull Point p,
                                                   @Nullable AccessibilityNodeInfo root) {
         // get root node
         if (root == null) { 
             root = mAccessibilityService.getRootInActiveWindow();
             if (root == null) return null;
         }
-        
-        RecursionInfo ri= new RecursionInfo (p, actions);
 
         //AccessibilityNodeDebug.displayFullTree(rootNode);
-        
-        return findActionable0(root, ri);
-    }
-    
-    /** Actual recursive call for findActionable */
-    private static AccessibilityNodeInfo findActionable0(
-            @Nullable AccessibilityNodeInfo node, @NonNull RecursionInfo ri) {
-
-        // sometimes, during the recursion, getChild() might return null
-        // check here and abort recursion in that case
-        if (node == null) return null;
-        
-        node.getBoundsInScreen(ri.tmp);
-        if (!ri.tmp.contains(ri.p.x, ri.p.y)) {
-            /*
-              If node does not contain (x, y) stop recursion. It seems that, when part
-              of the view is covered by another window (e.g. IME), reported bounds
-              EXCLUDE the area covered by such a window. Unfortunately, this does not
-              always works, for instance, when a extracted view is shown (e.g. usually
-              in landscape mode). This behavior can be changed (see [1]) in the IME
-              but perhaps this is not the best approach.
-
-              [1] http://stackoverflow.com/questions/14252184/how-can-i-make-my-custom-keyboard-to-show-in-fullscreen-mode-always
-             */
-            return null;
-        }
-
-        // Although it seems that is not needed, we check and give out if the
-        // node is not visible. Just in case.
-        if (!node.isVisibleToUser()) return null;
-
-        AccessibilityNodeInfo result = null;
-
-        if ((node.getActions() & ri.actions) != 0) {
-            // this is a good candidate but continues exploring children
-            // there are controls such as ListView which are clickable
-            // but do not have an useful action associated
-            result = node;
-        }
-
-        // propagate calls to children
-        final int child_count = node.getChildCount();
-        for (int i = 0; i < child_count; i++) {
-            AccessibilityNodeInfo child = findActionable0(node.getChild(i), ri);
-
-            if (child != null) result = child;
-        }
-
-        return result;
-    }
-
-    /**
-     * Finds recursively all nodes that support certain actions
-     *
-     * @param result - list where results will be stored
-     * @param actions - bitmask of actions
-     * @param exclude - class name to exclude from the search, null to not exclude anything
-     * @return if some node has been excluded
-     */
-    private boolean findNodes(List<AccessibilityNodeInfo> result,
-                              int actions, String exclude) {
-        // get root node
-        final AccessibilityNodeInfo rootNode = mAccessibilityService.getRootInActiveWindow();
-
-        return findNodes0 (result, actions, exclude, rootNode);
-    }
 
-    /** Actual recursive call for findNode */
-    private static boolean findNodes0 (
-            List<AccessibilityNodeInfo> result, int actions,
-            String exclude, final AccessibilityNodeInfo node) {
-
-        if (node == null || !node.isVisibleToUser()) return false;
-        if (exclude!= null) {
-            CharSequence className= node.getClassName();
-            if (className!= null && className.toString().equals(exclude)) return true;
-        }
-        if ((node.getActions() & actions) != 0) {
-            result.add(node);
-        }
-
-        // propagate calls to children
-        final int child_count = node.getChildCount();
-        boolean excluded= false;
-        for (int i = 0; i < child_count; i++) {
-            excluded= findNodes0 (result, actions, exclude, node.getChild(i)) || excluded;
-        }
-
-        return excluded;
+        /*
+          Nodes which do not contain (x, y) are not considered. It seems that, when part
+          of the view is covered by another window (e.g. IME), reported bounds
+          EXCLUDE the area covered by such a window. Unfortunately, this does not
+          always works, for instance, when a extracted view is shown (e.g. usually
+          in landscape mode). This behavior can be changed (see [1]) in the IME
+          but perhaps this is not the best approach.
+
+          [1] http://stackoverflow.com/questions/14252184/how-can-i-make-my-custom-keyboard-to-show-in-fullscreen-mode-always
+         */
+        return mNodeIndex.find(root, p);
     }
 }
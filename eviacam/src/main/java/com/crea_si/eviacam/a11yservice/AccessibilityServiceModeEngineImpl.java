@@ -104,14 +104,15 @@ public class AccessibilityServiceModeEngineImpl extends CoreEngine
      * @param faceDetected whether or not a face was detected for the last frame, note
      *                     not all frames are checked for the face detection algorithm
      * @param state current state of the engine
+     * @param timestamp capture time stamp of the frame in nanoseconds
      *
      * NOTE: called from a secondary thread
      */
     @Override
-    protected void onFrame(@NonNull PointF motion, boolean faceDetected, int state) {
+    protected void onFrame(@NonNull PointF motion, boolean faceDetected, int state,
+                           long timestamp) {
         if (state == STATE_RUNNING) {
-            mMouseEmulation.processMotion(motion);
-            mClickDispatcher.refresh();
+            mMouseEmulation.processMotion(motion, timestamp);
             mMouseEmulation.setRestMode(mClickDispatcher.getRestModeEnabled());
         }
     }
@@ -0,0 +1,262 @@
+/*
+ * Enable Viacam for Android, a camera based mouse emulator
+ *
+ * Copyright (C) 2015-17 Cesar Mauri Loba (CREA Software Systems)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.crea_si.eviacam.a11yservice;
+
+import android.graphics.Point;
+import android.graphics.Rect;
+import android.util.Log;
+import android.view.accessibility.AccessibilityNodeInfo;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.crea_si.eviacam.common.EVIACAM;
+import com.crea_si.eviacam.util.RectGridIndex;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Per window spatial index of the nodes which support some actions
+ *
+ * The node tree of a window is walked once and the bounds of the actionable
+ * nodes stored in a grid so that subsequent clicks only need a point query.
+ * The index of a window is discarded when an accessibility event reports
+ * that its content changed (see AccessibilityAction.onAccessibilityEvent)
+ * and rebuilt lazily on the next query.
+ *
+ * The node tree is accessed through a NodeSource, see forAccessibilityNodes().
+ *
+ * Thread safety: queries come from the mouse event thread whereas
+ * invalidation is requested from the main thread, all methods synchronized.
+ *
+ * @param <N> node type
+ */
+class ActionableNodeIndex<N> {
+    private static final String TAG = "ActionableNodeIndex";
+
+    /**
+     * Access to the node tree
+     */
+    interface NodeSource<N> {
+        int getWindowId(@NonNull N node);
+
+        /**
+         * Update the node with its current state
+         * @return false if the node no longer exists
+         */
+        boolean refresh(@NonNull N node);
+
+        boolean isVisibleToUser(@NonNull N node);
+        int getActions(@NonNull N node);
+
+        /**
+         * @param out receives left, top, right, bottom following the Rect convention
+         */
+        void getBoundsInScreen(@NonNull N node, @NonNull int[] out);
+
+        int getChildCount(@NonNull N node);
+        @Nullable N getChild(@NonNull N node, int index);
+    }
+
+    /**
+     * Source of the nodes reported by the accessibility framework
+     */
+    static NodeSource<AccessibilityNodeInfo> forAccessibilityNodes() {
+        return new NodeSource<AccessibilityNodeInfo>() {
+            private final Rect mTmpRect= new Rect();
+
+            @Override
+            public int getWindowId(@NonNull AccessibilityNodeInfo node) {
+                return node.getWindowId();
+            }
+
+            @Override
+            public boolean refresh(@NonNull AccessibilityNodeInfo node) {
+                return node.refresh();
+            }
+
+            @Override
+            public boolean isVisibleToUser(@NonNull AccessibilityNodeInfo node) {
+                return node.isVisibleToUser();
+            }
+
+            @Override
+            public int getActions(@NonNull AccessibilityNodeInfo node) {
+                return node.getActions();
+            }
+
+            @Override
+            public void getBoundsInScreen(@NonNull AccessibilityNodeInfo node,
+                                          @NonNull int[] out) {
+                node.getBoundsInScreen(mTmpRect);
+                out[0]= mTmpRect.left;
+                out[1]= mTmpRect.top;
+                out[2]= mTmpRect.right;
+                out[3]= mTmpRect.bottom;
+            }
+
+            @Override
+            public int getChildCount(@NonNull AccessibilityNodeInfo node) {
+                return node.getChildCount();
+            }
+
+            @Nullable
+            @Override
+            public AccessibilityNodeInfo getChild(@NonNull AccessibilityNodeInfo node,
+                                                  int index) {
+                return node.getChild(index);
+            }
+        };
+    }
+
+    private final NodeSource<N> mSource;
+
+    // actions a node needs to support (some of them) to be indexed
+    private final int mActions;
+
+    // index for each window id
+    private final Map<Integer, RectGridIndex<N>> mIndexes= new HashMap<>();
+
+    // left, top, right, bottom
+    private final int[] mTmp= new int[4];
+
+    // statistics
+    private int mHits= 0;
+    private int mBuilds= 0;
+
+    ActionableNodeIndex(@NonNull NodeSource<N> source, int actions) {
+        mSource= source;
+        mActions= actions;
+    }
+
+    /**
+     * Find the innermost actionable node below a point
+     *
+     * @param root root node of the window
+     * @param p point in screen coordinates
+     * @return the node or null if not found or the root no longer exists
+     */
+    @Nullable
+    synchronized N find(@NonNull N root, @NonNull Point p) {
+        final int windowId= mSource.getWindowId(root);
+        RectGridIndex<N> index= mIndexes.get(windowId);
+        if (index != null) {
+            N node= index.query(p.x, p.y);
+            if (node == null || isStillValid(node, p)) {
+                mHits++;
+                return node;
+            }
+            Log.d(EVIACAM.TAG+"->"+TAG, "Stale node found, rebuilding index");
+        }
+
+        /*
+          The root may have been cached (see WindowCache) since before the changes
+          which invalidated the index, so its children would be the former ones
+         */
+        if (!mSource.refresh(root)) {
+            mIndexes.remove(windowId);
+            Log.d(EVIACAM.TAG+"->"+TAG, "Root node no longer exists");
+            return null;
+        }
+
+        index= build(root);
+        mIndexes.put(windowId, index);
+        mBuilds++;
+        Log.d(EVIACAM.TAG+"->"+TAG, "Index built. Nodes: " + index.size() +
+                " Builds: " + mBuilds + " Hits: " + mHits);
+
+        return index.query(p.x, p.y);
+    }
+
+    /**
+     * Discard the index of a window
+     *
+     * @param windowId id of the window, -1 to discard all indexes
+     */
+    synchronized void invalidate(int windowId) {
+        if (windowId < 0) mIndexes.clear();
+        else mIndexes.remove(windowId);
+    }
+
+    synchronized void invalidateAll() {
+        mIndexes.clear();
+    }
+
+    synchronized int getHits() {
+        return mHits;
+    }
+
+    synchronized int getBuilds() {
+        return mBuilds;
+    }
+
+    /**
+     * Check, with a single round trip, that the node is still alive and
+     * its bounds still contain the point. Covers changes for which no
+     * event has been received (yet).
+     */
+    private boolean isStillValid(@NonNull N node, @NonNull Point p) {
+        if (!mSource.refresh(node)) return false;
+        if (!mSource.isVisibleToUser(node) || (mSource.getActions(node) & mActions) == 0) {
+            return false;
+        }
+        mSource.getBoundsInScreen(node, mTmp);
+        return p.x >= mTmp[0] && p.x < mTmp[2] && p.y >= mTmp[1] && p.y < mTmp[3];
+    }
+
+    private RectGridIndex<N> build(@NonNull N root) {
+        RectGridIndex<N> index= new RectGridIndex<>();
+        build0(root, index, Integer.MIN_VALUE, Integer.MIN_VALUE,
+                Integer.MAX_VALUE, Integer.MAX_VALUE);
+        return index;
+    }
+
+    /**
+     * Walk the tree in pre-order adding the actionable nodes. Bounds are
+     * clipped against the bounds of the ancestors, so a query returns the
+     * same node than the recursive search which stops at nodes that do not
+     * contain the point: the last actionable node in pre-order.
+     */
+    private void build0(@Nullable N node, @NonNull RectGridIndex<N> index,
+                        int left, int top, int right, int bottom) {
+        // sometimes getChild() might return null
+        if (node == null) return;
+
+        if (!mSource.isVisibleToUser(node)) return;
+
+        mSource.getBoundsInScreen(node, mTmp);
+        left= Math.max(left, mTmp[0]);
+        top= Math.max(top, mTmp[1]);
+        right= Math.min(right, mTmp[2]);
+        bottom= Math.min(bottom, mTmp[3]);
+        // no point can reach this node nor its children
+        if (left >= right || top >= bottom) return;
+
+        if ((mSource.getActions(node) & mActions) != 0) {
+            index.add(left, top, right, bottom, node);
+        }
+
+        final int child_count = mSource.getChildCount(node);
+        for (int i = 0; i < child_count; i++) {
+            build0(mSource.getChild(node, i), index, left, top, right, bottom);
+        }
+    }
+}
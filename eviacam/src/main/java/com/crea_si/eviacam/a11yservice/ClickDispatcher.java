@@ -19,7 +19,6 @@
 package com.crea_si.eviacam.a11yservice;
 
 import android.accessibilityservice.AccessibilityService;
-import android.content.SharedPreferences;
 import android.graphics.Point;
 import android.graphics.PointF;
 import android.media.MediaPlayer;
@@ -34,12 +33,13 @@ import com.crea_si.eviacam.common.MouseEmulation;
 import com.crea_si.eviacam.common.MouseEmulationCallbacks;
 import com.crea_si.eviacam.common.OverlayView;
 import com.crea_si.eviacam.common.Preferences;
+import com.crea_si.eviacam.common.SettingsSnapshot;
 
 /**
  * Decides what to do when the user performs a click
  */
 class ClickDispatcher implements MouseEmulationCallbacks,
-        SharedPreferences.OnSharedPreferenceChangeListener {
+        Preferences.OnSettingsChangeListener {
 
     public static final int COMPLEX_ACTION_UNSET=0;
     public static final int COMPLEX_ACTION_PREPARED=-1;
@@ -99,26 +99,26 @@ class ClickDispatcher implements MouseEmulationCallbacks,
         mAccessibilityAction= new AccessibilityAction (s, mContextMenuView,
                 mDockPanelView, mScrollLayerView);
 
-        // register preference change listener
-        Preferences.get().getSharedPreferences().registerOnSharedPreferenceChangeListener(this);
+        // register settings change listener
+        Preferences.get().registerOnSettingsChangeListener(this);
 
-        updateSettings();
+        updateSettings(Preferences.get().getSettings());
     }
 
-    private void updateSettings() {
-        // get values from shared resources
-        mSoundOnClick= Preferences.get().getSoundOnClick();
+    private void updateSettings(@NonNull SettingsSnapshot s) {
+        // get values from the settings snapshot
+        mSoundOnClick= s.getSoundOnClick();
     }
 
     @Override
-    public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key) {
-        if (key.equals(Preferences.KEY_SOUND_ON_CLICK)) updateSettings();
+    public void onSettingsChanged(@NonNull SettingsSnapshot settings, @NonNull String key) {
+        if (key.equals(Preferences.KEY_SOUND_ON_CLICK)) updateSettings(settings);
     }
 
     void cleanup() {
         stop();
 
-        Preferences.get().getSharedPreferences().unregisterOnSharedPreferenceChangeListener(this);
+        Preferences.get().unregisterOnSettingsChangeListener(this);
 
         if (mAccessibilityAction!= null) {
             mAccessibilityAction.cleanup();
@@ -182,10 +182,6 @@ class ClickDispatcher implements MouseEmulationCallbacks,
         if (mAccessibilityAction!= null) mAccessibilityAction.reset();
     }
 
-    void refresh() {
-        if (mAccessibilityAction != null) mAccessibilityAction.refresh();
-    }
-
     private void playSound () {
         if (mSoundOnClick) {
             mAudioManager.start();
@@ -262,8 +258,8 @@ class ClickDispatcher implements MouseEmulationCallbacks,
 
         AccessibilityAction aa= mAccessibilityAction;
         if (aa!= null) {
-            // this needs to be called regularly
-            aa.refresh();
+            // clicks the IME sent back since the last event
+            aa.performRejectedIMEClicks();
 
             mAction = aa.getAction();
 
@@ -0,0 +1,106 @@
+/*
+ * Enable Viacam for Android, a camera based mouse emulator
+ *
+ * Copyright (C) 2015-17 Cesar Mauri Loba (CREA Software Systems)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.crea_si.eviacam.a11yservice;
+
+/**
+ * Adaptive delay of the scrolling nodes scan
+ *
+ * Accessibility events come in bursts or, during animations, in steady
+ * streams. For each event the delay is twice the smoothed interval between
+ * events, bounded between the min and run delays, so that a steady stream is
+ * coalesced in a single scan whereas after a short burst the scan runs min
+ * delay ms after the last event. An isolated event, which often starts a
+ * burst, resets the interval to the min delay and thus waits twice as long.
+ * In any case a scan runs at most max wait ms after the first event not
+ * covered by a previous scan.
+ *
+ * Times are in ms and are provided by the caller. Pure Java. onEvent is
+ * expected to be called always from the same thread, onScanStarted and
+ * reset may be called from any thread.
+ */
+class ScanDebouncer {
+    private final long mMinDelay;
+    private final long mRunDelay;
+    private final long mMaxWait;
+
+    // time stamp of the last event
+    private long mLastEventTStamp= 0;
+
+    // smoothed interval between events
+    private long mEventInterval;
+
+    // time stamp of the first event not yet covered by a scan, 0 when none
+    private volatile long mFirstPendingEventTStamp= 0;
+
+    /**
+     * @param minDelay - shortest delay, used after isolated events
+     * @param runDelay - longest delay, events further apart than this are isolated
+     * @param maxWait - longest time a stream of events can postpone the scan
+     */
+    ScanDebouncer(long minDelay, long runDelay, long maxWait) {
+        if (minDelay < 0 || runDelay < minDelay || maxWait < minDelay) {
+            throw new IllegalArgumentException("Invalid delays");
+        }
+        mMinDelay= minDelay;
+        mRunDelay= runDelay;
+        mMaxWait= maxWait;
+        mEventInterval= minDelay;
+    }
+
+    /**
+     * Compute the delay of the scan for an event
+     *
+     * @param now - time of the event
+     * @return delay in ms after which the scan should run, superseding
+     *         the pending one
+     */
+    long onEvent(long now) {
+        final long interval= now - mLastEventTStamp;
+        mLastEventTStamp= now;
+
+        if (interval >= mRunDelay) {
+            // isolated event, start over
+            mEventInterval= mMinDelay;
+        }
+        else {
+            mEventInterval= (3 * mEventInterval + interval) / 4;
+        }
+
+        final long delay= Math.max(mMinDelay, Math.min(mRunDelay, 2 * mEventInterval));
+
+        if (mFirstPendingEventTStamp == 0) mFirstPendingEventTStamp= now;
+        final long remaining= mFirstPendingEventTStamp + mMaxWait - now;
+
+        return Math.max(0, Math.min(delay, remaining));
+    }
+
+    /**
+     * The scan started, it covers the events received so far
+     */
+    void onScanStarted() {
+        mFirstPendingEventTStamp= 0;
+    }
+
+    /**
+     * The pending scan has been cancelled
+     */
+    void reset() {
+        mFirstPendingEventTStamp= 0;
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * Enable Viacam for Android, a camera based mouse emulator
+ *
+ * Copyright (C) 2015-17 Cesar Mauri Loba (CREA Software Systems)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.crea_si.eviacam.a11yservice;
+
+import androidx.annotation.NonNull;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Matching between the scroll areas shown and the result of a new scan
+ *
+ * An area is kept when some node of the new result is the same node with
+ * the same bounds and actions, otherwise it is removed. The nodes not matched
+ * by any area are the ones to add. Used areas are kept at the beginning of
+ * the list so that the removed ones can be reused afterwards.
+ *
+ * The nodes are accessed through a NodeSource so that it does not depend on
+ * AccessibilityNodeInfo. Pure Java, not thread safe.
+ *
+ * @param <N> node type
+ * @param <A> area type
+ */
+class ScrollAreasDiff<N, A extends ScrollAreasDiff.Area<N>> {
+    /**
+     * Access to the nodes
+     */
+    interface NodeSource<N> {
+        int getActions(@NonNull N node);
+        void getBoundsInScreen(@NonNull N node, @NonNull int[] out);
+    }
+
+    /**
+     * Called for each area which is no longer present, before reusing its slot
+     */
+    interface RemoveListener<A> {
+        void onRemoved(@NonNull A area);
+    }
+
+    /**
+     * Scroll area, the node and its bounds and actions when the area was added
+     */
+    static class Area<N> {
+        N node;
+        // left, top, right, bottom
+        final int[] bounds= new int[4];
+        int actions;
+
+        /** Store the current bounds and actions of the node */
+        void set(@NonNull N node, @NonNull NodeSource<N> source) {
+            this.node= node;
+            this.actions= source.getActions(node);
+            source.getBoundsInScreen(node, bounds);
+        }
+    }
+
+    private final NodeSource<N> mSource;
+
+    // nodes of the last update which matched an area
+    private boolean[] mRetained= new boolean[16];
+
+    private int mRemoved;
+
+    // avoid allocating each time bounds are compared
+    private final int[] mTmp= new int[4];
+
+    ScrollAreasDiff(@NonNull NodeSource<N> source) {
+        mSource= source;
+    }
+
+    /**
+     * Remove the areas which are not present in the new nodes
+     *
+     * @param areas - the areas, the ones in use at the beginning of the list
+     * @param count - number of areas in use
+     * @param nodes - result of the new scan
+     * @param listener - notified of each removed area
+     * @return number of areas in use after the removal. The kept ones refer to
+     *         the newest node object.
+     */
+    int retain(@NonNull List<A> areas, int count, @NonNull List<N> nodes,
+               @NonNull RemoveListener<A> listener) {
+        final int size= nodes.size();
+        if (mRetained.length < size) mRetained= new boolean[Math.max(size, 2 * mRetained.length)];
+        Arrays.fill(mRetained, 0, size, false);
+        mRemoved= 0;
+
+        int i= 0;
+        while (i< count) {
+            A area= areas.get(i);
+            int match= findMatchingNode(area, nodes);
+            if (match>= 0) {
+                area.node= nodes.get(match);
+                mRetained[match]= true;
+                i++;
+                continue;
+            }
+
+            listener.onRemoved(area);
+            area.node= null;
+
+            // move the free slot after the used ones
+            count--;
+            Collections.swap(areas, i, count);
+            mRemoved++;
+        }
+
+        return count;
+    }
+
+    @NonNull
+    NodeSource<N> getSource() {
+        return mSource;
+    }
+
+    /**
+     * Whether a node of the last call to retain matched an area, i.e. it
+     * must not be added
+     */
+    boolean isRetained(int index) {
+        return mRetained[index];
+    }
+
+    /**
+     * Number of areas removed by the last call to retain
+     */
+    int getRemoved() {
+        return mRemoved;
+    }
+
+    /** Find a node not already matched which is the same than the one of the area */
+    private int findMatchingNode(@NonNull A area, @NonNull List<N> nodes) {
+        for (int j= 0; j< nodes.size(); j++) {
+            if (mRetained[j]) continue;
+            N n= nodes.get(j);
+            if (n == null || !n.equals(area.node) || mSource.getActions(n) != area.actions) {
+                continue;
+            }
+            mSource.getBoundsInScreen(n, mTmp);
+            if (Arrays.equals(mTmp, area.bounds)) return j;
+        }
+        return -1;
+    }
+}
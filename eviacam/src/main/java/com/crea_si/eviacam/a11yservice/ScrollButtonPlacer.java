@@ -0,0 +1,239 @@
+/*
+ * Enable Viacam for Android, a camera based mouse emulator
+ *
+ * Copyright (C) 2015-17 Cesar Mauri Loba (CREA Software Systems)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.crea_si.eviacam.a11yservice;
+
+import java.util.Arrays;
+
+/**
+ * Places equally sized buttons so that they do not overlap
+ *
+ * Placed buttons are bucketed by x in columns as wide as a button, so the
+ * ones which might overlap horizontally with a new button are those of its
+ * column and the two adjacent ones. Each column keeps its buttons sorted by
+ * y, i.e. it is a sorted list of the vertical intervals they take. The
+ * vertical position of the new button is obtained by merging the three
+ * columns in y order, moving down (or up) past each button it collides with,
+ * so a placement never sorts and only visits the buttons it might collide with.
+ *
+ * Pure Java, not thread safe.
+ */
+class ScrollButtonPlacer {
+    /** Buttons of a column sorted by y */
+    private static class Column {
+        int[] xs= new int[8];
+        int[] ys= new int[8];
+        int count= 0;
+
+        /** Index of the first button whose y is greater or equal than the given one */
+        int lowerBound(int y) {
+            int lo= 0, hi= count;
+            while (lo < hi) {
+                final int mid= (lo + hi) >>> 1;
+                if (ys[mid] < y) lo= mid + 1;
+                else hi= mid;
+            }
+            return lo;
+        }
+
+        void insert(int x, int y) {
+            if (count == ys.length) {
+                xs= Arrays.copyOf(xs, count * 2);
+                ys= Arrays.copyOf(ys, count * 2);
+            }
+            final int pos= lowerBound(y);
+            System.arraycopy(xs, pos, xs, pos + 1, count - pos);
+            System.arraycopy(ys, pos, ys, pos + 1, count - pos);
+            xs[pos]= x;
+            ys[pos]= y;
+            count++;
+        }
+
+        boolean remove(int x, int y) {
+            for (int i= lowerBound(y); i< count && ys[i] == y; i++) {
+                if (xs[i] == x) {
+                    System.arraycopy(xs, i + 1, xs, i, count - i - 1);
+                    System.arraycopy(ys, i + 1, ys, i, count - i - 1);
+                    count--;
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    private int mWidth;
+    private int mHeight;
+
+    // columns, mColumns[i] holds the buttons whose x / mWidth is mFirstColumn + i
+    private Column[] mColumns= new Column[0];
+    private int mFirstColumn= 0;
+    private int mCount= 0;
+
+    // columns and cursors of the current placement
+    private final Column[] mMerge= new Column[3];
+    private final int[] mCursors= new int[3];
+
+    ScrollButtonPlacer(int width, int height) {
+        setButtonSize(width, height);
+    }
+
+    /**
+     * Set the size of the buttons, removes all placed buttons
+     */
+    void setButtonSize(int width, int height) {
+        if (width <= 0 || height <= 0) {
+            throw new IllegalArgumentException("Invalid button size: " + width + "x" + height);
+        }
+        mWidth= width;
+        mHeight= height;
+        mColumns= new Column[0];
+        mFirstColumn= 0;
+        mCount= 0;
+    }
+
+    void clear() {
+        for (Column c : mColumns) {
+            if (c != null) c.count= 0;
+        }
+        mCount= 0;
+    }
+
+    int size() {
+        return mCount;
+    }
+
+    /**
+     * Place a button at (x, y) or, if it overlaps, at the nearest free
+     * position below
+     *
+     * @return the y coordinate of the placed button
+     */
+    int placeBelow(int x, int y) {
+        prepareMerge(x);
+        // skip the buttons completely above
+        for (int k= 0; k< 3; k++) {
+            if (mMerge[k] != null) mCursors[k]= mMerge[k].lowerBound(y - mHeight + 1);
+        }
+        while (true) {
+            // next button by increasing y which overlaps horizontally
+            int next= -1, nextY= 0;
+            for (int k= 0; k< 3; k++) {
+                final Column c= mMerge[k];
+                if (c == null) continue;
+                int i= mCursors[k];
+                while (i< c.count && !overlapsX(c.xs[i], x)) i++;
+                mCursors[k]= i;
+                if (i< c.count && (next< 0 || c.ys[i] < nextY)) {
+                    next= k;
+                    nextY= c.ys[i];
+                }
+            }
+            if (next< 0 || nextY >= y + mHeight) break;   // none or all below
+            mCursors[next]++;
+            if (nextY + mHeight <= y) continue;            // above
+            y= nextY + mHeight;
+        }
+        insert(x, y);
+        return y;
+    }
+
+    /**
+     * Place a button at (x, y) or, if it overlaps, at the nearest free
+     * position above
+     *
+     * @return the y coordinate of the placed button
+     */
+    int placeAbove(int x, int y) {
+        prepareMerge(x);
+        // skip the buttons completely below
+        for (int k= 0; k< 3; k++) {
+            if (mMerge[k] != null) mCursors[k]= mMerge[k].lowerBound(y + mHeight) - 1;
+        }
+        while (true) {
+            // next button by decreasing y which overlaps horizontally
+            int next= -1, nextY= 0;
+            for (int k= 0; k< 3; k++) {
+                final Column c= mMerge[k];
+                if (c == null) continue;
+                int i= mCursors[k];
+                while (i>= 0 && !overlapsX(c.xs[i], x)) i--;
+                mCursors[k]= i;
+                if (i>= 0 && (next< 0 || c.ys[i] > nextY)) {
+                    next= k;
+                    nextY= c.ys[i];
+                }
+            }
+            if (next< 0 || nextY + mHeight <= y) break;   // none or all above
+            mCursors[next]--;
+            if (nextY >= y + mHeight) continue;            // below
+            y= nextY - mHeight;
+        }
+        insert(x, y);
+        return y;
+    }
+
+    /**
+     * Remove a button previously placed at (x, y)
+     *
+     * @return false if not found
+     */
+    boolean remove(int x, int y) {
+        final int i= Math.floorDiv(x, mWidth) - mFirstColumn;
+        if (i< 0 || i>= mColumns.length || mColumns[i] == null) return false;
+        if (!mColumns[i].remove(x, y)) return false;
+        mCount--;
+        return true;
+    }
+
+    private boolean overlapsX(int cx, int x) {
+        return cx > x - mWidth && cx < x + mWidth;
+    }
+
+    /** Store in mMerge the column of x and the adjacent ones */
+    private void prepareMerge(int x) {
+        final int column= Math.floorDiv(x, mWidth);
+        for (int k= 0; k< 3; k++) {
+            final int i= column - 1 + k - mFirstColumn;
+            mMerge[k]= (i >= 0 && i< mColumns.length)? mColumns[i] : null;
+        }
+    }
+
+    private void insert(int x, int y) {
+        final int column= Math.floorDiv(x, mWidth);
+        if (mColumns.length == 0) {
+            mColumns= new Column[1];
+            mFirstColumn= column;
+        }
+        else if (column< mFirstColumn) {
+            final Column[] columns= new Column[mColumns.length + mFirstColumn - column];
+            System.arraycopy(mColumns, 0, columns, mFirstColumn - column, mColumns.length);
+            mColumns= columns;
+            mFirstColumn= column;
+        }
+        else if (column - mFirstColumn >= mColumns.length) {
+            mColumns= Arrays.copyOf(mColumns, column - mFirstColumn + 1);
+        }
+
+        final int i= column - mFirstColumn;
+        if (mColumns[i] == null) mColumns[i]= new Column();
+        mColumns[i].insert(x, y);
+        mCount++;
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Enable Viacam for Android, a camera based mouse emulator
+ *
+ * Copyright (C) 2015-17 Cesar Mauri Loba (CREA Software Systems)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.crea_si.eviacam.a11yservice;
+
+import android.view.accessibility.AccessibilityNodeInfo;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Immutable table of the visible scroll buttons for hit testing
+ *
+ * Built in full by the thread which updates the buttons and then published
+ * through a volatile reference, so that any thread can query it without
+ * locking. Rectangles are in screen coordinates with inclusive bounds (as
+ * ViewUtils.isPointInsideView).
+ */
+final class ScrollHitTable {
+    static final ScrollHitTable EMPTY= new Builder(0).build();
+
+    private final int[] mRects;
+    private final AccessibilityNodeInfo[] mNodes;
+    private final int[] mActions;
+
+    private ScrollHitTable(@NonNull Builder b) {
+        mRects= b.mRects;
+        mNodes= b.mNodes;
+        mActions= b.mActions;
+    }
+
+    int size() {
+        return mActions.length;
+    }
+
+    /**
+     * Find the first button which contains the point
+     *
+     * @param result where the node and the action of the button are stored
+     * @return true if found, false otherwise
+     */
+    boolean find(int x, int y, @NonNull ScrollLayerView.NodeAction result) {
+        final int[] r= mRects;
+        for (int i= 0; i< mActions.length; i++) {
+            final int base= i * 4;
+            if (x >= r[base] && y >= r[base + 1] && x <= r[base + 2] && y <= r[base + 3]) {
+                result.node= mNodes[i];
+                result.actions= mActions[i];
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Fills a table with a known number of buttons. Not to be used after build().
+     */
+    static final class Builder {
+        private final int[] mRects;
+        private final AccessibilityNodeInfo[] mNodes;
+        private final int[] mActions;
+        private int mCount= 0;
+
+        Builder(int capacity) {
+            mRects= new int[capacity * 4];
+            mNodes= new AccessibilityNodeInfo[capacity];
+            mActions= new int[capacity];
+        }
+
+        Builder add(int left, int top, int right, int bottom,
+                    AccessibilityNodeInfo node, int action) {
+            final int base= mCount * 4;
+            mRects[base]= left;
+            mRects[base + 1]= top;
+            mRects[base + 2]= right;
+            mRects[base + 3]= bottom;
+            mNodes[mCount]= node;
+            mActions[mCount]= action;
+            mCount++;
+            return this;
+        }
+
+        @NonNull
+        ScrollHitTable build() {
+            if (mCount != mActions.length) {
+                throw new IllegalStateException("Expected " + mActions.length +
+                        " buttons, got " + mCount);
+            }
+            return new ScrollHitTable(this);
+        }
+    }
+}
@@ -39,7 +39,6 @@ import androidx.annotation.Nullable;
 import com.crea_si.eviacam.R;
 import com.crea_si.eviacam.common.EVIACAM;
 import com.crea_si.eviacam.common.Preferences;
-import com.crea_si.eviacam.util.ViewUtils;
 
 import java.util.ArrayList;
 import java.util.List;
@@ -51,23 +50,21 @@ public class ScrollLayerView extends RelativeLayout implements OnSharedPreferenc
 
     private static final String TAG = "ScrollLayerView";
     
-    class NodeAction {
+    /** Result of getContaining, provided by the caller so that it can be reused */
+    static class NodeAction {
         AccessibilityNodeInfo node;
         public int actions;
-        
-        NodeAction(AccessibilityNodeInfo n, int a) {
-            this.node= n;
-            this.actions= a;
-        }
     }
     
     /** Class to store button with a NodeAction */
-    private class ButtonNodeAction {
-        AccessibilityNodeInfo node;
+    private static class ButtonNodeAction extends ScrollAreasDiff.Area<AccessibilityNodeInfo> {
         ImageButton buttonForward;
         ImageButton buttonBackward;
+        // positions of the buttons (relative to this view) when visible
+        int forwardX, forwardY;
+        int backwardX, backwardY;
     }
-    
+
     /** Button size in device pixels */
     private static final int SCROLL_BUTTON_WIDTH_DP= 35;
     private static final int SCROLL_BUTTON_HEIGHT_DP= 35;
@@ -79,6 +76,45 @@ public class ScrollLayerView extends RelativeLayout implements OnSharedPreferenc
     // scroll areas
     private List<ButtonNodeAction> mScrollAreas = new ArrayList<>();
     private int mScrollAreasCount = 0;
+
+    // avoid creating an object each time bounds are read
+    private final Rect mTmpRect= new Rect();
+
+    // matching of the areas shown with the result of a new scan
+    private final ScrollAreasDiff<AccessibilityNodeInfo, ButtonNodeAction> mAreasDiff=
+            new ScrollAreasDiff<>(new ScrollAreasDiff.NodeSource<AccessibilityNodeInfo>() {
+        @Override
+        public int getActions(@NonNull AccessibilityNodeInfo node) {
+            return node.getActions();
+        }
+
+        @Override
+        public void getBoundsInScreen(@NonNull AccessibilityNodeInfo node, @NonNull int[] out) {
+            node.getBoundsInScreen(mTmpRect);
+            out[0]= mTmpRect.left;
+            out[1]= mTmpRect.top;
+            out[2]= mTmpRect.right;
+            out[3]= mTmpRect.bottom;
+        }
+    });
+
+    private final ScrollAreasDiff.RemoveListener<ButtonNodeAction> mHideButtons=
+            new ScrollAreasDiff.RemoveListener<ButtonNodeAction>() {
+        @Override
+        public void onRemoved(@NonNull ButtonNodeAction area) {
+            hideButtons(area);
+        }
+    };
+
+    // computes non overlapping positions for the buttons
+    private final ScrollButtonPlacer mPlacer= new ScrollButtonPlacer(1, 1);
+
+    // visible buttons, read without locking from the mouse event thread
+    private volatile ScrollHitTable mHitTable= ScrollHitTable.EMPTY;
+
+    // location of this view on the screen (main thread only)
+    private final int[] mScreenLocation= new int[2];
+    private final int[] mTmpLocation= new int[2];
     
     public ScrollLayerView(@NonNull Context c) {
         super(c);
@@ -95,6 +131,7 @@ public class ScrollLayerView extends RelativeLayout implements OnSharedPreferenc
         // Force buttons full refresh
         clearScrollAreas();
         mScrollAreas.clear();
+        mPlacer.setButtonSize(getScrollButtonWidth(), getScrollButtonHeight());
     }
     
     public void cleanup() {
@@ -113,24 +150,65 @@ public class ScrollLayerView extends RelativeLayout implements OnSharedPreferenc
      * Gets the NodeAction pair containing a given point
      * 
      * @param p - the point in screen coordinates
-     * @return a NodeAction object if found, null otherwise
+     * @param result - object where the node and the action are stored
+     * @return true if found, false otherwise
      * 
-     * Remarks: this method might be called safely from a secondary thread 
+     * Remarks: this method might be called safely from a secondary thread,
+     * it neither locks nor allocates memory
+     */
+    public boolean getContaining(@NonNull Point p, @NonNull NodeAction result)  {
+        return mHitTable.find(p.x, p.y, result);
+    }
+
+    /**
+     * Build a new hit table from the visible buttons and publish it. Keeps the
+     * order of the former search over the views: areas in order, backward button
+     * first. Main thread only.
      */
-    public synchronized NodeAction getContaining(@NonNull Point p)  {
+    private void publishHitTable() {
+        int count= 0;
         for (int i= 0; i< mScrollAreasCount; i++) {
             ButtonNodeAction bna= mScrollAreas.get(i);
-            if ((bna.buttonBackward.getVisibility() == View.VISIBLE) &&
-                    ViewUtils.isPointInsideView(p, bna.buttonBackward)) {
-                return new NodeAction(bna.node, AccessibilityNodeInfo.ACTION_SCROLL_BACKWARD);
+            if (bna.buttonBackward.getVisibility() == View.VISIBLE) count++;
+            if (bna.buttonForward.getVisibility() == View.VISIBLE) count++;
+        }
+
+        final ScrollHitTable.Builder ht= new ScrollHitTable.Builder(count);
+        final int width= getScrollButtonWidth();
+        final int height= getScrollButtonHeight();
+        for (int i= 0; i< mScrollAreasCount; i++) {
+            ButtonNodeAction bna= mScrollAreas.get(i);
+            if (bna.buttonBackward.getVisibility() == View.VISIBLE) {
+                addHitEntry(ht, bna.backwardX, bna.backwardY, width, height, bna.node,
+                        AccessibilityNodeInfo.ACTION_SCROLL_BACKWARD);
             }
-            if ((bna.buttonForward.getVisibility() == View.VISIBLE) &&
-                    ViewUtils.isPointInsideView(p, bna.buttonForward)) {
-                return new NodeAction(bna.node, AccessibilityNodeInfo.ACTION_SCROLL_FORWARD);
+            if (bna.buttonForward.getVisibility() == View.VISIBLE) {
+                addHitEntry(ht, bna.forwardX, bna.forwardY, width, height, bna.node,
+                        AccessibilityNodeInfo.ACTION_SCROLL_FORWARD);
             }
         }
 
-        return null;
+        mHitTable= ht.build();
+    }
+
+    private void addHitEntry(@NonNull ScrollHitTable.Builder ht, int x, int y,
+                             int width, int height, AccessibilityNodeInfo node, int action) {
+        ht.add(mScreenLocation[0] + x, mScreenLocation[1] + y,
+                mScreenLocation[0] + x + width, mScreenLocation[1] + y + height, node, action);
+    }
+
+    // main thread only, getContaining just reads the published hit table
+    @Override
+    protected void onLayout(boolean changed, int l, int t, int r, int b) {
+        super.onLayout(changed, l, t, r, b);
+
+        // hit table is in screen coordinates, update it when this view moves
+        getLocationOnScreen(mTmpLocation);
+        if (mTmpLocation[0] != mScreenLocation[0] || mTmpLocation[1] != mScreenLocation[1]) {
+            mScreenLocation[0]= mTmpLocation[0];
+            mScreenLocation[1]= mTmpLocation[1];
+            publishHitTable();
+        }
     }
     
     /** Remove all scrollable areas */
@@ -144,8 +222,48 @@ public class ScrollLayerView extends RelativeLayout implements OnSharedPreferenc
         }
         
         mScrollAreasCount= 0;
+        mPlacer.clear();
+        publishHitTable();
     }
     
+    /**
+     * Replace the scrollable areas by a new set. Only the buttons of the areas
+     * which appeared, disappeared or changed (bounds or actions) are touched,
+     * the remaining ones stay where they are.
+     *
+     * @param nodes - the nodes of the scrollable areas
+     */
+    public synchronized void updateScrollAreas(@NonNull List<AccessibilityNodeInfo> nodes) {
+        /* Remove areas which are no longer present, the kept ones use the newest node */
+        mScrollAreasCount= mAreasDiff.retain(mScrollAreas, mScrollAreasCount, nodes, mHideButtons);
+
+        /* Add new ones */
+        int added= 0;
+        for (int j= 0; j< nodes.size(); j++) {
+            if (mAreasDiff.isRetained(j)) continue;
+            addScrollArea(nodes.get(j));
+            added++;
+        }
+
+        publishHitTable();
+
+        Log.d(EVIACAM.TAG+"->"+TAG, "Scroll areas updated. Added: " + added +
+                " Removed: " + mAreasDiff.getRemoved() + " Total: " + mScrollAreasCount);
+    }
+
+    /** Hide the buttons of an area and release their positions */
+    private void hideButtons(@NonNull ButtonNodeAction bna) {
+        bna.node = null;
+        if (bna.buttonBackward.getVisibility() == View.VISIBLE) {
+            mPlacer.remove(bna.backwardX, bna.backwardY);
+            bna.buttonBackward.setVisibility(View.GONE);
+        }
+        if (bna.buttonForward.getVisibility() == View.VISIBLE) {
+            mPlacer.remove(bna.forwardX, bna.forwardY);
+            bna.buttonForward.setVisibility(View.GONE);
+        }
+    }
+
     private int getScrollButtonWidth() {
         return (int) (TypedValue.applyDimension(TypedValue.COMPLEX_UNIT_DIP,
                 SCROLL_BUTTON_WIDTH_DP, getResources().getDisplayMetrics()) * mSizeMultiplier);
@@ -175,11 +293,6 @@ public class ScrollLayerView extends RelativeLayout implements OnSharedPreferenc
         return b;
     }
     
-    /** Check if two rectangles overlap */
-    static private boolean overlaps (int x1, int x2, int y1, int y2, int width, int height) {
-        return y1 < y2 + height && y1 + height > y2 && x1 < x2 + width && x1 + width > x2;
-    }
-    
     /** Set the position of a button */
     private void setButtonPosition(@NonNull ImageButton b, int x, int y) {
         Log.d(EVIACAM.TAG+"->"+TAG, "Scroll button (" + x + ", " + y + ")");
@@ -195,7 +308,7 @@ public class ScrollLayerView extends RelativeLayout implements OnSharedPreferenc
      * @param node - the node of the scrollable area
      */
 
-    public synchronized void addScrollArea(@Nullable AccessibilityNodeInfo node) {
+    private void addScrollArea(@Nullable AccessibilityNodeInfo node) {
         if (node == null || !node.isScrollable()) return;
 
         /* Grow the list when necessary */
@@ -205,7 +318,6 @@ public class ScrollLayerView extends RelativeLayout implements OnSharedPreferenc
         
         // Pick last element from the list
         final ButtonNodeAction bna= mScrollAreas.get(mScrollAreasCount++);
-        bna.node= node;
         
         /* Create buttons if needed */
         if (bna.buttonBackward == null) {
@@ -223,22 +335,22 @@ public class ScrollLayerView extends RelativeLayout implements OnSharedPreferenc
           Set visibility and position of the scroll buttons
 
           We take into account whether they are really needed (i.e. support the corresponding
-          action) and the position of the buttons placed previously. We just move the button
-          down (or up) if it overlaps with previously placed buttons. This does not guarantee
-          that buttons will never overlap, but will probably work in most cases.
+          action) and the position of the buttons placed previously. The button is moved
+          down (or up) to the nearest position where it does not overlap with previously
+          placed buttons (see ScrollButtonPlacer).
          */
-        final Rect tmpRect = new Rect();
-        node.getBoundsInScreen(tmpRect);
+        bna.set(node, mAreasDiff.getSource());
+        final int[] bounds = bna.bounds;
         
         final int width = getScrollButtonWidth();
         final int height = getScrollButtonHeight();
         
-        final int actions = node.getActions();
+        final int actions = bna.actions;
         
         /* Scroll backward buttons */
         if ((actions & AccessibilityNodeInfo.ACTION_SCROLL_BACKWARD) != 0) {
-            int x = tmpRect.left;
-            int y = tmpRect.top;
+            int x = bounds[0];
+            int y = bounds[1];
 
             /* Make sure the button is drawn inside the view */
             if (x < getX()) {
@@ -248,13 +360,9 @@ public class ScrollLayerView extends RelativeLayout implements OnSharedPreferenc
                 y= (int) getY();
             }
 
-            for (int i= 0; i< mScrollAreasCount; i++) {
-                ImageButton other_button= mScrollAreas.get(i).buttonBackward;
-                if (other_button.getVisibility() != View.VISIBLE) continue;
-                if (overlaps(x, other_button.getLeft(), y, other_button.getTop(), width, height)) {
-                    y+= height; // move down
-                }
-            }
+            y= mPlacer.placeBelow(x, y);
+            bna.backwardX= x;
+            bna.backwardY= y;
 
             setButtonPosition(bna.buttonBackward, x, y);
             bna.buttonBackward.setVisibility(View.VISIBLE);
@@ -265,8 +373,8 @@ public class ScrollLayerView extends RelativeLayout implements OnSharedPreferenc
         
         /* Scroll forward buttons */
         if ((actions & AccessibilityNodeInfo.ACTION_SCROLL_FORWARD) != 0) {
-            int x = tmpRect.right - width;
-            int y = tmpRect.bottom - height;
+            int x = bounds[2] - width;
+            int y = bounds[3] - height;
 
             /* Make sure the button is drawn inside the view */
             if (x + width> getX() + getWidth()) {
@@ -276,14 +384,10 @@ public class ScrollLayerView extends RelativeLayout implements OnSharedPreferenc
                 y= (int) getY() + getHeight() - height;
             }
 
-            for (int i= 0; i< mScrollAreasCount; i++) {
-                ImageButton other_button= mScrollAreas.get(i).buttonForward;
-                if (other_button.getVisibility() != View.VISIBLE) continue;
-                if (overlaps(x, other_button.getLeft(), y, other_button.getTop(), width, height)) {
-                    y-= height; // move up
-                }
-            }
-            
+            y= mPlacer.placeAbove(x, y);
+            bna.forwardX= x;
+            bna.forwardY= y;
+
             setButtonPosition(bna.buttonForward, x, y);
             bna.buttonForward.setVisibility(View.VISIBLE);
         }
@@ -0,0 +1,150 @@
+/*
+ * Enable Viacam for Android, a camera based mouse emulator
+ *
+ * Copyright (C) 2015-17 Cesar Mauri Loba (CREA Software Systems)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.crea_si.eviacam.a11yservice;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Search of the nodes for which scroll buttons are shown
+ *
+ * Each scan request or cancellation bumps a generation counter. A walk of the
+ * tree stops as soon as the counter changes and its results are discarded, so
+ * that only the results of the latest request are ever applied.
+ *
+ * The node tree is accessed through a NodeSource so that the search does not
+ * depend on AccessibilityNodeInfo.
+ *
+ * @param <N> node type
+ */
+class ScrollingNodesScan<N> {
+    /**
+     * Access to the node tree
+     */
+    interface NodeSource<N> {
+        boolean isVisibleToUser(@NonNull N node);
+        @Nullable CharSequence getClassName(@NonNull N node);
+        int getActions(@NonNull N node);
+        int getChildCount(@NonNull N node);
+        @Nullable N getChild(@NonNull N node, int index);
+    }
+
+    /**
+     * Outcome of a scan which has not been superseded while running
+     */
+    static final class Result<N> {
+        final int generation;
+        final List<N> nodes;
+        // some node of the excluded class has been found
+        final boolean excludedFound;
+
+        Result(int generation, @NonNull List<N> nodes, boolean excludedFound) {
+            this.generation= generation;
+            this.nodes= nodes;
+            this.excludedFound= excludedFound;
+        }
+    }
+
+    private final NodeSource<N> mSource;
+
+    // bitmask of the actions of the nodes searched
+    private final int mActions;
+
+    // class name of the nodes whose subtree is skipped, null to not exclude anything
+    private final String mExclude;
+
+    private final AtomicInteger mGeneration= new AtomicInteger();
+
+    ScrollingNodesScan(@NonNull NodeSource<N> source, int actions, @Nullable String exclude) {
+        mSource= source;
+        mActions= actions;
+        mExclude= exclude;
+    }
+
+    /**
+     * Supersede the pending or running scan. Thread safe.
+     */
+    void invalidate() {
+        mGeneration.incrementAndGet();
+    }
+
+    /**
+     * Whether the results of a scan are still the latest ones. Thread safe.
+     */
+    boolean isCurrent(int generation) {
+        return generation == mGeneration.get();
+    }
+
+    /**
+     * Search the tree
+     *
+     * @param root node to start from, null to produce an empty result (e.g. to
+     *             remove the buttons while the scan is disabled)
+     * @return the result or null if superseded while running
+     */
+    @Nullable
+    Result<N> run(@Nullable N root) {
+        final int generation= mGeneration.get();
+        final List<N> nodes;
+        boolean excluded= false;
+        if (root == null) {
+            nodes= Collections.emptyList();
+        }
+        else {
+            nodes= new ArrayList<>();
+            excluded= findNodes(nodes, root, generation);
+        }
+
+        if (!isCurrent(generation)) return null;
+
+        return new Result<>(generation, nodes, excluded);
+    }
+
+    /**
+     * Finds recursively all nodes that support some of the actions
+     *
+     * @return if some node has been excluded
+     */
+    private boolean findNodes(List<N> result, @Nullable N node, int generation) {
+        if (!isCurrent(generation)) return false;
+        if (node == null || !mSource.isVisibleToUser(node)) return false;
+        if (mExclude != null) {
+            CharSequence className= mSource.getClassName(node);
+            if (className != null && className.toString().equals(mExclude)) return true;
+        }
+        if ((mSource.getActions(node) & mActions) != 0) {
+            result.add(node);
+        }
+
+        // propagate calls to children
+        final int childCount= mSource.getChildCount(node);
+        boolean excluded= false;
+        for (int i= 0; i < childCount; i++) {
+            excluded= findNodes(result, mSource.getChild(node, i), generation) || excluded;
+        }
+
+        return excluded;
+    }
+}
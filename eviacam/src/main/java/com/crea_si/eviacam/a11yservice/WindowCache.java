@@ -0,0 +1,195 @@
+/*
+ * Enable Viacam for Android, a camera based mouse emulator
+ *
+ * Copyright (C) 2015-17 Cesar Mauri Loba (CREA Software Systems)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.crea_si.eviacam.a11yservice;
+
+import android.accessibilityservice.AccessibilityService;
+import android.graphics.Point;
+import android.graphics.Rect;
+import android.util.Log;
+import android.view.accessibility.AccessibilityNodeInfo;
+import android.view.accessibility.AccessibilityWindowInfo;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.crea_si.eviacam.common.EVIACAM;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Cache of the interactive windows and their root nodes
+ *
+ * Looking for the window below the pointer requires calling getWindows() and
+ * fetching the root node of each window, which means several binder calls for
+ * each click. The list only changes when the system reports it (i.e. a
+ * TYPE_WINDOWS_CHANGED event), so it is kept until invalidate() is called.
+ *
+ * Windows are obtained through a WindowSource, see forService().
+ *
+ * Thread safety: lookups come from the mouse event thread whereas
+ * invalidation is requested from the main thread, all methods synchronized.
+ *
+ * @param <N> type of the root nodes
+ */
+class WindowCache<N> {
+    private static final String TAG = "WindowCache";
+
+    /**
+     * Window as reported by a WindowSource. Bounds follow the Rect convention.
+     */
+    static final class Window<N> {
+        final int layer;
+        // left, top, right, bottom
+        final int[] windowBounds= new int[4];
+        // null when the window has no root node
+        @Nullable N root;
+        final int[] rootBounds= new int[4];
+
+        Window(int layer) {
+            this.layer= layer;
+        }
+
+        private static boolean contains(int[] b, int x, int y) {
+            return b[0] < b[2] && b[1] < b[3] &&
+                    x >= b[0] && x < b[2] && y >= b[1] && y < b[3];
+        }
+    }
+
+    /**
+     * Provides the current windows
+     */
+    interface WindowSource<N> {
+        /**
+         * @param out list where the windows, in any order, are added
+         */
+        void getWindows(@NonNull List<Window<N>> out);
+    }
+
+    /**
+     * Source of the windows reported by an accessibility service
+     */
+    static WindowSource<AccessibilityNodeInfo> forService(@NonNull final AccessibilityService as) {
+        return new WindowSource<AccessibilityNodeInfo>() {
+            private final Rect mTmpRect= new Rect();
+
+            @Override
+            public void getWindows(@NonNull List<Window<AccessibilityNodeInfo>> out) {
+                for (AccessibilityWindowInfo awi : as.getWindows()) {
+                    Window<AccessibilityNodeInfo> w= new Window<>(awi.getLayer());
+                    awi.getBoundsInScreen(mTmpRect);
+                    setBounds(w.windowBounds, mTmpRect);
+                    w.root= awi.getRoot();
+                    if (w.root != null) {
+                        w.root.getBoundsInScreen(mTmpRect);
+                        setBounds(w.rootBounds, mTmpRect);
+                    }
+                    out.add(w);
+                }
+            }
+
+            private void setBounds(int[] b, Rect r) {
+                b[0]= r.left;
+                b[1]= r.top;
+                b[2]= r.right;
+                b[3]= r.bottom;
+            }
+        };
+    }
+
+    // topmost first
+    private final Comparator<Window<N>> mZOrder= new Comparator<Window<N>>() {
+        @Override
+        public int compare(Window<N> a, Window<N> b) {
+            return Integer.compare(b.layer, a.layer);
+        }
+    };
+
+    private final WindowSource<N> mSource;
+
+    private final List<Window<N>> mWindows= new ArrayList<>();
+    private boolean mValid= false;
+
+    // statistics
+    private int mHits= 0;
+    private int mMisses= 0;
+
+    WindowCache(@NonNull WindowSource<N> source) {
+        mSource= source;
+    }
+
+    /**
+     * Find the root node of the topmost window containing a point
+     *
+     * Sometimes windows bounds are larger than root bounds, so a window
+     * is only picked when the bounds of its root also contain the point.
+     *
+     * @param p point in screen coordinates
+     * @return the root node or null if not found
+     */
+    @Nullable
+    synchronized N findRoot(@NonNull Point p) {
+        if (mValid) mHits++;
+        else {
+            mMisses++;
+            rebuild();
+        }
+
+        for (Window<N> w : mWindows) {
+            if (w.root == null) continue;
+            if (Window.contains(w.windowBounds, p.x, p.y) &&
+                    Window.contains(w.rootBounds, p.x, p.y)) {
+                return w.root;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Discard the cached windows, next lookup will fetch them again
+     */
+    synchronized void invalidate() {
+        mValid= false;
+    }
+
+    synchronized int getHits() {
+        return mHits;
+    }
+
+    synchronized int getMisses() {
+        return mMisses;
+    }
+
+    private void rebuild() {
+        mWindows.clear();
+        mSource.getWindows(mWindows);
+
+        // getWindows() already reports them in z-order, but it is not documented
+        Collections.sort(mWindows, mZOrder);
+
+        mValid= true;
+
+        Log.d(EVIACAM.TAG+"->"+TAG, "Windows cache rebuilt. Windows: " + mWindows.size() +
+                " Hits: " + mHits + " Misses: " + mMisses);
+    }
+}
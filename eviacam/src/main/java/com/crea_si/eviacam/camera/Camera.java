@@ -61,6 +61,14 @@ public class Camera {
     // camera 2 interface
     private Camera2Listener mCamera2;
 
+    // vision pipeline owned by this camera, null when it could not be created
+    private VisionPipeline mVisionPipeline;
+
+    // cascade files extracted from the resources, null when they could not be written.
+    // Kept until cleanup because the cascades are loaded in the background
+    private final File mHaarCascadeFile;
+    private final File mLbpCascadeFile;
+
     /**
      * Constructs and detects the best camera available. Takes care of selecting the most
      * appropriate interface to acces the camera.
@@ -85,15 +93,19 @@ public class Camera {
         // initialize JNI part
         System.loadLibrary("visionpipeline");
 
-        /* Load haarcascade from resources */
-        try {
-            File f= resourceToTempFile (c, R.raw.haarcascade, "xml");
-            VisionPipeline.init(f.getAbsolutePath());
-            //noinspection ResultOfMethodCallIgnored
-            f.delete();
-        }
-        catch (IOException e) {
-            Log.e(EVIACAM.TAG+"->"+TAG, "Cannot write haar cascade temp file. Continuing anyway");
+        /* Extract the face detector cascades from resources */
+        mHaarCascadeFile= extractCascade(c, R.raw.haarcascade);
+        mLbpCascadeFile= extractCascade(c, R.raw.lbpcascade);
+
+        Preferences.FaceDetectorBackend backend= Preferences.get().getFaceDetector();
+        File f= getCascadeFile(backend);
+        if (f != null) {
+            try {
+                mVisionPipeline= new VisionPipeline(getDetectorType(backend), f.getAbsolutePath());
+            }
+            catch (IllegalStateException e) {
+                Log.e(EVIACAM.TAG+"->"+TAG, "Cannot create vision pipeline. Continuing anyway");
+            }
         }
 
         /*
@@ -110,6 +122,73 @@ public class Camera {
         }
     }
 
+    /**
+     * Change the face detector backend. Does not block: the cascade is loaded by
+     * the face detection thread of the vision pipeline before its next detection.
+     *
+     * @param backend face detector to use
+     */
+    public void setFaceDetector (@NonNull Preferences.FaceDetectorBackend backend) {
+        final VisionPipeline vp= mVisionPipeline;
+        final File f= getCascadeFile(backend);
+        if (vp == null) return;
+        if (f == null) {
+            Log.w(EVIACAM.TAG+"->"+TAG, "No cascade file for face detector: " + backend);
+            return;
+        }
+        try {
+            vp.setFaceDetector(getDetectorType(backend), f.getAbsolutePath());
+        }
+        catch (IllegalStateException e) {
+            // pipeline cleaned up in the meantime
+        }
+    }
+
+    /**
+     * Get the vision pipeline which processes the frames of this camera
+     *
+     * @return the pipeline or null when it could not be created
+     */
+    @Nullable
+    public VisionPipeline getVisionPipeline() {
+        return mVisionPipeline;
+    }
+
+    /**
+     * Get the cascade file for a given face detector backend
+     *
+     * The LBP cascade is lbpcascade_frontalface.xml from the OpenCV distribution.
+     */
+    @Nullable
+    private File getCascadeFile (@NonNull Preferences.FaceDetectorBackend backend) {
+        if (backend == Preferences.FaceDetectorBackend.LBP) return mLbpCascadeFile;
+        return mHaarCascadeFile;
+    }
+
+    /**
+     * Extract a cascade file from the resources
+     *
+     * @return the file or null when it could not be written
+     */
+    @Nullable
+    private static File extractCascade (Context c, int rid) {
+        try {
+            return resourceToTempFile (c, rid, "xml");
+        }
+        catch (IOException e) {
+            Log.e(EVIACAM.TAG+"->"+TAG, "Cannot write cascade temp file. Continuing anyway");
+            return null;
+        }
+    }
+
+    /**
+     * Get the native detector type for a given face detector backend
+     */
+    private static int getDetectorType (@NonNull Preferences.FaceDetectorBackend backend) {
+        if (backend == Preferences.FaceDetectorBackend.HAAR) return VisionPipeline.DETECTOR_HAAR;
+        return VisionPipeline.DETECTOR_CASCADE_CLASSIFIER;
+    }
+
     /**
      * Get if the current device provides camera2 API
      *
@@ -161,7 +240,20 @@ public class Camera {
         }
 
         // finish JNI part
-        VisionPipeline.cleanup();
+        if (null != mVisionPipeline) {
+            mVisionPipeline.cleanup();
+            mVisionPipeline= null;
+        }
+
+        // no longer read by the face detection thread
+        if (null != mHaarCascadeFile) {
+            //noinspection ResultOfMethodCallIgnored
+            mHaarCascadeFile.delete();
+        }
+        if (null != mLbpCascadeFile) {
+            //noinspection ResultOfMethodCallIgnored
+            mLbpCascadeFile.delete();
+        }
 
         Log.d(EVIACAM.TAG+"->"+TAG, "cleanup: completed");
     }
@@ -203,6 +295,26 @@ public class Camera {
         }
     }
 
+    /**
+     * Set how the preview is rendered. Only honoured by the camera2 interface,
+     * the legacy interface always renders the full preview.
+     *
+     * @param mode preview mode
+     */
+    public void setPreviewMode (@NonNull Preferences.PreviewMode mode) {
+        if (null != mCamera2) mCamera2.setPreviewMode(mode);
+    }
+
+    /**
+     * Set what happens to the frames when the processing falls behind. Only honoured
+     * by the camera2 interface. Takes effect while capturing.
+     *
+     * @param policy frame drop policy
+     */
+    public void setFrameDropPolicy (@NonNull Preferences.FrameDropPolicy policy) {
+        if (null != mCamera2) mCamera2.setFrameDropPolicy(policy);
+    }
+
     /**
      * Start camera capture
      *
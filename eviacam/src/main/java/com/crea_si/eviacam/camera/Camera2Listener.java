@@ -43,6 +43,7 @@ import android.util.Log;
 import android.util.Range;
 import android.util.Size;
 import android.view.Surface;
+import android.view.SurfaceHolder;
 import android.view.SurfaceView;
 
 import androidx.annotation.NonNull;
@@ -50,7 +51,10 @@ import androidx.annotation.NonNull;
 import com.crea_si.eviacam.BuildConfig;
 import com.crea_si.eviacam.R;
 import com.crea_si.eviacam.common.EVIACAM;
+import com.crea_si.eviacam.common.LatencyMonitor;
+import com.crea_si.eviacam.common.Preferences;
 import com.crea_si.eviacam.util.FlipDirection;
+import com.crea_si.eviacam.util.FrameRing;
 
 import org.opencv.android.CameraException;
 import org.opencv.android.FpsMeter;
@@ -60,15 +64,22 @@ import org.opencv.core.CvType;
 import org.opencv.core.Mat;
 import org.opencv.imgproc.Imgproc;
 
-import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Random;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Simple camera2 based interface for capturing camera image in real time for CV
+ *
+ * Frames flow through three threads so that a slow stage does not delay the others:
+ * the camera thread packs each image into a slot of a frame ring, the processing
+ * thread runs the frame processor and the preview thread draws the result. Stale
+ * frames are dropped according to the frame drop policy preference.
  */
 
 class Camera2Listener {
@@ -125,6 +136,19 @@ class Camera2Listener {
     private HandlerThread mBackgroundThread;
     private Handler mBackgroundHandler;
 
+    // threads which process the frames and draw the preview
+    private HandlerThread mProcessingThread;
+    private Handler mProcessingHandler;
+    private HandlerThread mPreviewThread;
+    private Handler mPreviewHandler;
+
+    // whether a run of the consumers has been posted and not started yet
+    private final AtomicBoolean mProcessingScheduled= new AtomicBoolean(false);
+    private final AtomicBoolean mPreviewScheduled= new AtomicBoolean(false);
+
+    // number of slots of the camera to processing ring for the QUEUE policy
+    private static final int FRAME_QUEUE_CAPACITY= 4;
+
     Thread.UncaughtExceptionHandler mThreadExceptionHandler = new Thread.UncaughtExceptionHandler() {
         public void uncaughtException(Thread th, Throwable ex) {
             Log.e(EVIACAM.TAG+"->"+TAG, "Error on camerathread:"+ex.toString());
@@ -139,8 +163,31 @@ class Camera2Listener {
     // reader to extract camera frames
     private ImageReader mImageReader;
 
-    /* Cached images */
-    private Mat mCacheImage;
+    // camera thread -> processing thread, each slot packs camera images without allocations.
+    // Replaced by the camera thread when the drop policy changes (see setFrameDropPolicy).
+    private volatile FrameRing<CapturedFrame> mFrameRing;
+
+    // processing thread -> preview thread, color images with the feedback drawn on
+    private FrameRing<Mat> mPreviewRing;
+
+    // whether the preview surface exists (i.e. the preview is being displayed)
+    private volatile boolean mPreviewSurfaceAvailable= false;
+
+    // held while drawing on the preview surface, so that it is not destroyed meanwhile
+    private final Object mSurfaceLock= new Object();
+
+    // size of the preview surface, 0 when unknown
+    private volatile int mSurfaceWidth;
+    private volatile int mSurfaceHeight;
+
+    // how the preview is rendered (see setPreviewMode)
+    private final PreviewPolicy mPreviewPolicy= new PreviewPolicy();
+
+    // downscaled preview (preview thread)
+    private final Mat mScaledPreview= new Mat();
+    private final org.opencv.core.Size mScaledSize= new org.opencv.core.Size();
+
+    // bitmap allocated for the capture size, reconfigured for smaller previews
     private Bitmap mCacheBitmap;
 
     private FpsMeter mFpsMeter = null;
@@ -190,6 +237,28 @@ class Camera2Listener {
 
     };
 
+    /* Tracks whether the preview surface exists, when not no color image is produced */
+    private final SurfaceHolder.Callback mPreviewSurfaceCallback= new SurfaceHolder.Callback() {
+        @Override
+        public void surfaceCreated(SurfaceHolder holder) {
+            mPreviewSurfaceAvailable= true;
+        }
+
+        @Override
+        public void surfaceChanged(SurfaceHolder holder, int format, int width, int height) {
+            mSurfaceWidth= width;
+            mSurfaceHeight= height;
+        }
+
+        @Override
+        public void surfaceDestroyed(SurfaceHolder holder) {
+            // wait for the preview thread to finish drawing
+            synchronized (mSurfaceLock) {
+                mPreviewSurfaceAvailable= false;
+            }
+        }
+    };
+
     /**
      * Constructor
      * @param c context
@@ -207,11 +276,22 @@ class Camera2Listener {
 
         // View for drawing camera output
         mCamera2View= new SurfaceView(mContext);
+        mCamera2View.getHolder().addCallback(mPreviewSurfaceCallback);
 
         mCacheBitmap = Bitmap.createBitmap(mCaptureSize.getWidth(), mCaptureSize.getHeight(),
                 Bitmap.Config.ARGB_8888);
 
-        mCacheImage= new Mat(mCaptureSize.getWidth(), mCaptureSize.getHeight(), CvType.CV_8UC4);
+        mFrameRing= createFrameRing(Preferences.get().getFrameDropPolicy());
+
+        // a stale preview is worthless, always show the latest one
+        mPreviewRing= new FrameRing<>("preview", FrameRing.DropPolicy.LATEST_WINS, 0,
+                new FrameRing.SlotFactory<Mat>() {
+                    @Override
+                    public Mat create() {
+                        return new Mat(mCaptureSize.getHeight(), mCaptureSize.getWidth(),
+                                CvType.CV_8UC4);
+                    }
+                });
 
         /* Uncomment to enable the FPS meter for debugging */
         if (BuildConfig.DEBUG) {
@@ -688,7 +768,7 @@ class Camera2Listener {
         }
     }
 
-    /* Listener that gets called when a new image is available */
+    /* Listener that gets called when a new image is available (camera thread) */
     private final ImageReader.OnImageAvailableListener mOnImageAvailableListener=
             new ImageReader.OnImageAvailableListener() {
                 @Override
@@ -714,20 +794,21 @@ class Camera2Listener {
 
                          */
 
-                        Mat yuv= imageToMat(image);
-                        Imgproc.cvtColor(yuv, mCacheImage, Imgproc.COLOR_YUV2BGRA_YV12);
+                        final long frameStart= LatencyMonitor.start();
 
-                        mFrameProcessor.processFrame(mCacheImage);
+                        // null when the processing thread is behind and the ring is full
+                        final FrameRing<CapturedFrame> ring= mFrameRing;
+                        CapturedFrame frame= ring.beginWrite();
+                        if (frame != null) {
+                            frame.ingest(image);
+                            LatencyMonitor.end(LatencyMonitor.STAGE_INGEST, frameStart);
 
-                        Utils.matToBitmap(mCacheImage, mCacheBitmap);
+                            frame.captureTime= frameStart;
+                            frame.publishTime= LatencyMonitor.start();
+                            ring.endWrite();
 
-                        synchronized (this) {
-                            if (mSurfaceReady) {
-                                Canvas canvas = mCamera2View.getHolder().lockCanvas();
-                                if (canvas != null) {
-                                    drawBitmap(canvas);
-                                    mCamera2View.getHolder().unlockCanvasAndPost(canvas);
-                                }
+                            if (mProcessingScheduled.compareAndSet(false, true)) {
+                                mProcessingHandler.post(mProcessRunnable);
                             }
                         }
 
@@ -742,9 +823,6 @@ class Camera2Listener {
 
                              */
                             //Log.d(EVIACAM.TAG+"->"+TAG, "Crop rectangle: " + image.getCropRect().toString());
-                            //Log.d(EVIACAM.TAG+"->"+TAG, "Mat type: " + yuv);
-                            //Log.d(EVIACAM.TAG+"->"+TAG, "Bitmap type: " + mCacheBitmap.getWidth() + "*" +
-                            //        mCacheBitmap.getHeight());
                         }
                     } catch (IllegalStateException e) {
                         Log.w(EVIACAM.TAG+"->"+TAG, "Too many images queued, dropping image");
@@ -754,10 +832,217 @@ class Camera2Listener {
                 }
             };
 
+    /* Processes the frames published by the camera thread (processing thread) */
+    private final Runnable mProcessRunnable= new Runnable() {
+        @Override
+        public void run() {
+            // clear before draining so that a frame published meanwhile schedules a new run
+            mProcessingScheduled.set(false);
+
+            final FrameRing<CapturedFrame> ring= mFrameRing;
+            if (ring == null) return;
+
+            CapturedFrame frame;
+            while ((frame= ring.beginRead()) != null) {
+                LatencyMonitor.end(LatencyMonitor.STAGE_QUEUE, frame.publishTime);
+                processFrame(frame);
+                // the slot can be overwritten as soon as it is given back
+                final long captureTime= frame.captureTime;
+                ring.endRead();
+                LatencyMonitor.end(LatencyMonitor.STAGE_FRAME, captureTime);
+            }
+        }
+    };
+
+    private static final FrameRing.SlotCleaner<CapturedFrame> CAPTURED_FRAME_CLEANER=
+            new FrameRing.SlotCleaner<CapturedFrame>() {
+                @Override
+                public void cleanup(CapturedFrame frame) {
+                    frame.cleanup();
+                }
+            };
+
+    private static final FrameRing.SlotCleaner<Mat> MAT_CLEANER=
+            new FrameRing.SlotCleaner<Mat>() {
+                @Override
+                public void cleanup(Mat m) {
+                    m.release();
+                }
+            };
+
+    /* Runs tasks on the processing thread, rejects them once the thread has finished */
+    private final Executor mProcessingExecutor= new Executor() {
+        @Override
+        public void execute(@NonNull Runnable r) {
+            Handler h= mProcessingHandler;
+            if (h == null || !h.post(r)) {
+                throw new RejectedExecutionException("processing thread not running");
+            }
+        }
+    };
+
+    private static FrameRing<CapturedFrame> createFrameRing(
+            @NonNull Preferences.FrameDropPolicy policy) {
+        return new FrameRing<>("camera", toRingPolicy(policy), FRAME_QUEUE_CAPACITY,
+                new FrameRing.SlotFactory<CapturedFrame>() {
+                    @Override
+                    public CapturedFrame create() {
+                        return new CapturedFrame();
+                    }
+                });
+    }
+
+    private static FrameRing.DropPolicy toRingPolicy(@NonNull Preferences.FrameDropPolicy p) {
+        return p == Preferences.FrameDropPolicy.QUEUE ?
+                FrameRing.DropPolicy.QUEUE : FrameRing.DropPolicy.LATEST_WINS;
+    }
+
+    /**
+     * Change what happens to the frames when the processing falls behind. The ring
+     * between the camera and the processing threads is replaced by the camera
+     * thread, between two frames. Frames waiting in the old ring are dropped.
+     *
+     * @param policy new policy
+     */
+    void setFrameDropPolicy (@NonNull Preferences.FrameDropPolicy policy) {
+        final FrameRing.DropPolicy ringPolicy= toRingPolicy(policy);
+        final Handler h= mBackgroundHandler;
+        if (h == null) return;
+
+        h.post(new Runnable() {
+            @Override
+            public void run() {
+                final FrameRing<CapturedFrame> old= mFrameRing;
+                if (old == null || old.getPolicy() == ringPolicy) return;
+
+                mFrameRing= createFrameRing(policy);
+
+                // free the old slots once the processing thread is done with them
+                old.retire(CAPTURED_FRAME_CLEANER, mProcessingExecutor);
+            }
+        });
+    }
+
+    /**
+     * Run the frame processor and, when the preview is displayed, publish the
+     * color image for the preview thread
+     *
+     * @param frame captured frame
+     */
+    private void processFrame(CapturedFrame frame) {
+        if (!mPreviewPolicy.shouldRender(mPreviewSurfaceAvailable)) {
+            mFrameProcessor.processGrayFrame(frame.getLuma(), null);
+            return;
+        }
+
+        /* Color image only needed to be displayed */
+        Mat preview= mPreviewRing.beginWrite();
+        long t= LatencyMonitor.start();
+        Imgproc.cvtColor(frame.getYuv(), preview, Imgproc.COLOR_YUV2BGRA_YV12);
+        LatencyMonitor.end(LatencyMonitor.STAGE_COLOR_CONVERSION, t);
+
+        mFrameProcessor.processGrayFrame(frame.getLuma(), preview);
+        mPreviewRing.endWrite();
+
+        if (mPreviewScheduled.compareAndSet(false, true)) {
+            mPreviewHandler.post(mPreviewRunnable);
+        }
+    }
+
+    /* Draws the latest processed frame (preview thread) */
+    private final Runnable mPreviewRunnable= new Runnable() {
+        @Override
+        public void run() {
+            mPreviewScheduled.set(false);
+
+            // a frame published before the preview was turned off is not drawn
+            Mat preview= mPreviewRing.beginRead();
+            final Preferences.PreviewMode mode= mPreviewPolicy.getMode();
+            if (preview == null || mode == Preferences.PreviewMode.OFF) return;
+
+            long t= LatencyMonitor.start();
+            if (mode == Preferences.PreviewMode.REDUCED) {
+                // downscale natively so that only the small image is copied to the bitmap
+                PreviewPolicy.getReducedSize(preview.cols(), preview.rows(),
+                        mSurfaceWidth, mSurfaceHeight, mScaledSize);
+                Imgproc.resize(preview, mScaledPreview, mScaledSize, 0, 0, Imgproc.INTER_AREA);
+                mPreviewRing.endRead();
+                setBitmapSize(mScaledPreview.cols(), mScaledPreview.rows());
+                Utils.matToBitmap(mScaledPreview, mCacheBitmap);
+            }
+            else {
+                setBitmapSize(preview.cols(), preview.rows());
+                Utils.matToBitmap(preview, mCacheBitmap);
+                mPreviewRing.endRead();
+            }
+            LatencyMonitor.end(LatencyMonitor.STAGE_BITMAP, t);
+
+            t= LatencyMonitor.start();
+            synchronized (mSurfaceLock) {
+                if (mSurfaceReady && mPreviewSurfaceAvailable) {
+                    Canvas canvas = mCamera2View.getHolder().lockCanvas();
+                    if (canvas != null) {
+                        drawBitmap(canvas);
+                        mCamera2View.getHolder().unlockCanvasAndPost(canvas);
+                    }
+                }
+            }
+            LatencyMonitor.end(LatencyMonitor.STAGE_DRAW, t);
+        }
+    };
+
+    /* Clears the preview once it has been turned off (preview thread) */
+    private final Runnable mClearPreviewRunnable= new Runnable() {
+        @Override
+        public void run() {
+            synchronized (mSurfaceLock) {
+                if (mSurfaceReady && mPreviewSurfaceAvailable) {
+                    Canvas canvas = mCamera2View.getHolder().lockCanvas();
+                    if (canvas != null) {
+                        canvas.drawColor(0, android.graphics.PorterDuff.Mode.CLEAR);
+                        mCamera2View.getHolder().unlockCanvasAndPost(canvas);
+                    }
+                }
+            }
+        }
+    };
+
+    /**
+     * Make the bitmap match the image size. The bitmap is allocated for the capture
+     * size, so smaller sizes just reconfigure it.
+     */
+    private void setBitmapSize(int width, int height) {
+        if (mCacheBitmap.getWidth() == width && mCacheBitmap.getHeight() == height) return;
+
+        if (width * height <= mCacheBitmap.getAllocationByteCount() / 4) {
+            mCacheBitmap.reconfigure(width, height, Bitmap.Config.ARGB_8888);
+        }
+        else {
+            mCacheBitmap.recycle();
+            mCacheBitmap= Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        }
+    }
+
+    /**
+     * Set how the preview is rendered
+     *
+     * @param mode OFF: not rendered (no color conversion), REDUCED: downscaled and only
+     *             some frames, FULL: every frame at full size
+     */
+    void setPreviewMode (@NonNull Preferences.PreviewMode mode) {
+        if (!mPreviewPolicy.setMode(mode)) return;
+
+        Handler h= mPreviewHandler;
+        if (mode == Preferences.PreviewMode.OFF && h != null) h.post(mClearPreviewRunnable);
+    }
 
     // Cached bitmap to avoid the allocation cost for each frame
     private Matrix mMatrixCached = new Matrix();
 
+    // Cached rects to avoid allocations for each frame
+    private final Rect mSrcRect= new Rect();
+    private final Rect mDstRect= new Rect();
+
     /**
      * Draw image stored in mCachedBitmap to the canvas
      * @param canvas a canvas reference
@@ -795,20 +1080,19 @@ class Camera2Listener {
             float scale = Math.min((float) canvasHeight / (float) bitmapHeight,
                     (float) canvasWidth / (float) bitmapWidth);
 
-            canvas.drawBitmap(mCacheBitmap,
-                    new Rect(0, 0, bitmapWidth, bitmapHeight),
-                    new Rect((int)((canvasWidth - scale * bitmapWidth) / 2),
-                            (int)((canvasHeight - scale * bitmapHeight) / 2),
-                            (int)((canvasWidth - scale * bitmapWidth) / 2 + scale * bitmapWidth),
-                            (int)((canvasHeight - scale * bitmapHeight) / 2 + scale * bitmapHeight)),
-                    null);
+            mSrcRect.set(0, 0, bitmapWidth, bitmapHeight);
+            mDstRect.set((int)((canvasWidth - scale * bitmapWidth) / 2),
+                    (int)((canvasHeight - scale * bitmapHeight) / 2),
+                    (int)((canvasWidth - scale * bitmapWidth) / 2 + scale * bitmapWidth),
+                    (int)((canvasHeight - scale * bitmapHeight) / 2 + scale * bitmapHeight));
+            canvas.drawBitmap(mCacheBitmap, mSrcRect, mDstRect, null);
         } else {
-            canvas.drawBitmap(mCacheBitmap,
-                    new Rect(0, 0, bitmapWidth, bitmapHeight),
-                    new Rect((canvasWidth - bitmapWidth) / 2,
-                            (canvasHeight - bitmapHeight) / 2,
-                            (canvasWidth - bitmapWidth) / 2 + bitmapWidth,
-                            (canvasHeight - bitmapHeight) / 2 + bitmapHeight), null);
+            mSrcRect.set(0, 0, bitmapWidth, bitmapHeight);
+            mDstRect.set((canvasWidth - bitmapWidth) / 2,
+                    (canvasHeight - bitmapHeight) / 2,
+                    (canvasWidth - bitmapWidth) / 2 + bitmapWidth,
+                    (canvasHeight - bitmapHeight) / 2 + bitmapHeight);
+            canvas.drawBitmap(mCacheBitmap, mSrcRect, mDstRect, null);
         }
 
         if (mFpsMeter != null) {
@@ -841,14 +1125,24 @@ class Camera2Listener {
 
         stopCameraThread();
 
+        // pending frames are processed and drawn before the threads finish
+        stopFrameThreads();
+
         if (mCacheBitmap != null) {
             mCacheBitmap.recycle();
             mCacheBitmap= null;
         }
 
-        if (mCacheImage != null) {
-            mCacheImage.release();
-            mCacheImage= null;
+        mScaledPreview.release();
+
+        if (mFrameRing != null) {
+            mFrameRing.dispose(CAPTURED_FRAME_CLEANER);
+            mFrameRing= null;
+        }
+
+        if (mPreviewRing != null) {
+            mPreviewRing.dispose(MAT_CLEANER);
+            mPreviewRing= null;
         }
     }
 
@@ -893,63 +1187,6 @@ class Camera2Listener {
                 }
             };
 
-    // TODO: provide a better implementation
-    static private Mat imageToMat(Image image) {
-        ByteBuffer buffer;
-        int rowStride;
-        int pixelStride;
-        int width = image.getWidth();
-        int height = image.getHeight();
-        int offset = 0;
-
-        Image.Plane[] planes = image.getPlanes();
-        byte[] data = new byte[image.getWidth() * image.getHeight() * 3 /2];// ImageFormat.getBitsPerPixel(ImageFormat.YUV_420_888) / 8];
-        byte[] rowData = new byte[planes[0].getRowStride()];
-
-        for (int i = 0; i < planes.length; i++) {
-            buffer = planes[i].getBuffer();
-            rowStride = planes[i].getRowStride();
-            pixelStride = planes[i].getPixelStride();
-            int w = (i == 0) ? width : width / 2;
-            int h = (i == 0) ? height : height / 2;
-            for (int row = 0; row < h; row++) {
-                int bytesPerPixel = ImageFormat.getBitsPerPixel(ImageFormat.YUV_420_888) / 8;
-                if (pixelStride == bytesPerPixel) {
-                    int length = w * bytesPerPixel;
-                    buffer.get(data, offset, length);
-
-                    // Advance buffer the remainder of the row stride, unless on the last row.
-                    // Otherwise, this will throw an IllegalArgumentException because the buffer
-                    // doesn't include the last padding.
-                    if (h - row != 1) {
-                        buffer.position(buffer.position() + rowStride - length);
-                    }
-                    offset += length;
-                } else {
-
-                    // On the last row only read the width of the image minus the pixel stride
-                    // plus one. Otherwise, this will throw a BufferUnderflowException because the
-                    // buffer doesn't include the last padding.
-                    if (h - row == 1) {
-                        buffer.get(rowData, 0, width - pixelStride + 1);
-                    } else {
-                        buffer.get(rowData, 0, rowStride);
-                    }
-
-                    for (int col = 0; col < w; col++) {
-                        data[offset++] = rowData[col * pixelStride];
-                    }
-                }
-            }
-        }
-
-        // Finally, create the Mat.
-        Mat mat = new Mat(height + height / 2, width, CvType.CV_8UC1);
-        mat.put(0, 0, data);
-
-        return mat;
-    }
-
     /**
      * Translate a CameraAccessException into a CameraException and throw it
      * @param e exception
@@ -992,6 +1229,20 @@ class Camera2Listener {
         mBackgroundThread.start();
 
         mBackgroundHandler = new Handler(mBackgroundThread.getLooper());
+
+        if (mProcessingThread == null) {
+            mProcessingThread= new HandlerThread("FrameProcessingThread");
+            mProcessingThread.setUncaughtExceptionHandler(mThreadExceptionHandler);
+            mProcessingThread.start();
+            mProcessingHandler= new Handler(mProcessingThread.getLooper());
+        }
+
+        if (mPreviewThread == null) {
+            mPreviewThread= new HandlerThread("PreviewThread");
+            mPreviewThread.setUncaughtExceptionHandler(mThreadExceptionHandler);
+            mPreviewThread.start();
+            mPreviewHandler= new Handler(mPreviewThread.getLooper());
+        }
     }
 
     /**
@@ -1010,4 +1261,34 @@ class Camera2Listener {
             Log.e(EVIACAM.TAG+"->"+TAG, "stop CameraThread");
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * Stop the processing and preview threads. Must be called once the camera
+     * thread has finished, i.e. when no more frames are published.
+     */
+    private void stopFrameThreads() {
+        if (mProcessingThread != null) {
+            Log.d(EVIACAM.TAG+"->"+TAG, "stop FrameProcessingThread");
+            mProcessingThread.quitSafely();
+            try {
+                mProcessingThread.join();
+                mProcessingThread= null;
+                mProcessingHandler= null;
+            } catch (InterruptedException e) {
+                Log.e(EVIACAM.TAG+"->"+TAG, "stop FrameProcessingThread");
+            }
+        }
+
+        if (mPreviewThread != null) {
+            Log.d(EVIACAM.TAG+"->"+TAG, "stop PreviewThread");
+            mPreviewThread.quitSafely();
+            try {
+                mPreviewThread.join();
+                mPreviewThread= null;
+                mPreviewHandler= null;
+            } catch (InterruptedException e) {
+                Log.e(EVIACAM.TAG+"->"+TAG, "stop PreviewThread");
+            }
+        }
+    }
+}
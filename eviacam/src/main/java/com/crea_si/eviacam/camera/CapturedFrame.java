@@ -0,0 +1,86 @@
+/*
+ * Enable Viacam for Android, a camera based mouse emulator
+ *
+ * Copyright (C) 2015-17 Cesar Mauri Loba (CREA Software Systems)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.crea_si.eviacam.camera;
+
+import android.media.Image;
+
+import androidx.annotation.NonNull;
+
+import org.opencv.core.Mat;
+
+/**
+ * Slot of the ring that hands camera frames from the camera thread to the
+ * processing thread. Each slot owns its ingestor, so filling a slot never
+ * touches the matrices of the others.
+ */
+class CapturedFrame {
+    private final FrameIngestor mIngestor= new NativeFrameIngestor();
+
+    // packed I420 image and its luma plane
+    private Mat mYuv;
+    private Mat mLuma;
+
+    // LatencyMonitor time stamps (0 when disabled)
+    long captureTime;
+    long publishTime;
+
+    /**
+     * Fill the slot with a camera image. The image can be closed afterwards.
+     *
+     * @param image YUV_420_888 image
+     */
+    void ingest(@NonNull Image image) {
+        mYuv= mIngestor.ingest(image);
+
+        // the luma submatrix is only rebuilt when the packed matrix is reallocated
+        final int height= image.getHeight();
+        if (mLuma == null || mLuma.dataAddr() != mYuv.dataAddr() ||
+                mLuma.rows() != height || mLuma.cols() != mYuv.cols()) {
+            if (mLuma != null) mLuma.release();
+            mLuma= mYuv.submat(0, height, 0, mYuv.cols());
+        }
+    }
+
+    /**
+     * @return packed I420 matrix (height*3/2 x width, CV_8UC1)
+     */
+    Mat getYuv() {
+        return mYuv;
+    }
+
+    /**
+     * @return luma plane of the packed matrix
+     */
+    Mat getLuma() {
+        return mLuma;
+    }
+
+    /**
+     * Free resources
+     */
+    void cleanup() {
+        if (mLuma != null) {
+            mLuma.release();
+            mLuma= null;
+        }
+        mYuv= null;
+        mIngestor.cleanup();
+    }
+}
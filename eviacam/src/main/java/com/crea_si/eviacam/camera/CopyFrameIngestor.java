@@ -0,0 +1,136 @@
+/*
+ * Enable Viacam for Android, a camera based mouse emulator
+ *
+ * Copyright (C) 2015-17 Cesar Mauri Loba (CREA Software Systems)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.crea_si.eviacam.camera;
+
+import android.media.Image;
+
+import androidx.annotation.NonNull;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Java only ingestor. Copies the planes row by row into a byte array and then into
+ * the matrix. Buffers are allocated once and reused while the frame size does not change.
+ */
+class CopyFrameIngestor implements FrameIngestor {
+    private byte[] mData;
+    private byte[] mRowData;
+    private Mat mMat;
+    private final ByteBuffer[] mBuffers = new ByteBuffer[3];
+    private final int[] mRowStrides = new int[3];
+    private final int[] mPixelStrides = new int[3];
+
+    @Override
+    @NonNull
+    public Mat ingest(@NonNull Image image) {
+        final int width = image.getWidth();
+        final int height = image.getHeight();
+        final Image.Plane[] planes = image.getPlanes();
+
+        for (int i = 0; i < 3; i++) {
+            mBuffers[i] = planes[i].getBuffer();
+            mRowStrides[i] = planes[i].getRowStride();
+            mPixelStrides[i] = planes[i].getPixelStride();
+        }
+        final byte[] data = pack(width, height, mBuffers, mRowStrides, mPixelStrides);
+        // do not keep the buffers of the image once closed
+        Arrays.fill(mBuffers, null);
+
+        if (mMat == null || mMat.rows() != height + height / 2 || mMat.cols() != width) {
+            if (mMat != null) mMat.release();
+            mMat = new Mat(height + height / 2, width, CvType.CV_8UC1);
+        }
+        mMat.put(0, 0, data);
+
+        return mMat;
+    }
+
+    /**
+     * Pack the Y, U and V planes in I420 layout
+     *
+     * @param buffers buffer of each plane, read from its current position
+     * @param rowStrides, pixelStrides layout of each plane (see Image.Plane)
+     * @return packed image (width * height * 3 / 2 bytes), reused for the next frame
+     */
+    @NonNull
+    byte[] pack(int width, int height, @NonNull ByteBuffer[] buffers,
+                @NonNull int[] rowStrides, @NonNull int[] pixelStrides) {
+        /* Reallocate buffers when needed */
+        final int size = width * height * 3 / 2;
+        if (mData == null || mData.length != size) {
+            mData = new byte[size];
+        }
+
+        int offset = 0;
+        for (int i = 0; i < 3; i++) {
+            int w = (i == 0) ? width : width / 2;
+            int h = (i == 0) ? height : height / 2;
+            offset = packPlane(buffers[i], rowStrides[i], pixelStrides[i], w, h, offset);
+        }
+
+        return mData;
+    }
+
+    private int packPlane(ByteBuffer buffer, int rowStride, int pixelStride, int w, int h,
+                          int offset) {
+        if (mRowData == null || mRowData.length < rowStride) mRowData = new byte[rowStride];
+        for (int row = 0; row < h; row++) {
+            if (pixelStride == 1) {
+                buffer.get(mData, offset, w);
+
+                // Advance buffer the remainder of the row stride, unless on the last row.
+                // Otherwise, this will throw an IllegalArgumentException because the buffer
+                // doesn't include the last padding.
+                if (h - row != 1) {
+                    buffer.position(buffer.position() + rowStride - w);
+                }
+                offset += w;
+            } else {
+                // On the last row only read up to the last pixel. Otherwise, this will
+                // throw a BufferUnderflowException because the buffer doesn't include
+                // the last padding.
+                if (h - row == 1) {
+                    buffer.get(mRowData, 0, (w - 1) * pixelStride + 1);
+                } else {
+                    buffer.get(mRowData, 0, rowStride);
+                }
+
+                for (int col = 0; col < w; col++) {
+                    mData[offset++] = mRowData[col * pixelStride];
+                }
+            }
+        }
+        return offset;
+    }
+
+    @Override
+    public void cleanup() {
+        if (mMat != null) {
+            mMat.release();
+            mMat = null;
+        }
+        mData = null;
+        mRowData = null;
+    }
+}
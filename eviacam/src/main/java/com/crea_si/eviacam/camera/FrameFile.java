@@ -0,0 +1,290 @@
+/*
+ * Enable Viacam for Android, a camera based mouse emulator
+ *
+ * Copyright (C) 2015-17 Cesar Mauri Loba (CREA Software Systems)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.crea_si.eviacam.camera;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * File format of the frame recordings (see FrameRecorder and FrameReplaySource)
+ *
+ * Format (big endian):
+ *   header: magic (int), version (int)
+ *   frame:  timestamp in ns (long), width (int), height (int), flip (byte),
+ *           rotation (short), width * height bytes of 8-bit luma
+ *
+ * Plain Java so that recordings can be handled on a host JVM.
+ */
+final class FrameFile {
+    static final int MAGIC= 0x45564652;     // "EVFR"
+    static final int VERSION= 1;
+
+    private FrameFile() { }
+
+    /**
+     * Frame of a recording
+     */
+    static final class Frame {
+        byte[] data;
+        int width;
+        int height;
+        long timestamp;
+        int flip;
+        int rotation;
+
+        int size() {
+            return width * height;
+        }
+    }
+
+    /**
+     * Writes frames from a background thread so that the caller never waits for
+     * the storage.
+     *
+     * Frames are filled in one of a fixed set of buffers (see obtainFrame) which are
+     * queued by submit. When all the buffers are waiting to be written the frame is
+     * dropped and counted. A write error stops the recording and is reported by
+     * obtainFrame and close.
+     */
+    static final class Writer implements Closeable {
+        // marks the end of the queue
+        private static final Frame END= new Frame();
+
+        private final DataOutputStream mOutput;
+        private final BlockingQueue<Frame> mFree;
+        private final BlockingQueue<Frame> mPending;
+        private final Thread mThread;
+
+        private volatile IOException mError;
+        private volatile int mWrittenFrames;
+        private int mDroppedFrames;
+        private boolean mClosed;
+
+        /**
+         * Write the header and start the writer thread
+         *
+         * @param out destination, closed by close()
+         * @param bufferCount number of frames which can wait to be written
+         * @throws IOException when the header cannot be written
+         */
+        Writer(@NonNull OutputStream out, int bufferCount) throws IOException {
+            mOutput= new DataOutputStream(new BufferedOutputStream(out));
+            try {
+                mOutput.writeInt(MAGIC);
+                mOutput.writeInt(VERSION);
+            }
+            catch (IOException e) {
+                mOutput.close();
+                throw e;
+            }
+
+            mFree= new ArrayBlockingQueue<>(bufferCount);
+            for (int i= 0; i < bufferCount; i++) mFree.add(new Frame());
+            mPending= new ArrayBlockingQueue<>(bufferCount + 1);
+
+            mThread= new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    writerLoop();
+                }
+            }, "FrameFileWriter");
+            mThread.start();
+        }
+
+        /**
+         * Get a free buffer for a frame. Fill it and pass it to submit.
+         *
+         * @param width frame width
+         * @param height frame height
+         * @return the frame, or null when no buffer is free (the frame is dropped)
+         * @throws IOException when a previous write failed
+         */
+        @Nullable
+        Frame obtainFrame(int width, int height) throws IOException {
+            if (mError != null) throw mError;
+            if (mClosed) return null;
+
+            Frame f= mFree.poll();
+            if (f == null) {
+                mDroppedFrames++;
+                return null;
+            }
+            f.width= width;
+            f.height= height;
+            if (f.data == null || f.data.length < f.size()) f.data= new byte[f.size()];
+            return f;
+        }
+
+        /**
+         * Queue a frame obtained with obtainFrame to be written
+         */
+        void submit(@NonNull Frame f) {
+            // never blocks, there is room for every buffer plus the end mark
+            mPending.add(f);
+        }
+
+        /**
+         * Frames dropped because the writer thread was behind
+         */
+        int getDroppedFrames() {
+            return mDroppedFrames;
+        }
+
+        /**
+         * Frames written to the stream so far
+         */
+        int getWrittenFrames() {
+            return mWrittenFrames;
+        }
+
+        /**
+         * Write the queued frames and close the stream
+         *
+         * @throws IOException if any write failed
+         */
+        @Override
+        public void close() throws IOException {
+            if (mClosed) return;
+            mClosed= true;
+
+            mPending.add(END);
+            boolean interrupted= false;
+            while (true) {
+                try {
+                    mThread.join();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted= true;
+                }
+            }
+            if (interrupted) Thread.currentThread().interrupt();
+
+            try {
+                mOutput.close();
+            }
+            catch (IOException e) {
+                if (mError == null) mError= e;
+            }
+            if (mError != null) throw mError;
+        }
+
+        private void writerLoop() {
+            while (true) {
+                Frame f;
+                try {
+                    f= mPending.take();
+                } catch (InterruptedException e) {
+                    continue;
+                }
+                if (f == END) break;
+
+                // after an error keep recycling the buffers until closed
+                if (mError == null) {
+                    try {
+                        mOutput.writeLong(f.timestamp);
+                        mOutput.writeInt(f.width);
+                        mOutput.writeInt(f.height);
+                        mOutput.writeByte(f.flip);
+                        mOutput.writeShort(f.rotation);
+                        mOutput.write(f.data, 0, f.size());
+                        mWrittenFrames++;
+                    }
+                    catch (IOException e) {
+                        mError= e;
+                    }
+                }
+                mFree.add(f);
+            }
+        }
+    }
+
+    /**
+     * Reads the frames of a recording one after another. The frame buffer is reused.
+     */
+    static final class Reader implements Closeable {
+        private final DataInputStream mInput;
+        private final Frame mFrame= new Frame();
+
+        /**
+         * @param in recording, closed by close()
+         * @throws IOException when it cannot be read or has a wrong format
+         */
+        Reader(@NonNull InputStream in) throws IOException {
+            mInput= new DataInputStream(new BufferedInputStream(in));
+            try {
+                if (mInput.readInt() != MAGIC) {
+                    throw new IOException("Not a frame recording");
+                }
+                int version= mInput.readInt();
+                if (version != VERSION) {
+                    throw new IOException("Unsupported frame recording version: " + version);
+                }
+            }
+            catch (IOException e) {
+                mInput.close();
+                throw e;
+            }
+        }
+
+        /**
+         * Read the next frame
+         *
+         * @return the frame, valid until the next call, or null at the end of the recording
+         * @throws IOException on read error or truncated file
+         */
+        @Nullable
+        Frame next() throws IOException {
+            final Frame f= mFrame;
+            try {
+                f.timestamp= mInput.readLong();
+            }
+            catch (EOFException e) {
+                return null;
+            }
+            f.width= mInput.readInt();
+            f.height= mInput.readInt();
+            f.flip= mInput.readByte();
+            f.rotation= mInput.readShort();
+            if (f.width <= 0 || f.height <= 0) {
+                throw new IOException("Wrong frame size: " + f.width + "x" + f.height);
+            }
+            if (f.data == null || f.data.length < f.size()) f.data= new byte[f.size()];
+            mInput.readFully(f.data, 0, f.size());
+            return f;
+        }
+
+        @Override
+        public void close() throws IOException {
+            mInput.close();
+        }
+    }
+}
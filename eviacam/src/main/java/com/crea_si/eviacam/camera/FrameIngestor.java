@@ -0,0 +1,48 @@
+/*
+ * Enable Viacam for Android, a camera based mouse emulator
+ *
+ * Copyright (C) 2015-17 Cesar Mauri Loba (CREA Software Systems)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.crea_si.eviacam.camera;
+
+import android.media.Image;
+
+import androidx.annotation.NonNull;
+
+import org.opencv.core.Mat;
+
+/**
+ * Strategy to turn a YUV_420_888 camera Image into an OpenCV matrix
+ *
+ * The returned matrix contains the planes packed in I420 layout (full Y plane followed
+ * by the subsampled U and V planes) and is owned by the ingestor, i.e. it is reused
+ * for the next frame and must not be released by the caller.
+ */
+interface FrameIngestor {
+    /**
+     * Pack the planes of a captured image
+     *
+     * @param image YUV_420_888 image
+     * @return matrix (height*3/2 x width, CV_8UC1) owned by the ingestor
+     */
+    @NonNull Mat ingest(@NonNull Image image);
+
+    /**
+     * Free resources
+     */
+    void cleanup();
+}
@@ -20,6 +20,7 @@
 package com.crea_si.eviacam.camera;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 
 import org.opencv.core.Mat;
 
@@ -33,6 +34,14 @@ public interface FrameProcessor {
      */
     void processFrame(@NonNull Mat rgba);
 
+    /**
+     * Process a captured grayscale frame
+     * @param gray single channel captured frame (e.g. the luma plane)
+     * @param preview color version of the frame on which feedback can be drawn,
+     *                null when the preview is not displayed
+     */
+    void processGrayFrame(@NonNull Mat gray, @Nullable Mat preview);
+
     /**
      * Called when the camera is started
      */
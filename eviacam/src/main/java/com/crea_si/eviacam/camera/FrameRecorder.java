@@ -0,0 +1,121 @@
+/*
+ * Enable Viacam for Android, a camera based mouse emulator
+ *
+ * Copyright (C) 2015-17 Cesar Mauri Loba (CREA Software Systems)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.crea_si.eviacam.camera;
+
+import androidx.annotation.NonNull;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.imgproc.Imgproc;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Records grayscale camera frames to a file so that they can be replayed later
+ * (see FrameReplaySource and FrameFile for the format).
+ *
+ * The frame is copied to a buffer and written by a background thread, so the
+ * frame path does not wait for the storage. Frames are dropped when the storage
+ * cannot keep up (see getDroppedFrames).
+ *
+ * Methods are synchronized so that frames can be written from the camera thread
+ * while the recorder is closed from another thread.
+ */
+public class FrameRecorder implements Closeable {
+    /* File extension for recordings */
+    public static final String FILE_EXTENSION= ".evfr";
+
+    // number of frames which can wait to be written
+    private static final int BUFFER_FRAMES= 8;
+
+    private FrameFile.Writer mWriter;
+
+    // buffer reused across frames
+    private Mat mGray;
+
+    /**
+     * Create the recording file
+     * @param file file to write, overwritten if exists
+     * @throws IOException when the file cannot be created
+     */
+    public FrameRecorder(@NonNull File file) throws IOException {
+        mWriter= new FrameFile.Writer(new FileOutputStream(file), BUFFER_FRAMES);
+    }
+
+    /**
+     * Append a frame
+     * @param frame grayscale or RGBA frame, RGBA frames are converted to gray
+     * @param timestamp capture time stamp in nanoseconds
+     * @param flip flip operation before rotation (see FlipDirection)
+     * @param rotation rotation (clockwise) in degrees
+     * @throws IOException when a previous write failed
+     */
+    public synchronized void write(@NonNull Mat frame, long timestamp, int flip, int rotation)
+            throws IOException {
+        if (mWriter == null) return;
+
+        Mat gray= frame;
+        if (frame.channels() != 1) {
+            if (mGray == null) mGray= new Mat();
+            Imgproc.cvtColor(frame, mGray, Imgproc.COLOR_RGBA2GRAY);
+            gray= mGray;
+        }
+        if (gray.type() != CvType.CV_8UC1) {
+            throw new IllegalArgumentException("Unsupported frame type: " + gray);
+        }
+
+        FrameFile.Frame f= mWriter.obtainFrame(gray.cols(), gray.rows());
+        if (f == null) return;
+        gray.get(0, 0, f.data);
+        f.timestamp= timestamp;
+        f.flip= flip;
+        f.rotation= rotation;
+        mWriter.submit(f);
+    }
+
+    /**
+     * Get the number of frames not recorded because the storage was too slow
+     */
+    public synchronized int getDroppedFrames() {
+        return mWriter == null ? 0 : mWriter.getDroppedFrames();
+    }
+
+    /**
+     * Write the pending frames and close the file. Subsequent writes are ignored.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (mGray != null) {
+            mGray.release();
+            mGray= null;
+        }
+        if (mWriter != null) {
+            try {
+                mWriter.close();
+            }
+            finally {
+                mWriter= null;
+            }
+        }
+    }
+}
@@ -0,0 +1,191 @@
+/*
+ * Enable Viacam for Android, a camera based mouse emulator
+ *
+ * Copyright (C) 2015-17 Cesar Mauri Loba (CREA Software Systems)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.crea_si.eviacam.camera;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Feeds frames recorded with FrameRecorder to a FrameProcessor, as a camera would.
+ *
+ * Frames can be delivered at their original pace or as fast as the processor
+ * consumes them. When the processor implements OrientedFrameProcessor it gets the
+ * recorded orientation and capture time stamp of each frame, so that the results
+ * do not depend on the device nor on the replay speed. Otherwise the processor
+ * applies its own.
+ *
+ * Does not depend on the Android framework so that it can be used from host
+ * JVM tests (the OpenCV and vision pipeline native libraries are still needed
+ * to process the frames).
+ */
+public class FrameReplaySource implements Closeable {
+    /**
+     * Receives per frame timing of the replay
+     */
+    public interface Listener {
+        /**
+         * Called after each frame has been processed
+         * @param index index of the frame, starting at 0
+         * @param timestamp recorded time stamp of the frame in nanoseconds
+         * @param processingTime time spent by the processor in nanoseconds
+         */
+        void onFrameProcessed(int index, long timestamp, long processingTime);
+    }
+
+    private final FrameFile.Reader mReader;
+    private final FrameProcessor mFrameProcessor;
+    private final boolean mRealTime;
+    private volatile boolean mStopped= false;
+    private boolean mNotifyCameraState= true;
+    private Listener mListener;
+
+    // Current frame, reused across frames
+    private Mat mMat;
+
+    /**
+     * Constructor
+     * @param file recording created with FrameRecorder
+     * @param fp processor which receives the frames
+     * @param realTime true to deliver frames at the recorded pace, false to deliver
+     *                 them as fast as possible
+     * @throws IOException when the file cannot be read or has a wrong format
+     */
+    public FrameReplaySource(@NonNull File file, @NonNull FrameProcessor fp, boolean realTime)
+            throws IOException {
+        this(new FileInputStream(file), fp, realTime);
+    }
+
+    /**
+     * Constructor
+     * @param in recording created with FrameRecorder, closed by close()
+     * @param fp processor which receives the frames
+     * @param realTime true to deliver frames at the recorded pace, false to deliver
+     *                 them as fast as possible
+     * @throws IOException when the stream cannot be read or has a wrong format
+     */
+    public FrameReplaySource(@NonNull InputStream in, @NonNull FrameProcessor fp,
+                             boolean realTime) throws IOException {
+        mReader= new FrameFile.Reader(in);
+        mFrameProcessor= fp;
+        mRealTime= realTime;
+    }
+
+    public void setListener(@Nullable Listener l) {
+        mListener= l;
+    }
+
+    /**
+     * Whether run() notifies the processor of the start and stop of the "camera".
+     * Disable it when the frames are fed to a processor whose real camera is running.
+     * Enabled by default.
+     */
+    public void setNotifyCameraState(boolean notify) {
+        mNotifyCameraState= notify;
+    }
+
+    /**
+     * Replay the whole recording in the calling thread
+     *
+     * @return number of frames delivered
+     * @throws IOException on read error or truncated file
+     */
+    public int run() throws IOException {
+        int count= 0;
+        long firstTimestamp= 0;
+        long startTime= System.nanoTime();
+
+        if (mNotifyCameraState) mFrameProcessor.onCameraStarted();
+        try {
+            FrameFile.Frame frame;
+            while (!mStopped && (frame= mReader.next()) != null) {
+                if (count == 0) firstTimestamp= frame.timestamp;
+
+                if (mRealTime) {
+                    long wait= (frame.timestamp - firstTimestamp) - (System.nanoTime() - startTime);
+                    if (wait > 0) {
+                        try {
+                            Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+                        } catch (InterruptedException e) {
+                            break;
+                        }
+                    }
+                }
+
+                long t= System.nanoTime();
+                deliver(frame);
+                t= System.nanoTime() - t;
+
+                if (mListener != null) mListener.onFrameProcessed(count, frame.timestamp, t);
+                count++;
+            }
+        }
+        finally {
+            if (mNotifyCameraState) mFrameProcessor.onCameraStopped();
+        }
+
+        return count;
+    }
+
+    /**
+     * Hand a frame to the processor
+     *
+     * @param frame frame read from the recording
+     */
+    void deliver(@NonNull FrameFile.Frame frame) {
+        if (mMat == null || mMat.cols() != frame.width || mMat.rows() != frame.height) {
+            if (mMat != null) mMat.release();
+            mMat= new Mat(frame.height, frame.width, CvType.CV_8UC1);
+        }
+        mMat.put(0, 0, frame.data);
+
+        if (mFrameProcessor instanceof OrientedFrameProcessor) {
+            ((OrientedFrameProcessor) mFrameProcessor).processGrayFrame(
+                    mMat, null, frame.flip, frame.rotation, frame.timestamp);
+        }
+        else {
+            mFrameProcessor.processGrayFrame(mMat, null);
+        }
+    }
+
+    /**
+     * Request the replay to finish after the current frame. Can be called from any thread.
+     */
+    public void stop() {
+        mStopped= true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (mMat != null) {
+            mMat.release();
+            mMat= null;
+        }
+        mReader.close();
+    }
+}
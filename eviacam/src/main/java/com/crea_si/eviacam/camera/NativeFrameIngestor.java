@@ -0,0 +1,71 @@
+/*
+ * Enable Viacam for Android, a camera based mouse emulator
+ *
+ * Copyright (C) 2015-17 Cesar Mauri Loba (CREA Software Systems)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.crea_si.eviacam.camera;
+
+import android.media.Image;
+
+import androidx.annotation.NonNull;
+
+import com.crea_si.eviacam.common.VisionPipeline;
+
+import org.opencv.core.Mat;
+
+/**
+ * Hands the plane buffers straight to native code which packs them into a
+ * preallocated matrix. No Java heap allocations are performed per frame.
+ *
+ * Falls back to the Java only ingestor when the planes are not backed by
+ * direct buffers (should not happen for images coming from an ImageReader).
+ */
+class NativeFrameIngestor implements FrameIngestor {
+    private final Mat mMat = new Mat();
+    private CopyFrameIngestor mFallback;
+
+    @Override
+    @NonNull
+    public Mat ingest(@NonNull Image image) {
+        final Image.Plane[] planes = image.getPlanes();
+
+        if (planes.length == 3 && planes[0].getBuffer().isDirect() &&
+                planes[1].getBuffer().isDirect() && planes[2].getBuffer().isDirect() &&
+                planes[1].getRowStride() == planes[2].getRowStride() &&
+                planes[1].getPixelStride() == planes[2].getPixelStride()) {
+            VisionPipeline.packYUV420(
+                    planes[0].getBuffer(), planes[1].getBuffer(), planes[2].getBuffer(),
+                    image.getWidth(), image.getHeight(),
+                    planes[0].getRowStride(), planes[0].getPixelStride(),
+                    planes[1].getRowStride(), planes[1].getPixelStride(),
+                    mMat.getNativeObjAddr());
+            return mMat;
+        }
+
+        if (mFallback == null) mFallback = new CopyFrameIngestor();
+        return mFallback.ingest(image);
+    }
+
+    @Override
+    public void cleanup() {
+        mMat.release();
+        if (mFallback != null) {
+            mFallback.cleanup();
+            mFallback = null;
+        }
+    }
+}
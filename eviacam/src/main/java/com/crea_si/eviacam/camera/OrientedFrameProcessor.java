@@ -0,0 +1,42 @@
+/*
+ * Enable Viacam for Android, a camera based mouse emulator
+ *
+ * Copyright (C) 2015-17 Cesar Mauri Loba (CREA Software Systems)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.crea_si.eviacam.camera;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import org.opencv.core.Mat;
+
+/**
+ * Frame processor which can be told the orientation and capture time of each frame
+ * instead of taking them from the device. Used to replay recorded frames deterministically.
+ */
+public interface OrientedFrameProcessor extends FrameProcessor {
+    /**
+     * Process a captured grayscale frame with a given orientation
+     * @param gray single channel captured frame
+     * @param preview color version of the frame on which feedback can be drawn, or null
+     * @param flip flip operation before rotation (see FlipDirection)
+     * @param rotation rotation (clockwise) in degrees: 0, 90, 180 or 270
+     * @param timestamp capture time stamp in nanoseconds
+     */
+    void processGrayFrame(@NonNull Mat gray, @Nullable Mat preview, int flip, int rotation,
+                          long timestamp);
+}
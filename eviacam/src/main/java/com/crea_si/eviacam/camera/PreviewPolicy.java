@@ -0,0 +1,95 @@
+/*
+ * Enable Viacam for Android, a camera based mouse emulator
+ *
+ * Copyright (C) 2015-17 Cesar Mauri Loba (CREA Software Systems)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.crea_si.eviacam.camera;
+
+import androidx.annotation.NonNull;
+
+import com.crea_si.eviacam.common.Preferences;
+
+import org.opencv.core.Size;
+
+/**
+ * Decides which processed frames are handed to the preview thread and at which
+ * size they are drawn (see Preferences.PreviewMode).
+ *
+ * The mode can be changed from any thread. shouldRender is called by the
+ * processing thread only.
+ */
+final class PreviewPolicy {
+    // REDUCED mode: one out of this number of frames is drawn, scaled by at most this factor
+    static final int REDUCED_FRAME_INTERVAL= 2;
+    static final float REDUCED_SCALE= 0.5f;
+
+    private volatile Preferences.PreviewMode mMode= Preferences.PreviewMode.FULL;
+
+    // frames seen by the processing thread, to pick the frames drawn in REDUCED mode
+    private int mFrameCount;
+
+    /**
+     * @return true if the mode has changed
+     */
+    boolean setMode(@NonNull Preferences.PreviewMode mode) {
+        if (mode == mMode) return false;
+        mMode= mode;
+        return true;
+    }
+
+    @NonNull
+    Preferences.PreviewMode getMode() {
+        return mMode;
+    }
+
+    /**
+     * Whether the color image of the current frame needs to be produced and published
+     * to the preview thread (processing thread)
+     *
+     * @param surfaceAvailable whether the preview surface exists
+     */
+    boolean shouldRender(boolean surfaceAvailable) {
+        final Preferences.PreviewMode mode= mMode;
+        if (!surfaceAvailable || mode == Preferences.PreviewMode.OFF) return false;
+        if (mode == Preferences.PreviewMode.REDUCED) {
+            return ++mFrameCount % REDUCED_FRAME_INTERVAL == 0;
+        }
+        return true;
+    }
+
+    /**
+     * Compute the size of the downscaled preview: fit in the surface and
+     * at most REDUCED_SCALE of the captured image
+     *
+     * @param width width of the image
+     * @param height height of the image
+     * @param surfaceWidth width of the preview surface, 0 when unknown
+     * @param surfaceHeight height of the preview surface, 0 when unknown
+     * @param out receives the size
+     */
+    static void getReducedSize(int width, int height, int surfaceWidth, int surfaceHeight,
+                               @NonNull Size out) {
+        float scale= REDUCED_SCALE;
+        final int surfaceMax= Math.max(surfaceWidth, surfaceHeight);
+        if (surfaceMax> 0) {
+            // the image can be rotated, compare the largest dimensions
+            scale= Math.min(scale, (float) surfaceMax / (float) Math.max(width, height));
+        }
+        out.width= Math.max(1, Math.round(width * scale));
+        out.height= Math.max(1, Math.round(height * scale));
+    }
+}
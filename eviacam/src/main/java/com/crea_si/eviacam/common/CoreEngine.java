@@ -24,6 +24,8 @@ import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.content.SharedPreferences;
+import android.content.SharedPreferences.OnSharedPreferenceChangeListener;
 import android.graphics.PointF;
 import android.os.Handler;
 import android.util.Log;
@@ -36,13 +38,20 @@ import androidx.localbroadcastmanager.content.LocalBroadcastManager;
 import com.crea_si.eviacam.R;
 import com.crea_si.eviacam.camera.Camera;
 import com.crea_si.eviacam.camera.CameraLayerView;
-import com.crea_si.eviacam.camera.FrameProcessor;
+import com.crea_si.eviacam.camera.FrameRecorder;
+import com.crea_si.eviacam.camera.FrameReplaySource;
+import com.crea_si.eviacam.camera.OrientedFrameProcessor;
 
 import org.acra.ACRA;
 import org.opencv.android.CameraException;
 import org.opencv.core.Mat;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
 import java.util.ArrayDeque;
+import java.util.Locale;
 
 /**
  * Provides an abstract implementation for the Engine interface. The class is in charge of:
@@ -52,8 +61,8 @@ import java.util.ArrayDeque;
  * - UI: main overlay and camera viewer
  *
  */
-public abstract class CoreEngine implements Engine, FrameProcessor,
-        PowerManagement.OnScreenStateChangeListener {
+public abstract class CoreEngine implements Engine, OrientedFrameProcessor,
+        PowerManagement.OnScreenStateChangeListener, OnSharedPreferenceChangeListener {
 
     private static final String TAG = "CoreEngine";
     // stores when the last detection of a face occurred
@@ -95,6 +104,19 @@ public abstract class CoreEngine implements Engine, FrameProcessor,
     /* object in charge of capturing & processing frames */
     private Camera mCamera;
 
+    /* vision pipeline owned by the camera, null when not available */
+    private volatile VisionPipeline mVisionPipeline;
+
+    /* records processed frames when enabled in the preferences */
+    private volatile FrameRecorder mFrameRecorder;
+    private File mFrameRecordingFile;
+
+    /* replays a recording instead of the camera frames when enabled in the preferences */
+    private volatile FrameReplaySource mFrameReplay;
+
+    /* serializes the frames of the camera and the ones being replayed */
+    private final Object mProcessFrameLock= new Object();
+
     /* object which encapsulates rotation and orientation logic */
     private OrientationManager mOrientationManager;
     protected OrientationManager getOrientationManager() { return mOrientationManager; }
@@ -160,8 +182,10 @@ public abstract class CoreEngine implements Engine, FrameProcessor,
      * @param faceDetected whether or not a face was detected for the last frame, note
      *                     not all frames are checked for the face detection algorithm
      * @param state current state of the engine
+     * @param timestamp capture time stamp of the frame in nanoseconds
      */
-    protected abstract void onFrame(@NonNull PointF motion, boolean faceDetected, int state);
+    protected abstract void onFrame(@NonNull PointF motion, boolean faceDetected, int state,
+                                    long timestamp);
 
 
     @Override
@@ -275,6 +299,17 @@ public abstract class CoreEngine implements Engine, FrameProcessor,
         Log.d(EVIACAM.TAG+"->"+TAG, "mCameraLayerView.addCameraSurface(mCamera.getCameraSurface())");
         mCameraLayerView.addCameraSurface(mCamera.getCameraSurface());
 
+        // results of the vision pipeline
+        mVisionPipeline= mCamera.getVisionPipeline();
+        if (mVisionPipeline != null) mVisionPipeline.setResultBuffer(mResultBuffer);
+
+        // vision pipeline settings
+        Preferences.get().getSharedPreferences().registerOnSharedPreferenceChangeListener(this);
+        updateVisionPipelineSettings();
+        mCamera.setPreviewMode(Preferences.get().getPreviewMode());
+        updateFrameRecording();
+        LatencyMonitor.setEnabled(Preferences.get().getLatencyStats());
+
         // orientation manager
         mOrientationManager= new OrientationManager(
                 mService,
@@ -408,6 +443,7 @@ public abstract class CoreEngine implements Engine, FrameProcessor,
             Log.d(EVIACAM.TAG+"->"+TAG, "mWaitState:"+String.valueOf(mWaitState));
             mCurrentState = STATE_RUNNING;
             Log.d(EVIACAM.TAG+"->"+TAG, "mCurrentState: "+getStateName());
+            updateFrameReplay();
             dispatchRequests();
         }
         else {
@@ -660,6 +696,11 @@ public abstract class CoreEngine implements Engine, FrameProcessor,
         // Call derived
         onCleanup();
 
+        Preferences.get().getSharedPreferences().unregisterOnSharedPreferenceChangeListener(this);
+        stopFrameReplay();
+        stopFrameRecording();
+
+        mVisionPipeline= null;
         mCamera.cleanup();
         mCamera = null;
 
@@ -685,6 +726,210 @@ public abstract class CoreEngine implements Engine, FrameProcessor,
 
 
 
+    @Override
+    public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key) {
+        if (key.equals(Preferences.KEY_CPU_USAGE) ||
+            key.equals(Preferences.KEY_TRACKER_PYRAMID_LEVELS) ||
+            key.equals(Preferences.KEY_TRACKER_WINDOW_SIZE) ||
+            key.equals(Preferences.KEY_TRACKER_MAX_ITERATIONS) ||
+            key.equals(Preferences.KEY_TRACKER_EPSILON) ||
+            key.equals(Preferences.KEY_LIMIT_FACE_SEARCH) ||
+            key.equals(Preferences.KEY_FACE_SEARCH_EXPANSION) ||
+            key.equals(Preferences.KEY_FACE_SEARCH_MIN_SCALE) ||
+            key.equals(Preferences.KEY_FACE_SEARCH_MAX_SCALE) ||
+            key.equals(Preferences.KEY_FACE_SEARCH_FULL_SCAN_INTERVAL)) {
+            updateVisionPipelineSettings();
+        }
+        else if (key.equals(Preferences.KEY_FACE_DETECTOR)) {
+            if (mCamera != null) {
+                mCamera.setFaceDetector(Preferences.get().getFaceDetector());
+            }
+        }
+        else if (key.equals(Preferences.KEY_PREVIEW_MODE)) {
+            if (mCamera != null) mCamera.setPreviewMode(Preferences.get().getPreviewMode());
+        }
+        else if (key.equals(Preferences.KEY_FRAME_DROP_POLICY)) {
+            if (mCamera != null) mCamera.setFrameDropPolicy(Preferences.get().getFrameDropPolicy());
+        }
+        else if (key.equals(Preferences.KEY_RECORD_FRAMES)) {
+            updateFrameRecording();
+        }
+        else if (key.equals(Preferences.KEY_REPLAY_FRAMES)) {
+            updateFrameReplay();
+        }
+        else if (key.equals(Preferences.KEY_LATENCY_STATS)) {
+            LatencyMonitor.setEnabled(Preferences.get().getLatencyStats());
+        }
+    }
+
+    /**
+     * Start or stop recording frames according to the preferences. Recordings are
+     * stored in the app external files directory and can be replayed with
+     * FrameReplaySource.
+     */
+    private void updateFrameRecording() {
+        if (!Preferences.get().getRecordFrames()) {
+            stopFrameRecording();
+            return;
+        }
+        if (mFrameRecorder != null) return;
+
+        File dir= mService.getExternalFilesDir(null);
+        if (dir == null) {
+            Log.w(EVIACAM.TAG+"->"+TAG, "Cannot record frames, no external storage");
+            return;
+        }
+        File f= new File(dir, "frames-" + System.currentTimeMillis() +
+                FrameRecorder.FILE_EXTENSION);
+        try {
+            mFrameRecorder= new FrameRecorder(f);
+            mFrameRecordingFile= f;
+            Log.i(EVIACAM.TAG+"->"+TAG, "Recording frames to " + f.getAbsolutePath());
+        }
+        catch (IOException e) {
+            Log.e(EVIACAM.TAG+"->"+TAG, "Cannot create frame recording: " + e.toString());
+        }
+    }
+
+    private void stopFrameRecording() {
+        FrameRecorder recorder= mFrameRecorder;
+        if (recorder == null) return;
+        mFrameRecorder= null;
+        mFrameRecordingFile= null;
+        try {
+            recorder.close();
+            Log.i(EVIACAM.TAG+"->"+TAG, "Frame recording finished, dropped frames: " +
+                    recorder.getDroppedFrames());
+        }
+        catch (IOException e) {
+            Log.e(EVIACAM.TAG+"->"+TAG, "Error closing frame recording: " + e.toString());
+        }
+    }
+
+    /**
+     * Start or stop replaying frames according to the preferences. The most recent
+     * recording is processed once, at its original pace or as fast as possible, with
+     * its recorded orientation and time stamps, while the camera frames are ignored.
+     * It is started again each time the engine starts while the preference is enabled.
+     */
+    private void updateFrameReplay() {
+        if (!Preferences.get().getReplayFrames()) {
+            stopFrameReplay();
+            return;
+        }
+        if (mFrameReplay != null || mCurrentState != STATE_RUNNING) return;
+
+        final File f= getLatestFrameRecording();
+        if (f == null) {
+            Log.w(EVIACAM.TAG+"->"+TAG, "No frame recording to replay");
+            return;
+        }
+        final boolean fast= Preferences.get().getReplayFramesFast();
+        final FrameReplaySource replay;
+        try {
+            replay= new FrameReplaySource(f, this, !fast);
+        }
+        catch (IOException e) {
+            Log.e(EVIACAM.TAG+"->"+TAG, "Cannot open frame recording: " + e.toString());
+            return;
+        }
+        // the camera keeps running, the engine state does not depend on the replay
+        replay.setNotifyCameraState(false);
+        // processing time of the replayed frames (ns)
+        final long[] processingTime= new long[1];
+        replay.setListener(new FrameReplaySource.Listener() {
+            @Override
+            public void onFrameProcessed(int index, long timestamp, long time) {
+                processingTime[0]+= time;
+            }
+        });
+        mFrameReplay= replay;
+
+        Thread t= new Thread(new Runnable() {
+            @Override
+            public void run() {
+                int count= 0;
+                try {
+                    count= replay.run();
+                }
+                catch (IOException e) {
+                    Log.e(EVIACAM.TAG+"->"+TAG, "Error replaying frames: " + e.toString());
+                }
+                finally {
+                    try {
+                        replay.close();
+                    }
+                    catch (IOException e) { /* do nothing */ }
+                }
+                Log.i(EVIACAM.TAG+"->"+TAG, "Replayed " + count + " frames from " + f.getName() +
+                        (count > 0 ? String.format(Locale.US, ", %.2f ms/frame",
+                                processingTime[0] / (count * 1e6)) : ""));
+
+                // back to the camera frames
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (mFrameReplay == replay) mFrameReplay= null;
+                    }
+                });
+            }
+        }, "FrameReplay");
+        t.start();
+        Log.i(EVIACAM.TAG+"->"+TAG, "Replaying frames from " + f.getAbsolutePath() +
+                (fast ? " as fast as possible" : ""));
+    }
+
+    private void stopFrameReplay() {
+        FrameReplaySource replay= mFrameReplay;
+        if (replay == null) return;
+        mFrameReplay= null;
+        // the replay thread closes the source when finished
+        replay.stop();
+    }
+
+    /**
+     * Get the most recent frame recording, excluding the one being recorded
+     *
+     * @return the file or null if none
+     */
+    @Nullable
+    private File getLatestFrameRecording() {
+        File dir= mService.getExternalFilesDir(null);
+        if (dir == null) return null;
+        File[] files= dir.listFiles();
+        if (files == null) return null;
+
+        File latest= null;
+        for (File f : files) {
+            if (!f.getName().endsWith(FrameRecorder.FILE_EXTENSION) ||
+                    f.equals(mFrameRecordingFile)) continue;
+            if (latest == null || f.lastModified() > latest.lastModified()) latest= f;
+        }
+        return latest;
+    }
+
+    /**
+     * Apply the settings of the vision pipeline
+     */
+    private void updateVisionPipelineSettings() {
+        VisionPipeline vp= mVisionPipeline;
+        if (vp == null) return;
+
+        Preferences p= Preferences.get();
+        vp.setCpuUsage(p.getCpuUsage());
+        vp.setTrackerParameters(
+                p.getTrackerPyramidLevels(),
+                p.getTrackerWindowSize(),
+                p.getTrackerMaxIterations(),
+                p.getTrackerEpsilon());
+        vp.setDetectionSearchPolicy(
+                p.getLimitFaceSearch(),
+                p.getFaceSearchExpansion(),
+                p.getFaceSearchMinScale(),
+                p.getFaceSearchMaxScale(),
+                p.getFaceSearchFullScanInterval());
+    }
+
     @Override
     public boolean isReady() {
         return (mCurrentState != STATE_DISABLED);
@@ -858,6 +1103,10 @@ public abstract class CoreEngine implements Engine, FrameProcessor,
     // avoid creating a new PointF for each frame
     private PointF mMotion= new PointF(0, 0);
 
+    // results written by the vision pipeline for each frame (see VisionPipeline.RESULT_*)
+    private final ByteBuffer mResultBuffer= VisionPipeline.allocateResultBuffer();
+    private final FloatBuffer mResult= mResultBuffer.asFloatBuffer();
+
     /**
      * Process incoming camera frames (called from a secondary thread)
      *
@@ -865,6 +1114,51 @@ public abstract class CoreEngine implements Engine, FrameProcessor,
      */
     @Override
     public void processFrame(@NonNull Mat rgba) {
+        if (mFrameReplay != null) return;
+        processFrame(rgba, rgba, false, CURRENT_ORIENTATION, CURRENT_ORIENTATION,
+                System.nanoTime());
+    }
+
+    /**
+     * Process incoming grayscale camera frames (called from a secondary thread)
+     *
+     * @param gray opencv matrix with the captured image (single channel)
+     * @param preview opencv matrix with the color image to draw feedback on, or null
+     */
+    @Override
+    public void processGrayFrame(@NonNull Mat gray, @Nullable Mat preview) {
+        if (mFrameReplay != null) return;
+        processFrame(gray, preview, true, CURRENT_ORIENTATION, CURRENT_ORIENTATION,
+                System.nanoTime());
+    }
+
+    /**
+     * Process grayscale frames with a given orientation (e.g. frames being replayed)
+     *
+     * @param gray opencv matrix with the image (single channel)
+     * @param preview opencv matrix with the color image to draw feedback on, or null
+     * @param flip flip operation before rotation (see FlipDirection)
+     * @param rotation rotation (clockwise) in degrees
+     * @param timestamp capture time stamp in nanoseconds
+     */
+    @Override
+    public void processGrayFrame(@NonNull Mat gray, @Nullable Mat preview, int flip,
+                                 int rotation, long timestamp) {
+        processFrame(gray, preview, true, flip, rotation, timestamp);
+    }
+
+    /* Use the orientation of the device when processing a frame */
+    private static final int CURRENT_ORIENTATION= -1;
+
+    private void processFrame(@NonNull Mat frame, @Nullable Mat preview, boolean isGray,
+                              int pictFlip, int pictRotation, long timestamp) {
+        synchronized (mProcessFrameLock) {
+            processFrameLocked(frame, preview, isGray, pictFlip, pictRotation, timestamp);
+        }
+    }
+
+    private void processFrameLocked(@NonNull Mat frame, @Nullable Mat preview, boolean isGray,
+                                    int pictFlip, int pictRotation, long timestamp) {
 
         //Log.d(EVIACAM.TAG+"->"+TAG, "processFrame");
 
@@ -876,26 +1170,55 @@ public abstract class CoreEngine implements Engine, FrameProcessor,
          * In STATE_RUNNING, STATE_PAUSED or STATE_STANDBY state.
          * Need to check if face detected
          */
-        int pictRotation = mOrientationManager.getPictureRotation();
+        if (pictRotation == CURRENT_ORIENTATION) {
+            pictRotation = mOrientationManager.getPictureRotation();
+            pictFlip = mOrientationManager.getPictureFlip().getValue();
+        }
 
         // set preview rotation
         mCamera.setPreviewRotation(pictRotation);
 
+        FrameRecorder recorder= mFrameRecorder;
+        if (recorder != null && mFrameReplay == null) {
+            try {
+                recorder.write(frame, timestamp, pictFlip, pictRotation);
+            }
+            catch (IOException e) {
+                Log.e(EVIACAM.TAG+"->"+TAG, "Error recording frame: " + e.toString());
+                stopFrameRecording();
+            }
+        }
+
         // call jni part to detect and track face
-        mMotion.x= mMotion.y= 0.0f;
-        boolean faceDetected=
-                VisionPipeline.processFrame(
-                        rgba.getNativeObjAddr(),
-                        mOrientationManager.getPictureFlip().getValue(),
-                        pictRotation,
-                        mMotion);
+        final VisionPipeline vp= mVisionPipeline;
+        if (vp == null) return;
+
+        boolean faceDetected;
+        final long visionStart= LatencyMonitor.start();
+        if (isGray) {
+            faceDetected= vp.processGrayFrameToBuffer(
+                    frame.getNativeObjAddr(),
+                    preview != null ? preview.getNativeObjAddr() : 0,
+                    pictFlip,
+                    pictRotation);
+        }
+        else {
+            faceDetected= vp.processFrameToBuffer(
+                    frame.getNativeObjAddr(),
+                    pictFlip,
+                    pictRotation);
+        }
+        mMotion.x= mResult.get(VisionPipeline.RESULT_X_VEL);
+        mMotion.y= mResult.get(VisionPipeline.RESULT_Y_VEL);
+
+        LatencyMonitor.end(LatencyMonitor.STAGE_VISION, visionStart);
 
         if (faceDetected) mLastFaceDetectionTimeStamp= System.currentTimeMillis();
 
         // compensate mirror effect
         mMotion.x = -mMotion.x;
 
-        onFrame(mMotion, faceDetected, mCurrentState);
+        onFrame(mMotion, faceDetected, mCurrentState, timestamp);
 
         // States to be managed below: RUNNING, PAUSED, STANDBY
 
@@ -0,0 +1,190 @@
+/*
+ * Enable Viacam for Android, a camera based mouse emulator
+ *
+ * Copyright (C) 2015-17 Cesar Mauri Loba (CREA Software Systems)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.crea_si.eviacam.common;
+
+import android.view.View;
+import android.view.ViewGroup;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.Arrays;
+
+/**
+ * Flattened list of the buttons of the docking panel for hit testing
+ *
+ * Rectangles are in screen coordinates, four ints per button, with inclusive
+ * bounds (as ViewUtils.isPointInsideView) and already clipped to the bounds of
+ * their parents. Stored in depth first order, so the first match is the view
+ * ViewUtils.findViewWithIdBelowPoint would return. Immutable, can be queried
+ * from any thread.
+ */
+final class DockPanelHitMap {
+    static final DockPanelHitMap EMPTY= new DockPanelHitMap(new int[0], new int[0]);
+
+    /**
+     * Access to a view hierarchy, so that the map can be built from any tree
+     */
+    interface ViewTree<V> {
+        boolean isVisible(@NonNull V v);
+        void getLocationOnScreen(@NonNull V v, @NonNull int[] location);
+        int getWidth(@NonNull V v);
+        int getHeight(@NonNull V v);
+        int getId(@NonNull V v);
+
+        /**
+         * @return number of children, or -1 when v is not a view group
+         */
+        int getChildCount(@NonNull V v);
+        @NonNull V getChildAt(@NonNull V v, int index);
+    }
+
+    /** Tree of actual views */
+    static final ViewTree<View> VIEWS= new ViewTree<View>() {
+        @Override
+        public boolean isVisible(@NonNull View v) {
+            return v.getVisibility() == View.VISIBLE;
+        }
+
+        @Override
+        public void getLocationOnScreen(@NonNull View v, @NonNull int[] location) {
+            v.getLocationOnScreen(location);
+        }
+
+        @Override
+        public int getWidth(@NonNull View v) {
+            return v.getWidth();
+        }
+
+        @Override
+        public int getHeight(@NonNull View v) {
+            return v.getHeight();
+        }
+
+        @Override
+        public int getId(@NonNull View v) {
+            return v.getId();
+        }
+
+        @Override
+        public int getChildCount(@NonNull View v) {
+            if (!(v instanceof ViewGroup)) return -1;
+            return ((ViewGroup) v).getChildCount();
+        }
+
+        @NonNull
+        @Override
+        public View getChildAt(@NonNull View v, int index) {
+            return ((ViewGroup) v).getChildAt(index);
+        }
+    };
+
+    private final int[] mIds;
+    private final int[] mRects;
+
+    private DockPanelHitMap(@NonNull int[] ids, @NonNull int[] rects) {
+        mIds= ids;
+        mRects= rects;
+    }
+
+    int size() {
+        return mIds.length;
+    }
+
+    /**
+     * Find the button below a point
+     *
+     * @return id of the button, View.NO_ID if none
+     */
+    int find(int x, int y) {
+        final int[] r= mRects;
+        for (int i= 0; i< mIds.length; i++) {
+            final int base= i * 4;
+            if (x >= r[base] && y >= r[base + 1] && x <= r[base + 2] && y <= r[base + 3]) {
+                return mIds[i];
+            }
+        }
+        return View.NO_ID;
+    }
+
+    /**
+     * Builds hit maps reusing its buffers. Not thread safe.
+     */
+    static final class Builder<V> {
+        private final ViewTree<V> mTree;
+        private int[] mIds= new int[16];
+        private int[] mRects= new int[16 * 4];
+        private int mCount;
+        private final int[] mTmpLocation= new int[2];
+
+        Builder(@NonNull ViewTree<V> tree) {
+            mTree= tree;
+        }
+
+        /**
+         * @param root root of the hierarchy, null for an empty map
+         */
+        @NonNull
+        DockPanelHitMap build(@Nullable V root) {
+            mCount= 0;
+            if (root != null) {
+                add(root, Integer.MIN_VALUE, Integer.MIN_VALUE,
+                        Integer.MAX_VALUE, Integer.MAX_VALUE);
+            }
+            return new DockPanelHitMap(Arrays.copyOf(mIds, mCount),
+                    Arrays.copyOf(mRects, mCount * 4));
+        }
+
+        /** Same traversal as ViewUtils.findViewWithIdBelowPoint */
+        private void add(@NonNull V v, int left, int top, int right, int bottom) {
+            if (!mTree.isVisible(v)) return;
+
+            mTree.getLocationOnScreen(v, mTmpLocation);
+            left= Math.max(left, mTmpLocation[0]);
+            top= Math.max(top, mTmpLocation[1]);
+            right= Math.min(right, mTmpLocation[0] + mTree.getWidth(v));
+            bottom= Math.min(bottom, mTmpLocation[1] + mTree.getHeight(v));
+            if (left > right || top > bottom) return;
+
+            final int childCount= mTree.getChildCount(v);
+            if (childCount < 0) {
+                final int id= mTree.getId(v);
+                if (id == View.NO_ID) return;
+
+                if (mCount == mIds.length) {
+                    mIds= Arrays.copyOf(mIds, mCount * 2);
+                    mRects= Arrays.copyOf(mRects, mCount * 2 * 4);
+                }
+                final int base= mCount * 4;
+                mIds[mCount]= id;
+                mRects[base]= left;
+                mRects[base + 1]= top;
+                mRects[base + 2]= right;
+                mRects[base + 3]= bottom;
+                mCount++;
+                return;
+            }
+
+            for (int i= 0; i< childCount; i++) {
+                add(mTree.getChildAt(v, i), left, top, right, bottom);
+            }
+        }
+    }
+}
@@ -21,7 +21,6 @@ package com.crea_si.eviacam.common;
 
 import android.content.Context;
 import android.content.SharedPreferences;
-import android.content.SharedPreferences.OnSharedPreferenceChangeListener;
 import android.content.res.Resources;
 import android.graphics.Bitmap;
 import android.graphics.Matrix;
@@ -46,19 +45,17 @@ import androidx.annotation.NonNull;
 import androidx.core.content.ContextCompat;
 
 import com.crea_si.eviacam.R;
-import com.crea_si.eviacam.util.ViewUtils;
 
 /**
  * Dock menu view
  */
 public class DockPanelLayerView extends RelativeLayout 
-    implements OnSharedPreferenceChangeListener {
+    implements Preferences.OnSettingsChangeListener {
     
     private static final int TOGGLE_BUTTON_SHORT_SIDE_DP= 18;
     private static final int TOGGLE_BUTTON_LONG_SIDE_DP= 30;
     private static final int TOGGLE_BUTTON_PADDING_DP= 2;
 
-    private final int DOCKING_PANEL_EDGE_DEFAULT;
     private final int EDGE_RIGHT;
     private final int EDGE_TOP;
     private final int EDGE_BOTTOM;
@@ -86,6 +83,13 @@ public class DockPanelLayerView extends RelativeLayout
     // status of the rest mode
     private boolean mRestModeEnabled= false;
 
+    // current hit map, rebuilt after each layout pass and read from any thread
+    private volatile DockPanelHitMap mHitMap= DockPanelHitMap.EMPTY;
+
+    // builds the hit map (main thread only)
+    private final DockPanelHitMap.Builder<View> mHitMapBuilder=
+            new DockPanelHitMap.Builder<>(DockPanelHitMap.VIEWS);
+
     /**
      * Constructor
      * @param c context
@@ -95,34 +99,30 @@ public class DockPanelLayerView extends RelativeLayout
        
         // get constants from resources
         Resources r= c.getResources();
-        DOCKING_PANEL_EDGE_DEFAULT= r.getInteger(R.integer.docking_panel_edge_default);
         EDGE_RIGHT= Integer.parseInt(r.getString(R.string.docking_panel_edge_right_value));
         EDGE_TOP= Integer.parseInt(r.getString(R.string.docking_panel_edge_top_value));
         EDGE_BOTTOM=  Integer.parseInt(r.getString(R.string.docking_panel_edge_bottom_value));
         DISABLED_ALPHA= (float) (ContextCompat.getColor(c, R.color.disabled_alpha) >> 24) / 255.0f;
         
-        // shared preferences
-        SharedPreferences sp= Preferences.get().getSharedPreferences();
-        sp.registerOnSharedPreferenceChangeListener(this);
-        updateSettings(sp);
+        // settings
+        Preferences.get().registerOnSettingsChangeListener(this);
+        updateSettings(Preferences.get().getSettings());
     }
     
     public void cleanup() {
-        SharedPreferences sp= Preferences.get().getSharedPreferences();
-        sp.unregisterOnSharedPreferenceChangeListener(this);
+        Preferences.get().unregisterOnSettingsChangeListener(this);
     }
     
-    private void updateSettings(SharedPreferences sp) {
-        // get values from shared resources
-        int dockingEdge= Integer.parseInt(sp.getString(
-                Preferences.KEY_DOCKING_PANEL_EDGE, Integer.toString(DOCKING_PANEL_EDGE_DEFAULT)));
+    private void updateSettings(@NonNull SettingsSnapshot s) {
+        // get values from the settings snapshot
+        int dockingEdge= s.getDockingPanelEdge();
         
         int gravity= Gravity.START;
         if (dockingEdge == EDGE_RIGHT)  gravity= Gravity.END;
         else if (dockingEdge == EDGE_TOP)    gravity= Gravity.TOP;
         else if (dockingEdge == EDGE_BOTTOM) gravity= Gravity.BOTTOM;
         
-        float size = Preferences.get().getUIElementsSize();
+        float size = s.getUIElementsSize();
         
         if (mDockPanelView != null) {
             removeView(mDockPanelView);
@@ -132,11 +132,10 @@ public class DockPanelLayerView extends RelativeLayout
     }
     
     @Override
-    public void onSharedPreferenceChanged(SharedPreferences sharedPreferences,
-            String key) {
+    public void onSettingsChanged(@NonNull SettingsSnapshot settings, @NonNull String key) {
         if (key.equals(Preferences.KEY_DOCKING_PANEL_EDGE) ||
             key.equals(Preferences.KEY_UI_ELEMENTS_SIZE)) {
-            updateSettings(sharedPreferences);
+            updateSettings(settings);
         }
     }
     
@@ -371,14 +370,25 @@ public class DockPanelLayerView extends RelativeLayout
      * Finds the ID of the view below the point
      * @param p - the point in screen coordinates
      * @return id of the view, NO_ID otherwise
+     *
+     * Remarks: can be called from any thread, neither walks the view
+     * hierarchy nor allocates memory
      */
     public int getViewIdBelowPoint (Point p) {
-        View result= ViewUtils.findViewWithIdBelowPoint(p, mDockPanelView);
-        if (result == null) return View.NO_ID;
-        
-        return result.getId();
+        return mHitMap.find(p.x, p.y);
     }
-   
+
+    /**
+     * Positions and visibility of the buttons only change during a layout pass
+     * (docking edge and size changes recreate the panel, expand and collapse
+     * toggle GONE), so this is the only place where the hit map is rebuilt.
+     */
+    @Override
+    protected void onLayout(boolean changed, int l, int t, int r, int b) {
+        super.onLayout(changed, l, t, r, b);
+        mHitMap= mHitMapBuilder.build(mDockPanelView);
+    }
+
     /**
      * Gives an opportunity to process a click action for a given view
      *  
@@ -393,9 +403,7 @@ public class DockPanelLayerView extends RelativeLayout
                 @Override
                 public void run() {
 
-                    SharedPreferences sp=  Preferences.get().getSharedPreferences();
-                    // get values from shared resources
-                    Boolean enableclick = sp.getBoolean(Preferences.KEY_ENABLE_DWELL, false);
+                    boolean enableclick = Preferences.get().getSettings().getEnableDwell();
 
                     if (!enableclick && !hwgenerated) {
                         SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(getContext());
@@ -490,9 +498,7 @@ public class DockPanelLayerView extends RelativeLayout
      */
     public boolean isActionable(@NonNull Point p) {
 
-        SharedPreferences sp=  Preferences.get().getSharedPreferences();
-        // get values from shared resources
-        Boolean enableclick= sp.getBoolean(Preferences.KEY_ENABLE_DWELL,false);
+        boolean enableclick= Preferences.get().getSettings().getEnableDwell();
         //Log.d(EVIACAM.TAG+"->", "isActionable:"+String.valueOf(enableclick));
         int id = getViewIdBelowPoint(p);
 
@@ -20,8 +20,6 @@
 package com.crea_si.eviacam.common;
 
 import android.content.Context;
-import android.content.SharedPreferences;
-import android.content.SharedPreferences.OnSharedPreferenceChangeListener;
 import android.content.res.Resources;
 import android.graphics.PointF;
 
@@ -30,7 +28,7 @@ import androidx.annotation.NonNull;
 import com.crea_si.eviacam.R;
 import com.crea_si.eviacam.util.Countdown;
 
-class DwellClick implements OnSharedPreferenceChangeListener {
+class DwellClick implements Preferences.OnSettingsChangeListener {
     /**
      * Enums and constants
      */
@@ -39,8 +37,6 @@ class DwellClick implements OnSharedPreferenceChangeListener {
     }
     
     private final int DWELL_TIME_DEFAULT;
-    private final int DWELL_AREA_DEFAULT;
-    private final boolean CONSECUTIVE_CLICKS;
 
     // delegate to measure elapsed time
     private Countdown mCountdown;
@@ -62,22 +58,19 @@ class DwellClick implements OnSharedPreferenceChangeListener {
         // get constants from resources
         Resources r= c.getResources();
         DWELL_TIME_DEFAULT= r.getInteger(R.integer.dwell_time_default) * 100;
-        DWELL_AREA_DEFAULT= r.getInteger(R.integer.dwell_area_default);
-        CONSECUTIVE_CLICKS= r.getBoolean(R.bool.consecutive_clicks_default);
         
         mCountdown= new Countdown(DWELL_TIME_DEFAULT);
         
-        // register preference change listener
-        Preferences.get().getSharedPreferences().registerOnSharedPreferenceChangeListener(this);
+        // register settings change listener
+        Preferences.get().registerOnSettingsChangeListener(this);
         
-        updateSettings();
+        updateSettings(Preferences.get().getSettings());
     }
     
-    private void updateSettings() {
-        SharedPreferences sp=  Preferences.get().getSharedPreferences();
-        // get values from shared resources
-        int dwellTime= sp.getInt(Preferences.KEY_DWELL_TIME, DWELL_TIME_DEFAULT) * 100;
-        Boolean enableclick = sp.getBoolean(Preferences.KEY_ENABLE_DWELL, false);
+    private void updateSettings(@NonNull SettingsSnapshot s) {
+        // get values from the settings snapshot
+        int dwellTime= s.getDwellTime() * 100;
+        boolean enableclick = s.getEnableDwell();
 
         if (!enableclick) {
             mCountdown.setTimeToWait(8000);
@@ -86,22 +79,20 @@ class DwellClick implements OnSharedPreferenceChangeListener {
             //Log.d(EVIACAM.TAG+"->", "setTimeToWait:"+String.valueOf(dwellTime));
             mCountdown.setTimeToWait(dwellTime);
         }
-        int dwellArea= sp.getInt(Preferences.KEY_DWELL_AREA, DWELL_AREA_DEFAULT);
+        int dwellArea= s.getDwellArea();
         mDwellAreaSquared= dwellArea * dwellArea;
-        mConsecutiveClicks = sp.getBoolean(
-                Preferences.KEY_CONSECUTIVE_CLICKS, CONSECUTIVE_CLICKS);
+        mConsecutiveClicks = s.getConsecutiveClicks();
     }
     
     public void cleanup() {
-        Preferences.get().getSharedPreferences().unregisterOnSharedPreferenceChangeListener(this);
+        Preferences.get().unregisterOnSettingsChangeListener(this);
     }
     
     @Override
-    public void onSharedPreferenceChanged(SharedPreferences sharedPreferences,
-            String key) {
+    public void onSettingsChanged(@NonNull SettingsSnapshot settings, @NonNull String key) {
         if (key.equals(Preferences.KEY_DWELL_TIME) || key.equals(Preferences.KEY_DWELL_AREA) ||
             key.equals(Preferences.KEY_CONSECUTIVE_CLICKS) || key.equals(Preferences.KEY_ENABLE_DWELL)) {
-                updateSettings();
+                updateSettings(settings);
         }
     }
 
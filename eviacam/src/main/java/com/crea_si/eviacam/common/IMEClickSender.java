@@ -0,0 +1,151 @@
+/*
+ * Enable Viacam for Android, a camera based mouse emulator
+ *
+ * Copyright (C) 2015-17 Cesar Mauri Loba (CREA Software Systems)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.crea_si.eviacam.common;
+
+import android.os.RemoteException;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.crea_si.input_method_aidl.IClickableIME;
+import com.crea_si.input_method_aidl.IClickableIMEListener;
+
+/**
+ * Sends the clicks to the bundled keyboard without blocking
+ *
+ * The IME publishes the bounds of the keyboard on the screen as soon as the
+ * listener is set and whenever they change. Clicks outside them fall through
+ * right away, with no remote call. Clicks inside are sent with a oneway call and
+ * the IME reports the result to the listener. While the bounds are unknown the
+ * clicks are sent anyway, the IME reports those outside the keyboard as not
+ * performed.
+ *
+ * Thread safety: clicks come from the thread of the clicks, the callbacks of
+ * the listener from binder threads and the remote is set from the main thread.
+ */
+class IMEClickSender {
+    private static final String TAG = "IMEClickSender";
+
+    // binder which forwards to onKeyboardBounds and onClickDone
+    private final IClickableIMEListener mListener;
+
+    private volatile InputMethodAction.OnClickNotPerformedListener mOnClickNotPerformedListener;
+
+    // proxy of the remote input method service
+    private volatile IClickableIME mRemote;
+
+    // left, top, right, bottom of the keyboard on the screen, null if unknown
+    private volatile int[] mBounds;
+
+    /**
+     * @param listener listener set on the remote IME, which forwards its calls
+     *                 to onKeyboardBounds and onClickDone
+     */
+    IMEClickSender(@NonNull IClickableIMEListener listener) {
+        mListener= listener;
+    }
+
+    void setOnClickNotPerformedListener(
+            @Nullable InputMethodAction.OnClickNotPerformedListener l) {
+        mOnClickNotPerformedListener= l;
+    }
+
+    /**
+     * Start sending the clicks to a newly connected IME
+     *
+     * @param remote proxy of the IME, null when disconnected
+     */
+    void setRemote(@Nullable IClickableIME remote) {
+        mBounds= null;
+        mRemote= remote;
+        if (remote != null) setRemoteListener(remote, mListener);
+    }
+
+    /**
+     * Stop sending clicks and remove the listener from the IME
+     */
+    void release() {
+        IClickableIME remote= mRemote;
+        mRemote= null;
+        mBounds= null;
+        if (remote != null) setRemoteListener(remote, null);
+    }
+
+    /**
+     * Try to click on an IME key. Never waits for the IME.
+     *
+     * @param x - abscissa coordinate of the point (relative to the screen)
+     * @param y - ordinate coordinate of the point (relative to the screen)
+     * @return true if the click has been sent to the IME, false otherwise
+     */
+    boolean click(int x, int y) {
+        IClickableIME remote= mRemote;
+        if (remote == null) return false;
+
+        int[] bounds= mBounds;
+        if (bounds != null && !contains(bounds, x, y)) return false;
+
+        try {
+            remote.clickAsync(x, y);
+            return true;
+        } catch (RemoteException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Bounds of the keyboard published by the IME, all zero when hidden
+     */
+    void onKeyboardBounds(int left, int top, int right, int bottom) {
+        mBounds= new int[] { left, top, right, bottom };
+    }
+
+    /**
+     * Completion of a click sent to the IME
+     */
+    void onClickDone(int x, int y, boolean performed) {
+        if (performed) return;
+
+        // click not accepted, bounds might be out of date, ask for them again
+        Log.d(EVIACAM.TAG+"->"+TAG, "IME click not performed, refresh bounds");
+        IClickableIME remote= mRemote;
+        mBounds= null;
+        if (remote != null) setRemoteListener(remote, mListener);
+
+        // and let the click reach whatever is under the point
+        InputMethodAction.OnClickNotPerformedListener l= mOnClickNotPerformedListener;
+        if (l != null) l.onClickNotPerformed(x, y);
+    }
+
+    private static void setRemoteListener(@NonNull IClickableIME remote,
+                                          @Nullable IClickableIMEListener l) {
+        try {
+            remote.setListener(l);
+        } catch (RemoteException e) {
+            Log.e(EVIACAM.TAG+"->"+TAG, "Cannot set IME listener");
+        }
+    }
+
+    // same as Rect.contains, an empty rectangle contains no points
+    private static boolean contains(@NonNull int[] b, int x, int y) {
+        return b[0] < b[2] && b[1] < b[3] &&
+                x >= b[0] && x < b[2] && y >= b[1] && y < b[3];
+    }
+}
@@ -48,6 +48,7 @@ import androidx.localbroadcastmanager.content.LocalBroadcastManager;
 import com.crea_si.eviacam.BuildConfig;
 import com.crea_si.eviacam.R;
 import com.crea_si.input_method_aidl.IClickableIME;
+import com.crea_si.input_method_aidl.IClickableIMEListener;
 
 import java.util.List;
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -77,11 +78,41 @@ public class InputMethodAction implements ServiceConnection {
     private static final int ALERT5_UID = 5;
     private static final int ALERT6_UID = 6;
     private static final int ALERT7_UID = 11;
-    
+
+    /**
+     * Receives the clicks sent to the IME which it did not perform (e.g. because
+     * the keyboard moved or was hidden) so that they can be handled elsewhere
+     */
+    public interface OnClickNotPerformedListener {
+        /**
+         * Called from a binder thread, must not block
+         *
+         * @param x - abscissa coordinate of the point (relative to the screen)
+         * @param y - ordinate coordinate of the point (relative to the screen)
+         */
+        void onClickNotPerformed(int x, int y);
+    }
+
     private final Context mContext;
 
     // binder (proxy) with the remote input method service
     private volatile IClickableIME mRemoteService;
+
+    // receives the keyboard bounds and the result of the clicks from the IME
+    private final IClickableIMEListener.Stub mIMEListener= new IClickableIMEListener.Stub() {
+        @Override
+        public void onKeyboardBounds(int left, int top, int right, int bottom) {
+            mClickSender.onKeyboardBounds(left, top, right, bottom);
+        }
+
+        @Override
+        public void onClickDone(int x, int y, boolean performed) {
+            mClickSender.onClickDone(x, y, performed);
+        }
+    };
+
+    // sends the clicks to the IME without blocking
+    private final IMEClickSender mClickSender= new IMEClickSender(mIMEListener);
     
     // time stamp of the last time the thread ran
     private long mLastBindAttemptTimeStamp = 0;
@@ -178,12 +209,20 @@ public class InputMethodAction implements ServiceConnection {
 
     }
 
+    /**
+     * Set the listener of the clicks which the IME did not perform
+     */
+    public void setOnClickNotPerformedListener(@Nullable OnClickNotPerformedListener l) {
+        mClickSender.setOnClickNotPerformedListener(l);
+    }
+
     /**
      * Free resources
      */
     public void cleanup() {
         if (mRemoteService == null) return;
-        
+
+        mClickSender.release();
         mContext.unbindService(this);
         mRemoteService= null;
     }
@@ -226,6 +265,7 @@ public class InputMethodAction implements ServiceConnection {
         // interact with the service.
         Log.d(EVIACAM.TAG+"->"+TAG, "remoteIME:onServiceConnected: " + className.toString());
         mRemoteService = IClickableIME.Stub.asInterface(service);
+        mClickSender.setRemote(mRemoteService);
     }
 
     @Override
@@ -235,13 +275,17 @@ public class InputMethodAction implements ServiceConnection {
         Log.d(EVIACAM.TAG+"->"+TAG, "remoteIME:onServiceDisconnected");
         mContext.unbindService(this);
         mRemoteService = null;
+        mClickSender.setRemote(null);
         keepBindAlive();
     }
 
-    /** Try to click on an IME key
+    /** Try to click on an IME key. Does not block, the point is checked against
+     * the last bounds published by the IME and the click is sent asynchronously.
+     * When the bounds are not known yet the click is sent anyway and, if the IME
+     * does not perform it, it is passed to the OnClickNotPerformedListener.
      * @param x - abscissa coordinate of the point (relative to the screen)
      * @param y - ordinate coordinate of the point (relative to the screen)
-     * @return true if the point is within view bounds of the IME, false otherwise
+     * @return true if the click has been sent to the IME, false otherwise
      */
     public boolean click(int x, int y) {
         if (mRemoteService == null) {
@@ -251,11 +295,7 @@ public class InputMethodAction implements ServiceConnection {
             return false;
         }
 
-        try {
-            return mRemoteService.click(x, y);
-        } catch (RemoteException e) {
-            return false;
-        }
+        return mClickSender.click(x, y);
     }
 
     /**
@@ -0,0 +1,116 @@
+/*
+ * Enable Viacam for Android, a camera based mouse emulator
+ *
+ * Copyright (C) 2015-17 Cesar Mauri Loba (CREA Software Systems)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.crea_si.eviacam.common;
+
+import android.graphics.PointF;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Constant velocity Kalman filter.
+ *
+ * Each axis is filtered independently. The state is the position of the pointer
+ * (the sum of the motion vectors) and its velocity, the motion of each frame being
+ * the measured displacement. The output is the displacement of the filtered position.
+ *
+ * Implemented in plain Java (the 2x2 case is trivial) instead of using
+ * org.opencv.video.KalmanFilter to avoid JNI calls and matrix allocations per frame.
+ */
+class KalmanMotionFilter implements MotionFilter {
+    // process noise (acceleration variance, pixels^2 per frame^4)
+    private static final double PROCESS_NOISE= 0.1;
+
+    // measurement noise per squared unit of smoothness
+    private static final double MEASUREMENT_NOISE_FACTOR= 1.0;
+
+    private double mMeasurementNoise;
+    private boolean mEnabled;
+
+    private final Axis mX= new Axis();
+    private final Axis mY= new Axis();
+
+    /*
+     * State for each axis. To keep numbers small the position is expressed
+     * relative to the last measured position.
+     */
+    private static class Axis {
+        double position, velocity;
+        double p00, p01, p11;    // covariance matrix (symmetric)
+    }
+
+    KalmanMotionFilter() {
+        reset();
+    }
+
+    @Override
+    public void setSmoothness(int smoothness) {
+        mEnabled= (smoothness > 0);
+        mMeasurementNoise= MEASUREMENT_NOISE_FACTOR * smoothness * smoothness;
+    }
+
+    @Override
+    public void filter(@NonNull PointF motion, long timestamp) {
+        if (!mEnabled) return;
+
+        motion.x= (float) filter(mX, motion.x);
+        motion.y= (float) filter(mY, motion.y);
+    }
+
+    private double filter(@NonNull Axis a, double measurement) {
+        final double prevPosition= a.position;
+
+        // predict (dt = 1 frame)
+        a.position+= a.velocity;
+        final double q= PROCESS_NOISE;
+        double p00= a.p00 + 2.0 * a.p01 + a.p11 + q / 4.0;
+        double p01= a.p01 + a.p11 + q / 2.0;
+        double p11= a.p11 + q;
+
+        // update
+        final double innovation= measurement - a.position;
+        final double s= p00 + mMeasurementNoise;
+        final double k0= p00 / s;
+        final double k1= p01 / s;
+        a.position+= k0 * innovation;
+        a.velocity+= k1 * innovation;
+        a.p00= (1.0 - k0) * p00;
+        a.p01= (1.0 - k0) * p01;
+        a.p11= p11 - k1 * p01;
+
+        final double output= a.position - prevPosition;
+
+        // make the position relative to the new measured position
+        a.position-= measurement;
+
+        return output;
+    }
+
+    @Override
+    public void reset() {
+        reset(mX);
+        reset(mY);
+    }
+
+    private static void reset(@NonNull Axis a) {
+        a.position= a.velocity= 0.0;
+        a.p00= a.p11= 1.0;
+        a.p01= 0.0;
+    }
+}
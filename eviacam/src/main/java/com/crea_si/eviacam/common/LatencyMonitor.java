@@ -0,0 +1,134 @@
+/*
+ * Enable Viacam for Android, a camera based mouse emulator
+ *
+ * Copyright (C) 2015-17 Cesar Mauri Loba (CREA Software Systems)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.crea_si.eviacam.common;
+
+import androidx.annotation.NonNull;
+
+import com.crea_si.eviacam.util.LatencyHistogram;
+
+import java.util.Locale;
+
+/**
+ * Collects the latency of each stage of the frame path, from the camera thread
+ * to the dispatch of accessibility actions.
+ *
+ * Usage:
+ *
+ *   long t= LatencyMonitor.start();
+ *   ... stage ...
+ *   LatencyMonitor.end(LatencyMonitor.STAGE_XXX, t);
+ *
+ * When disabled, start() returns 0 and end() does nothing, so the cost is a
+ * volatile read. Recording does not allocate nor lock.
+ */
+public final class LatencyMonitor {
+    /* Stages of the frame path */
+    public static final int STAGE_FRAME= 0;             // from capture to the end of processing
+    public static final int STAGE_INGEST= 1;            // YUV planes to matrix
+    public static final int STAGE_COLOR_CONVERSION= 2;  // YUV to BGRA for the preview
+    public static final int STAGE_VISION= 3;            // native face tracking
+    public static final int STAGE_POINTER= 4;           // pointer control and dwell click
+    public static final int STAGE_DISPATCH= 5;          // mouse event and accessibility action
+    public static final int STAGE_BITMAP= 6;            // matrix to bitmap for the preview
+    public static final int STAGE_DRAW= 7;              // preview canvas draw
+    public static final int STAGE_QUEUE= 8;             // wait in the frame ring
+    public static final int STAGE_COUNT= 9;
+
+    private static final String[] STAGE_NAMES= {
+            "frame", "ingest", "color_conversion", "vision",
+            "pointer", "dispatch", "bitmap", "draw", "queue"
+    };
+
+    private static final LatencyHistogram[] sHistograms= new LatencyHistogram[STAGE_COUNT];
+    static {
+        for (int i= 0; i < STAGE_COUNT; i++) sHistograms[i]= new LatencyHistogram();
+    }
+
+    private static volatile boolean sEnabled= false;
+
+    private LatencyMonitor() { }
+
+    public static void setEnabled(boolean enabled) {
+        sEnabled= enabled;
+    }
+
+    public static boolean isEnabled() {
+        return sEnabled;
+    }
+
+    /**
+     * Mark the beginning of a stage
+     * @return time stamp to pass to end(), 0 when disabled
+     */
+    public static long start() {
+        return sEnabled ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Mark the end of a stage
+     * @param stage one of the STAGE_* constants
+     * @param start value returned by start()
+     */
+    public static void end(int stage, long start) {
+        if (start != 0) sHistograms[stage].record(System.nanoTime() - start);
+    }
+
+    /**
+     * Discard all collected data
+     */
+    public static void reset() {
+        for (LatencyHistogram h : sHistograms) h.reset();
+    }
+
+    /**
+     * Get a human readable summary of the collected data
+     * @return one line per stage with the latencies in milliseconds
+     */
+    public static @NonNull String getSummary() {
+        if (!sEnabled && sHistograms[STAGE_FRAME].getCount() == 0) return "disabled";
+
+        StringBuilder sb= new StringBuilder();
+        for (int i= 0; i < STAGE_COUNT; i++) {
+            LatencyHistogram h= sHistograms[i];
+            sb.append(String.format(Locale.US,
+                    "\n  %s: n=%d mean=%.2f p50=%.2f p95=%.2f p99=%.2f max=%.2f",
+                    STAGE_NAMES[i], h.getCount(), h.getMean() / 1000.0,
+                    h.getPercentile(50) / 1000.0, h.getPercentile(95) / 1000.0,
+                    h.getPercentile(99) / 1000.0, h.getMax() / 1000.0));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Export the collected data as CSV
+     * @return CSV text with a header and a row per stage, times in microseconds
+     */
+    public static @NonNull String toCsv() {
+        StringBuilder sb= new StringBuilder("stage,count,mean_us,p50_us,p90_us,p95_us,p99_us,max_us\n");
+        for (int i= 0; i < STAGE_COUNT; i++) {
+            LatencyHistogram h= sHistograms[i];
+            sb.append(String.format(Locale.US, "%s,%d,%.1f,%d,%d,%d,%d,%.1f\n",
+                    STAGE_NAMES[i], h.getCount(), h.getMean(),
+                    h.getPercentile(50), h.getPercentile(90), h.getPercentile(95),
+                    h.getPercentile(99), h.getMax()));
+        }
+        return sb.toString();
+    }
+}
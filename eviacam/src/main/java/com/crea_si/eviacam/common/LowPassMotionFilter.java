@@ -0,0 +1,53 @@
+/*
+ * Enable Viacam for Android, a camera based mouse emulator
+ *
+ * Copyright (C) 2015-17 Cesar Mauri Loba (CREA Software Systems)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.crea_si.eviacam.common;
+
+import android.graphics.PointF;
+
+import androidx.annotation.NonNull;
+
+/**
+ * First order low-pass filter. Simple but adds lag at fast speeds.
+ */
+class LowPassMotionFilter implements MotionFilter {
+    // filter weight (derived from smoothness)
+    private float mWeight;
+
+    // previous output
+    private float mPrevX, mPrevY;
+
+    @Override
+    public void setSmoothness(int smoothness) {
+        mWeight= (float) Math.log10((double) smoothness + 1);
+    }
+
+    @Override
+    public void filter(@NonNull PointF motion, long timestamp) {
+        motion.x= motion.x * (1.0f - mWeight) + mPrevX * mWeight;
+        motion.y= motion.y * (1.0f - mWeight) + mPrevY * mWeight;
+        mPrevX= motion.x;
+        mPrevY= motion.y;
+    }
+
+    @Override
+    public void reset() {
+        mPrevX= mPrevY= 0.0f;
+    }
+}
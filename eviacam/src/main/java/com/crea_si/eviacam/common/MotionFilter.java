@@ -0,0 +1,47 @@
+/*
+ * Enable Viacam for Android, a camera based mouse emulator
+ *
+ * Copyright (C) 2015-17 Cesar Mauri Loba (CREA Software Systems)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.crea_si.eviacam.common;
+
+import android.graphics.PointF;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Filter stage applied to the motion of the pointer
+ */
+interface MotionFilter {
+    /**
+     * Filter the motion of a frame
+     * @param motion motion vector of the frame, updated in place
+     * @param timestamp time stamp of the frame in nanoseconds
+     */
+    void filter(@NonNull PointF motion, long timestamp);
+
+    /**
+     * Set the amount of smoothing
+     * @param smoothness from MOTION_SMOOTHING_MIN (no smoothing) to MOTION_SMOOTHING_MAX
+     */
+    void setSmoothness(int smoothness);
+
+    /**
+     * Forget the history of the filter
+     */
+    void reset();
+}
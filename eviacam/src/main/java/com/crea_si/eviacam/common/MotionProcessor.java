@@ -23,7 +23,7 @@ import android.graphics.PointF;
 import androidx.annotation.NonNull;
 
 public interface MotionProcessor {
-    void processMotion(@NonNull PointF motion);
+    void processMotion(@NonNull PointF motion, long timestamp);
     void start();
     void stop();
     void cleanup();
@@ -230,9 +230,10 @@ public class MouseEmulation implements MotionProcessor, OnSharedPreferenceChange
             int kc = intent.getIntExtra("keycode",0);
             int ka = intent.getIntExtra("keyaction",0);
 
-            SharedPreferences sp =  Preferences.get().getSharedPreferences();
-            // get values from shared resources
-            int storedKey = sp.getInt(Preferences.KEY_KEY_CLICK,0);
+            // get values from the settings snapshot
+            final SettingsSnapshot settings= Preferences.get().getSettings();
+            final int storedKey = settings.getClickKey();
+            final int keypressTime= settings.getKeypressTime() * 100;
 
             if (kc==storedKey) {
 
@@ -241,7 +242,7 @@ public class MouseEmulation implements MotionProcessor, OnSharedPreferenceChange
                         mKeyCode = kc;
                         mKeyPressTime = System.currentTimeMillis();
 
-                        mTimer = new CountDownTimer(Preferences.get().getKeypressTime()*100*3,Preferences.get().getKeypressTime()*100) {
+                        mTimer = new CountDownTimer(keypressTime*3,keypressTime) {
                             @Override
                             public void onTick(long millisUntilFinished) {
                                 //if already up, no nothing
@@ -253,7 +254,7 @@ public class MouseEmulation implements MotionProcessor, OnSharedPreferenceChange
                                 Long elapsedTime = currTime - mKeyPressTime;
 
                                 //if elapsed time > keypresstime -> set swipe action automatic
-                                if (elapsedTime>=(Preferences.get().getKeypressTime()*100)){
+                                if (elapsedTime>=keypressTime){
 
                                     forceClick=true;
                                     forceExtraEvent=EMULATE_MOUSE_SWIPE;
@@ -279,7 +280,7 @@ public class MouseEmulation implements MotionProcessor, OnSharedPreferenceChange
                         Long elapsedTime = currTime - mKeyPressTime;
 
                         //Log.d("elapse:","el:"+String.valueOf(elapsedTime));
-                        if (elapsedTime<(Preferences.get().getKeypressTime()*100)){
+                        if (elapsedTime<keypressTime){
                             forceClick=true;
                             forceExtraEvent=EMULATE_MOUSE_HWCLICK;
 
@@ -303,15 +304,18 @@ public class MouseEmulation implements MotionProcessor, OnSharedPreferenceChange
      * Process incoming motion
      *
      * @param motion motion vector
+     * @param timestamp capture time stamp of the frame in nanoseconds
      *
      * NOTE: this method can be called from a secondary thread
      */
     @Override
-    public void processMotion(@NonNull PointF motion) {
+    public void processMotion(@NonNull PointF motion, long timestamp) {
         if (mState != STATE_RUNNING) return;
 
+        long t= LatencyMonitor.start();
+
         // update pointer location given motion
-        mPointerControl.updateMotion(motion);
+        mPointerControl.updateMotion(motion, timestamp);
         
         // get new pointer location
         PointF pointerLocation= mPointerControl.getPointerLocation();
@@ -354,7 +358,11 @@ public class MouseEmulation implements MotionProcessor, OnSharedPreferenceChange
         // make sure visible changes are updated
         mPointerLayer.postInvalidate();
 
+        LatencyMonitor.end(LatencyMonitor.STAGE_POINTER, t);
+
+        t= LatencyMonitor.start();
         int type = mMouseEmulationCallbacks.onMouseEvent(pointerLocation, clickGenerated, forceExtraEvent);
+        LatencyMonitor.end(LatencyMonitor.STAGE_DISPATCH, t);
         forceExtraEvent=0;
         //if hw key is pressed, indicate it
         if (mKeyCode!=0) {
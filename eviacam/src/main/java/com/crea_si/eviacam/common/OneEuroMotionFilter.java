@@ -0,0 +1,113 @@
+/*
+ * Enable Viacam for Android, a camera based mouse emulator
+ *
+ * Copyright (C) 2015-17 Cesar Mauri Loba (CREA Software Systems)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.crea_si.eviacam.common;
+
+import android.graphics.PointF;
+
+import androidx.annotation.NonNull;
+
+/**
+ * One Euro filter (Casiez, Roussel and Vogel, CHI 2012).
+ *
+ * Low-pass filter whose cutoff frequency grows with the speed of change of the
+ * signal: slow motions are strongly smoothed (less jitter) whereas fast motions
+ * are barely filtered (less lag).
+ */
+class OneEuroMotionFilter implements MotionFilter {
+    // cutoff frequency (Hz) for the derivative
+    private static final float DERIVATIVE_CUTOFF= 1.0f;
+
+    // increase of the cutoff frequency per unit of speed of change
+    private static final float BETA= 0.05f;
+
+    // minimum cutoff frequency (Hz) with smoothness 1
+    private static final float MIN_CUTOFF_BASE= 8.0f;
+
+    // assumed time between frames for the first sample
+    private static final float DEFAULT_PERIOD= 1.0f / 30.0f;
+
+    private float mMinCutoff;
+    private boolean mEnabled;
+
+    private final Axis mX= new Axis();
+    private final Axis mY= new Axis();
+    private long mLastTimestamp;
+
+    /* State for each axis */
+    private static class Axis {
+        float prevValue;
+        float prevDerivative;
+        boolean initialized;
+    }
+
+    @Override
+    public void setSmoothness(int smoothness) {
+        mEnabled= (smoothness > 0);
+        mMinCutoff= MIN_CUTOFF_BASE / (smoothness + 1);
+    }
+
+    @Override
+    public void filter(@NonNull PointF motion, long timestamp) {
+        if (!mEnabled) return;
+
+        float period= DEFAULT_PERIOD;
+        if (mLastTimestamp != 0 && timestamp > mLastTimestamp) {
+            period= (timestamp - mLastTimestamp) / 1e9f;
+        }
+        mLastTimestamp= timestamp;
+
+        motion.x= filter(mX, motion.x, period);
+        motion.y= filter(mY, motion.y, period);
+    }
+
+    private float filter(@NonNull Axis a, float value, float period) {
+        if (!a.initialized) {
+            a.initialized= true;
+            a.prevValue= value;
+            a.prevDerivative= 0.0f;
+            return value;
+        }
+
+        float derivative= (value - a.prevValue) / period;
+        derivative= lowPass(derivative, a.prevDerivative, alpha(DERIVATIVE_CUTOFF, period));
+        a.prevDerivative= derivative;
+
+        float cutoff= mMinCutoff + BETA * Math.abs(derivative);
+        value= lowPass(value, a.prevValue, alpha(cutoff, period));
+        a.prevValue= value;
+
+        return value;
+    }
+
+    private static float alpha(float cutoff, float period) {
+        float tau= 1.0f / (2.0f * (float) Math.PI * cutoff);
+        return 1.0f / (1.0f + tau / period);
+    }
+
+    private static float lowPass(float value, float prev, float alpha) {
+        return alpha * value + (1.0f - alpha) * prev;
+    }
+
+    @Override
+    public void reset() {
+        mX.initialized= mY.initialized= false;
+        mLastTimestamp= 0;
+    }
+}
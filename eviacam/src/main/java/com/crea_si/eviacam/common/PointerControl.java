@@ -19,31 +19,27 @@
 
 package com.crea_si.eviacam.common;
 
-import android.content.SharedPreferences;
-import android.content.SharedPreferences.OnSharedPreferenceChangeListener;
 import android.graphics.PointF;
 import androidx.annotation.NonNull;
 
 import java.lang.Math;
 
-class PointerControl implements OnSharedPreferenceChangeListener {
+class PointerControl implements Preferences.OnSettingsChangeListener {
     // constants
     private final int ACCEL_ARRAY_SIZE= 30;
 
     // speed multipliers (derived from axis speed)
-    private float mHorizontalMultiplier, mVerticalMultiplier;
+    private volatile float mHorizontalMultiplier, mVerticalMultiplier;
 
-    // pre-computed acceleration vector (derived from acceleration setting)
-    private float mAccelArray[]= new float[ACCEL_ARRAY_SIZE];
+    // pre-computed acceleration vector (derived from acceleration setting), replaced
+    // as a whole so that updateMotion never sees a partially built vector
+    private volatile float mAccelArray[]= new float[ACCEL_ARRAY_SIZE];
 
-    // filter weight (derived from motion_smoothing)
-    private float mLowPassFilterWeight;
-
-    // previous motion (needed for the motion filter)
-    private PointF mPrevMotion = new PointF();
+    // motion filter stage (selected with motion_filter)
+    private volatile MotionFilter mMotionFilter;
 
     // motion threshold in screen pixels
-    private int mMotionThreshold;
+    private volatile int mMotionThreshold;
 
     // pointer location in screen coordinates
     private PointF mPointerLocation= new PointF();
@@ -58,37 +54,37 @@ class PointerControl implements OnSharedPreferenceChangeListener {
         mPointerLayerView= pv;
         mOrientationManager= om;
 
-        // register preference change listener
-        Preferences.get().getSharedPreferences().registerOnSharedPreferenceChangeListener(this);
+        // register settings change listener
+        Preferences.get().registerOnSettingsChangeListener(this);
         
-        updateSettings();
+        updateSettings(Preferences.get().getSettings());
         
         reset();
     }
     
-    private void updateSettings() {
-        // get values from shared resources
-        setHorizontalSpeedMultiplier(Preferences.get().getHorizontalSpeed());
-        setVerticalSpeedMultiplier(Preferences.get().getVerticalSpeed());
-        setAccelerationRamp(Preferences.get().getAcceleration());
-        setMotionSmoothing(Preferences.get().getMotionSmoothing());
-        mMotionThreshold= Preferences.get().getMotionThreshold();
+    private void updateSettings(@NonNull SettingsSnapshot s) {
+        // get values from the settings snapshot
+        setHorizontalSpeedMultiplier(s.getHorizontalSpeed());
+        setVerticalSpeedMultiplier(s.getVerticalSpeed());
+        setAccelerationRamp(s.getAcceleration());
+        setMotionFilter(s.getMotionFilter(), s.getMotionSmoothing());
+        mMotionThreshold= s.getMotionThreshold();
     }
     
     // clean-up object
     public void cleanup() {
-        Preferences.get().getSharedPreferences().unregisterOnSharedPreferenceChangeListener(this);
+        Preferences.get().unregisterOnSettingsChangeListener(this);
     }
     
     @Override
-    public void onSharedPreferenceChanged(SharedPreferences sharedPreferences,
-            String key) {
+    public void onSettingsChanged(@NonNull SettingsSnapshot settings, @NonNull String key) {
         if (key.equals(Preferences.KEY_HORIZONTAL_SPEED) ||
             key.equals(Preferences.KEY_VERTICAL_SPEED) ||
             key.equals(Preferences.KEY_ACCELERATION) ||
             key.equals(Preferences.KEY_MOTION_SMOOTHING) ||
+            key.equals(Preferences.KEY_MOTION_FILTER) ||
             key.equals(Preferences.KEY_MOTION_THRESHOLD)) {
-            updateSettings();
+            updateSettings(settings);
         }
     }
     
@@ -112,14 +108,16 @@ class PointerControl implements OnSharedPreferenceChangeListener {
         if (delta1>= ACCEL_ARRAY_SIZE) delta1= ACCEL_ARRAY_SIZE;
         
         int i;
+        float accelArray[]= new float[ACCEL_ARRAY_SIZE];
         
-        for (i= 0; i< delta0; i++) mAccelArray[i]= 1.0f;
-        for (;i< delta1; i++) mAccelArray[i]= factor0;
+        for (i= 0; i< delta0; i++) accelArray[i]= 1.0f;
+        for (;i< delta1; i++) accelArray[i]= factor0;
         float j= 0;
         for (;i< ACCEL_ARRAY_SIZE; i++) {
-            mAccelArray[i]= factor0 * factor1 + j;
+            accelArray[i]= factor0 * factor1 + j;
             j+= 0.1f;
         }
+        mAccelArray= accelArray;
     }
     
     private void setAccelerationRamp(int delta0, float factor0) {
@@ -142,8 +140,19 @@ class PointerControl implements OnSharedPreferenceChangeListener {
         }
     }
 
-    private void setMotionSmoothing(int smoothness) {
-        mLowPassFilterWeight= (float) Math.log10((double) smoothness + 1);
+    private void setMotionFilter(@NonNull Preferences.MotionFilterType type, int smoothness) {
+        /*
+         * updateMotion might be running in another thread, never change the filter in use.
+         * Build a new one, even when only the smoothness changes, and publish it when ready.
+         */
+        MotionFilter filter;
+        switch (type) {
+            case ONE_EURO: filter= new OneEuroMotionFilter(); break;
+            case KALMAN: filter= new KalmanMotionFilter(); break;
+            default: filter= new LowPassMotionFilter();
+        }
+        filter.setSmoothness(smoothness);
+        mMotionFilter= filter;
     }
     
     /**
@@ -160,8 +169,9 @@ class PointerControl implements OnSharedPreferenceChangeListener {
     /**
      * Called for each frame to update pointer position
      * @param vel motion vector in world coordinates (i.e. upright face coordinates)
+     * @param timestamp capture time stamp of the frame in nanoseconds
      */
-    void updateMotion(@NonNull PointF vel) {
+    void updateMotion(@NonNull PointF vel, long timestamp) {
         mCurrMotion.x= vel.x;
         mCurrMotion.y= vel.y;
 
@@ -198,26 +208,23 @@ class PointerControl implements OnSharedPreferenceChangeListener {
             mCurrMotion.y *= mLongSideSpeed;
         }*/
 
-        // low-pass filter
-        mCurrMotion.x= mCurrMotion.x * (1.0f - mLowPassFilterWeight) +
-                mPrevMotion.x * mLowPassFilterWeight;
-        mCurrMotion.y= mCurrMotion.y * (1.0f - mLowPassFilterWeight) +
-                mPrevMotion.y * mLowPassFilterWeight;
-        mPrevMotion.x= mCurrMotion.x;
-        mPrevMotion.y= mCurrMotion.y;
+        // smoothing
+        mMotionFilter.filter(mCurrMotion, timestamp);
 
         // acceleration
         double distance= Math.sqrt (mCurrMotion.x * mCurrMotion.x + mCurrMotion.y * mCurrMotion.y);
         int iAccelArray= (int) (distance + 0.5f);
         if (iAccelArray>= ACCEL_ARRAY_SIZE) iAccelArray= ACCEL_ARRAY_SIZE - 1;
-        mCurrMotion.x*= mAccelArray[iAccelArray];
-        mCurrMotion.y*= mAccelArray[iAccelArray];
+        final float accel= mAccelArray[iAccelArray];
+        mCurrMotion.x*= accel;
+        mCurrMotion.y*= accel;
 
         // stop margin
-        if (-mMotionThreshold < mCurrMotion.x &&
-                mCurrMotion.x < mMotionThreshold) mCurrMotion.x= 0.0f;
-        if (-mMotionThreshold < mCurrMotion.y &&
-                mCurrMotion.y < mMotionThreshold) mCurrMotion.y= 0.0f;
+        final int motionThreshold= mMotionThreshold;
+        if (-motionThreshold < mCurrMotion.x &&
+                mCurrMotion.x < motionThreshold) mCurrMotion.x= 0.0f;
+        if (-motionThreshold < mCurrMotion.y &&
+                mCurrMotion.y < motionThreshold) mCurrMotion.y= 0.0f;
 
         // apply rotation
         mOrientationManager.fixVectorOrientation(mCurrMotion);
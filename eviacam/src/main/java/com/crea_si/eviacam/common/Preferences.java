@@ -25,10 +25,15 @@ import android.content.res.Resources;
 import android.preference.PreferenceManager;
 import android.util.Log;
 
+import androidx.annotation.NonNull;
+
 import com.crea_si.eviacam.R;
 
 import org.acra.ACRA;
 
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
 @SuppressWarnings("WeakerAccess")
 public class Preferences {
     /**
@@ -45,6 +50,9 @@ public class Preferences {
     public static final String KEY_ACCELERATION= "acceleration";
     public static final String KEY_MOTION_SMOOTHING= "motion_smoothing";
     public static final String KEY_MOTION_THRESHOLD= "motion_threshold";
+    public static final String KEY_MOTION_FILTER= "motion_filter";
+    public static final String KEY_FRAME_DROP_POLICY= "frame_drop_policy";
+    public static final String KEY_PREVIEW_MODE= "preview_mode";
     public static final String KEY_DWELL_TIME= "dwell_time";
     public static final String KEY_DWELL_AREA= "dwell_area";
     public static final String KEY_SOUND_ON_CLICK= "sound_on_click";
@@ -66,6 +74,21 @@ public class Preferences {
     private static final String KEY_ENGINE_WAS_RUNNING= "engine_was_running";
     private static final String KEY_SHOW_CONTEXT_MENU_HELP = "display_context_menu_help";
     private static final String KEY_COMP_MODE = "comp_mode";
+    public static final String KEY_CPU_USAGE= "cpu_usage";
+    public static final String KEY_FACE_DETECTOR= "face_detector";
+    public static final String KEY_TRACKER_PYRAMID_LEVELS= "tracker_pyramid_levels";
+    public static final String KEY_TRACKER_WINDOW_SIZE= "tracker_window_size";
+    public static final String KEY_TRACKER_MAX_ITERATIONS= "tracker_max_iterations";
+    public static final String KEY_TRACKER_EPSILON= "tracker_epsilon";
+    public static final String KEY_LIMIT_FACE_SEARCH= "limit_face_search";
+    public static final String KEY_FACE_SEARCH_EXPANSION= "face_search_expansion";
+    public static final String KEY_FACE_SEARCH_MIN_SCALE= "face_search_min_scale";
+    public static final String KEY_FACE_SEARCH_MAX_SCALE= "face_search_max_scale";
+    public static final String KEY_FACE_SEARCH_FULL_SCAN_INTERVAL= "face_search_full_scan_interval";
+    public static final String KEY_RECORD_FRAMES= "record_frames";
+    public static final String KEY_REPLAY_FRAMES= "replay_frames";
+    public static final String KEY_REPLAY_FRAMES_FAST= "replay_frames_fast";
+    public static final String KEY_LATENCY_STATS= "latency_stats";
 
     /**
      * Gamepad locations
@@ -100,6 +123,41 @@ public class Preferences {
     private final int KEYPRESS_TIME_DEFAULT;
     private final int KEYPRESS_TIME_MIN;
     private final int KEYPRESS_TIME_MAX;
+    private final int TRACKER_PYRAMID_LEVELS_DEFAULT;
+    private final int TRACKER_PYRAMID_LEVELS_MIN;
+    private final int TRACKER_PYRAMID_LEVELS_MAX;
+    private final int TRACKER_WINDOW_SIZE_DEFAULT;
+    private final int TRACKER_WINDOW_SIZE_MIN;
+    private final int TRACKER_WINDOW_SIZE_MAX;
+    private final int TRACKER_MAX_ITERATIONS_DEFAULT;
+    private final int TRACKER_MAX_ITERATIONS_MIN;
+    private final int TRACKER_MAX_ITERATIONS_MAX;
+    private final String TRACKER_EPSILON_DEFAULT;
+    private final boolean LIMIT_FACE_SEARCH_DEFAULT;
+    private final int FACE_SEARCH_EXPANSION_DEFAULT;
+    private final int FACE_SEARCH_EXPANSION_MIN;
+    private final int FACE_SEARCH_EXPANSION_MAX;
+    private final int FACE_SEARCH_MIN_SCALE_DEFAULT;
+    private final int FACE_SEARCH_MIN_SCALE_MIN;
+    private final int FACE_SEARCH_MIN_SCALE_MAX;
+    private final int FACE_SEARCH_MAX_SCALE_DEFAULT;
+    private final int FACE_SEARCH_MAX_SCALE_MIN;
+    private final int FACE_SEARCH_MAX_SCALE_MAX;
+    private final int FACE_SEARCH_FULL_SCAN_INTERVAL_DEFAULT;
+    private final int FACE_SEARCH_FULL_SCAN_INTERVAL_MIN;
+    private final int FACE_SEARCH_FULL_SCAN_INTERVAL_MAX;
+    private final int DWELL_TIME_DEFAULT;
+    private final int DWELL_TIME_MIN;
+    private final int DWELL_TIME_MAX;
+    private final int DWELL_AREA_DEFAULT;
+    private final int DWELL_AREA_MIN;
+    private final int DWELL_AREA_MAX;
+    private final boolean CONSECUTIVE_CLICKS_DEFAULT;
+    private final int DOCKING_PANEL_EDGE_DEFAULT;
+    private final int DOCKING_PANEL_EDGE_MIN;
+    private final int DOCKING_PANEL_EDGE_MAX;
+    private final float UI_ELEMENTS_SIZE_DEFAULT;
+    private final int TIME_WITHOUT_DETECTION_DEFAULT;
 
     private String[] TIME_WITHOUT_DETECTION_ENTRIES;
     private String[] TIME_WITHOUT_DETECTION_VALUES;
@@ -118,14 +176,56 @@ public class Preferences {
     private static final int INIT_SLAVE_MODE= 2;
     private int mInitMode= INIT_NONE;
 
-    // constructor
-    private Preferences(Context c, SharedPreferences sp) {
+    /**
+     * Receives the new settings snapshot each time a preference changes
+     */
+    public interface OnSettingsChangeListener {
+        /**
+         * Called on the main thread once the new snapshot has been published
+         *
+         * @param settings new snapshot
+         * @param key key of the preference that changed
+         */
+        void onSettingsChanged(@NonNull SettingsSnapshot settings, @NonNull String key);
+    }
+
+    // current settings snapshot, replaced as a whole when a preference changes
+    private volatile SettingsSnapshot mSettings;
+
+    private final List<OnSettingsChangeListener> mSettingsListeners=
+            new CopyOnWriteArrayList<>();
+
+    /*
+     * Rebuilds the snapshot before notifying the listeners so that all of them,
+     * whatever their registration order, get the new values. Needs to be a member,
+     * SharedPreferences only keeps weak references to its listeners.
+     */
+    private final SharedPreferences.OnSharedPreferenceChangeListener mSettingsUpdater=
+            new SharedPreferences.OnSharedPreferenceChangeListener() {
+        @Override
+        public void onSharedPreferenceChanged(SharedPreferences sp, String key) {
+            if (key == null) return;
+            SettingsSnapshot settings= new SettingsSnapshot(Preferences.this);
+            mSettings= settings;
+            for (OnSettingsChangeListener l : mSettingsListeners) {
+                l.onSettingsChanged(settings, key);
+            }
+        }
+    };
+
+    /**
+     * Constructor, package-private for testing. Use initForA11yService or
+     * initForSlaveService instead.
+     *
+     * @param r resources from which the defaults and limits are read
+     * @param sp backing shared preferences
+     */
+    Preferences(@NonNull Resources r, @NonNull SharedPreferences sp) {
         mSharedPreferences= sp;
 
         /*
          * Read run-time constants
          */
-        final Resources r= c.getResources();
 
         AXIS_SPEED_DEFAULT= r.getInteger(R.integer.axis_speed_default);
         AXIS_SPEED_MIN= r.getInteger(R.integer.axis_speed_min);
@@ -146,6 +246,45 @@ public class Preferences {
         KEYPRESS_TIME_DEFAULT = r.getInteger(R.integer.external_keypress_time_default);
         KEYPRESS_TIME_MIN = r.getInteger(R.integer.external_keypress_time_min);
         KEYPRESS_TIME_MAX = r.getInteger(R.integer.external_keypress_time_max);
+        TRACKER_PYRAMID_LEVELS_DEFAULT= r.getInteger(R.integer.tracker_pyramid_levels_default);
+        TRACKER_PYRAMID_LEVELS_MIN= r.getInteger(R.integer.tracker_pyramid_levels_min);
+        TRACKER_PYRAMID_LEVELS_MAX= r.getInteger(R.integer.tracker_pyramid_levels_max);
+        TRACKER_WINDOW_SIZE_DEFAULT= r.getInteger(R.integer.tracker_window_size_default);
+        TRACKER_WINDOW_SIZE_MIN= r.getInteger(R.integer.tracker_window_size_min);
+        TRACKER_WINDOW_SIZE_MAX= r.getInteger(R.integer.tracker_window_size_max);
+        TRACKER_MAX_ITERATIONS_DEFAULT= r.getInteger(R.integer.tracker_max_iterations_default);
+        TRACKER_MAX_ITERATIONS_MIN= r.getInteger(R.integer.tracker_max_iterations_min);
+        TRACKER_MAX_ITERATIONS_MAX= r.getInteger(R.integer.tracker_max_iterations_max);
+        TRACKER_EPSILON_DEFAULT= r.getString(R.string.tracker_epsilon_default);
+        LIMIT_FACE_SEARCH_DEFAULT= r.getBoolean(R.bool.limit_face_search_default);
+        FACE_SEARCH_EXPANSION_DEFAULT= r.getInteger(R.integer.face_search_expansion_default);
+        FACE_SEARCH_EXPANSION_MIN= r.getInteger(R.integer.face_search_expansion_min);
+        FACE_SEARCH_EXPANSION_MAX= r.getInteger(R.integer.face_search_expansion_max);
+        FACE_SEARCH_MIN_SCALE_DEFAULT= r.getInteger(R.integer.face_search_min_scale_default);
+        FACE_SEARCH_MIN_SCALE_MIN= r.getInteger(R.integer.face_search_min_scale_min);
+        FACE_SEARCH_MIN_SCALE_MAX= r.getInteger(R.integer.face_search_min_scale_max);
+        FACE_SEARCH_MAX_SCALE_DEFAULT= r.getInteger(R.integer.face_search_max_scale_default);
+        FACE_SEARCH_MAX_SCALE_MIN= r.getInteger(R.integer.face_search_max_scale_min);
+        FACE_SEARCH_MAX_SCALE_MAX= r.getInteger(R.integer.face_search_max_scale_max);
+        FACE_SEARCH_FULL_SCAN_INTERVAL_DEFAULT=
+                r.getInteger(R.integer.face_search_full_scan_interval_default);
+        FACE_SEARCH_FULL_SCAN_INTERVAL_MIN=
+                r.getInteger(R.integer.face_search_full_scan_interval_min);
+        FACE_SEARCH_FULL_SCAN_INTERVAL_MAX=
+                r.getInteger(R.integer.face_search_full_scan_interval_max);
+        DWELL_TIME_DEFAULT= r.getInteger(R.integer.dwell_time_default);
+        DWELL_TIME_MIN= r.getInteger(R.integer.dwell_time_min);
+        DWELL_TIME_MAX= r.getInteger(R.integer.dwell_time_max);
+        DWELL_AREA_DEFAULT= r.getInteger(R.integer.dwell_area_default);
+        DWELL_AREA_MIN= r.getInteger(R.integer.dwell_area_min);
+        DWELL_AREA_MAX= r.getInteger(R.integer.dwell_area_max);
+        CONSECUTIVE_CLICKS_DEFAULT= r.getBoolean(R.bool.consecutive_clicks_default);
+        DOCKING_PANEL_EDGE_DEFAULT= r.getInteger(R.integer.docking_panel_edge_default);
+        DOCKING_PANEL_EDGE_MIN= Integer.parseInt(r.getString(R.string.docking_panel_edge_left_value));
+        DOCKING_PANEL_EDGE_MAX= Integer.parseInt(r.getString(R.string.docking_panel_edge_bottom_value));
+        UI_ELEMENTS_SIZE_DEFAULT= Float.parseFloat(r.getString(R.string.ui_elements_size_default));
+        TIME_WITHOUT_DETECTION_DEFAULT=
+                Integer.parseInt(r.getString(R.string.time_without_detection_default));
 
         TIME_WITHOUT_DETECTION_VALUES= r.getStringArray(R.array.time_without_detection_values);
         TIME_WITHOUT_DETECTION_ENTRIES= r.getStringArray(R.array.time_without_detection_entries);
@@ -153,17 +292,45 @@ public class Preferences {
         /* Make sure both arrays have the same size */
         if (TIME_WITHOUT_DETECTION_VALUES.length != TIME_WITHOUT_DETECTION_ENTRIES.length)
             throw new ExceptionInInitializerError();
+
+        mSettings= new SettingsSnapshot(this);
+        mSharedPreferences.registerOnSharedPreferenceChangeListener(mSettingsUpdater);
     }
 
     public void cleanup() {
         if (mInitCount> 0) {
             if (--mInitCount == 0) {
                 Log.d(EVIACAM.TAG, "Preferences: cleanup");
+                mSharedPreferences.unregisterOnSharedPreferenceChangeListener(mSettingsUpdater);
+                mSettingsListeners.clear();
                 sInstance= null;
             }
         }
     }
 
+    /**
+     * Get the current settings snapshot. Cheap and thread safe, intended for hot paths.
+     *
+     * @return immutable snapshot of the settings
+     */
+    public @NonNull SettingsSnapshot getSettings() {
+        return mSettings;
+    }
+
+    /**
+     * Register a listener to receive the new settings snapshot each time a preference
+     * changes. Unlike with SharedPreferences listeners the snapshot is always up to date.
+     *
+     * @param l listener
+     */
+    public void registerOnSettingsChangeListener(@NonNull OnSettingsChangeListener l) {
+        if (!mSettingsListeners.contains(l)) mSettingsListeners.add(l);
+    }
+
+    public void unregisterOnSettingsChangeListener(@NonNull OnSettingsChangeListener l) {
+        mSettingsListeners.remove(l);
+    }
+
     /**
      * Get current singleton instance
      *
@@ -187,7 +354,8 @@ public class Preferences {
 
             // As accessibility service use the default preferences
             PreferenceManager.setDefaultValues(c, R.xml.preference_fragment, true);
-            sInstance = new Preferences(c, PreferenceManager.getDefaultSharedPreferences(c));
+            sInstance = new Preferences(c.getResources(),
+                    PreferenceManager.getDefaultSharedPreferences(c));
             sInstance.mInitMode= INIT_A11Y;
         }
 
@@ -220,7 +388,7 @@ public class Preferences {
                     R.xml.gamepad_preference_fragment, true);
 
             // Set the slave mode shared preferences
-            sInstance = new Preferences(c,
+            sInstance = new Preferences(c.getResources(),
                     c.getSharedPreferences(Preferences.FILE_SLAVE_MODE, Context.MODE_PRIVATE));
             sInstance.mInitMode= INIT_SLAVE_MODE;
         }
@@ -248,6 +416,37 @@ public class Preferences {
         return v;
     }
 
+    /**
+     * Parse the value of a preference stored as string
+     *
+     * @param key preference key
+     * @param def value returned when missing or not a number
+     * @return parsed value
+     */
+    private int getIntFromString (String key, int def) {
+        String v= mSharedPreferences.getString(key, null);
+        if (v == null) return def;
+        try {
+            return Integer.parseInt(v);
+        }
+        catch (NumberFormatException e) {
+            Log.w(EVIACAM.TAG, "Preferences: wrong value for " + key + ": " + v);
+            return def;
+        }
+    }
+
+    private float getFloatFromString (String key, float def) {
+        String v= mSharedPreferences.getString(key, null);
+        if (v == null) return def;
+        try {
+            return Float.parseFloat(v);
+        }
+        catch (NumberFormatException e) {
+            Log.w(EVIACAM.TAG, "Preferences: wrong value for " + key + ": " + v);
+            return def;
+        }
+    }
+
     /**
      * Get horizontal speed value
      */
@@ -329,12 +528,129 @@ public class Preferences {
     }
 
 
+    public int getCpuUsage() {
+        int v= Integer.parseInt(mSharedPreferences.getString(KEY_CPU_USAGE,
+                String.valueOf(VisionPipeline.CPU_NORMAL)));
+        return constraint (v, VisionPipeline.CPU_LOWEST, VisionPipeline.CPU_HIGHEST);
+    }
+
+    public int getTrackerPyramidLevels() {
+        int v= mSharedPreferences.getInt(
+                Preferences.KEY_TRACKER_PYRAMID_LEVELS, TRACKER_PYRAMID_LEVELS_DEFAULT);
+        return constraint (v, TRACKER_PYRAMID_LEVELS_MIN, TRACKER_PYRAMID_LEVELS_MAX);
+    }
+
+    public int getTrackerWindowSize() {
+        int v= mSharedPreferences.getInt(
+                Preferences.KEY_TRACKER_WINDOW_SIZE, TRACKER_WINDOW_SIZE_DEFAULT);
+        return constraint (v, TRACKER_WINDOW_SIZE_MIN, TRACKER_WINDOW_SIZE_MAX);
+    }
+
+    public int getTrackerMaxIterations() {
+        int v= mSharedPreferences.getInt(
+                Preferences.KEY_TRACKER_MAX_ITERATIONS, TRACKER_MAX_ITERATIONS_DEFAULT);
+        return constraint (v, TRACKER_MAX_ITERATIONS_MIN, TRACKER_MAX_ITERATIONS_MAX);
+    }
+
+    public float getTrackerEpsilon() {
+        return Float.parseFloat(mSharedPreferences.getString(
+                Preferences.KEY_TRACKER_EPSILON, TRACKER_EPSILON_DEFAULT));
+    }
+
+    public boolean getLatencyStats() {
+        return mSharedPreferences.getBoolean(Preferences.KEY_LATENCY_STATS, false);
+    }
+
+    public boolean getRecordFrames() {
+        return mSharedPreferences.getBoolean(Preferences.KEY_RECORD_FRAMES, false);
+    }
+
+    public boolean getReplayFrames() {
+        return mSharedPreferences.getBoolean(Preferences.KEY_REPLAY_FRAMES, false);
+    }
+
+    public boolean getReplayFramesFast() {
+        return mSharedPreferences.getBoolean(Preferences.KEY_REPLAY_FRAMES_FAST, false);
+    }
+
+    public boolean getLimitFaceSearch() {
+        return mSharedPreferences.getBoolean(
+                Preferences.KEY_LIMIT_FACE_SEARCH, LIMIT_FACE_SEARCH_DEFAULT);
+    }
+
+    /**
+     * Size of the limited face search window relative to the tracking area
+     */
+    public float getFaceSearchExpansion() {
+        int v= mSharedPreferences.getInt(
+                Preferences.KEY_FACE_SEARCH_EXPANSION, FACE_SEARCH_EXPANSION_DEFAULT);
+        return constraint (v, FACE_SEARCH_EXPANSION_MIN, FACE_SEARCH_EXPANSION_MAX) / 100.0f;
+    }
+
+    /**
+     * Smallest face of the limited search relative to the tracking area
+     */
+    public float getFaceSearchMinScale() {
+        int v= mSharedPreferences.getInt(
+                Preferences.KEY_FACE_SEARCH_MIN_SCALE, FACE_SEARCH_MIN_SCALE_DEFAULT);
+        return constraint (v, FACE_SEARCH_MIN_SCALE_MIN, FACE_SEARCH_MIN_SCALE_MAX) / 100.0f;
+    }
+
+    /**
+     * Largest face of the limited search relative to the tracking area
+     */
+    public float getFaceSearchMaxScale() {
+        int v= mSharedPreferences.getInt(
+                Preferences.KEY_FACE_SEARCH_MAX_SCALE, FACE_SEARCH_MAX_SCALE_DEFAULT);
+        return constraint (v, FACE_SEARCH_MAX_SCALE_MIN, FACE_SEARCH_MAX_SCALE_MAX) / 100.0f;
+    }
+
+    public int getFaceSearchFullScanInterval() {
+        int v= mSharedPreferences.getInt(Preferences.KEY_FACE_SEARCH_FULL_SCAN_INTERVAL,
+                FACE_SEARCH_FULL_SCAN_INTERVAL_DEFAULT);
+        return constraint (v, FACE_SEARCH_FULL_SCAN_INTERVAL_MIN,
+                FACE_SEARCH_FULL_SCAN_INTERVAL_MAX);
+    }
+
     public float getUIElementsSize() {
-        return Float.parseFloat(mSharedPreferences.getString(KEY_UI_ELEMENTS_SIZE, null));
+        float v= getFloatFromString(KEY_UI_ELEMENTS_SIZE, UI_ELEMENTS_SIZE_DEFAULT);
+        // also rejects NaN
+        if (!(v> 0)) return UI_ELEMENTS_SIZE_DEFAULT;
+        return v;
     }
 
     public int getTimeWithoutDetection() {
-        return Integer.parseInt(mSharedPreferences.getString(KEY_TIME_WITHOUT_DETECTION, null));
+        int v= getIntFromString(KEY_TIME_WITHOUT_DETECTION, TIME_WITHOUT_DETECTION_DEFAULT);
+        if (v< 0) return TIME_WITHOUT_DETECTION_DEFAULT;
+        return v;
+    }
+
+    public boolean getEnableDwell() {
+        return mSharedPreferences.getBoolean(Preferences.KEY_ENABLE_DWELL, ENABLE_DWELL_DEFAULT);
+    }
+
+    /**
+     * Get dwell time in tenths of second
+     */
+    public int getDwellTime() {
+        int v= mSharedPreferences.getInt(Preferences.KEY_DWELL_TIME, DWELL_TIME_DEFAULT);
+        return constraint (v, DWELL_TIME_MIN, DWELL_TIME_MAX);
+    }
+
+    public int getDwellArea() {
+        int v= mSharedPreferences.getInt(Preferences.KEY_DWELL_AREA, DWELL_AREA_DEFAULT);
+        return constraint (v, DWELL_AREA_MIN, DWELL_AREA_MAX);
+    }
+
+    public boolean getConsecutiveClicks() {
+        return mSharedPreferences.getBoolean(
+                Preferences.KEY_CONSECUTIVE_CLICKS, CONSECUTIVE_CLICKS_DEFAULT);
+    }
+
+    public int getDockingPanelEdge() {
+        int v= getIntFromString(KEY_DOCKING_PANEL_EDGE, DOCKING_PANEL_EDGE_DEFAULT);
+        if (v< DOCKING_PANEL_EDGE_MIN || v> DOCKING_PANEL_EDGE_MAX) return DOCKING_PANEL_EDGE_DEFAULT;
+        return v;
     }
 
     public String getTimeWithoutDetectionEntryValue() {
@@ -384,6 +700,37 @@ public class Preferences {
         return UseCamera2API.AUTO;
     }
 
+    public enum MotionFilterType { LOW_PASS, ONE_EURO, KALMAN }
+    public MotionFilterType getMotionFilter() {
+        String val= mSharedPreferences.getString(KEY_MOTION_FILTER, "low_pass");
+        if (val.equals("one_euro")) return MotionFilterType.ONE_EURO;
+        if (val.equals("kalman")) return MotionFilterType.KALMAN;
+        return MotionFilterType.LOW_PASS;
+    }
+
+    public enum FrameDropPolicy { LATEST, QUEUE }
+    public FrameDropPolicy getFrameDropPolicy() {
+        String val= mSharedPreferences.getString(KEY_FRAME_DROP_POLICY, "latest");
+        if (val.equals("queue")) return FrameDropPolicy.QUEUE;
+        return FrameDropPolicy.LATEST;
+    }
+
+    public enum PreviewMode { OFF, REDUCED, FULL }
+    public PreviewMode getPreviewMode() {
+        String val= mSharedPreferences.getString(KEY_PREVIEW_MODE, "full");
+        if (val.equals("off")) return PreviewMode.OFF;
+        if (val.equals("reduced")) return PreviewMode.REDUCED;
+        return PreviewMode.FULL;
+    }
+
+    public enum FaceDetectorBackend { HAAR, HAAR_CLASSIFIER, LBP }
+    public FaceDetectorBackend getFaceDetector() {
+        String val= mSharedPreferences.getString(KEY_FACE_DETECTOR, "haar");
+        if (val.equals("haar_classifier")) return FaceDetectorBackend.HAAR_CLASSIFIER;
+        if (val.equals("lbp")) return FaceDetectorBackend.LBP;
+        return FaceDetectorBackend.HAAR;
+    }
+
     public int getGamepadLocation() {
         return Integer.parseInt(mSharedPreferences.getString(KEY_GAMEPAD_LOCATION, null));
     }
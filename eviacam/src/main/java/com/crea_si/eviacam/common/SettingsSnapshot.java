@@ -0,0 +1,102 @@
+/*
+ * Enable Viacam for Android, a camera based mouse emulator
+ *
+ * Copyright (C) 2015-17 Cesar Mauri Loba (CREA Software Systems)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.crea_si.eviacam.common;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Immutable, typed and validated copy of the settings read on hot paths
+ * (pointer motion, dwell click, hit-testing, click dispatch).
+ *
+ * Preferences builds a new snapshot each time a preference changes and publishes
+ * it through a single volatile reference, so readers on any thread always see a
+ * consistent set of values without touching SharedPreferences nor parsing strings.
+ * Out of range or unparsable values have already been replaced by their defaults.
+ */
+public final class SettingsSnapshot {
+    private final int mHorizontalSpeed;
+    private final int mVerticalSpeed;
+    private final int mAcceleration;
+    private final int mMotionSmoothing;
+    private final int mMotionThreshold;
+    private final Preferences.MotionFilterType mMotionFilter;
+    private final boolean mEnableDwell;
+    private final int mDwellTime;
+    private final int mDwellArea;
+    private final boolean mConsecutiveClicks;
+    private final boolean mSoundOnClick;
+    private final int mClickKey;
+    private final int mKeypressTime;
+    private final int mDockingPanelEdge;
+    private final float mUIElementsSize;
+    private final int mTimeWithoutDetection;
+
+    /**
+     * Read all the values from the preferences
+     * @param p preferences, whose getters apply the validation
+     */
+    SettingsSnapshot(@NonNull Preferences p) {
+        mHorizontalSpeed= p.getHorizontalSpeed();
+        mVerticalSpeed= p.getVerticalSpeed();
+        mAcceleration= p.getAcceleration();
+        mMotionSmoothing= p.getMotionSmoothing();
+        mMotionThreshold= p.getMotionThreshold();
+        mMotionFilter= p.getMotionFilter();
+        mEnableDwell= p.getEnableDwell();
+        mDwellTime= p.getDwellTime();
+        mDwellArea= p.getDwellArea();
+        mConsecutiveClicks= p.getConsecutiveClicks();
+        mSoundOnClick= p.getSoundOnClick();
+        mClickKey= p.getClickKey();
+        mKeypressTime= p.getKeypressTime();
+        mDockingPanelEdge= p.getDockingPanelEdge();
+        mUIElementsSize= p.getUIElementsSize();
+        mTimeWithoutDetection= p.getTimeWithoutDetection();
+    }
+
+    public int getHorizontalSpeed() { return mHorizontalSpeed; }
+    public int getVerticalSpeed() { return mVerticalSpeed; }
+    public int getAcceleration() { return mAcceleration; }
+    public int getMotionSmoothing() { return mMotionSmoothing; }
+    public int getMotionThreshold() { return mMotionThreshold; }
+    public @NonNull Preferences.MotionFilterType getMotionFilter() { return mMotionFilter; }
+    public boolean getEnableDwell() { return mEnableDwell; }
+
+    /**
+     * @return dwell time in tenths of second
+     */
+    public int getDwellTime() { return mDwellTime; }
+    public int getDwellArea() { return mDwellArea; }
+    public boolean getConsecutiveClicks() { return mConsecutiveClicks; }
+    public boolean getSoundOnClick() { return mSoundOnClick; }
+    public int getClickKey() { return mClickKey; }
+
+    /**
+     * @return time, in tenths of second, to tell a key press from a long key press
+     */
+    public int getKeypressTime() { return mKeypressTime; }
+    public int getDockingPanelEdge() { return mDockingPanelEdge; }
+    public float getUIElementsSize() { return mUIElementsSize; }
+
+    /**
+     * @return seconds without detecting the face before stopping, 0 when disabled
+     */
+    public int getTimeWithoutDetection() { return mTimeWithoutDetection; }
+}
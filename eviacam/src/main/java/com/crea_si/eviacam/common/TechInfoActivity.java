@@ -30,10 +30,12 @@ import android.widget.Toast;
 
 import com.crea_si.eviacam.BuildConfig;
 import com.crea_si.eviacam.R;
+import com.crea_si.eviacam.util.FrameRing;
 
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.util.Locale;
 
 public class TechInfoActivity extends Activity {
 
@@ -84,6 +86,40 @@ public class TechInfoActivity extends Activity {
         return log.toString();
     }
 
+    private static String getDetectorStatusName(int status) {
+        switch (status) {
+            case VisionPipeline.DETECTOR_STATUS_LOADING: return "loading";
+            case VisionPipeline.DETECTOR_STATUS_READY: return "ready";
+            case VisionPipeline.DETECTOR_STATUS_FAILED: return "failed";
+            default: return "none";
+        }
+    }
+
+    /**
+     * Get face detection statistics from the running vision pipelines
+     * @return string with the statistics, one line per pipeline
+     */
+    private String readDetectionStats() {
+        StringBuilder result= new StringBuilder();
+        float[] stats= new float[VisionPipeline.STAT_SIZE];
+        for (VisionPipeline vp : VisionPipeline.getInstances()) {
+            if (!vp.getDetectionStats(stats)) continue;
+
+            if (result.length()> 0) result.append('\n');
+            result.append(String.format(Locale.US,
+                    "cpu level: %d, period: %.0f ms, cost: %.1f ms, frame time: %.1f ms, load: %.1f%%, detector: %s",
+                    (int) stats[VisionPipeline.STAT_CPU_USAGE],
+                    stats[VisionPipeline.STAT_DETECTION_PERIOD],
+                    stats[VisionPipeline.STAT_DETECTION_COST],
+                    stats[VisionPipeline.STAT_FRAME_TIME],
+                    stats[VisionPipeline.STAT_DETECTION_LOAD] * 100.0f,
+                    getDetectorStatusName((int) stats[VisionPipeline.STAT_DETECTOR_STATUS])));
+        }
+
+        if (result.length()== 0) return "not running";
+        return result.toString();
+    }
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -111,6 +147,10 @@ public class TechInfoActivity extends Activity {
         info+= "\nHARDWARE: " + Build.HARDWARE;
         info+= "\nPRODUCT: " + Build.PRODUCT;
         info+= "\nBOARD: " + Build.BOARD;
+        info+= "\n";
+        info+= "\nFACE DETECTION: " + readDetectionStats();
+        info+= "\nLATENCY (ms): " + LatencyMonitor.getSummary();
+        info+= "\nFRAME HANDOFF: " + FrameRing.getSummary();
         info+= "\nLOGCAT:\n" + readLogcat(150);
 
         //info+= "\nSERIAL: " + Build.SERIAL;
@@ -149,5 +189,26 @@ public class TechInfoActivity extends Activity {
                 }
             }
         });
+
+        /*
+         * Export latency statistics button
+         */
+        b= (Button) findViewById(R.id.export_csv_button);
+        b.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View view) {
+                Intent i = new Intent(Intent.ACTION_SEND);
+                i.setType("text/csv");
+                i.putExtra(Intent.EXTRA_SUBJECT, String.format("%1$s: latency statistics",
+                                                 getResources().getText(R.string.app_name)));
+                i.putExtra(Intent.EXTRA_TEXT, LatencyMonitor.toCsv());
+                try {
+                    startActivity(Intent.createChooser(i, "Export CSV..."));
+                } catch (android.content.ActivityNotFoundException ex) {
+                    Toast.makeText(TechInfoActivity.this, "There are no apps to share the data.",
+                            Toast.LENGTH_SHORT).show();
+                }
+            }
+        });
     }
 }
@@ -21,18 +21,435 @@
 
 import android.graphics.PointF;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Face tracking pipeline implemented in native code.
+ *
+ * Frames are processed by a single thread. The settings can be changed from any
+ * thread without waiting for the frame in progress: they are applied at the start
+ * of the next frame. Only the calls which need the native part right away
+ * (frames, cleanup, setFaceDetector and setResultBuffer) are serialized.
+ */
 public class VisionPipeline {
     /**
-     * Initialize JNI part.
+     * CPU usage levels for the face detection
+     */
+    public static final int CPU_LOWEST= 0;
+    public static final int CPU_LOW= 1;
+    public static final int CPU_NORMAL= 2;
+    public static final int CPU_HIGH= 3;
+    public static final int CPU_HIGHEST= 4;
+
+    /**
+     * Face detector backends
+     */
+    public static final int DETECTOR_HAAR= 0;               // OpenCV C API haar cascade
+    public static final int DETECTOR_CASCADE_CLASSIFIER= 1; // objdetect, haar or LBP cascades
+
+    /**
+     * Indexes of the array filled by getDetectionStats
+     */
+    public static final int STAT_CPU_USAGE= 0;
+    public static final int STAT_DETECTION_PERIOD= 1;
+    public static final int STAT_DETECTION_COST= 2;
+    public static final int STAT_FRAME_TIME= 3;
+    public static final int STAT_DETECTION_LOAD= 4;
+    public static final int STAT_DETECTOR_STATUS= 5;     // DETECTOR_STATUS_* constant
+    public static final int STAT_SIZE= 6;
+
+    /**
+     * Status of the last face detector requested (see setFaceDetector)
+     */
+    public static final int DETECTOR_STATUS_NONE= 0;
+    public static final int DETECTOR_STATUS_LOADING= 1;
+    public static final int DETECTOR_STATUS_READY= 2;
+    public static final int DETECTOR_STATUS_FAILED= 3;
+
+    /**
+     * Layout of the result buffer (see setResultBuffer), as float indexes
+     */
+    public static final int RESULT_X_VEL= 0;
+    public static final int RESULT_Y_VEL= 1;
+    public static final int RESULT_FACE_DETECTED= 2;        // 1 when detected, 0 otherwise
+    public static final int RESULT_TRACK_AREA_X= 3;         // pixels of the rotated frame
+    public static final int RESULT_TRACK_AREA_Y= 4;
+    public static final int RESULT_TRACK_AREA_WIDTH= 5;
+    public static final int RESULT_TRACK_AREA_HEIGHT= 6;
+    public static final int RESULT_CORNER_COUNT= 7;
+    public static final int RESULT_SIZE= 8;
+
+    /**
+     * Allocate a buffer suitable for setResultBuffer
+     * @return direct buffer of RESULT_SIZE floats in native byte order
+     */
+    public static ByteBuffer allocateResultBuffer() {
+        return ByteBuffer.allocateDirect(RESULT_SIZE * 4).order(ByteOrder.nativeOrder());
+    }
+
+    /*
+     * Live pipelines, so that diagnostic screens can reach them without holding
+     * a reference to the engine
+     */
+    private static final List<VisionPipeline> sInstances= new ArrayList<>();
+
+    /**
+     * Get the pipelines which have been created and not cleaned up yet
+     * @return snapshot of the live instances
+     */
+    public static List<VisionPipeline> getInstances() {
+        synchronized (sInstances) {
+            return new ArrayList<>(sInstances);
+        }
+    }
+
+    /*
+     * Calls to the native part. Replaced by a fake in host tests.
+     */
+    interface Backend {
+        long init(int detectorType, String cascadeName);
+        void cleanup(long handle);
+        boolean setFaceDetector(long handle, int detectorType, String cascadeName);
+        boolean setResultBuffer(long handle, ByteBuffer buffer);
+        void setTrackerParameters(long handle, int pyrLevels, int winSize, int maxIter,
+                                  float epsilon);
+        void setDetectionSearchPolicy(long handle, boolean enabled, float expansion,
+                                      float minScale, float maxScale, int fullScanInterval);
+        void setCpuUsage(long handle, int value);
+        int getCpuUsage(long handle);
+        boolean getDetectionStats(long handle, float[] stats);
+        boolean processFrame(long handle, long matAddrGr, int flip, int rotation,
+                             float[] vel);
+        boolean processGrayFrame(long handle, long matAddrGray, long matAddrPreview,
+                                 int flip, int rotation, float[] vel);
+        boolean processFrameToBuffer(long handle, long matAddrGr, int flip, int rotation);
+        boolean processGrayFrameToBuffer(long handle, long matAddrGray, long matAddrPreview,
+                                         int flip, int rotation);
+    }
+
+    private static final Backend NATIVE_BACKEND= new Backend() {
+        @Override
+        public long init(int detectorType, String cascadeName) {
+            return nativeInit(detectorType, cascadeName);
+        }
+
+        @Override
+        public void cleanup(long handle) {
+            nativeCleanup(handle);
+        }
+
+        @Override
+        public boolean setFaceDetector(long handle, int detectorType, String cascadeName) {
+            return nativeSetFaceDetector(handle, detectorType, cascadeName);
+        }
+
+        @Override
+        public boolean setResultBuffer(long handle, ByteBuffer buffer) {
+            return nativeSetResultBuffer(handle, buffer);
+        }
+
+        @Override
+        public void setTrackerParameters(long handle, int pyrLevels, int winSize, int maxIter,
+                                         float epsilon) {
+            nativeSetTrackerParameters(handle, pyrLevels, winSize, maxIter, epsilon);
+        }
+
+        @Override
+        public void setDetectionSearchPolicy(long handle, boolean enabled, float expansion,
+                                             float minScale, float maxScale,
+                                             int fullScanInterval) {
+            nativeSetDetectionSearchPolicy(handle, enabled, expansion, minScale, maxScale,
+                    fullScanInterval);
+        }
+
+        @Override
+        public void setCpuUsage(long handle, int value) {
+            nativeSetCpuUsage(handle, value);
+        }
+
+        @Override
+        public int getCpuUsage(long handle) {
+            return nativeGetCpuUsage(handle);
+        }
+
+        @Override
+        public boolean getDetectionStats(long handle, float[] stats) {
+            return nativeGetDetectionStats(handle, stats);
+        }
+
+        @Override
+        public boolean processFrame(long handle, long matAddrGr, int flip, int rotation,
+                                    float[] vel) {
+            return nativeProcessFrame(handle, matAddrGr, flip, rotation, vel);
+        }
+
+        @Override
+        public boolean processGrayFrame(long handle, long matAddrGray, long matAddrPreview,
+                                        int flip, int rotation, float[] vel) {
+            return nativeProcessGrayFrame(handle, matAddrGray, matAddrPreview, flip, rotation,
+                    vel);
+        }
+
+        @Override
+        public boolean processFrameToBuffer(long handle, long matAddrGr, int flip,
+                                            int rotation) {
+            return nativeProcessFrameToBuffer(handle, matAddrGr, flip, rotation);
+        }
+
+        @Override
+        public boolean processGrayFrameToBuffer(long handle, long matAddrGray,
+                                                long matAddrPreview, int flip, int rotation) {
+            return nativeProcessGrayFrameToBuffer(handle, matAddrGray, matAddrPreview, flip,
+                    rotation);
+        }
+    };
+
+    /*
+     * Settings given from any thread. Each group is replaced as a whole and applied
+     * by the thread which processes the frames, at the start of the next frame.
+     */
+    private static final class TrackerParameters {
+        final int pyrLevels, winSize, maxIter;
+        final float epsilon;
+
+        TrackerParameters(int pyrLevels, int winSize, int maxIter, float epsilon) {
+            this.pyrLevels= pyrLevels;
+            this.winSize= winSize;
+            this.maxIter= maxIter;
+            this.epsilon= epsilon;
+        }
+    }
+
+    private static final class SearchPolicy {
+        final boolean enabled;
+        final float expansion, minScale, maxScale;
+        final int fullScanInterval;
+
+        SearchPolicy(boolean enabled, float expansion, float minScale, float maxScale,
+                     int fullScanInterval) {
+            this.enabled= enabled;
+            this.expansion= expansion;
+            this.minScale= minScale;
+            this.maxScale= maxScale;
+            this.fullScanInterval= fullScanInterval;
+        }
+    }
+
+    // period to refresh the statistics returned by getDetectionStats
+    private static final long STATS_PERIOD_NS= 500000000L;
+
+    private final Backend mBackend;
+
+    /*
+     * Guards the native handle: frames, cleanup and the calls which need the
+     * native part right away. Settings and statistics do not take it, so that
+     * the main thread does not wait for a frame being processed.
+     */
+    private final Object mLock= new Object();
+
+    // opaque handle of the native pipeline, 0 once cleaned up (guarded by mLock)
+    private long mHandle;
+
+    // requested settings
+    private volatile int mCpuUsage;
+    private volatile TrackerParameters mTrackerParameters;
+    private volatile SearchPolicy mSearchPolicy;
+
+    // settings passed to the native part (guarded by mLock)
+    private int mAppliedCpuUsage;
+    private TrackerParameters mAppliedTrackerParameters;
+    private SearchPolicy mAppliedSearchPolicy;
+
+    // latest statistics, replaced as a whole, null once cleaned up
+    private volatile float[] mStats;
+    private long mStatsTime;
+
+    // motion returned by the PointF entry points, filled by the native part
+    private final float[] mVelocity= new float[2];
+
+    /**
+     * Create and initialize a native pipeline. Each instance owns its detector,
+     * tracker and result buffer so that several pipelines can run at once.
      * Must be called after initializing OpenCV and before start processing frames
-     * @param cascadeName file path where the haar-cascade file resides
+     *
+     * @param detectorType face detector backend, DETECTOR_HAAR or DETECTOR_CASCADE_CLASSIFIER
+     * @param cascadeName file path where the cascade file resides
+     * @throws IllegalStateException when the native pipeline cannot be created
      */
-    public static native void init (String cascadeName);
+    public VisionPipeline (int detectorType, String cascadeName) {
+        this(NATIVE_BACKEND, detectorType, cascadeName);
+    }
+
+    VisionPipeline (Backend backend, int detectorType, String cascadeName) {
+        mBackend= backend;
+        mHandle= backend.init(detectorType, cascadeName);
+        if (mHandle== 0) {
+            throw new IllegalStateException("Cannot create vision pipeline");
+        }
+        mCpuUsage= mAppliedCpuUsage= backend.getCpuUsage(mHandle);
+        float[] stats= new float[STAT_SIZE];
+        stats[STAT_CPU_USAGE]= mCpuUsage;
+        mStats= stats;
+
+        synchronized (sInstances) {
+            sInstances.add(this);
+        }
+    }
+
+    private void checkHandle() {
+        if (mHandle== 0) throw new IllegalStateException("Vision pipeline already cleaned up");
+    }
+
+    /**
+     * Replace the face detector backend. Does not block: the cascade is loaded by the
+     * face detection thread before the next detection, so the file needs to exist
+     * until then. When it cannot be loaded the current detector is kept and the
+     * STAT_DETECTOR_STATUS statistic becomes DETECTOR_STATUS_FAILED.
+     *
+     * @param detectorType DETECTOR_HAAR or DETECTOR_CASCADE_CLASSIFIER
+     * @param cascadeName file path where the cascade file resides
+     * @return false if no cascade is given
+     */
+    public boolean setFaceDetector (int detectorType, String cascadeName) {
+        synchronized (mLock) {
+            checkHandle();
+            return mBackend.setFaceDetector(mHandle, detectorType, cascadeName);
+        }
+    }
+
+    /**
+     * Release the native part. Waits for the frame being processed, if any.
+     * The instance cannot be used afterwards: frames are ignored. Calling it
+     * more than once is harmless.
+     */
+    public void cleanup () {
+        synchronized (sInstances) {
+            sInstances.remove(this);
+        }
+        synchronized (mLock) {
+            if (mHandle== 0) return;
+            mBackend.cleanup(mHandle);
+            mHandle= 0;
+            mStats= null;
+        }
+    }
+
+    /**
+     * Set the CPU usage level of the face detection. The detection rate adapts to the
+     * tracking state and to the measured detection cost, the level sets the base
+     * detection period and the maximum fraction of CPU time spent detecting.
+     * Can be called from any thread, applied from the next frame.
+     *
+     * @param value CPU_LOWEST .. CPU_HIGHEST
+     */
+    public void setCpuUsage (int value) {
+        mCpuUsage= value;
+    }
+
+    /**
+     * Get the CPU usage level of the face detection
+     *
+     * @return CPU_LOWEST .. CPU_HIGHEST
+     */
+    public int getCpuUsage () {
+        return mCpuUsage;
+    }
+
+    /**
+     * Get face detection statistics. They are refreshed by the thread which processes
+     * the frames every half a second.
+     *
+     * @param stats array of at least STAT_SIZE elements which is filled with
+     *              the CPU usage level, the current detection period (ms), the average
+     *              detection cost (ms), the average frame time (ms), the fraction of
+     *              time spent detecting and the status of the face detector
+     *              (see STAT_* constants)
+     * @return true if stats filled, false if the pipeline has been cleaned up
+     */
+    public boolean getDetectionStats (float[] stats) {
+        float[] current= mStats;
+        if (current== null) return false;
+        System.arraycopy(current, 0, stats, 0, STAT_SIZE);
+        return true;
+    }
 
     /**
-     * Clean-up JNI part
+     * Set the parameters of the pyramidal Lucas-Kanade motion tracker.
+     * Out of range values are clamped. Can be called from any thread,
+     * applied from the next frame.
+     *
+     * @param pyrLevels number of pyramid levels above the base image (0 disables the pyramid)
+     * @param winSize size of the search window, in pixels, at each pyramid level
+     * @param maxIter maximum number of iterations for each pyramid level
+     * @param epsilon stop iterating when the search window moves less than this value
+     */
+    public void setTrackerParameters (int pyrLevels, int winSize, int maxIter,
+                                      float epsilon) {
+        mTrackerParameters= new TrackerParameters(pyrLevels, winSize, maxIter, epsilon);
+    }
+
+    /**
+     * Set how the face detection limits its search. When enabled and the face was found
+     * in the previous detection, the face is first looked for in a window around the
+     * tracking area and only within a range of sizes. A full frame scan is performed when
+     * the face is not found there and periodically. Can be called from any thread,
+     * applied from the next frame. The native part scans the whole frame until it
+     * is called, the defaults are those of the settings (see Preferences).
+     *
+     * @param enabled whether the search is limited
+     * @param expansion size of the search window relative to the tracking area (>= 1)
+     * @param minScale minimum face size relative to the tracking area
+     * @param maxScale maximum face size relative to the tracking area
+     * @param fullScanInterval number of limited searches before forcing a full frame scan
+     */
+    public void setDetectionSearchPolicy (boolean enabled, float expansion,
+                                          float minScale, float maxScale,
+                                          int fullScanInterval) {
+        mSearchPolicy= new SearchPolicy(enabled, expansion, minScale, maxScale,
+                fullScanInterval);
+    }
+
+    /*
+     * Pass the settings changed since the previous frame to the native part.
+     * Called with mLock held and a valid handle.
      */
-    public static native void cleanup ();
+    private void applySettings() {
+        int cpuUsage= mCpuUsage;
+        if (cpuUsage!= mAppliedCpuUsage) {
+            mBackend.setCpuUsage(mHandle, cpuUsage);
+            mAppliedCpuUsage= cpuUsage;
+        }
+
+        TrackerParameters tp= mTrackerParameters;
+        if (tp!= mAppliedTrackerParameters) {
+            mBackend.setTrackerParameters(mHandle, tp.pyrLevels, tp.winSize, tp.maxIter,
+                    tp.epsilon);
+            mAppliedTrackerParameters= tp;
+        }
+
+        SearchPolicy sp= mSearchPolicy;
+        if (sp!= mAppliedSearchPolicy) {
+            mBackend.setDetectionSearchPolicy(mHandle, sp.enabled, sp.expansion, sp.minScale,
+                    sp.maxScale, sp.fullScanInterval);
+            mAppliedSearchPolicy= sp;
+        }
+    }
+
+    /*
+     * Publish the statistics from time to time. Called with mLock held and a valid
+     * handle, after processing a frame.
+     */
+    private void updateStats() {
+        long now= System.nanoTime();
+        if (now - mStatsTime < STATS_PERIOD_NS) return;
+        mStatsTime= now;
+
+        float[] stats= new float[STAT_SIZE];
+        if (mBackend.getDetectionStats(mHandle, stats)) mStats= stats;
+    }
 
     /**
      * Entry point to process camera frames
@@ -46,7 +463,147 @@ public class VisionPipeline {
      *     VERTICAL   (1): vertical flip (around X-axis)
      *     HORIZONTAL (2): horizontal flip (around Y-axis)
      * @param vel is updated with the extracted motion for each axis
-     * @return true if face detected in the last frame (or few frames ago)
+     * @return true if face detected in the last frame (or few frames ago), false
+     *     as well once cleaned up
+     */
+    public boolean processFrame (long matAddrGr, int flip, int rotation, PointF vel) {
+        synchronized (mLock) {
+            if (mHandle== 0) return false;
+            applySettings();
+            boolean result= mBackend.processFrame(mHandle, matAddrGr, flip, rotation,
+                    mVelocity);
+            updateStats();
+            vel.set(mVelocity[0], mVelocity[1]);
+            return result;
+        }
+    }
+
+    /**
+     * Register the buffer on which processFrameToBuffer and processGrayFrameToBuffer
+     * write their results. The buffer is released by cleanup.
+     *
+     * @param buffer direct buffer with room for RESULT_SIZE floats in native byte
+     *               order (see allocateResultBuffer), or null to unregister
+     * @return false if the buffer is not suitable
+     */
+    public boolean setResultBuffer (ByteBuffer buffer) {
+        synchronized (mLock) {
+            checkHandle();
+            return mBackend.setResultBuffer(mHandle, buffer);
+        }
+    }
+
+    /**
+     * Same as processFrame but the motion, the face detection flag, the tracking area
+     * and the number of tracked corners are written to the result buffer, which avoids
+     * setting object fields through JNI
+     *
+     * @return true if face detected in the last frame (or few frames ago), false
+     *     as well once cleaned up
+     */
+    public boolean processFrameToBuffer (long matAddrGr, int flip, int rotation) {
+        synchronized (mLock) {
+            if (mHandle== 0) return false;
+            applySettings();
+            boolean result= mBackend.processFrameToBuffer(mHandle, matAddrGr, flip, rotation);
+            updateStats();
+            return result;
+        }
+    }
+
+    /**
+     * Same as processGrayFrame but the results are written to the result buffer
+     * (see processFrameToBuffer)
+     *
+     * @return true if face detected in the last frame (or few frames ago), false
+     *     as well once cleaned up
+     */
+    public boolean processGrayFrameToBuffer (long matAddrGray, long matAddrPreview,
+                                             int flip, int rotation) {
+        synchronized (mLock) {
+            if (mHandle== 0) return false;
+            applySettings();
+            boolean result= mBackend.processGrayFrameToBuffer(mHandle, matAddrGray,
+                    matAddrPreview, flip, rotation);
+            updateStats();
+            return result;
+        }
+    }
+
+    /**
+     * Entry point to process grayscale camera frames (e.g. the luma plane of a YUV frame).
+     * Avoids the color conversions needed by processFrame.
+     *
+     * @param matAddrGray OpenCV single channel image pointer (mat.getNativeObjAddr())
+     * @param matAddrPreview OpenCV BGR(A) image pointer, of the same size than the grayscale
+     *     image, on which feedback is drawn. 0 when the preview is not displayed.
+     * @param flip flip operation before rotation (see processFrame)
+     * @param rotation rotation (clockwise) in degrees (see processFrame)
+     * @param vel is updated with the extracted motion for each axis
+     * @return true if face detected in the last frame (or few frames ago), false
+     *     as well once cleaned up
+     */
+    public boolean processGrayFrame (long matAddrGray, long matAddrPreview,
+                                     int flip, int rotation, PointF vel) {
+        synchronized (mLock) {
+            if (mHandle== 0) return false;
+            applySettings();
+            boolean result= mBackend.processGrayFrame(mHandle, matAddrGray, matAddrPreview,
+                    flip, rotation, mVelocity);
+            updateStats();
+            vel.set(mVelocity[0], mVelocity[1]);
+            return result;
+        }
+    }
+
+    /**
+     * Pack the planes of a YUV_420_888 image into a matrix using I420 layout
+     * (Y plane followed by U and V planes). Row and pixel strides are honoured.
+     *
+     * @param y luma plane, must be a direct buffer
+     * @param u chroma U plane, must be a direct buffer
+     * @param v chroma V plane, must be a direct buffer
+     * @param width image width
+     * @param height image height
+     * @param yRowStride row stride of the luma plane
+     * @param yPixelStride pixel stride of the luma plane
+     * @param uvRowStride row stride of both chroma planes
+     * @param uvPixelStride pixel stride of both chroma planes
+     * @param matAddrDst destination OpenCV matrix (mat.getNativeObjAddr()), reallocated
+     *     only when its size or type does not match
+     */
+    public static native void packYUV420 (ByteBuffer y, ByteBuffer u, ByteBuffer v,
+                                          int width, int height,
+                                          int yRowStride, int yPixelStride,
+                                          int uvRowStride, int uvPixelStride,
+                                          long matAddrDst);
+
+    /*
+     * Native part. Every method but nativeInit receives the handle returned by nativeInit.
      */
-    public static native boolean processFrame (long matAddrGr, int flip, int rotation, PointF vel);
+    private static native long nativeInit (int detectorType, String cascadeName);
+    private static native void nativeCleanup (long handle);
+    private static native boolean nativeSetFaceDetector (long handle, int detectorType,
+                                                         String cascadeName);
+    private static native boolean nativeSetResultBuffer (long handle, ByteBuffer buffer);
+    private static native void nativeSetTrackerParameters (long handle, int pyrLevels,
+                                                           int winSize, int maxIter,
+                                                           float epsilon);
+    private static native void nativeSetDetectionSearchPolicy (long handle, boolean enabled,
+                                                               float expansion, float minScale,
+                                                               float maxScale,
+                                                               int fullScanInterval);
+    private static native void nativeSetCpuUsage (long handle, int value);
+    private static native int nativeGetCpuUsage (long handle);
+    private static native boolean nativeGetDetectionStats (long handle, float[] stats);
+    private static native boolean nativeProcessFrame (long handle, long matAddrGr, int flip,
+                                                      int rotation, float[] vel);
+    private static native boolean nativeProcessGrayFrame (long handle, long matAddrGray,
+                                                          long matAddrPreview, int flip,
+                                                          int rotation, float[] vel);
+    private static native boolean nativeProcessFrameToBuffer (long handle, long matAddrGr,
+                                                              int flip, int rotation);
+    private static native boolean nativeProcessGrayFrameToBuffer (long handle, long matAddrGray,
+                                                                  long matAddrPreview,
+                                                                  int flip, int rotation);
 }
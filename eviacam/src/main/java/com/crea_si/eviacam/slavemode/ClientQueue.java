@@ -0,0 +1,250 @@
+/*
+ * Enable Viacam for Android, a camera based mouse emulator
+ *
+ * Copyright (C) 2015-17 Cesar Mauri Loba (CREA Software Systems)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.crea_si.eviacam.slavemode;
+
+import android.os.RemoteException;
+
+import androidx.annotation.NonNull;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Events waiting to be delivered to the listener of a client (see ListenerDispatcher)
+ *
+ * Events are delivered serially from a pool thread. To share the bounded pool
+ * fairly among clients, a drain delivers at most MAX_BATCH events and then goes
+ * back to the end of the pool queue. When the queue is full the oldest event is
+ * dropped.
+ *
+ * Coalescable events (e.g. pointer moves) can be rate limited. A limited event
+ * replaces the coalescable event at the tail of the queue, if any, and
+ * otherwise is kept until the interval elapses (trailing delivery), so that the
+ * client always ends up with the latest one. Only the latest limited event is
+ * kept and it is sent before any other event queued afterwards to keep the order.
+ *
+ * Plain Java, so that it can be tested on a host JVM.
+ *
+ * @param <T> listener type
+ */
+class ClientQueue<T> implements Runnable {
+    // maximum number of events waiting to be delivered
+    static final int CAPACITY= 32;
+
+    // events delivered in a row before letting other clients use the thread
+    static final int MAX_BATCH= 8;
+
+    final int pid;
+    final T listener;
+
+    private final ScheduledExecutorService mExecutor;
+
+    // guarded by this
+    private final ArrayDeque<ListenerDispatcher.Event<T>> mQueue= new ArrayDeque<>(CAPACITY);
+    private boolean mDraining= false;
+    private boolean mClosed= false;
+    private long mMinIntervalMs= 0;
+    private long mLastCoalescableTStamp= 0;
+
+    // latest rate limited event, waiting for the trailing delivery
+    private ListenerDispatcher.Event<T> mLimitedEvent;
+    private boolean mTrailingScheduled= false;
+    private long mTrailingTStamp;
+
+    // statistics
+    private volatile long mDelivered= 0;
+    private volatile long mFailed= 0;
+    private long mDropped= 0;
+    private long mLimited= 0;
+
+    private final Runnable mTrailingDelivery= new Runnable() {
+        @Override
+        public void run() {
+            synchronized (ClientQueue.this) {
+                mTrailingScheduled= false;
+                if (mClosed) return;
+                flushLimitedEvent(mTrailingTStamp);
+            }
+        }
+    };
+
+    /**
+     * @param pid process id of the client
+     * @param listener listener of the client
+     * @param executor pool where the events are delivered
+     */
+    ClientQueue(int pid, @NonNull T listener, @NonNull ScheduledExecutorService executor) {
+        this.pid= pid;
+        this.listener= listener;
+        mExecutor= executor;
+    }
+
+    /**
+     * Queue an event. Never blocks on the client.
+     *
+     * @param e event, acquired while queued
+     * @param now current time in ms
+     */
+    synchronized void enqueue(@NonNull ListenerDispatcher.Event<T> e, long now) {
+        if (mClosed) return;
+
+        if (e.isCoalescable()) {
+            final long elapsed= now - mLastCoalescableTStamp;
+            if (elapsed < mMinIntervalMs) {
+                mLimited++;
+                e.acquire();
+                ListenerDispatcher.Event<T> tail= mQueue.peekLast();
+                if (tail!= null && tail.isCoalescable()) {
+                    // not delivered yet, just update it
+                    mQueue.pollLast();
+                    tail.release();
+                    mQueue.addLast(e);
+                    return;
+                }
+
+                // keep the latest one until the interval elapses
+                if (mLimitedEvent!= null) mLimitedEvent.release();
+                mLimitedEvent= e;
+                if (!mTrailingScheduled) {
+                    mTrailingScheduled= true;
+                    mTrailingTStamp= mLastCoalescableTStamp + mMinIntervalMs;
+                    schedule(mTrailingDelivery, mMinIntervalMs - elapsed);
+                }
+                return;
+            }
+            mLastCoalescableTStamp= now;
+
+            // supersedes the one waiting for the trailing delivery
+            if (mLimitedEvent!= null) {
+                mLimitedEvent.release();
+                mLimitedEvent= null;
+            }
+        }
+        else {
+            // the limited event happened before this one
+            flushLimitedEvent(now);
+        }
+
+        e.acquire();
+        add(e);
+    }
+
+    /** Queue the event waiting for the trailing delivery, if any */
+    private void flushLimitedEvent(long now) {
+        if (mLimitedEvent== null) return;
+        final ListenerDispatcher.Event<T> e= mLimitedEvent;
+        mLimitedEvent= null;
+        mLastCoalescableTStamp= now;
+        add(e);
+    }
+
+    /** Add an already acquired event and start draining if needed */
+    private void add(@NonNull ListenerDispatcher.Event<T> e) {
+        if (mQueue.size() >= CAPACITY) {
+            mQueue.pollFirst().release();
+            mDropped++;
+        }
+        mQueue.addLast(e);
+
+        if (!mDraining) {
+            mDraining= true;
+            execute();
+        }
+    }
+
+    private void execute() {
+        try {
+            mExecutor.execute(this);
+        }
+        catch (RejectedExecutionException e) {
+            // shutting down
+            mDraining= false;
+        }
+    }
+
+    private void schedule(@NonNull Runnable r, long delayMs) {
+        try {
+            mExecutor.schedule(r, delayMs, TimeUnit.MILLISECONDS);
+        }
+        catch (RejectedExecutionException e) {
+            // shutting down
+            mTrailingScheduled= false;
+        }
+    }
+
+    /**
+     * Limit the rate of coalescable events
+     *
+     * @param eventsPerSecond maximum rate, 0 to disable the limit
+     */
+    synchronized void setRateLimit(int eventsPerSecond) {
+        mMinIntervalMs= (eventsPerSecond > 0? 1000 / eventsPerSecond : 0);
+    }
+
+    /**
+     * Discard the queued events and stop accepting new ones
+     */
+    synchronized void close() {
+        mClosed= true;
+        for (ListenerDispatcher.Event<T> e : mQueue) e.release();
+        mQueue.clear();
+        if (mLimitedEvent!= null) {
+            mLimitedEvent.release();
+            mLimitedEvent= null;
+        }
+    }
+
+    /** Drain the queue, runs in a pool thread */
+    @Override
+    public void run() {
+        for (int delivered= 0; ; delivered++) {
+            ListenerDispatcher.Event<T> e;
+            synchronized (this) {
+                if (mQueue.isEmpty()) {
+                    mDraining= false;
+                    return;
+                }
+                if (delivered == MAX_BATCH) {
+                    // go to the end of the pool queue
+                    execute();
+                    return;
+                }
+                e= mQueue.pollFirst();
+            }
+            try {
+                e.deliverTo(listener);
+                mDelivered++;
+            }
+            catch (RemoteException ex) {
+                mFailed++;
+            }
+            finally {
+                e.release();
+            }
+        }
+    }
+
+    synchronized String getStats() {
+        return "pid=" + pid + " delivered=" + mDelivered + " dropped=" + mDropped +
+                " limited=" + mLimited + " failed=" + mFailed + " queued=" + mQueue.size();
+    }
+}
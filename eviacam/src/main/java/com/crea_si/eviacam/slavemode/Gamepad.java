@@ -21,7 +21,6 @@ package com.crea_si.eviacam.slavemode;
 import android.content.Context;
 import android.graphics.PointF;
 import android.os.RemoteException;
-import android.util.Log;
 import android.view.View;
 
 import androidx.annotation.NonNull;
@@ -29,7 +28,6 @@ import androidx.annotation.NonNull;
 import com.crea_si.eviacam.api.GamepadButtons;
 import com.crea_si.eviacam.api.IGamepadEventListener;
 import com.crea_si.eviacam.api.SlaveMode;
-import com.crea_si.eviacam.common.EVIACAM;
 import com.crea_si.eviacam.common.MotionProcessor;
 import com.crea_si.eviacam.common.OverlayView;
 import com.crea_si.eviacam.common.PointerLayerView;
@@ -58,8 +56,9 @@ public class Gamepad implements MotionProcessor {
     // layer for drawing the pointer
     private PointerLayerView mPointerLayer;
 
-    // event listener
-    private IGamepadEventListener mPadEventListener;
+    // event listeners of the clients
+    private final ListenerDispatcher<IGamepadEventListener> mPadEventListeners=
+            new ListenerDispatcher<>("gamepad");
 
     // operation mode
     private int mOperationMode;
@@ -142,18 +141,44 @@ public class Gamepad implements MotionProcessor {
             mGamepadAbs.cleanup();
             mGamepadAbs = null;
         }
+
+        mPadEventListeners.cleanup();
     }
 
-    boolean registerListener(IGamepadEventListener l) {
-        if (mPadEventListener== null) {
-            mPadEventListener= l;
-            return true;
-        }
-        return false;
+    boolean registerListener(IGamepadEventListener l, int pid) {
+        return mPadEventListeners.register(l, pid);
+    }
+
+    void unregisterListener(int pid) {
+        mPadEventListeners.unregister(pid);
     }
 
-    void unregisterListener() {
-        mPadEventListener= null;
+    String getListenerStats() {
+        return mPadEventListeners.getStats();
+    }
+
+    /**
+     * Press or release of a button
+     */
+    private static class ButtonEvent extends ListenerDispatcher.Event<IGamepadEventListener> {
+        private final int mButton;
+        private final boolean mPressed;
+
+        ButtonEvent(int button, boolean pressed) {
+            mButton= button;
+            mPressed= pressed;
+        }
+
+        @Override
+        void deliverTo(@NonNull IGamepadEventListener l) throws RemoteException {
+            if (mPressed) l.buttonPressed(mButton);
+            else l.buttonReleased(mButton);
+        }
+
+        @Override
+        boolean isCoalescable() {
+            return false;
+        }
     }
     
     void setOperationMode(int mode) {
@@ -177,7 +202,7 @@ public class Gamepad implements MotionProcessor {
      */
     
     @Override
-    public void processMotion(@NonNull PointF motion) {
+    public void processMotion(@NonNull PointF motion, long timestamp) {
         if (isPaused) return;
         if (mOperationMode== SlaveMode.GAMEPAD_ABSOLUTE) {
             processMotionAbsoluteGamepad(motion);
@@ -190,21 +215,14 @@ public class Gamepad implements MotionProcessor {
     private void checkAndSendEvents(int button) {
         // Check and generate events
         if (button != mLastPressedButton) {
-            IGamepadEventListener l= mPadEventListener;
-            if (l!= null) {
-                try {
-                    if (mLastPressedButton!= GamepadButtons.PAD_NONE) {
-                        // Release previous button
-                        l.buttonReleased(mLastPressedButton);
-                    }
-                    if (button!= GamepadButtons.PAD_NONE) {
-                        // Press new one
-                        l.buttonPressed(button);
-                    }
+            if (mPadEventListeners.hasListeners()) {
+                if (mLastPressedButton!= GamepadButtons.PAD_NONE) {
+                    // Release previous button
+                    mPadEventListeners.dispatch(new ButtonEvent(mLastPressedButton, false));
                 }
-                catch (RemoteException e) {
-                    // Just log it and go on
-                    Log.e(EVIACAM.TAG+"->"+TAG, "RemoteException while sending gamepad event");
+                if (button!= GamepadButtons.PAD_NONE) {
+                    // Press new one
+                    mPadEventListeners.dispatch(new ButtonEvent(button, true));
                 }
             }
             mLastPressedButton= button;
@@ -0,0 +1,195 @@
+/*
+ * Enable Viacam for Android, a camera based mouse emulator
+ *
+ * Copyright (C) 2015-17 Cesar Mauri Loba (CREA Software Systems)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.crea_si.eviacam.slavemode;
+
+import android.os.IInterface;
+import android.os.RemoteCallbackList;
+import android.os.RemoteException;
+import android.os.SystemClock;
+import android.util.Log;
+import android.util.SparseArray;
+
+import androidx.annotation.NonNull;
+
+import com.crea_si.eviacam.common.EVIACAM;
+
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Delivers events of one type to the listeners of several clients
+ *
+ * Each client (identified by its process id) can register one listener. Events
+ * are queued per client in a bounded queue and delivered serially from a small
+ * pool of threads shared fairly among clients, so a slow or stuck client only
+ * delays itself. Optionally, coalescable events (e.g. pointer moves) can be rate
+ * limited per client. See ClientQueue for the details. Dead clients are removed
+ * automatically by the underlying RemoteCallbackList.
+ *
+ * @param <T> listener type
+ */
+class ListenerDispatcher<T extends IInterface> {
+    private static final String TAG = "ListenerDispatcher";
+
+    // threads delivering events, at most as many stuck clients can be tolerated
+    private static final int DELIVERY_THREADS= 2;
+
+    // idle time after which the delivery threads finish
+    private static final long THREAD_KEEP_ALIVE_MS= 10000;
+
+    /**
+     * An event to deliver
+     *
+     * acquire() is called each time a client queues the event and release() once
+     * the event leaves that queue (delivered or discarded), which allows events
+     * holding pooled resources to free them when no longer needed.
+     */
+    abstract static class Event<T> {
+        abstract void deliverTo(@NonNull T listener) throws RemoteException;
+
+        /** whether can be replaced by a newer event of the same kind */
+        abstract boolean isCoalescable();
+
+        void acquire() { }
+
+        void release() { }
+    }
+
+    private final String mName;
+
+    private final RemoteCallbackList<T> mListeners= new RemoteCallbackList<T>() {
+        @Override
+        public void onCallbackDied(T listener, Object cookie) {
+            @SuppressWarnings("unchecked")
+            ClientQueue<T> c= (ClientQueue<T>) cookie;
+            Log.d(EVIACAM.TAG+"->"+TAG, mName + " listener died. " + c.getStats());
+            c.close();
+            synchronized (mClients) {
+                if (mClients.get(c.pid) == c) mClients.remove(c.pid);
+            }
+        }
+    };
+
+    // registered clients by pid
+    private final SparseArray<ClientQueue<T>> mClients= new SparseArray<>();
+
+    // bounded pool which delivers the events and runs the trailing deliveries
+    private final ScheduledThreadPoolExecutor mExecutor=
+            new ScheduledThreadPoolExecutor(DELIVERY_THREADS);
+
+    ListenerDispatcher(@NonNull String name) {
+        mName= name;
+        mExecutor.setKeepAliveTime(THREAD_KEEP_ALIVE_MS, TimeUnit.MILLISECONDS);
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Register the listener of a client, replaces the previous one of the same client
+     *
+     * @return true if registered
+     */
+    boolean register(T listener, int pid) {
+        if (listener== null) return false;
+
+        unregister(pid);
+
+        ClientQueue<T> c= new ClientQueue<>(pid, listener, mExecutor);
+        if (!mListeners.register(listener, c)) return false;
+        synchronized (mClients) {
+            mClients.put(pid, c);
+        }
+        return true;
+    }
+
+    /**
+     * Unregister the listener of a client (if any)
+     */
+    void unregister(int pid) {
+        ClientQueue<T> c;
+        synchronized (mClients) {
+            c= mClients.get(pid);
+            if (c== null) return;
+            mClients.remove(pid);
+        }
+        Log.d(EVIACAM.TAG+"->"+TAG, mName + " listener unregistered. " + c.getStats());
+        c.close();
+        mListeners.unregister(c.listener);
+    }
+
+    /**
+     * Limit the rate of coalescable events for a client
+     *
+     * @param eventsPerSecond maximum rate, 0 to disable the limit
+     */
+    void setRateLimit(int pid, int eventsPerSecond) {
+        ClientQueue<T> c;
+        synchronized (mClients) {
+            c= mClients.get(pid);
+        }
+        if (c!= null) c.setRateLimit(eventsPerSecond);
+    }
+
+    boolean hasListeners() {
+        return mListeners.getRegisteredCallbackCount() > 0;
+    }
+
+    /**
+     * Queue an event for all registered clients. Never blocks on clients.
+     */
+    synchronized void dispatch(@NonNull Event<T> e) {
+        final long now= SystemClock.uptimeMillis();
+        final int count= mListeners.beginBroadcast();
+        try {
+            for (int i= 0; i< count; i++) {
+                @SuppressWarnings("unchecked")
+                ClientQueue<T> c= (ClientQueue<T>) mListeners.getBroadcastCookie(i);
+                c.enqueue(e, now);
+            }
+        }
+        finally {
+            mListeners.finishBroadcast();
+        }
+    }
+
+    /**
+     * Delivery statistics, one line per client
+     */
+    String getStats() {
+        StringBuilder sb= new StringBuilder();
+        synchronized (mClients) {
+            for (int i= 0; i< mClients.size(); i++) {
+                sb.append(mName).append(": ").append(mClients.valueAt(i).getStats()).append('\n');
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Unregister all listeners and stop delivering events
+     */
+    void cleanup() {
+        synchronized (mClients) {
+            for (int i= 0; i< mClients.size(); i++) mClients.valueAt(i).close();
+            mClients.clear();
+        }
+        mListeners.kill();
+        mExecutor.shutdown();
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Enable Viacam for Android, a camera based mouse emulator
+ *
+ * Copyright (C) 2015-17 Cesar Mauri Loba (CREA Software Systems)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.crea_si.eviacam.slavemode;
+
+import android.os.RemoteException;
+import android.view.MotionEvent;
+
+import androidx.annotation.NonNull;
+import androidx.core.util.Pools;
+
+import com.crea_si.eviacam.api.IMouseEventListener;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Mouse event for the listeners, moves can be coalesced
+ *
+ * Reference counted: the sender holds the first reference and each client queue
+ * acquires another one. Once all of them have been released the MotionEvent is
+ * recycled and the wrapper goes back to a pool, so that a steady stream of events
+ * does not allocate.
+ */
+final class MouseEvent extends ListenerDispatcher.Event<IMouseEventListener> {
+    // enough for a few frames queued on every client
+    static final int POOL_SIZE= 64;
+
+    private static final Pools.SynchronizedPool<MouseEvent> sPool=
+            new Pools.SynchronizedPool<>(POOL_SIZE);
+
+    private final AtomicInteger mRefs= new AtomicInteger();
+    private MotionEvent mEvent;
+    private boolean mCoalescable;
+
+    private MouseEvent() { }
+
+    /**
+     * Get a wrapper from the pool
+     *
+     * @param e event, recycled once all the references are released
+     * @param action action of the event (see MotionEvent.getActionMasked)
+     * @return the wrapper, holding one reference
+     */
+    @NonNull
+    static MouseEvent obtain(@NonNull MotionEvent e, int action) {
+        MouseEvent me= sPool.acquire();
+        if (me== null) me= new MouseEvent();
+        me.mEvent= e;
+        me.mCoalescable= (action== MotionEvent.ACTION_MOVE);
+        me.mRefs.set(1);
+        return me;
+    }
+
+    @Override
+    void deliverTo(@NonNull IMouseEventListener l) throws RemoteException {
+        l.onMouseEvent(mEvent);
+    }
+
+    @Override
+    boolean isCoalescable() {
+        return mCoalescable;
+    }
+
+    @Override
+    void acquire() {
+        mRefs.incrementAndGet();
+    }
+
+    @Override
+    void release() {
+        final int refs= mRefs.decrementAndGet();
+        if (refs> 0) return;
+        if (refs< 0) throw new IllegalStateException("MouseEvent released too many times");
+
+        mEvent.recycle();
+        mEvent= null;
+        sPool.release(this);
+    }
+}
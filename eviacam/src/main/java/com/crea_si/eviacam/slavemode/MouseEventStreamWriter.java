@@ -0,0 +1,218 @@
+/*
+ * Enable Viacam for Android, a camera based mouse emulator
+ *
+ * Copyright (C) 2015-17 Cesar Mauri Loba (CREA Software Systems)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.crea_si.eviacam.slavemode;
+
+import android.os.ParcelFileDescriptor;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.crea_si.eviacam.api.MouseEventStream;
+import com.crea_si.eviacam.common.EVIACAM;
+
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Service side of the mouse event stream (see MouseEventStream in the API)
+ *
+ * Samples are appended with add() and sent with a single write by flush().
+ * The pipe is non-blocking so that a client which does not read never
+ * stalls the engine: when full, the batch is dropped and the sequence
+ * numbers keep advancing so that the client can detect the gap.
+ *
+ * The pipe is accessed through a Sink, see create().
+ *
+ * Thread safety: samples are added from the mouse event thread whereas the
+ * stream is closed from the main thread, all methods synchronized.
+ */
+class MouseEventStreamWriter {
+    private static final String TAG = "MouseEventStreamWriter";
+
+    /**
+     * Write side of a non-blocking pipe
+     */
+    interface Sink {
+        /**
+         * Write the remaining bytes of the buffer without blocking. Writes
+         * up to MAX_BATCH_SIZE bytes are all or nothing.
+         *
+         * @return number of bytes written, 0 when the pipe is full
+         * @throws IOException when the client is gone (e.g. EPIPE) or on error
+         */
+        int write(@NonNull ByteBuffer b) throws IOException;
+
+        void close() throws IOException;
+    }
+
+    /**
+     * Pipe created with ParcelFileDescriptor
+     */
+    private static final class PipeSink implements Sink {
+        private final ParcelFileDescriptor mWriteSide;
+        private final FileDescriptor mFd;
+
+        PipeSink(@NonNull ParcelFileDescriptor writeSide) throws ErrnoException {
+            mWriteSide= writeSide;
+            mFd= writeSide.getFileDescriptor();
+            int flags= Os.fcntlInt(mFd, OsConstants.F_GETFL, 0);
+            Os.fcntlInt(mFd, OsConstants.F_SETFL, flags | OsConstants.O_NONBLOCK);
+        }
+
+        @Override
+        public int write(@NonNull ByteBuffer b) throws IOException {
+            try {
+                return Os.write(mFd, b);
+            }
+            catch (ErrnoException e) {
+                if (e.errno == OsConstants.EAGAIN) return 0;
+                throw new IOException(e.getMessage(), e);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            mWriteSide.close();
+        }
+    }
+
+    private Sink mSink;
+    private final ByteBuffer mBatch= ByteBuffer.allocateDirect(MouseEventStream.MAX_BATCH_SIZE)
+            .order(ByteOrder.nativeOrder());
+
+    private int mSeq= 0;
+
+    // statistics
+    private long mWritten= 0;
+    private long mDropped= 0;
+
+    MouseEventStreamWriter(@NonNull Sink sink) {
+        mSink= sink;
+    }
+
+    /**
+     * Create the pipe
+     *
+     * @param readSide array of one element where the side to hand over
+     *                 to the client is stored
+     * @return the writer or null if something failed
+     */
+    @Nullable
+    static MouseEventStreamWriter create(ParcelFileDescriptor[] readSide) {
+        ParcelFileDescriptor[] pipe= null;
+        try {
+            pipe= ParcelFileDescriptor.createPipe();
+            MouseEventStreamWriter w= new MouseEventStreamWriter(new PipeSink(pipe[1]));
+            readSide[0]= pipe[0];
+            return w;
+        }
+        catch (IOException | ErrnoException e) {
+            Log.e(EVIACAM.TAG+"->"+TAG, "Cannot create mouse event stream: " + e.getMessage());
+            if (pipe!= null) {
+                closeQuietly(pipe[0]);
+                closeQuietly(pipe[1]);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Append a sample to the current batch
+     *
+     * @return false if the stream has been closed
+     */
+    synchronized boolean add(int action, int x, int y, long time) {
+        if (mSink== null) return false;
+        if (mBatch.remaining() < MouseEventStream.RECORD_SIZE) flush();
+        MouseEventStream.putSample(mBatch, mSeq++, action, x, y, time);
+        return true;
+    }
+
+    /**
+     * Send the current batch
+     *
+     * @return false if the stream has been closed (e.g. the client went away)
+     */
+    synchronized boolean flush() {
+        if (mSink== null) return false;
+
+        final int size= mBatch.position();
+        if (size== 0) return true;
+        mBatch.flip();
+        try {
+            // writes smaller than PIPE_BUF are all or nothing
+            if (mSink.write(mBatch)== 0) {
+                mDropped+= size / MouseEventStream.RECORD_SIZE;
+            }
+            else {
+                mWritten+= size / MouseEventStream.RECORD_SIZE;
+            }
+        }
+        catch (IOException e) {
+            // EPIPE or others, the client is gone
+            Log.d(EVIACAM.TAG+"->"+TAG, "Mouse event stream broken: " + e.getMessage());
+            close();
+            return false;
+        }
+        finally {
+            mBatch.clear();
+        }
+
+        return true;
+    }
+
+    synchronized boolean isClosed() {
+        return mSink== null;
+    }
+
+    synchronized void close() {
+        if (mSink== null) return;
+        Log.d(EVIACAM.TAG+"->"+TAG, "Mouse event stream closed. Written: " + mWritten +
+                " Dropped: " + mDropped);
+        try {
+            mSink.close();
+        } catch (IOException e) {
+            // ignore
+        }
+        mSink= null;
+    }
+
+    synchronized long getWritten() {
+        return mWritten;
+    }
+
+    synchronized long getDropped() {
+        return mDropped;
+    }
+
+    private static void closeQuietly(ParcelFileDescriptor pfd) {
+        try {
+            pfd.close();
+        } catch (IOException e) {
+            // ignore
+        }
+    }
+}
@@ -18,6 +18,8 @@
  */
 package com.crea_si.eviacam.slavemode;
 
+import android.os.ParcelFileDescriptor;
+
 import androidx.annotation.Nullable;
 
 import com.crea_si.eviacam.api.IDockPanelEventListener;
@@ -30,10 +32,14 @@ import com.crea_si.eviacam.common.Engine;
  */
 public interface SlaveModeEngine extends Engine {
     void setSlaveOperationMode(int mode);
-    boolean registerGamepadListener(@Nullable IGamepadEventListener l);
-    void unregisterGamepadListener();
-    boolean registerMouseListener(@Nullable IMouseEventListener l);
-    void unregisterMouseListener();
-    void unregisterDockPanelListener();
-    boolean registerDockPanelListener(@Nullable IDockPanelEventListener l);
+    boolean registerGamepadListener(@Nullable IGamepadEventListener l, int pid);
+    void unregisterGamepadListener(int pid);
+    boolean registerMouseListener(@Nullable IMouseEventListener l, int pid);
+    void unregisterMouseListener(int pid);
+    void unregisterDockPanelListener(int pid);
+    boolean registerDockPanelListener(@Nullable IDockPanelEventListener l, int pid);
+    void setMouseEventRateLimit(int pid, int eventsPerSecond);
+    String getListenerStats();
+    @Nullable ParcelFileDescriptor openMouseEventStream();
+    void closeMouseEventStream();
 }
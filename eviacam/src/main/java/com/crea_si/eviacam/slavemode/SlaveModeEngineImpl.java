@@ -21,14 +21,15 @@ package com.crea_si.eviacam.slavemode;
 import android.app.Service;
 import android.graphics.Point;
 import android.graphics.PointF;
+import android.os.ParcelFileDescriptor;
 import android.os.RemoteException;
 import android.os.SystemClock;
-import android.util.Log;
 import android.view.InputDevice;
 import android.view.MotionEvent;
 import android.view.View;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 
 import com.crea_si.eviacam.R;
 import com.crea_si.eviacam.api.IDockPanelEventListener;
@@ -37,12 +38,12 @@ import com.crea_si.eviacam.api.IMouseEventListener;
 import com.crea_si.eviacam.api.SlaveMode;
 import com.crea_si.eviacam.common.CoreEngine;
 import com.crea_si.eviacam.common.DockPanelLayerView;
-import com.crea_si.eviacam.common.EVIACAM;
 import com.crea_si.eviacam.common.MotionProcessor;
 import com.crea_si.eviacam.common.MouseEmulation;
 import com.crea_si.eviacam.common.MouseEmulationCallbacks;
 import com.crea_si.eviacam.common.RunnableNamed;
 import com.crea_si.eviacam.common.RunnableNamedImpl;
+import com.crea_si.input_method_aidl.MotionEventFactory;
 
 
 public class SlaveModeEngineImpl extends CoreEngine implements SlaveModeEngine, MouseEmulationCallbacks {
@@ -62,11 +63,16 @@ public class SlaveModeEngineImpl extends CoreEngine implements SlaveModeEngine,
     // layer for drawing the docking panel
     private DockPanelLayerView mDockPanelLayerView;
 
-    // reference to the listener for mouse events
-    private IMouseEventListener mMouseEventListener;
+    // listeners for mouse events
+    private final ListenerDispatcher<IMouseEventListener> mMouseEventListeners=
+            new ListenerDispatcher<>("mouse");
 
-    // reference to the listener for menu events
-    private IDockPanelEventListener mDockPanelEventListener;
+    // listeners for menu events
+    private final ListenerDispatcher<IDockPanelEventListener> mDockPanelEventListeners=
+            new ListenerDispatcher<>("dock panel");
+
+    // high rate stream of mouse events, if open
+    private volatile MouseEventStreamWriter mMouseEventStream;
 
     @Override
     protected void onInit(Service service) {
@@ -115,7 +121,9 @@ public class SlaveModeEngineImpl extends CoreEngine implements SlaveModeEngine,
         }
 
         mCurrentMotionProcessor= null;
-        mMouseEventListener= null;
+        mMouseEventListeners.cleanup();
+        mDockPanelEventListeners.cleanup();
+        closeMouseEventStream();
     }
 
     @Override
@@ -196,41 +204,64 @@ public class SlaveModeEngineImpl extends CoreEngine implements SlaveModeEngine,
     }
 
     @Override
-    public boolean registerGamepadListener(IGamepadEventListener l) {
-        return mGamepad.registerListener(l);
+    public boolean registerGamepadListener(IGamepadEventListener l, int pid) {
+        return mGamepad.registerListener(l, pid);
     }
 
     @Override
-    public void unregisterGamepadListener() {
-        mGamepad.unregisterListener();
+    public void unregisterGamepadListener(int pid) {
+        mGamepad.unregisterListener(pid);
     }
 
     @Override
-    public boolean registerMouseListener(IMouseEventListener l) {
-        if (mMouseEventListener== null) {
-            mMouseEventListener= l;
-            return true;
-        }
-        return false;
+    public boolean registerMouseListener(IMouseEventListener l, int pid) {
+        return mMouseEventListeners.register(l, pid);
     }
 
     @Override
-    public void unregisterDockPanelListener() {
-        mDockPanelEventListener= null;
+    public void unregisterDockPanelListener(int pid) {
+        mDockPanelEventListeners.unregister(pid);
     }
 
     @Override
-    public boolean registerDockPanelListener(IDockPanelEventListener l) {
-        if (mDockPanelEventListener== null) {
-            mDockPanelEventListener= l;
-            return true;
-        }
-        return false;
+    public boolean registerDockPanelListener(IDockPanelEventListener l, int pid) {
+        return mDockPanelEventListeners.register(l, pid);
+    }
+
+    @Override
+    public void unregisterMouseListener(int pid) {
+        mMouseEventListeners.unregister(pid);
+    }
+
+    @Override
+    public void setMouseEventRateLimit(int pid, int eventsPerSecond) {
+        mMouseEventListeners.setRateLimit(pid, eventsPerSecond);
+    }
+
+    @Override
+    public String getListenerStats() {
+        String gamepad= (mGamepad!= null? mGamepad.getListenerStats() : "");
+        return mMouseEventListeners.getStats() + mDockPanelEventListeners.getStats() + gamepad;
     }
 
     @Override
-    public void unregisterMouseListener() {
-        mMouseEventListener= null;
+    @Nullable
+    public ParcelFileDescriptor openMouseEventStream() {
+        MouseEventStreamWriter current= mMouseEventStream;
+        if (current!= null && !current.isClosed()) return null;
+
+        ParcelFileDescriptor[] readSide= new ParcelFileDescriptor[1];
+        MouseEventStreamWriter w= MouseEventStreamWriter.create(readSide);
+        if (w== null) return null;
+        mMouseEventStream= w;
+        return readSide[0];
+    }
+
+    @Override
+    public void closeMouseEventStream() {
+        MouseEventStreamWriter w= mMouseEventStream;
+        mMouseEventStream= null;
+        if (w!= null) w.close();
     }
 
     /*
@@ -239,6 +270,10 @@ public class SlaveModeEngineImpl extends CoreEngine implements SlaveModeEngine,
     private Point mLastPos= new Point();
     private boolean mLastClicked= false;
 
+    // Builds the MotionEvents for the listeners, keeps the down time of the clicks
+    private final MotionEventFactory mMotionEventFactory=
+            new MotionEventFactory(InputDevice.SOURCE_CLASS_POINTER, 0.0f);
+
     /**
      * Send mouse events when needed
      *
@@ -246,53 +281,85 @@ public class SlaveModeEngineImpl extends CoreEngine implements SlaveModeEngine,
      * @param clicked true if click performed
      */
     private void checkAndSendMouseEvents(Point pos, boolean clicked) {
-        final float DEFAULT_SIZE = 1.0f;
-        final int DEFAULT_META_STATE = 0;
-        final float DEFAULT_PRECISION_X = 1.0f;
-        final float DEFAULT_PRECISION_Y = 1.0f;
-        final int DEFAULT_DEVICE_ID = 0;
-        final int DEFAULT_EDGE_FLAGS = 0;
-
         // Check and generate events
-        IMouseEventListener l= mMouseEventListener;
-        if (l== null) return;
-
-        try {
-            long now = SystemClock.uptimeMillis();
-
-            if (!pos.equals(mLastPos)) {
-                MotionEvent event = MotionEvent.obtain(now, now, MotionEvent.ACTION_MOVE,
-                        pos.x, pos.y, 0.0f, DEFAULT_SIZE, DEFAULT_META_STATE,
-                        DEFAULT_PRECISION_X, DEFAULT_PRECISION_Y, DEFAULT_DEVICE_ID,
-                        DEFAULT_EDGE_FLAGS);
-                event.setSource(InputDevice.SOURCE_CLASS_POINTER);
-                l.onMouseEvent(event);
-            }
-            if (mLastClicked && !clicked) {
-                MotionEvent event = MotionEvent.obtain(now, now, MotionEvent.ACTION_UP,
-                        pos.x, pos.y, 0.0f, DEFAULT_SIZE, DEFAULT_META_STATE,
-                        DEFAULT_PRECISION_X, DEFAULT_PRECISION_Y, DEFAULT_DEVICE_ID,
-                        DEFAULT_EDGE_FLAGS);
-                event.setSource(InputDevice.SOURCE_CLASS_POINTER);
-                l.onMouseEvent(event);
-            }
-            else if (!mLastClicked && clicked) {
-                MotionEvent event = MotionEvent.obtain(now, now, MotionEvent.ACTION_DOWN,
-                        pos.x, pos.y, 0.0f, DEFAULT_SIZE, DEFAULT_META_STATE,
-                        DEFAULT_PRECISION_X, DEFAULT_PRECISION_Y, DEFAULT_DEVICE_ID,
-                        DEFAULT_EDGE_FLAGS);
-                event.setSource(InputDevice.SOURCE_CLASS_POINTER);
-                l.onMouseEvent(event);
-            }
+        ListenerDispatcher<IMouseEventListener> l=
+                (mMouseEventListeners.hasListeners()? mMouseEventListeners : null);
+        MouseEventStreamWriter s= mMouseEventStream;
+        if (l== null && s== null) return;
+
+        long now = SystemClock.uptimeMillis();
+
+        if (!pos.equals(mLastPos)) {
+            sendMouseEvent(l, s, MotionEvent.ACTION_MOVE, pos, now);
+        }
+        if (mLastClicked && !clicked) {
+            sendMouseEvent(l, s, MotionEvent.ACTION_UP, pos, now);
         }
-        catch (RemoteException e) {
-            // Just log it and go on
-            Log.e(EVIACAM.TAG+"->"+TAG, "RemoteException while sending mouse event");
+        else if (!mLastClicked && clicked) {
+            sendMouseEvent(l, s, MotionEvent.ACTION_DOWN, pos, now);
         }
+
+        // All the events of this frame in a single write
+        if (s!= null) s.flush();
+
         mLastPos.set(pos.x, pos.y);
         mLastClicked= clicked;
     }
 
+    /**
+     * Send an event to the listeners and to the stream (when available)
+     */
+    private void sendMouseEvent(@Nullable ListenerDispatcher<IMouseEventListener> l,
+                                @Nullable MouseEventStreamWriter s,
+                                int action, Point pos, long now) {
+        if (s!= null) s.add(action, pos.x, pos.y, now);
+
+        // The factory is always updated to keep track of the click state.
+        // Sequences it cannot build (e.g. UP without DOWN) are logged and dropped.
+        MotionEvent event;
+        if (action== MotionEvent.ACTION_DOWN) {
+            event= mMotionEventFactory.obtainDown(now, pos.x, pos.y);
+        }
+        else if (action== MotionEvent.ACTION_UP) {
+            event= mMotionEventFactory.obtainUp(now, pos.x, pos.y);
+        }
+        else {
+            event= mMotionEventFactory.obtainMove(now, pos.x, pos.y);
+        }
+        if (event== null) return;
+
+        if (l!= null) {
+            MouseEvent e= MouseEvent.obtain(event, action);
+            l.dispatch(e);
+            e.release();
+        }
+        else {
+            event.recycle();
+        }
+    }
+
+    /**
+     * Dock panel option for the listeners
+     */
+    private static class DockMenuOptionEvent
+            extends ListenerDispatcher.Event<IDockPanelEventListener> {
+        private final int mOption;
+
+        DockMenuOptionEvent(int option) {
+            mOption= option;
+        }
+
+        @Override
+        void deliverTo(@NonNull IDockPanelEventListener l) throws RemoteException {
+            l.onDockMenuOption(mOption);
+        }
+
+        @Override
+        boolean isCoalescable() {
+            return false;
+        }
+    }
+
     /**
      * Process motion events
      *
@@ -301,12 +368,14 @@ public class SlaveModeEngineImpl extends CoreEngine implements SlaveModeEngine,
      * @param faceDetected whether or not a face was detected for the last frame, note
      *                     not all frames are checked for the face detection algorithm
      * @param state current state of the engine
+     * @param timestamp capture time stamp of the frame in nanoseconds
      */
     @Override
-    protected void onFrame(@NonNull PointF motion, boolean faceDetected, int state) {
+    protected void onFrame(@NonNull PointF motion, boolean faceDetected, int state,
+                           long timestamp) {
         if (mCurrentMotionProcessor!= null) {
             if (state == STATE_RUNNING) {
-                mCurrentMotionProcessor.processMotion(motion);
+                mCurrentMotionProcessor.processMotion(motion, timestamp);
             }
         }
     }
@@ -374,13 +443,8 @@ public class SlaveModeEngineImpl extends CoreEngine implements SlaveModeEngine,
                 break;
         }
 
-        IDockPanelEventListener l= mDockPanelEventListener;
-        if (l!= null && option!= 0) {
-            try {
-                l.onDockMenuOption(option);
-            } catch (RemoteException e) {
-                // Just ignore exception if any
-            }
+        if (option!= 0 && mDockPanelEventListeners.hasListeners()) {
+            mDockPanelEventListeners.dispatch(new DockMenuOptionEvent(option));
         }
 
         return 0;
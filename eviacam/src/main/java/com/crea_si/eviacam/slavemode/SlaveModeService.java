@@ -21,8 +21,10 @@ package com.crea_si.eviacam.slavemode;
 
 import android.app.Service;
 import android.content.Intent;
+import android.os.Binder;
 import android.os.Handler;
 import android.os.IBinder;
+import android.os.ParcelFileDescriptor;
 import android.os.RemoteException;
 import android.util.Log;
 
@@ -190,6 +192,7 @@ public class SlaveModeService extends Service implements Engine.OnInitListener {
         public boolean registerGamepadListener(final IGamepadEventListener arg0)
                 throws RemoteException {
             Log.d(EVIACAM.TAG+"->"+TAG, "SlaveModeService.registerGamepadListener");
+            final int pid= Binder.getCallingPid();
 
             FutureTask<Boolean> futureResult = new FutureTask<>(new Callable<Boolean>() {
                 @Override
@@ -199,7 +202,7 @@ public class SlaveModeService extends Service implements Engine.OnInitListener {
                     // on the caller. See here:
                     // http://stackoverflow.com/questions/1800881/throw-a-custom-exception-from-a-service-to-an-activity
                     return mSlaveModeEngine != null &&
-                           mSlaveModeEngine.registerGamepadListener(arg0);
+                           mSlaveModeEngine.registerGamepadListener(arg0, pid);
                 }
             });
 
@@ -219,11 +222,12 @@ public class SlaveModeService extends Service implements Engine.OnInitListener {
         public void unregisterGamepadListener() throws RemoteException {
             Log.d(EVIACAM.TAG+"->"+TAG, "SlaveModeService.unregisterGamepadListener");
             if (mSlaveModeEngine == null) return;
+            final int pid= Binder.getCallingPid();
 
             Runnable r= new Runnable() {
                 @Override
                 public void run() {
-                    mSlaveModeEngine.unregisterGamepadListener();
+                    mSlaveModeEngine.unregisterGamepadListener(pid);
                 }
             };
             mMainThreadHandler.post(r);
@@ -233,6 +237,7 @@ public class SlaveModeService extends Service implements Engine.OnInitListener {
         public boolean registerMouseListener(final IMouseEventListener arg0)
                 throws RemoteException {
             Log.d(EVIACAM.TAG+"->"+TAG, "SlaveModeService.registerMouseListener");
+            final int pid= Binder.getCallingPid();
             
             FutureTask<Boolean> futureResult = new FutureTask<>(new Callable<Boolean>() {
                 @Override
@@ -241,7 +246,7 @@ public class SlaveModeService extends Service implements Engine.OnInitListener {
                     // a RemoteException, it would be better to provide more information
                     // on the caller. See here:
                     // http://stackoverflow.com/questions/1800881/throw-a-custom-exception-from-a-service-to-an-activity
-                    return mSlaveModeEngine != null && mSlaveModeEngine.registerMouseListener(arg0);
+                    return mSlaveModeEngine != null && mSlaveModeEngine.registerMouseListener(arg0, pid);
                 }
             });
 
@@ -261,11 +266,12 @@ public class SlaveModeService extends Service implements Engine.OnInitListener {
         public void unregisterMouseListener() throws RemoteException {
             Log.d(EVIACAM.TAG+"->"+TAG, "SlaveModeService.unregisterMouseListener");
             if (mSlaveModeEngine == null) return;
+            final int pid= Binder.getCallingPid();
 
             Runnable r= new Runnable() {
                 @Override
                 public void run() {
-                    mSlaveModeEngine.unregisterMouseListener();
+                    mSlaveModeEngine.unregisterMouseListener(pid);
                 }
             };
             mMainThreadHandler.post(r);
@@ -275,6 +281,7 @@ public class SlaveModeService extends Service implements Engine.OnInitListener {
         public boolean registerDockPanelListener(final IDockPanelEventListener arg0)
                 throws RemoteException {
             Log.d(EVIACAM.TAG+"->"+TAG, "SlaveModeService.registerDockPanelistener");
+            final int pid= Binder.getCallingPid();
 
             FutureTask<Boolean> futureResult = new FutureTask<>(new Callable<Boolean>() {
                 @Override
@@ -283,7 +290,7 @@ public class SlaveModeService extends Service implements Engine.OnInitListener {
                     // a RemoteException, it would be better to provide more information
                     // on the caller. See here:
                     // http://stackoverflow.com/questions/1800881/throw-a-custom-exception-from-a-service-to-an-activity
-                    return mSlaveModeEngine != null && mSlaveModeEngine.registerDockPanelListener(arg0);
+                    return mSlaveModeEngine != null && mSlaveModeEngine.registerDockPanelListener(arg0, pid);
                 }
             });
 
@@ -303,15 +310,92 @@ public class SlaveModeService extends Service implements Engine.OnInitListener {
         public void unregisterDockPanelListener() throws RemoteException {
             Log.d(EVIACAM.TAG+"->"+TAG, "SlaveModeService.unregisterDockMenuListener");
             if (mSlaveModeEngine == null) return;
+            final int pid= Binder.getCallingPid();
 
             Runnable r= new Runnable() {
                 @Override
                 public void run() {
-                    mSlaveModeEngine.unregisterDockPanelListener();
+                    mSlaveModeEngine.unregisterDockPanelListener(pid);
                 }
             };
             mMainThreadHandler.post(r);
         }
+
+        @Override
+        public ParcelFileDescriptor openMouseEventStream() throws RemoteException {
+            Log.d(EVIACAM.TAG+"->"+TAG, "SlaveModeService.openMouseEventStream");
+
+            FutureTask<ParcelFileDescriptor> futureResult =
+                    new FutureTask<>(new Callable<ParcelFileDescriptor>() {
+                @Override
+                public ParcelFileDescriptor call() throws Exception {
+                    if (mSlaveModeEngine == null) return null;
+                    return mSlaveModeEngine.openMouseEventStream();
+                }
+            });
+
+            mMainThreadHandler.post(futureResult);
+
+            try {
+                // this block until the result is calculated
+                return futureResult.get();
+            }
+            catch (ExecutionException | InterruptedException e) {
+                Log.e(EVIACAM.TAG+"->"+TAG, "SlaveModeService: exception: " + e.getMessage());
+            }
+            return null;
+        }
+
+        @Override
+        public void closeMouseEventStream() throws RemoteException {
+            Log.d(EVIACAM.TAG+"->"+TAG, "SlaveModeService.closeMouseEventStream");
+            if (mSlaveModeEngine == null) return;
+
+            Runnable r= new Runnable() {
+                @Override
+                public void run() {
+                    mSlaveModeEngine.closeMouseEventStream();
+                }
+            };
+            mMainThreadHandler.post(r);
+        }
+
+        @Override
+        public void setMouseEventRateLimit(final int eventsPerSecond) throws RemoteException {
+            Log.d(EVIACAM.TAG+"->"+TAG, "SlaveModeService.setMouseEventRateLimit");
+            if (mSlaveModeEngine == null) return;
+            final int pid= Binder.getCallingPid();
+
+            Runnable r= new Runnable() {
+                @Override
+                public void run() {
+                    mSlaveModeEngine.setMouseEventRateLimit(pid, eventsPerSecond);
+                }
+            };
+            mMainThreadHandler.post(r);
+        }
+
+        @Override
+        public String getListenerStats() throws RemoteException {
+            FutureTask<String> futureResult = new FutureTask<>(new Callable<String>() {
+                @Override
+                public String call() throws Exception {
+                    if (mSlaveModeEngine == null) return "";
+                    return mSlaveModeEngine.getListenerStats();
+                }
+            });
+
+            mMainThreadHandler.post(futureResult);
+
+            try {
+                // this block until the result is calculated
+                return futureResult.get();
+            }
+            catch (ExecutionException | InterruptedException e) {
+                Log.e(EVIACAM.TAG+"->"+TAG, "SlaveModeService: exception: " + e.getMessage());
+            }
+            return "";
+        }
     };
 
     public void stop(){
@@ -0,0 +1,287 @@
+/*
+ * Enable Viacam for Android, a camera based mouse emulator
+ *
+ * Copyright (C) 2015-17 Cesar Mauri Loba (CREA Software Systems)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.crea_si.eviacam.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Single producer, single consumer ring of reusable slots to hand frames from
+ * one thread to another without locks nor allocations.
+ *
+ * The producer fills the slot returned by beginWrite() and publishes it with
+ * endWrite(). The consumer takes the next slot with beginRead() and gives it back
+ * with endRead(). A slot is never accessed by both threads at the same time.
+ *
+ * When the consumer falls behind frames are dropped according to the policy:
+ *
+ *  - LATEST_WINS: the consumer always gets the newest frame, an unread frame is
+ *    replaced by the next one. The producer never waits. Uses three slots.
+ *  - QUEUE: frames are consumed in order. When all the slots hold unread frames
+ *    the incoming frame is dropped (beginWrite returns null).
+ *
+ * Published, consumed and dropped frames are counted. Each counter is written by
+ * a single thread and can be read from any thread.
+ */
+public class FrameRing<T> {
+    public enum DropPolicy { LATEST_WINS, QUEUE }
+
+    /**
+     * Creates the objects stored in the slots
+     */
+    public interface SlotFactory<T> {
+        T create();
+    }
+
+    /**
+     * Frees the objects stored in the slots
+     */
+    public interface SlotCleaner<T> {
+        void cleanup(T slot);
+    }
+
+    // slots used in LATEST_WINS mode
+    private static final int LATEST_WINS_SLOTS= 3;
+
+    // LATEST_WINS: flag of mReady telling that the slot holds an unread frame
+    private static final int FRESH= 0x100;
+    private static final int INDEX_MASK= 0xff;
+
+    // rings not released yet, for diagnostic purposes
+    private static final List<FrameRing<?>> sInstances= new ArrayList<>();
+
+    private final String mName;
+    private final DropPolicy mPolicy;
+    private final List<T> mSlots;
+
+    /* LATEST_WINS state: slot owned by each side and slot waiting to be read */
+    private int mWriteIdx= 0;
+    private int mReadIdx= 1;
+    private final AtomicInteger mReady= new AtomicInteger(2);
+
+    /* QUEUE state: tail written by the producer, head written by the consumer */
+    private final AtomicLong mTail= new AtomicLong();
+    private final AtomicLong mHead= new AtomicLong();
+    private boolean mReading= false;
+
+    /* Counters */
+    private volatile long mPublished;
+    private volatile long mConsumed;
+    private volatile long mDropped;
+
+    private boolean mDisposed= false;
+
+    /**
+     * Constructor
+     *
+     * @param name name shown in the statistics
+     * @param policy what to do when the consumer falls behind
+     * @param capacity number of slots for the QUEUE policy (at least 2), ignored
+     *                 for LATEST_WINS
+     * @param factory creates the slots
+     */
+    public FrameRing(String name, DropPolicy policy, int capacity, SlotFactory<T> factory) {
+        if (policy == DropPolicy.LATEST_WINS) capacity= LATEST_WINS_SLOTS;
+        else if (capacity < 2) throw new IllegalArgumentException("capacity < 2");
+
+        mName= name;
+        mPolicy= policy;
+        List<T> slots= new ArrayList<>(capacity);
+        for (int i= 0; i < capacity; i++) slots.add(factory.create());
+        mSlots= Collections.unmodifiableList(slots);
+
+        synchronized (sInstances) {
+            sInstances.add(this);
+        }
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    public DropPolicy getPolicy() {
+        return mPolicy;
+    }
+
+    /**
+     * Get all the slots, e.g. to free them once both threads have finished
+     */
+    public List<T> getSlots() {
+        return mSlots;
+    }
+
+    /**
+     * Producer: get the slot to fill with the next frame. Calling it again without
+     * calling endWrite returns the same slot.
+     *
+     * @return the slot or null when the frame needs to be dropped (QUEUE policy only)
+     */
+    public T beginWrite() {
+        if (mPolicy == DropPolicy.LATEST_WINS) return mSlots.get(mWriteIdx);
+
+        final long tail= mTail.get();
+        if (tail - mHead.get() >= mSlots.size()) {
+            mDropped++;
+            return null;
+        }
+        return mSlots.get((int) (tail % mSlots.size()));
+    }
+
+    /**
+     * Producer: publish the slot returned by beginWrite
+     */
+    public void endWrite() {
+        if (mPolicy == DropPolicy.LATEST_WINS) {
+            int prev= mReady.getAndSet(mWriteIdx | FRESH);
+            if ((prev & FRESH) != 0) mDropped++;
+            mWriteIdx= prev & INDEX_MASK;
+        }
+        else {
+            mTail.lazySet(mTail.get() + 1);
+        }
+        mPublished++;
+    }
+
+    /**
+     * Consumer: get the next frame
+     *
+     * @return the slot or null if there is no frame pending
+     */
+    public T beginRead() {
+        if (mPolicy == DropPolicy.LATEST_WINS) {
+            if ((mReady.get() & FRESH) == 0) return null;
+            mReadIdx= mReady.getAndSet(mReadIdx) & INDEX_MASK;
+            mConsumed++;
+            return mSlots.get(mReadIdx);
+        }
+
+        if (mReading) throw new IllegalStateException("endRead not called");
+        final long head= mHead.get();
+        if (head == mTail.get()) return null;
+        mReading= true;
+        mConsumed++;
+        return mSlots.get((int) (head % mSlots.size()));
+    }
+
+    /**
+     * Consumer: give back the slot returned by beginRead
+     */
+    public void endRead() {
+        // LATEST_WINS: the slot is kept until the next beginRead
+        if (mPolicy == DropPolicy.LATEST_WINS || !mReading) return;
+        mReading= false;
+        mHead.lazySet(mHead.get() + 1);
+    }
+
+    /**
+     * Whether there are frames waiting to be read. Can be called from any thread.
+     */
+    public boolean hasPending() {
+        if (mPolicy == DropPolicy.LATEST_WINS) return (mReady.get() & FRESH) != 0;
+        return mTail.get() != mHead.get();
+    }
+
+    public long getPublishedCount() {
+        return mPublished;
+    }
+
+    public long getConsumedCount() {
+        return mConsumed;
+    }
+
+    public long getDroppedCount() {
+        return mDropped;
+    }
+
+    /**
+     * Stop reporting this ring in the statistics. Slots are not freed.
+     */
+    public void release() {
+        synchronized (sInstances) {
+            sInstances.remove(this);
+        }
+    }
+
+    /**
+     * Free all the slots and stop reporting this ring. Call it once both threads
+     * have finished with the ring. Further calls do nothing.
+     *
+     * @param cleaner frees each slot
+     */
+    public void dispose(SlotCleaner<T> cleaner) {
+        synchronized (this) {
+            if (mDisposed) return;
+            mDisposed= true;
+        }
+        for (T slot : mSlots) cleaner.cleanup(slot);
+        release();
+    }
+
+    /**
+     * Dispose a ring which has been replaced by another one. The producer has
+     * stopped using it but the consumer might still be reading from it, so the ring
+     * is disposed by the consumer thread. When the consumer does not accept tasks
+     * anymore (it has finished) the ring is disposed right away.
+     *
+     * @param cleaner frees each slot
+     * @param consumer runs tasks on the consumer thread
+     */
+    public void retire(final SlotCleaner<T> cleaner, Executor consumer) {
+        Runnable dispose= new Runnable() {
+            @Override
+            public void run() {
+                dispose(cleaner);
+            }
+        };
+        try {
+            consumer.execute(dispose);
+        }
+        catch (RejectedExecutionException e) {
+            dispose.run();
+        }
+    }
+
+    /**
+     * Get a human readable summary of the counters of the live rings
+     * @return one line per ring
+     */
+    public static String getSummary() {
+        StringBuilder sb= new StringBuilder();
+        synchronized (sInstances) {
+            for (FrameRing<?> r : sInstances) {
+                final long dropped= r.getDroppedCount();
+                final long total= r.getPublishedCount() + (r.mPolicy == DropPolicy.QUEUE ? dropped : 0);
+                sb.append(String.format(Locale.US,
+                        "\n  %s (%s): published=%d consumed=%d dropped=%d (%.1f%%)",
+                        r.getName(), r.getPolicy().name().toLowerCase(Locale.US),
+                        r.getPublishedCount(), r.getConsumedCount(), dropped,
+                        total > 0 ? 100.0 * dropped / total : 0.0));
+            }
+        }
+        if (sb.length() == 0) return "not running";
+        return sb.toString();
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * Enable Viacam for Android, a camera based mouse emulator
+ *
+ * Copyright (C) 2015-17 Cesar Mauri Loba (CREA Software Systems)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.crea_si.eviacam.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of latencies with logarithmic buckets.
+ *
+ * Each power of two of microseconds is split in SUB_BUCKETS buckets, so that
+ * values are stored with a relative error below 25%. Recording a value is lock
+ * free and does not allocate memory, therefore it can be called concurrently from
+ * any thread. Queries can run while values are being recorded and return a
+ * consistent enough picture for monitoring purposes.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BUCKETS_BITS= 2;
+    private static final int SUB_BUCKETS= 1 << SUB_BUCKETS_BITS;
+
+    // 128 buckets covering up to 2^33 us, larger values go to the last bucket
+    private static final int OCTAVES= 32;
+    private static final int NUM_BUCKETS= OCTAVES * SUB_BUCKETS;
+
+    private final AtomicLongArray mBuckets= new AtomicLongArray(NUM_BUCKETS);
+    private final AtomicLong mCount= new AtomicLong();
+    private final AtomicLong mSum= new AtomicLong();
+    private final AtomicLong mMax= new AtomicLong();
+
+    /**
+     * Record a value
+     * @param nanos latency in nanoseconds
+     */
+    public void record(long nanos) {
+        if (nanos < 0) nanos= 0;
+        mBuckets.incrementAndGet(bucketIndex(nanos / 1000));
+        mCount.incrementAndGet();
+        mSum.addAndGet(nanos);
+
+        long max;
+        do {
+            max= mMax.get();
+        } while (nanos > max && !mMax.compareAndSet(max, nanos));
+    }
+
+    /**
+     * Discard all recorded values
+     */
+    public void reset() {
+        for (int i= 0; i < NUM_BUCKETS; i++) mBuckets.set(i, 0);
+        mCount.set(0);
+        mSum.set(0);
+        mMax.set(0);
+    }
+
+    public long getCount() {
+        return mCount.get();
+    }
+
+    /**
+     * @return mean of recorded values in microseconds, 0 when empty
+     */
+    public double getMean() {
+        long count= mCount.get();
+        if (count == 0) return 0;
+        return mSum.get() / 1000.0 / count;
+    }
+
+    /**
+     * @return maximum recorded value in microseconds
+     */
+    public double getMax() {
+        return mMax.get() / 1000.0;
+    }
+
+    /**
+     * Get a percentile of the recorded values
+     * @param percentile value between 0 and 100
+     * @return upper bound, in microseconds, of the bucket where the percentile falls,
+     *         0 when empty
+     */
+    public long getPercentile(double percentile) {
+        long total= 0;
+        for (int i= 0; i < NUM_BUCKETS; i++) total+= mBuckets.get(i);
+        if (total == 0) return 0;
+
+        long rank= (long) Math.ceil(total * Math.min(Math.max(percentile, 0.0), 100.0) / 100.0);
+        if (rank < 1) rank= 1;
+
+        long accum= 0;
+        for (int i= 0; i < NUM_BUCKETS; i++) {
+            accum+= mBuckets.get(i);
+            if (accum >= rank) return bucketUpperBound(i);
+        }
+        return bucketUpperBound(NUM_BUCKETS - 1);
+    }
+
+    /**
+     * Index of the bucket for a value in microseconds
+     */
+    static int bucketIndex(long micros) {
+        if (micros < SUB_BUCKETS) return (int) micros;
+
+        int octave= 63 - Long.numberOfLeadingZeros(micros);
+        int sub= (int) (micros >>> (octave - SUB_BUCKETS_BITS)) & (SUB_BUCKETS - 1);
+        int index= (octave - SUB_BUCKETS_BITS + 1) * SUB_BUCKETS + sub;
+        return index < NUM_BUCKETS ? index : NUM_BUCKETS - 1;
+    }
+
+    /**
+     * Largest value, in microseconds, stored in a given bucket
+     */
+    static long bucketUpperBound(int index) {
+        if (index < SUB_BUCKETS) return index;
+
+        int octave= index / SUB_BUCKETS + SUB_BUCKETS_BITS - 1;
+        int sub= index % SUB_BUCKETS;
+        long lower= (long) (SUB_BUCKETS + sub) << (octave - SUB_BUCKETS_BITS);
+        return lower + (1L << (octave - SUB_BUCKETS_BITS)) - 1;
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ * Enable Viacam for Android, a camera based mouse emulator
+ *
+ * Copyright (C) 2015-17 Cesar Mauri Loba (CREA Software Systems)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.crea_si.eviacam.util;
+
+import java.util.Arrays;
+
+/**
+ * Uniform grid index of axis aligned rectangles for point queries.
+ *
+ * Rectangles are added in order and, once all of them are added, the index is
+ * sealed by the first query. A point query returns the most recently added
+ * rectangle which contains the point, so that callers adding items in
+ * traversal order (e.g. parents before children) obtain the innermost one.
+ *
+ * Rectangles follow the android.graphics.Rect convention: left and top are
+ * inclusive, right and bottom exclusive and empty rectangles contain nothing.
+ * It is pure Java (no Android dependencies) and is not thread safe.
+ */
+public class RectGridIndex<T> {
+    // default size of each grid cell in pixels
+    private static final int DEFAULT_CELL_SIZE= 96;
+
+    private static final int INITIAL_CAPACITY= 64;
+
+    private final int mCellSize;
+
+    // coordinates of the rectangles, four ints per rectangle
+    private int[] mCoords= new int[INITIAL_CAPACITY * 4];
+    private Object[] mItems= new Object[INITIAL_CAPACITY];
+    private int mSize= 0;
+
+    // grid, built when sealed
+    private boolean mSealed= false;
+    private int mOriginX, mOriginY, mCols, mRows;
+    // mCellStart[c]..mCellStart[c+1] delimit the rectangles of cell c in mCellItems
+    private int[] mCellStart;
+    private int[] mCellItems;
+
+    public RectGridIndex() {
+        this(DEFAULT_CELL_SIZE);
+    }
+
+    public RectGridIndex(int cellSize) {
+        if (cellSize <= 0) throw new IllegalArgumentException("Invalid cell size: " + cellSize);
+        mCellSize= cellSize;
+    }
+
+    /**
+     * Add a rectangle
+     *
+     * @return false if the rectangle is empty and thus has not been added
+     * @throws IllegalStateException if the index has already been queried
+     */
+    public boolean add(int left, int top, int right, int bottom, T item) {
+        if (mSealed) throw new IllegalStateException("Index already sealed");
+        if (left >= right || top >= bottom) return false;
+
+        if (mSize == mItems.length) {
+            mItems= Arrays.copyOf(mItems, mSize * 2);
+            mCoords= Arrays.copyOf(mCoords, mSize * 2 * 4);
+        }
+        final int base= mSize * 4;
+        mCoords[base]= left;
+        mCoords[base + 1]= top;
+        mCoords[base + 2]= right;
+        mCoords[base + 3]= bottom;
+        mItems[mSize++]= item;
+
+        return true;
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * Find the last added rectangle which contains the point
+     *
+     * @return the item of such a rectangle or null if none
+     */
+    @SuppressWarnings("unchecked")
+    public T query(int x, int y) {
+        if (!mSealed) seal();
+        if (mSize == 0) return null;
+
+        final int col= cellCoord(x - mOriginX, mCols);
+        final int row= cellCoord(y - mOriginY, mRows);
+        if (col < 0 || row < 0) return null;
+
+        final int cell= row * mCols + col;
+        // items are stored in insertion order, scan backwards
+        for (int i= mCellStart[cell + 1] - 1; i >= mCellStart[cell]; i--) {
+            final int idx= mCellItems[i];
+            final int base= idx * 4;
+            if (x >= mCoords[base] && x < mCoords[base + 2] &&
+                    y >= mCoords[base + 1] && y < mCoords[base + 3]) {
+                return (T) mItems[idx];
+            }
+        }
+
+        return null;
+    }
+
+    private int cellCoord(int offset, int limit) {
+        if (offset < 0) return -1;
+        final int c= offset / mCellSize;
+        return c < limit? c : -1;
+    }
+
+    /**
+     * Build the grid. Two passes over the rectangles: the first one counts
+     * how many rectangles overlap each cell and the second one fills them.
+     */
+    private void seal() {
+        mSealed= true;
+        if (mSize == 0) return;
+
+        int minX= Integer.MAX_VALUE, minY= Integer.MAX_VALUE;
+        int maxX= Integer.MIN_VALUE, maxY= Integer.MIN_VALUE;
+        for (int i= 0; i < mSize; i++) {
+            final int base= i * 4;
+            minX= Math.min(minX, mCoords[base]);
+            minY= Math.min(minY, mCoords[base + 1]);
+            maxX= Math.max(maxX, mCoords[base + 2]);
+            maxY= Math.max(maxY, mCoords[base + 3]);
+        }
+        mOriginX= minX;
+        mOriginY= minY;
+        mCols= (int) ((((long) maxX - minX) + mCellSize - 1) / mCellSize);
+        mRows= (int) ((((long) maxY - minY) + mCellSize - 1) / mCellSize);
+
+        mCellStart= new int[mCols * mRows + 1];
+        for (int i= 0; i < mSize; i++) {
+            final int base= i * 4;
+            final int c0= (mCoords[base] - mOriginX) / mCellSize;
+            final int r0= (mCoords[base + 1] - mOriginY) / mCellSize;
+            final int c1= (mCoords[base + 2] - 1 - mOriginX) / mCellSize;
+            final int r1= (mCoords[base + 3] - 1 - mOriginY) / mCellSize;
+            for (int r= r0; r <= r1; r++) {
+                for (int c= c0; c <= c1; c++) mCellStart[r * mCols + c + 1]++;
+            }
+        }
+        for (int c= 0; c < mCols * mRows; c++) mCellStart[c + 1]+= mCellStart[c];
+
+        mCellItems= new int[mCellStart[mCols * mRows]];
+        final int[] fill= Arrays.copyOf(mCellStart, mCols * mRows);
+        for (int i= 0; i < mSize; i++) {
+            final int base= i * 4;
+            final int c0= (mCoords[base] - mOriginX) / mCellSize;
+            final int r0= (mCoords[base + 1] - mOriginY) / mCellSize;
+            final int c1= (mCoords[base + 2] - 1 - mOriginX) / mCellSize;
+            final int r1= (mCoords[base + 3] - 1 - mOriginY) / mCellSize;
+            for (int r= r0; r <= r1; r++) {
+                for (int c= c0; c <= c1; c++) mCellItems[fill[r * mCols + c]++]= i;
+            }
+        }
+    }
+}
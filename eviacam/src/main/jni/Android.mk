@@ -11,8 +11,11 @@ LOCAL_MODULE    := visionpipeline
 LOCAL_SRC_FILES := crvimage.cpp \
 	timeutil.cpp \
 	normroi2.cpp \
+	facedetector.cpp \
+	detectiongovernor.cpp \
 	facedetection.cpp \
 	visionpipeline.cpp \
+	yuvpack.cpp \
 	visionpipeline_jni.cpp  
 LOCAL_LDLIBS    += -lm -llog -landroid
 #LOCAL_STATIC_LIBRARIES += android_native_app_glue
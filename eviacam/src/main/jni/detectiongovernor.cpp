@@ -0,0 +1,114 @@
+/*
+ * Enable Viacam for Android, a camera based mouse emulator
+ *
+ * Copyright (C) 2015 Cesar Mauri Loba (CREA Software Systems)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+#include "detectiongovernor.h"
+
+#include <assert.h>
+
+namespace eviacam {
+
+// Base period (in ms) between detections for each CPU usage level
+static const unsigned long BASE_PERIODS[DetectionGovernor::NUM_LEVELS]= { 1500, 800, 400, 100, 0 };
+
+// Maximum fraction of time spent detecting for each CPU usage level
+static const float CPU_BUDGETS[DetectionGovernor::NUM_LEVELS]= { 0.05f, 0.1f, 0.2f, 0.4f, 1.0f };
+
+// Weight of the last sample for the running averages
+#define AVG_WEIGHT 0.2f
+
+DetectionGovernor::DetectionGovernor ()
+: m_level(2)
+, m_faceLost(true)
+, m_successes(0)
+, m_detectionStarted(false)
+, m_lastDetection(0)
+, m_lastFrame(0)
+, m_avgCost(0)
+, m_avgFrameTime(0)
+{
+}
+
+void DetectionGovernor::setLevel (int level)
+{
+	assert (level>= 0 && level< NUM_LEVELS);
+	m_level= level;
+}
+
+unsigned long DetectionGovernor::getPeriod () const
+{
+	// minimum period which keeps the detection under the CPU budget
+	unsigned long budgetPeriod= (unsigned long) (m_avgCost / CPU_BUDGETS[m_level]);
+
+	if (m_faceLost) return budgetPeriod;
+
+	int shift= m_successes / SUCCESSES_PER_STEP;
+	if (shift> MAX_BACKOFF_SHIFT) shift= MAX_BACKOFF_SHIFT;
+	unsigned long period= BASE_PERIODS[m_level] << shift;
+
+	return (period> budgetPeriod ? period : budgetPeriod);
+}
+
+float DetectionGovernor::getDetectionLoad () const
+{
+	unsigned long period= getPeriod();
+	if (period== 0 || m_avgCost> period) return 1.0f;
+	return m_avgCost / (float) period;
+}
+
+bool DetectionGovernor::frame (unsigned long now)
+{
+	if (m_lastFrame) {
+		float elapsed= (float) (now - m_lastFrame);
+		m_avgFrameTime= m_avgFrameTime * (1.0f - AVG_WEIGHT) + elapsed * AVG_WEIGHT;
+	}
+	m_lastFrame= now;
+
+	if (!m_detectionStarted) return true;
+
+	return (now - m_lastDetection>= getPeriod());
+}
+
+void DetectionGovernor::detectionStarted (unsigned long now)
+{
+	m_detectionStarted= true;
+	m_lastDetection= now;
+}
+
+void DetectionGovernor::detectionFinished (unsigned long cost, bool faceFound)
+{
+	if (m_avgCost== 0) m_avgCost= (float) cost;
+	else m_avgCost= m_avgCost * (1.0f - AVG_WEIGHT) + (float) cost * AVG_WEIGHT;
+
+	if (faceFound) {
+		m_faceLost= false;
+		m_successes++;
+	}
+	else {
+		m_faceLost= true;
+		m_successes= 0;
+	}
+}
+
+void DetectionGovernor::trackingLost ()
+{
+	m_faceLost= true;
+	m_successes= 0;
+}
+
+}
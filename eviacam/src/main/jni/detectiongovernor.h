@@ -0,0 +1,86 @@
+/*
+ * Enable Viacam for Android, a camera based mouse emulator
+ *
+ * Copyright (C) 2015 Cesar Mauri Loba (CREA Software Systems)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+#ifndef DETECTIONGOVERNOR_H
+#define DETECTIONGOVERNOR_H
+
+namespace eviacam {
+
+/**
+ * Decides when the face detector needs to run.
+ *
+ * The detection rate adapts to how well the face is being tracked and to the
+ * measured cost of each detection so that the share of time spent detecting stays
+ * under the budget of the selected CPU usage level:
+ *
+ * - while the face is being found on consecutive detections the period is
+ *   progressively lengthened (up to MAX_BACKOFF_SHIFT doublings of the base period)
+ * - after a miss or a tracking loss the base period is ignored and detection runs
+ *   as often as the CPU budget allows until the face is found again
+ *
+ * The class does not read the clock, time stamps (in ms) are provided by the
+ * caller. Not thread safe.
+ */
+class DetectionGovernor
+{
+public:
+	enum { NUM_LEVELS = 5 };
+
+	DetectionGovernor ();
+
+	// CPU usage level from 0 (lowest) to NUM_LEVELS - 1 (highest)
+	void setLevel (int level);
+	int getLevel () const { return m_level; }
+
+	// Called for each processed frame. Returns true when a detection is due.
+	bool frame (unsigned long now);
+
+	// Notify that a detection has been started
+	void detectionStarted (unsigned long now);
+
+	// Notify the cost (in ms) and outcome of the last detection
+	void detectionFinished (unsigned long cost, bool faceFound);
+
+	// Notify that the motion tracker lost the face
+	void trackingLost ();
+
+	// Current period between detections (in ms)
+	unsigned long getPeriod () const;
+
+	// Statistics
+	float getAvgDetectionCost () const { return m_avgCost; }
+	float getAvgFrameTime () const { return m_avgFrameTime; }
+	float getDetectionLoad () const;
+
+private:
+	enum { MAX_BACKOFF_SHIFT = 2, SUCCESSES_PER_STEP = 3 };
+
+	int m_level;
+	bool m_faceLost;
+	int m_successes;
+	bool m_detectionStarted;
+	unsigned long m_lastDetection;
+	unsigned long m_lastFrame;
+	float m_avgCost;
+	float m_avgFrameTime;
+};
+
+}
+
+#endif
@@ -20,6 +20,8 @@
 #ifndef EVIACAM_H
 #define EVIACAM_H
 
+#ifdef __ANDROID__
+
 #include <android/log.h>
 
 #define LOG_TAG "EVIACAM-native"
@@ -29,4 +31,17 @@
 #define LOGW(...) __android_log_print(ANDROID_LOG_WARN, LOG_TAG, __VA_ARGS__)
 #define LOGE(...) __android_log_print(ANDROID_LOG_ERROR, LOG_TAG, __VA_ARGS__)
 
+#else
+
+// host builds (e.g. tools) log to stderr
+#include <stdio.h>
+
+#define LOGV(...)
+#define LOGD(...)
+#define LOGI(...) (fprintf(stderr, __VA_ARGS__), fputc('\n', stderr))
+#define LOGW(...) (fprintf(stderr, __VA_ARGS__), fputc('\n', stderr))
+#define LOGE(...) (fprintf(stderr, __VA_ARGS__), fputc('\n', stderr))
+
+#endif
+
 #endif
@@ -71,78 +71,128 @@ void* thread_entry (void* t)
 	return NULL;	// make the compiler happy
 }
 
-FaceDetection::FaceDetection (const char* cascadePath)
+// Minimum size of the faces to detect
+#define MIN_FACE_SIZE 65
+
+FaceDetection::FaceDetection (FaceDetector::EType type, const char* cascadePath)
 : m_finishThread(false)
 , m_processingFrame(true) // true to avoid race conditions during initialization
-, m_lastSubmit_tstamp(0)
-, m_cpuUsage(CPU_NORMAL)
-, m_faceCascade(NULL)
-, m_storage(NULL)
+, m_lastDetectionCost(0)
+, m_hasExpectedFace(false)
+, m_detectionsSinceFullScan(0)
+, m_detector(NULL)
+, m_requestedType(type)
+, m_detectorRequested(false)
+, m_hasDetector(false)
+, m_detectorStatus(DETECTOR_NONE)
 , m_faceDetected(true)
 , m_detectorInfoRetrieved(true)
 {
-	//
-	// open face haar-cascade
-	// 
-	try {
-		m_faceCascade = (CvHaarClassifierCascade*) cvLoad(cascadePath, 0, 0, 0);
-	}
-	catch (cv::Exception& e) {
-		LOGW("%s:%d %s\n", __FILE__, __LINE__, e.what());
-		LOGW("continuing without face detection");
-	}
+	// full frame scans until a policy is set (the defaults live in the Java side)
+	m_searchPolicy.enabled= false;
+	m_searchPolicy.expansion= 1.0f;
+	m_searchPolicy.minScale= 1.0f;
+	m_searchPolicy.maxScale= 1.0f;
+	m_searchPolicy.fullScanInterval= 1;
+	m_activeSearchPolicy= m_searchPolicy;
 
 	//
-	// create and start thread
+	// TODO: check return values
 	//
-	if (m_faceCascade) {	
-		m_storage = cvCreateMemStorage(0);
-		
-		//
-		// TODO: check return values
-		//		
-		
-		// initialize mutex and condition objects
-		pthread_mutex_init (&m_condition_mutex, NULL);
-		pthread_cond_init (&m_condition, NULL);
-		
-		// spawn thread		
-		pthread_attr_init(&m_attr);
-		pthread_attr_setdetachstate(&m_attr, PTHREAD_CREATE_JOINABLE);
-		pthread_create(&m_thread, &m_attr, thread_entry, this);
-	}
+
+	// initialize mutex and condition objects
+	pthread_mutex_init (&m_condition_mutex, NULL);
+	pthread_cond_init (&m_condition, NULL);
+
+	// the detector is created by the worker thread
+	if (!setDetector(type, cascadePath))
+		LOGW("continuing without face detection");
+
+	// spawn thread (even if no detector is available, so that it
+	// can be provided later using setDetector)
+	pthread_attr_init(&m_attr);
+	pthread_attr_setdetachstate(&m_attr, PTHREAD_CREATE_JOINABLE);
+	pthread_create(&m_thread, &m_attr, thread_entry, this);
 }
 
 FaceDetection::~FaceDetection ()
 {
-	if (m_faceCascade) {
-		// this means that thread has been started and needs to be stopped
-		
-		// lock
-		pthread_mutex_lock(&m_condition_mutex);
-		m_finishThread= true;
-		if (!m_processingFrame)
-			// thread sleeping, needs signal
-			pthread_cond_signal(&m_condition);			
-		// unlock
+	// lock
+	pthread_mutex_lock(&m_condition_mutex);
+	m_finishThread= true;
+	if (!m_processingFrame)
+		// thread sleeping, needs signal
+		pthread_cond_signal(&m_condition);
+	// unlock
+	pthread_mutex_unlock(&m_condition_mutex);
+
+	// join thread
+	pthread_join(m_thread, NULL);
+
+	// clean-up
+	pthread_attr_destroy(&m_attr);
+	pthread_mutex_destroy(&m_condition_mutex);
+	pthread_cond_destroy(&m_condition);
+
+	delete m_detector;
+	m_detector= NULL;
+
+	LOGD("FaceDetection: cleanup completed");
+}
+
+bool FaceDetection::setDetector (FaceDetector::EType type, const char* cascadePath)
+{
+	if (cascadePath== NULL || cascadePath[0]== 0) return false;
+
+	// the worker thread loads the detector before processing the next frame
+	pthread_mutex_lock(&m_condition_mutex);
+	m_requestedType= type;
+	m_requestedPath= cascadePath;
+	m_detectorRequested= true;
+	m_hasDetector= true;
+	m_detectorStatus= DETECTOR_LOADING;
+	pthread_mutex_unlock(&m_condition_mutex);
+
+	return true;
+}
+
+/*
+ * Load the detector requested with setDetector, if any. Called from the
+ * worker thread.
+ */
+void FaceDetection::loadRequestedDetector ()
+{
+	pthread_mutex_lock(&m_condition_mutex);
+	if (!m_detectorRequested) {
 		pthread_mutex_unlock(&m_condition_mutex);
-			
-		// join thread
-		pthread_join(m_thread, NULL);
-		
-		// clean-up
-		pthread_attr_destroy(&m_attr);
-		pthread_mutex_destroy(&m_condition_mutex);
-		pthread_cond_destroy(&m_condition);
-  
-		cvReleaseHaarClassifierCascade(&m_faceCascade);
-		
-		cvReleaseMemStorage(&m_storage);
-		m_storage = NULL;
-		m_faceCascade = NULL;
+		return;
 	}
+	FaceDetector::EType type= m_requestedType;
+	std::string path= m_requestedPath;
+	m_detectorRequested= false;
+	pthread_mutex_unlock(&m_condition_mutex);
 
-	LOGD("FaceDetection: cleanup completed");
+	// loading the cascade takes a while, done without holding the lock
+	FaceDetector* detector= FaceDetector::create(type, path.c_str());
+
+	pthread_mutex_lock(&m_condition_mutex);
+	if (detector) {
+		LOGD("FaceDetection: using %s detector", detector->getName());
+		delete m_detector;
+		m_detector= detector;
+
+		// previous results do not apply to the new detector
+		m_detectionsSinceFullScan= 0;
+	}
+	else
+		LOGW("FaceDetection: cannot create detector of type %d from %s", type, path.c_str());
+
+	// unless another detector has been requested meanwhile
+	if (!m_detectorRequested) {
+		m_detectorStatus= (detector ? DETECTOR_READY : DETECTOR_FAILED);
+		m_hasDetector= (m_detector!= NULL);
+	}
+	pthread_mutex_unlock(&m_condition_mutex);
 }
 
 void FaceDetection::threadEntry()
@@ -174,28 +224,88 @@ void FaceDetection::threadEntry()
 		
 		pthread_mutex_unlock(&m_condition_mutex);
 		
-		// process frame
-		computeFaceTrackArea();
+		// process frame, unless there is no detector (failed to load)
+		loadRequestedDetector();
+		if (m_detector) computeFaceTrackArea();
 	}
 	
 	LOGD("FaceDetection: threadEntry(): finish");
 }
 
+/*
+ * Run the detector over the search area of m_frame
+ *
+ * Return true when a face has been found. In this case, face is updated
+ * with its location in full frame coordinates.
+ */
+bool FaceDetection::detect (const CvRect& searchArea, CvSize minSize, CvSize maxSize,
+							CvRect& face)
+{
+	CvRect area= searchArea;
+	m_frame.SetROI(area);
+
+	bool found= m_detector->detect(m_frame.ptr(), minSize, maxSize, face);
+
+	m_frame.ResetROI();
+
+	return found;
+}
+
 void FaceDetection::computeFaceTrackArea ()
 {
-	CvSeq *face = cvHaarDetectObjects(
-		m_frame.ptr(),
-		m_faceCascade,
-		m_storage,
-		1.5, 2, CV_HAAR_DO_CANNY_PRUNING,
-		cvSize(65, 65)
-	);
-	
-	if (face->total> 0) {
+	unsigned long start= CTimeUtil::GetMiliCount();
+
+	const CvSize frameSize= m_frame.GetSize();
+	const CvRect fullFrame= cvRect(0, 0, frameSize.width, frameSize.height);
+	CvRect face;
+	bool found= false;
+	bool fullScanDone= false;
+
+	/*
+	 * Search around the expected location of the face first
+	 */
+	if (m_activeSearchPolicy.enabled && m_hasExpectedFace && m_faceDetected &&
+		m_detectionsSinceFullScan< m_activeSearchPolicy.fullScanInterval) {
+		const CvRect& expected= m_expectedFace;
+		int cx= expected.x + expected.width / 2;
+		int cy= expected.y + expected.height / 2;
+		int w= (int) (expected.width * m_activeSearchPolicy.expansion);
+		int h= (int) (expected.height * m_activeSearchPolicy.expansion);
+
+		// clip search area to the frame
+		int x1= cx - w / 2, y1= cy - h / 2;
+		int x2= x1 + w, y2= y1 + h;
+		if (x1< 0) x1= 0;
+		if (y1< 0) y1= 0;
+		if (x2> frameSize.width) x2= frameSize.width;
+		if (y2> frameSize.height) y2= frameSize.height;
+
+		int minSize= (int) (expected.width * m_activeSearchPolicy.minScale);
+		if (minSize< MIN_FACE_SIZE) minSize= MIN_FACE_SIZE;
+		int maxSize= (int) (expected.width * m_activeSearchPolicy.maxScale);
+
+		if (x2 - x1>= minSize && y2 - y1>= minSize && maxSize>= minSize) {
+			found= detect(cvRect(x1, y1, x2 - x1, y2 - y1),
+				cvSize(minSize, minSize), cvSize(maxSize, maxSize), face);
+			m_detectionsSinceFullScan++;
+		}
+	}
+
+	/*
+	 * Fall back to a full frame scan
+	 */
+	if (!found) {
+		found= detect(fullFrame, cvSize(MIN_FACE_SIZE, MIN_FACE_SIZE), cvSize(0, 0), face);
+		fullScanDone= true;
+	}
+	if (fullScanDone) m_detectionsSinceFullScan= 0;
+
+	m_lastDetectionCost= CTimeUtil::GetMiliCount() - start;
+
+	if (found) {
 		// face found, store results
-		m_frameSize= m_frame.GetSize();
-		CvRect* faceRect = (CvRect*) cvGetSeqElem(face, 0);		
-		m_faceRegion= *faceRect;
+		m_frameSize= frameSize;
+		m_faceRegion= face;
 		m_faceDetected= true;
 
 		//LOGV("face detected: location (%d, %d) size (%d, %d)",
@@ -203,19 +313,22 @@ void FaceDetection::computeFaceTrackArea ()
 	}
 	else
 		m_faceDetected= false;
-	
-	m_detectorInfoRetrieved= false;
 
-	cvClearMemStorage(m_storage);
+	m_detectorInfoRetrieved= false;
 }
 
 void FaceDetection::submitFrame (CIplImage& image)
 {
-	if (m_faceCascade== NULL) return;	// initialization failed, do nothing
+	submitFrame (image, cvRect(0, 0, 0, 0));
+}
+
+void FaceDetection::submitFrame (CIplImage& image, const CvRect& expectedFace)
+{
+	if (!m_hasDetector) return;	// no detector available, do nothing
 
 	// enough time elapsed since last submitted frame?
 	unsigned long now = CTimeUtil::GetMiliCount();
-	if (now - m_lastSubmit_tstamp< getThreadPeriod()) return;
+	if (!m_governor.frame(now)) return;
 	
 	// detector information retrieved?
 	if (!m_detectorInfoRetrieved) return;
@@ -235,9 +348,14 @@ void FaceDetection::submitFrame (CIplImage& image)
 	
 	// copy frame to internal buffer
 	cvCopy(image.ptr(), m_frame.ptr());
+
+	// store where the face is expected to be found
+	m_expectedFace= expectedFace;
+	m_hasExpectedFace= (expectedFace.width> 0 && expectedFace.height> 0);
+	m_activeSearchPolicy= m_searchPolicy;
 	
 	// update time stamp
-	m_lastSubmit_tstamp= now;
+	m_governor.detectionStarted(now);
 
 	// signal (awake worker thread)
 	pthread_cond_signal(&m_condition);
@@ -248,7 +366,7 @@ exit_submitFrame:
 
 bool FaceDetection::retrieveDetectionInfo (bool &faceDetected, CvSize& frameSize, CvRect& faceRegion)
 {
-	if (m_faceCascade== NULL) return false;	// initialization failed, do nothing
+	if (!m_hasDetector) return false;	// no detector available, do nothing
 
 	// face localization retrieved?
 	if (m_detectorInfoRetrieved) return false;	// no new information available
@@ -272,6 +390,8 @@ bool FaceDetection::retrieveDetectionInfo (bool &faceDetected, CvSize& frameSize
 	
 	m_detectorInfoRetrieved= true;
 
+	m_governor.detectionFinished(m_lastDetectionCost, m_faceDetected);
+
 exit_retrieveFaceLocation:
 	pthread_mutex_unlock(&m_condition_mutex);
 	
@@ -280,20 +400,35 @@ exit_retrieveFaceLocation:
 
 FaceDetection::ECpuUsage FaceDetection::getCpuUsage () const
 {
-	return m_cpuUsage;
+	return (ECpuUsage) m_governor.getLevel();
 }
 
 void FaceDetection::setCpuUsage (FaceDetection::ECpuUsage value)
 {
 	assert (value>= CPU_LOWEST && value<= CPU_HIGHEST);
-	m_cpuUsage= value;
+	m_governor.setLevel(value);
+}
+
+void FaceDetection::setSearchPolicy (const SearchPolicy& policy)
+{
+	// the policy is handed to the worker thread when the next frame is submitted
+	pthread_mutex_lock(&m_condition_mutex);
+	m_searchPolicy= policy;
+	pthread_mutex_unlock(&m_condition_mutex);
+}
+
+void FaceDetection::notifyTrackingLost ()
+{
+	m_governor.trackingLost();
 }
 
-// Period values (in s) for: CPU_LOWEST, CPU_LOW, CPU_NORMAL, CPU_HIGH, CPU_HIGHEST
-static unsigned long CPU_PERIODS[]= { 1500, 800, 400, 100, 0 };
-unsigned long FaceDetection::getThreadPeriod () const
+void FaceDetection::getStats (float& period, float& detectionCost, float& frameTime,
+							  float& load) const
 {
-	return CPU_PERIODS[m_cpuUsage];
+	period= (float) m_governor.getPeriod();
+	detectionCost= m_governor.getAvgDetectionCost();
+	frameTime= m_governor.getAvgFrameTime();
+	load= m_governor.getDetectionLoad();
 }
 
 }
@@ -21,21 +21,55 @@
 #define FACEDETECTION_H
 
 #include "crvimage.h"
+#include "detectiongovernor.h"
+#include "facedetector.h"
+
+#include <string>
 
 namespace eviacam {
 
 class FaceDetection
 {
 public:
-	FaceDetection (const char* cascadePath);
+	FaceDetection (FaceDetector::EType type, const char* cascadePath);
 	virtual ~FaceDetection ();
 
+	// Replace the detector backend. The cascade is loaded by the worker thread
+	// before processing the next submitted frame, so this call does not block.
+	// The cascade file needs to exist until then. When it cannot be loaded the
+	// current detector is kept (see getDetectorStatus). Return false when no
+	// cascade is given.
+	bool setDetector (FaceDetector::EType type, const char* cascadePath);
+
+	// Status of the last detector requested
+	enum EDetectorStatus {DETECTOR_NONE= 0, DETECTOR_LOADING, DETECTOR_READY, DETECTOR_FAILED};
+	EDetectorStatus getDetectorStatus () const { return (EDetectorStatus) m_detectorStatus; }
+
 	// Submit a new frame for processing. The frame might be ignored if the 
 	// detector is still processing another frame, not enough time has elapsed
 	// since last processed frame or last face location has not been retrieved.
 	// This call does not block the calling thread.
 	void submitFrame (CIplImage& image);
 
+	// Same as above but providing where the face is expected to be (e.g. the current
+	// tracking area) so that the search can be limited to the surroundings of this region
+	void submitFrame (CIplImage& image, const CvRect& expectedFace);
+
+	// Policy to limit the search window of the detector. When enabled and the face was
+	// found in the last detection, the detector first searches a region around the
+	// expected face location expanded by 'expansion' times its size, looking only
+	// for faces between 'minScale' and 'maxScale' times the expected size. A full frame
+	// scan is performed when the face is not found there and, periodically, every
+	// 'fullScanInterval' detections. Disabled until set.
+	struct SearchPolicy {
+		bool enabled;
+		float expansion;
+		float minScale;
+		float maxScale;
+		int fullScanInterval;
+	};
+	void setSearchPolicy (const SearchPolicy& policy);
+
 	// Retrieve information about the detection face performed
 	//
 	// Return true if new data is available (i.e. a frame has been processed 
@@ -50,6 +84,13 @@ public:
 	enum ECpuUsage {CPU_LOWEST= 0, CPU_LOW, CPU_NORMAL, CPU_HIGH, CPU_HIGHEST};
 	void setCpuUsage (ECpuUsage value);
 	ECpuUsage getCpuUsage () const;
+
+	// Notify that the motion tracker lost the face so that the detection rate is raised
+	void notifyTrackingLost ();
+
+	// Get detection statistics: current period and average detection cost (in ms),
+	// average frame time (in ms) and fraction of time spent detecting
+	void getStats (float& period, float& detectionCost, float& frameTime, float& load) const;
 	
 private:
 	// Threading and synchronization stuff
@@ -62,15 +103,30 @@ private:
 	volatile bool m_processingFrame; // true while thread is processing a frame
 
 	// Timing stuff
-	unsigned long m_lastSubmit_tstamp;
-	ECpuUsage m_cpuUsage;
+	DetectionGovernor m_governor;
+	unsigned long m_lastDetectionCost;
 	
 	// Image buffer
 	CIplImage m_frame;
+
+	// Search window stuff. m_searchPolicy is the requested policy whereas
+	// m_activeSearchPolicy is the copy used by the worker thread
+	SearchPolicy m_searchPolicy;
+	SearchPolicy m_activeSearchPolicy;
+	CvRect m_expectedFace;
+	bool m_hasExpectedFace;
+	int m_detectionsSinceFullScan;
 	
-	// Cascade classifier stuff
-	CvHaarClassifierCascade* m_faceCascade;
-	CvMemStorage* m_storage;
+	// Detector backend, only used by the worker thread. m_requestedType and
+	// m_requestedPath describe the detector to be loaded before the next frame
+	// (see setDetector). m_hasDetector is true when there is a detector or one
+	// has been requested
+	FaceDetector* m_detector;
+	FaceDetector::EType m_requestedType;
+	std::string m_requestedPath;
+	bool m_detectorRequested;
+	volatile bool m_hasDetector;
+	volatile int m_detectorStatus;
 
 	// Face location detection stuff
 	CvSize m_frameSize;
@@ -82,7 +138,8 @@ private:
 	// Private methods
 	//
 	void computeFaceTrackArea ();
-	unsigned long getThreadPeriod () const;
+	bool detect (const CvRect& searchArea, CvSize minSize, CvSize maxSize, CvRect& face);
+	void loadRequestedDetector ();
 	void threadEntry();
 	
 	friend void* thread_entry (void* t);
@@ -0,0 +1,142 @@
+/*
+ * Enable Viacam for Android, a camera based mouse emulator
+ *
+ * Copyright (C) 2015 Cesar Mauri Loba (CREA Software Systems)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+#include "facedetector.h"
+#include "eviacam.h"
+
+namespace eviacam {
+
+// Detector parameters
+#define SCALE_FACTOR 1.5
+#define MIN_NEIGHBORS 2
+
+FaceDetector* FaceDetector::create (EType type, const char* cascadePath)
+{
+	switch (type) {
+	case HAAR: {
+		HaarFaceDetector* d= new HaarFaceDetector();
+		if (d->load(cascadePath)) return d;
+		delete d;
+		break;
+	}
+	case CASCADE_CLASSIFIER: {
+		CascadeClassifierFaceDetector* d= new CascadeClassifierFaceDetector();
+		if (d->load(cascadePath)) return d;
+		delete d;
+		break;
+	}
+	default:
+		LOGW("unknown face detector type: %d", type);
+	}
+
+	return NULL;
+}
+
+/*
+ * Haar cascade through the OpenCV C API
+ */
+HaarFaceDetector::HaarFaceDetector ()
+: m_faceCascade(NULL)
+, m_storage(NULL)
+{
+}
+
+HaarFaceDetector::~HaarFaceDetector ()
+{
+	if (m_faceCascade) cvReleaseHaarClassifierCascade(&m_faceCascade);
+	if (m_storage) cvReleaseMemStorage(&m_storage);
+}
+
+bool HaarFaceDetector::load (const char* cascadePath)
+{
+	try {
+		m_faceCascade = (CvHaarClassifierCascade*) cvLoad(cascadePath, 0, 0, 0);
+	}
+	catch (cv::Exception& e) {
+		LOGW("%s:%d %s\n", __FILE__, __LINE__, e.what());
+	}
+
+	if (m_faceCascade== NULL) return false;
+
+	m_storage = cvCreateMemStorage(0);
+
+	return true;
+}
+
+bool HaarFaceDetector::detect (IplImage* image, CvSize minSize, CvSize maxSize, CvRect& face)
+{
+	CvSeq *faces = cvHaarDetectObjects(
+		image,
+		m_faceCascade,
+		m_storage,
+		SCALE_FACTOR, MIN_NEIGHBORS, CV_HAAR_DO_CANNY_PRUNING,
+		minSize, maxSize
+	);
+
+	bool found= (faces->total> 0);
+	if (found) {
+		face= *(CvRect*) cvGetSeqElem(faces, 0);
+		if (image->roi) {
+			face.x+= image->roi->xOffset;
+			face.y+= image->roi->yOffset;
+		}
+	}
+
+	cvClearMemStorage(m_storage);
+
+	return found;
+}
+
+/*
+ * OpenCV objdetect CascadeClassifier
+ */
+bool CascadeClassifierFaceDetector::load (const char* cascadePath)
+{
+	try {
+		return m_classifier.load(cascadePath);
+	}
+	catch (cv::Exception& e) {
+		LOGW("%s:%d %s\n", __FILE__, __LINE__, e.what());
+	}
+
+	return false;
+}
+
+bool CascadeClassifierFaceDetector::detect (IplImage* image, CvSize minSize, CvSize maxSize,
+											CvRect& face)
+{
+	// header only, honours the ROI of the image
+	cv::Mat m(image, false);
+
+	m_faces.clear();
+	m_classifier.detectMultiScale(m, m_faces, SCALE_FACTOR, MIN_NEIGHBORS,
+		CV_HAAR_DO_CANNY_PRUNING, minSize, maxSize);
+
+	if (m_faces.empty()) return false;
+
+	face= m_faces[0];
+	if (image->roi) {
+		face.x+= image->roi->xOffset;
+		face.y+= image->roi->yOffset;
+	}
+
+	return true;
+}
+
+}
@@ -0,0 +1,93 @@
+/*
+ * Enable Viacam for Android, a camera based mouse emulator
+ *
+ * Copyright (C) 2015 Cesar Mauri Loba (CREA Software Systems)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+#ifndef FACEDETECTOR_H
+#define FACEDETECTOR_H
+
+#include <opencv/cv.h>
+#include <opencv2/objdetect/objdetect.hpp>
+
+namespace eviacam {
+
+/**
+ * Face detector backend
+ *
+ * Implementations are not thread safe, each instance must be used from
+ * a single thread at a time.
+ */
+class FaceDetector
+{
+public:
+	// Available backends
+	enum EType {
+		// Haar cascade through the OpenCV C API (cvHaarDetectObjects)
+		HAAR= 0,
+		// OpenCV objdetect CascadeClassifier. Accepts both Haar and LBP cascades.
+		CASCADE_CLASSIFIER
+	};
+
+	virtual ~FaceDetector () {}
+
+	// Look for a face inside the ROI of image (or the whole image when no
+	// ROI is set) whose size is between minSize and maxSize. A maxSize of
+	// 0x0 means no upper limit.
+	//
+	// Return true when a face has been found. In this case, face is updated
+	// with its location in full image coordinates.
+	virtual bool detect (IplImage* image, CvSize minSize, CvSize maxSize, CvRect& face)= 0;
+
+	// Short name of the backend
+	virtual const char* getName () const= 0;
+
+	// Create a detector of a given type loading the cascade from cascadePath.
+	// Return NULL on failure.
+	static FaceDetector* create (EType type, const char* cascadePath);
+};
+
+class HaarFaceDetector : public FaceDetector
+{
+public:
+	HaarFaceDetector ();
+	virtual ~HaarFaceDetector ();
+
+	bool load (const char* cascadePath);
+
+	virtual bool detect (IplImage* image, CvSize minSize, CvSize maxSize, CvRect& face);
+	virtual const char* getName () const { return "haar"; }
+
+private:
+	CvHaarClassifierCascade* m_faceCascade;
+	CvMemStorage* m_storage;
+};
+
+class CascadeClassifierFaceDetector : public FaceDetector
+{
+public:
+	bool load (const char* cascadePath);
+
+	virtual bool detect (IplImage* image, CvSize minSize, CvSize maxSize, CvRect& face);
+	virtual const char* getName () const { return "cascade_classifier"; }
+
+private:
+	cv::CascadeClassifier m_classifier;
+	std::vector<cv::Rect> m_faces;
+};
+
+}
+#endif
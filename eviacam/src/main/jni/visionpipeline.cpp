@@ -33,10 +33,27 @@ namespace eviacam {
 #define DEFAULT_TRACK_AREA_WIDTH 0.6f
 #define DEFAULT_TRACK_AREA_HEIGHT 0.6f
 
-VisionPipeline::VisionPipeline(const char* cascadePath)
-: m_faceDetection(cascadePath)
+// default Lucas-Kanade tracker parameters
+#define DEFAULT_LK_PYR_LEVELS 2
+#define DEFAULT_LK_WIN_SIZE 11
+#define DEFAULT_LK_MAX_ITER 14
+#define DEFAULT_LK_EPSILON 0.03f
+
+// corners whose mean per pixel patch difference is above this value are discarded
+#define MAX_TRACK_ERROR 30.0f
+
+// corners tracked forward and then backward ending farther than this
+// distance (in pixels) from its original location are discarded
+#define MAX_FORWARD_BACKWARD_DISTANCE 1.0f
+
+VisionPipeline::VisionPipeline(int detectorType, const char* cascadePath)
+: m_faceDetection((FaceDetector::EType) detectorType, cascadePath)
 , m_trackFace(true)
 , m_corner_count(0)
+, m_lkPyrLevels(DEFAULT_LK_PYR_LEVELS)
+, m_lkWinSize(DEFAULT_LK_WIN_SIZE)
+, m_lkMaxIter(DEFAULT_LK_MAX_ITER)
+, m_lkEpsilon(DEFAULT_LK_EPSILON)
 {
 	m_floatTrackArea.set(
 		cvPoint2D32f((1.0f - DEFAULT_TRACK_AREA_WIDTH) / 2.0f,
@@ -49,6 +66,51 @@ VisionPipeline::~VisionPipeline ()
 {
 }
 
+void VisionPipeline::setCPUUsage (int value)
+{
+	if (value< FaceDetection::CPU_LOWEST) value= FaceDetection::CPU_LOWEST;
+	else if (value> FaceDetection::CPU_HIGHEST) value= FaceDetection::CPU_HIGHEST;
+
+	m_faceDetection.setCpuUsage((FaceDetection::ECpuUsage) value);
+}
+
+void VisionPipeline::setTrackerParams (int pyrLevels, int winSize, int maxIter, float epsilon)
+{
+	if (pyrLevels< 0) pyrLevels= 0;
+	else if (pyrLevels> MAX_PYR_LEVELS) pyrLevels= MAX_PYR_LEVELS;
+
+	winSize|= 1;
+	if (winSize< MIN_WIN_SIZE) winSize= MIN_WIN_SIZE;
+	else if (winSize> MAX_WIN_SIZE) winSize= MAX_WIN_SIZE;
+
+	if (maxIter< 1) maxIter= 1;
+	if (epsilon<= 0) epsilon= DEFAULT_LK_EPSILON;
+
+	m_lkPyrLevels= pyrLevels;
+	m_lkWinSize= winSize;
+	m_lkMaxIter= maxIter;
+	m_lkEpsilon= epsilon;
+}
+
+void VisionPipeline::setDetectionSearchPolicy (bool enabled, float expansion, float minScale,
+											   float maxScale, int fullScanInterval)
+{
+	FaceDetection::SearchPolicy policy;
+
+	if (expansion< 1.0f) expansion= 1.0f;
+	if (minScale<= 0) minScale= 0;
+	if (maxScale< minScale) maxScale= minScale;
+	if (fullScanInterval< 1) fullScanInterval= 1;
+
+	policy.enabled= enabled;
+	policy.expansion= expansion;
+	policy.minScale= minScale;
+	policy.maxScale= maxScale;
+	policy.fullScanInterval= fullScanInterval;
+
+	m_faceDetection.setSearchPolicy(policy);
+}
+
 bool VisionPipeline::allocWorkingSpace (int width, int height)
 {
 	bool retval;
@@ -134,7 +196,7 @@ void drawCross(CIplImage &image, const cv::Point& p,
 	cvLine(image.ptr(), p1, p2, color, thickness);
 }
 
-bool VisionPipeline::motionTracker(CIplImage &image, int rotation, float &xVel, float &yVel)
+bool VisionPipeline::motionTracker(CIplImage* preview, int rotation, float &xVel, float &yVel)
 {
 	bool updateFeatures = false;
 	bool faceDetected= false;
@@ -155,9 +217,6 @@ bool VisionPipeline::motionTracker(CIplImage &image, int rotation, float &xVel,
 		if (m_corner_count< NUM_CORNERS) updateFeatures = true;
 	}
 
-	// Submit frame for face detection
-	m_faceDetection.submitFrame(m_imgCurr);
-
 	// set current image size
 	m_floatTrackArea.setReferenceSize(m_imgCurr.GetSize());
 
@@ -166,7 +225,9 @@ bool VisionPipeline::motionTracker(CIplImage &image, int rotation, float &xVel,
 	CvSize2D32f trackAreaSize;
 	m_floatTrackArea.get(trackAreaLocation, trackAreaSize);
 
-
+	// Send frame to face detection, hinting where the face is expected to be
+	m_faceDetection.submitFrame(m_imgCurr, cvRect(trackAreaLocation.x, trackAreaLocation.y,
+		trackAreaSize.width, trackAreaSize.height));
 
 	if (updateFeatures) {
 		// 
@@ -213,62 +274,81 @@ bool VisionPipeline::motionTracker(CIplImage &image, int rotation, float &xVel,
 	//
 	// Track corners
 	//
-	CvPoint2D32f new_corners[NUM_CORNERS];
-	char status[NUM_CORNERS];
-	
-	CvTermCriteria termcrit;
-	termcrit.type = CV_TERMCRIT_ITER | CV_TERMCRIT_EPS;
-	termcrit.max_iter = 14;
-	termcrit.epsilon = 0.03;
-	
 	CvRect ofTrackArea;
 	ofTrackArea.x = trackAreaLocation.x;
 	ofTrackArea.y = trackAreaLocation.y;
 	ofTrackArea.width = trackAreaSize.width;
 	ofTrackArea.height = trackAreaSize.height;
-	m_imgPrev.SetROI(ofTrackArea);
-	m_imgCurr.SetROI(ofTrackArea);
 
-	// Update corners location for the new ROI
+	// Corners location relative to the ROI
+	m_prevPoints.resize(m_corner_count);
 	for (int i = 0; i < m_corner_count; i++) {
-		m_corners[i].x -= ofTrackArea.x;
-		m_corners[i].y -= ofTrackArea.y;
+		m_prevPoints[i].x = m_corners[i].x - ofTrackArea.x;
+		m_prevPoints[i].y = m_corners[i].y - ofTrackArea.y;
 	}
-	
-	cvCalcOpticalFlowPyrLK(m_imgPrev.ptr(), m_imgCurr.ptr(), NULL,
-		NULL, m_corners, new_corners, m_corner_count, cvSize(11, 11), 0, status,
-		NULL, termcrit, 0);	
-	
-	m_imgPrev.ResetROI();
-	m_imgCurr.ResetROI();
 
-	// Update corners location
-	for (int i = 0; i < m_corner_count; i++) {
-		m_corners[i].x += ofTrackArea.x;
-		m_corners[i].y += ofTrackArea.y;
-		new_corners[i].x += ofTrackArea.x;
-		new_corners[i].y += ofTrackArea.y;
+	// Read parameters once as they might be changed from another thread
+	const int pyrLevels = m_lkPyrLevels;
+	const cv::Size winSize(m_lkWinSize, m_lkWinSize);
+	const cv::TermCriteria termcrit(cv::TermCriteria::COUNT | cv::TermCriteria::EPS,
+		m_lkMaxIter, m_lkEpsilon);
+
+	if (m_corner_count) {
+		m_imgPrev.SetROI(ofTrackArea);
+		m_imgCurr.SetROI(ofTrackArea);
+
+		// Build both pyramids (with derivatives) once so that they can be shared
+		// by the forward and the backward passes
+		cv::Mat prev(m_imgPrev.ptr()), curr(m_imgCurr.ptr());
+		int maxLevel = cv::buildOpticalFlowPyramid(prev, m_pyrPrev, winSize, pyrLevels);
+		maxLevel = cv::buildOpticalFlowPyramid(curr, m_pyrCurr, winSize, maxLevel);
+
+		m_imgPrev.ResetROI();
+		m_imgCurr.ResetROI();
+
+		// forward pass
+		cv::calcOpticalFlowPyrLK(m_pyrPrev, m_pyrCurr, m_prevPoints, m_currPoints,
+			m_status, m_error, winSize, maxLevel, termcrit);
+
+		// backward pass
+		cv::calcOpticalFlowPyrLK(m_pyrCurr, m_pyrPrev, m_currPoints, m_backPoints,
+			m_backStatus, m_backError, winSize, maxLevel, termcrit);
 	}
 
 	//
 	// accumulate motion
-	//	
+	//
 	int valid_corners = 0;
 	xVel= 0; yVel= 0;
 
 	for (int i = 0; i< m_corner_count; i++) {
-		if (status[i] &&
-			m_corners[i].x >= trackAreaLocation.x &&
+		// per-corner status and error filtering
+		if (!m_status[i] || m_error[i] > MAX_TRACK_ERROR) continue;
+
+		// forward-backward consistency check
+		if (!m_backStatus[i]) continue;
+		float dx = m_backPoints[i].x - m_prevPoints[i].x;
+		float dy = m_backPoints[i].y - m_prevPoints[i].y;
+		if (dx * dx + dy * dy > MAX_FORWARD_BACKWARD_DISTANCE * MAX_FORWARD_BACKWARD_DISTANCE)
+			continue;
+
+		if (m_corners[i].x >= trackAreaLocation.x &&
 			m_corners[i].x < trackAreaLocation.x + trackAreaSize.width &&
 			m_corners[i].y >= trackAreaLocation.y &&
 			m_corners[i].y < trackAreaLocation.y + trackAreaSize.height) {
-			xVel += new_corners[i].x - m_corners[i].x;
-			yVel += new_corners[i].y - m_corners[i].y;
+			CvPoint2D32f newCorner = cvPoint2D32f(
+				m_currPoints[i].x + ofTrackArea.x, m_currPoints[i].y + ofTrackArea.y);
+
+			xVel += newCorner.x - m_corners[i].x;
+			yVel += newCorner.y - m_corners[i].y;
 
 			// Save new corner location
-			m_corners[valid_corners++] = new_corners[i];
+			m_corners[valid_corners++] = newCorner;
 		}
 	}
+	// all corners lost, need to find the face again as soon as possible
+	if (m_corner_count && !valid_corners) m_faceDetection.notifyTrackingLost();
+
 	m_corner_count = valid_corners;
 
 	if (valid_corners) {
@@ -307,18 +387,30 @@ bool VisionPipeline::motionTracker(CIplImage &image, int rotation, float &xVel,
 	 */
 
 	// draw a cross in the center of the tracking area
-	drawCross(image,
+	if (preview) drawCross(*preview,
 			  rotatePoint(
 					  rotation,
 					  cvPoint(trackAreaLocation.x + trackAreaSize.width/2,
 							  trackAreaLocation.y + trackAreaSize.height/2),
-					  image.Width(), image.Height()),
+					  preview->Width(), preview->Height()),
 			  cvScalar(255, 255, 255), 10, 25);
 
 	return faceDetected;
 }
 
-bool VisionPipeline::processImage (CIplImage& image, int flip, int rotation, float& xVel, float& yVel)
+/*
+ * Convert to grayscale the input image. When the input image has only
+ * one channel it is assumed to be already grayscale and is just copied.
+ */
+static
+void toGray (CIplImage& src, CIplImage& dst)
+{
+	if (src.ptr()->nChannels== 1) cvCopy(src.ptr(), dst.ptr());
+	else cvCvtColor(src.ptr(), dst.ptr(), CV_BGR2GRAY);
+}
+
+bool VisionPipeline::processImage (CIplImage& image, CIplImage* preview, int flip, int rotation,
+								   float& xVel, float& yVel)
 {
 	bool faceDetected= false;
 
@@ -337,7 +429,7 @@ bool VisionPipeline::processImage (CIplImage& image, int flip, int rotation, flo
 		switch (rotation) {
 		case 0:
 			bufferReallocation|= allocWorkingSpace(image.Width(), image.Height());
-			cvCvtColor(image.ptr(), m_imgCurr.ptr(), CV_BGR2GRAY);
+			toGray(image, m_imgCurr);
 			/*
 			    This is the same as:
 			    if (flip== VERTICAL) cvFlip(m_imgCurr.ptr(), NULL, 0);
@@ -347,20 +439,20 @@ bool VisionPipeline::processImage (CIplImage& image, int flip, int rotation, flo
 			break;
 		case 90:
 			bufferReallocation|= allocWorkingSpace(image.Height(), image.Width());
-			cvCvtColor(image.ptr(), m_tmpImg.ptr(), CV_BGR2GRAY);
+			toGray(image, m_tmpImg);
 			if (flip) cvFlip(m_tmpImg.ptr(), NULL, flip - 1);
 			cvTranspose(m_tmpImg.ptr(), m_imgCurr.ptr());
 			cvFlip(m_imgCurr.ptr(), NULL, 1);
 			break;
 		case 180:
 			bufferReallocation|= allocWorkingSpace(image.Width(), image.Height());
-			cvCvtColor(image.ptr(), m_imgCurr.ptr(), CV_BGR2GRAY);
+			toGray(image, m_imgCurr);
 			if (flip) cvFlip(m_imgCurr.ptr(), NULL, flip - 1);
 			cvFlip(m_imgCurr.ptr(), NULL, -1);
 			break;
 		case 270:
 			bufferReallocation|= allocWorkingSpace(image.Height(), image.Width());
-			cvCvtColor(image.ptr(), m_tmpImg.ptr(), CV_BGR2GRAY);
+			toGray(image, m_tmpImg);
 			if (flip) cvFlip(m_tmpImg.ptr(), NULL, flip - 1);
 			cvTranspose(m_tmpImg.ptr(), m_imgCurr.ptr());
 			cvFlip(m_imgCurr.ptr(), NULL, 0);
@@ -369,7 +461,7 @@ bool VisionPipeline::processImage (CIplImage& image, int flip, int rotation, flo
 
 		// process frame. skip if buffer reallocated
 		if (!bufferReallocation) {
-			faceDetected= motionTracker(image, rotation, xVel, yVel);
+			faceDetected= motionTracker(preview, rotation, xVel, yVel);
 		}
 		else LOGV("Skip frame");
 
@@ -377,8 +469,11 @@ bool VisionPipeline::processImage (CIplImage& image, int flip, int rotation, flo
 		m_imgPrev.Swap(&m_imgCurr);
 	}
 	catch (const std::exception& e) {
+		// drop the frame and start tracking from scratch with the next one
 		LOGE("Exception: %s\n", e.what());
-		exit(1);
+		m_corner_count= 0;
+		faceDetected= false;
+		xVel= yVel= 0;
 	}
 
 	return faceDetected;
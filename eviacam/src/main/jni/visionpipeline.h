@@ -20,6 +20,8 @@
 #ifndef VISIONPIPELINE_H
 #define VISIONPIPELINE_H
 
+#include <vector>
+
 #include "crvimage.h"
 #include "normroi2.h"
 #include "facedetection.h"
@@ -29,7 +31,11 @@ namespace  eviacam {
 class VisionPipeline
 {
 public:
-	VisionPipeline (const char* cascadePath);
+	/**
+	* @param detectorType face detector backend (see FaceDetector::EType)
+	* @param cascadePath path of the cascade file for the face detector
+	*/
+	VisionPipeline (int detectorType, const char* cascadePath);
 	virtual ~VisionPipeline();
 
 	/**
@@ -47,14 +53,87 @@ public:
 	* @param yVel updated with motion extracted in the X axis
 	* @return true if face detected in the last frame (or few frames ago)
 	*/
-	bool processImage (CIplImage& image, int flip, int rotation, float& xVel, float& yVel);
+	bool processImage (CIplImage& image, int flip, int rotation, float& xVel, float& yVel) {
+		return processImage (image, &image, flip, rotation, xVel, yVel);
+	}
+
+	/**
+	* Entry point to process camera frames, grayscale capable version
+	*
+	* @param image reference to an OpenCV image. Either a BGR(A) image or a single
+	*   channel (e.g. the luma plane of a YUV frame) image. In the latter case no
+	*   color conversion is performed.
+	* @param preview image of the same size than image on which feedback is drawn.
+	*   Can be NULL when the preview is not being displayed.
+	* @param flip, rotation, xVel, yVel see above
+	* @return true if face detected in the last frame (or few frames ago)
+	*/
+	bool processImage (CIplImage& image, CIplImage* preview, int flip, int rotation,
+					   float& xVel, float& yVel);
 
 	bool getTrackFace () const { return m_trackFace; }
 	void setTrackFace (bool state) { m_trackFace= state; }
 
-	int getCPUUsage ();
+	/**
+	* Replace the face detector backend. Loaded in the background, does not block
+	* (see FaceDetection::setDetector)
+	*
+	* @param detectorType face detector backend (see FaceDetector::EType)
+	* @param cascadePath path of the cascade file for the face detector
+	* @return false if no cascade is given
+	*/
+	bool setFaceDetector (int detectorType, const char* cascadePath) {
+		return m_faceDetection.setDetector((FaceDetector::EType) detectorType, cascadePath);
+	}
+
+	// Get the status of the last face detector requested (see FaceDetection::EDetectorStatus)
+	int getDetectorStatus () const { return m_faceDetection.getDetectorStatus(); }
+
+	int getCPUUsage () const { return m_faceDetection.getCpuUsage(); }
 	void setCPUUsage (int value);
 
+	// Get face detection statistics (see FaceDetection::getStats)
+	void getDetectionStats (float& period, float& detectionCost, float& frameTime,
+							float& load) const {
+		m_faceDetection.getStats(period, detectionCost, frameTime, load);
+	}
+
+	/**
+	* Set the parameters of the pyramidal Lucas-Kanade tracker
+	*
+	* @param pyrLevels number of pyramid levels above the base image (0..MAX_PYR_LEVELS)
+	* @param winSize size of the search window at each pyramid level (forced to be odd)
+	* @param maxIter maximum number of iterations of the termination criteria
+	* @param epsilon minimum displacement of the termination criteria
+	*/
+	void setTrackerParams (int pyrLevels, int winSize, int maxIter, float epsilon);
+
+	/**
+	* Set how the face detector limits its search window (see FaceDetection::SearchPolicy)
+	*
+	* @param enabled whether to search around the tracking area before scanning the whole frame
+	* @param expansion size of the search window relative to the tracking area (>= 1)
+	* @param minScale, maxScale range of face sizes to look for relative to the tracking area
+	* @param fullScanInterval number of limited searches before forcing a full frame scan
+	*/
+	void setDetectionSearchPolicy (bool enabled, float expansion, float minScale,
+								   float maxScale, int fullScanInterval);
+
+	// Get the tracking area of the last processed frame, in pixels of the frame after
+	// being flipped and rotated
+	void getTrackArea (float& x, float& y, float& width, float& height) const {
+		CvPoint2D32f location;
+		CvSize2D32f size;
+		m_floatTrackArea.get(location, size);
+		x= location.x;
+		y= location.y;
+		width= size.width;
+		height= size.height;
+	}
+
+	// Get the number of corners being tracked
+	int getCornerCount () const { return m_corner_count; }
+
 private:
 	// Face detector
 	FaceDetection m_faceDetection;
@@ -69,6 +148,19 @@ private:
 	enum { NUM_CORNERS = 15 };
 	CvPoint2D32f m_corners[NUM_CORNERS];
 	int m_corner_count;
+
+	// Pyramidal Lucas-Kanade tracker parameters
+	enum { MAX_PYR_LEVELS = 5, MIN_WIN_SIZE = 5, MAX_WIN_SIZE = 31 };
+	int m_lkPyrLevels;
+	int m_lkWinSize;
+	int m_lkMaxIter;
+	float m_lkEpsilon;
+
+	// Pyramids and per-corner tracking results. Kept as members to reuse the buffers.
+	std::vector<cv::Mat> m_pyrPrev, m_pyrCurr;
+	std::vector<cv::Point2f> m_prevPoints, m_currPoints, m_backPoints;
+	std::vector<unsigned char> m_status, m_backStatus;
+	std::vector<float> m_error, m_backError;
 	
 	//
 	// Private methods
@@ -76,7 +168,7 @@ private:
 
 	// return true if buffers reallocated
 	bool allocWorkingSpace (int width, int height);
-	bool motionTracker(CIplImage &image, int rotation, float &xVel, float &yVel);
+	bool motionTracker(CIplImage* preview, int rotation, float &xVel, float &yVel);
 };
 
 }
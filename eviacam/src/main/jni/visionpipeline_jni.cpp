@@ -23,55 +23,319 @@
 #include "eviacam.h"
 #include "visionpipeline.h"
 #include "crvimage.h"
+#include "yuvpack.h"
 
-extern "C" {
+/*
+ * Layout of the result buffer (see setResultBuffer). Indexes must match
+ * the RESULT_* constants of VisionPipeline.java
+ */
+enum {
+	RESULT_X_VEL= 0,
+	RESULT_Y_VEL,
+	RESULT_FACE_DETECTED,
+	RESULT_TRACK_AREA_X,
+	RESULT_TRACK_AREA_Y,
+	RESULT_TRACK_AREA_WIDTH,
+	RESULT_TRACK_AREA_HEIGHT,
+	RESULT_CORNER_COUNT,
+	RESULT_SIZE
+};
 
-eviacam::VisionPipeline* g_visionPipeline= NULL;
+/*
+ * Native state behind each handle returned by init. Each instance is independent,
+ * but a given instance must not be used from several threads at the same time
+ * (the Java side serializes the calls).
+ */
+struct PipelineContext {
+	eviacam::VisionPipeline* pipeline;
+
+	// Direct buffer registered from Java on which the results of each frame are written
+	jobject resultBufferRef;
+	jfloat* resultBuffer;
+};
 
-JNIEXPORT void JNICALL Java_com_crea_1si_eviacam_common_VisionPipeline_init
-	(JNIEnv* env, jobject, jstring jCascadeName)
+/*
+ * Get the context of a handle. Throws IllegalStateException and returns
+ * NULL when the handle is not valid.
+ */
+static
+PipelineContext* getContext (JNIEnv* env, jlong handle)
 {
-	LOGD ("init called");
+	PipelineContext* ctx= reinterpret_cast<PipelineContext*>(handle);
+	if (ctx== NULL) {
+		jclass ex= env->FindClass("java/lang/IllegalStateException");
+		if (ex) env->ThrowNew(ex, "vision pipeline not initialized or already cleaned up");
+	}
+	return ctx;
+}
+
+static
+void releaseResultBuffer (JNIEnv* env, PipelineContext* ctx)
+{
+	if (ctx->resultBufferRef) {
+		env->DeleteGlobalRef(ctx->resultBufferRef);
+		ctx->resultBufferRef= NULL;
+		ctx->resultBuffer= NULL;
+	}
+}
 
-	assert (g_visionPipeline== NULL);
+/*
+ * Write the motion to a float[2]. Plain arrays instead of android.graphics.PointF
+ * so that the library does not depend on framework classes.
+ */
+static
+void setVelocity (JNIEnv* env, jfloatArray jVel, float x, float y)
+{
+	const jfloat vel[2]= { x, y };
+	env->SetFloatArrayRegion(jVel, 0, 2, vel);
+}
+
+static
+void writeResult (PipelineContext* ctx, bool faceDetected, float xVel, float yVel)
+{
+	jfloat* r= ctx->resultBuffer;
+	if (r== NULL) return;
+
+	r[RESULT_X_VEL]= xVel;
+	r[RESULT_Y_VEL]= yVel;
+	r[RESULT_FACE_DETECTED]= faceDetected? 1.0f : 0.0f;
+	ctx->pipeline->getTrackArea(r[RESULT_TRACK_AREA_X], r[RESULT_TRACK_AREA_Y],
+		r[RESULT_TRACK_AREA_WIDTH], r[RESULT_TRACK_AREA_HEIGHT]);
+	r[RESULT_CORNER_COUNT]= (jfloat) ctx->pipeline->getCornerCount();
+}
+
+static
+bool processGrayFrame (eviacam::VisionPipeline* pipeline, jlong addrGray, jlong addrPreview,
+					   jint flip, jint rotation, float& xVel, float& yVel)
+{
+	IplImage iplGray = *(cv::Mat*) addrGray;
+	CIplImage frame(&iplGray);
+	if (addrPreview) {
+		IplImage iplPreview = *(cv::Mat*) addrPreview;
+		CIplImage preview(&iplPreview);
+		return pipeline->processImage(frame, &preview, flip, rotation, xVel, yVel);
+	}
+
+	return pipeline->processImage(frame, NULL, flip, rotation, xVel, yVel);
+}
+
+static
+bool processFrame (eviacam::VisionPipeline* pipeline, jlong addrFrame, jint flip, jint rotation,
+				   float& xVel, float& yVel)
+{
+	IplImage iplimg = *(cv::Mat*) addrFrame;
+	CIplImage frame(&iplimg);
+	return pipeline->processImage(frame, flip, rotation, xVel, yVel);
+}
+
+extern "C" {
+
+JNIEXPORT jlong JNICALL Java_com_crea_1si_eviacam_common_VisionPipeline_nativeInit
+	(JNIEnv* env, jclass, jint detectorType, jstring jCascadeName)
+{
+	LOGD ("init called");
 
 	const char* cascadeName= env->GetStringUTFChars(jCascadeName, 0);
 
-	g_visionPipeline= new eviacam::VisionPipeline(cascadeName);
+	PipelineContext* ctx= NULL;
+	try {
+		ctx= new PipelineContext();
+		ctx->pipeline= new eviacam::VisionPipeline(detectorType, cascadeName);
+		ctx->resultBufferRef= NULL;
+		ctx->resultBuffer= NULL;
+	}
+	catch (const std::exception& e) {
+		LOGE("Cannot create vision pipeline: %s\n", e.what());
+		delete ctx;
+		ctx= NULL;
+	}
 
 	env->ReleaseStringUTFChars(jCascadeName, cascadeName);
+
+	return reinterpret_cast<jlong>(ctx);
 }
 
-JNIEXPORT void JNICALL Java_com_crea_1si_eviacam_common_VisionPipeline_cleanup
-	(JNIEnv*, jobject)
+JNIEXPORT void JNICALL Java_com_crea_1si_eviacam_common_VisionPipeline_nativeCleanup
+	(JNIEnv* env, jclass, jlong handle)
 {
 	LOGD ("cleanup called");
 
-	assert (g_visionPipeline);
+	PipelineContext* ctx= getContext(env, handle);
+	if (ctx== NULL) return;
+
+	releaseResultBuffer(env, ctx);
+	delete ctx->pipeline;
+	delete ctx;
+}
+
+JNIEXPORT jboolean JNICALL Java_com_crea_1si_eviacam_common_VisionPipeline_nativeSetFaceDetector
+	(JNIEnv* env, jclass, jlong handle, jint detectorType, jstring jCascadeName)
+{
+	PipelineContext* ctx= getContext(env, handle);
+	if (ctx== NULL) return false;
+
+	const char* cascadeName= env->GetStringUTFChars(jCascadeName, 0);
+
+	bool result= ctx->pipeline->setFaceDetector(detectorType, cascadeName);
+
+	env->ReleaseStringUTFChars(jCascadeName, cascadeName);
+
+	return result;
+}
+
+JNIEXPORT jboolean JNICALL Java_com_crea_1si_eviacam_common_VisionPipeline_nativeSetResultBuffer
+	(JNIEnv* env, jclass, jlong handle, jobject jBuffer)
+{
+	PipelineContext* ctx= getContext(env, handle);
+	if (ctx== NULL) return false;
+
+	releaseResultBuffer(env, ctx);
 
-	delete g_visionPipeline;
+	if (jBuffer== NULL) return true;
 
-	g_visionPipeline= NULL;
+	jfloat* buffer= (jfloat*) env->GetDirectBufferAddress(jBuffer);
+	if (buffer== NULL ||
+		env->GetDirectBufferCapacity(jBuffer)< (jlong) (RESULT_SIZE * sizeof(jfloat))) {
+		LOGE("setResultBuffer: not a direct buffer or too small");
+		return false;
+	}
+
+	ctx->resultBufferRef= env->NewGlobalRef(jBuffer);
+	ctx->resultBuffer= buffer;
+
+	return true;
+}
+
+JNIEXPORT void JNICALL Java_com_crea_1si_eviacam_common_VisionPipeline_nativeSetTrackerParameters
+	(JNIEnv* env, jclass, jlong handle, jint pyrLevels, jint winSize, jint maxIter,
+	 jfloat epsilon)
+{
+	PipelineContext* ctx= getContext(env, handle);
+	if (ctx== NULL) return;
+
+	ctx->pipeline->setTrackerParams(pyrLevels, winSize, maxIter, epsilon);
+}
+
+JNIEXPORT void JNICALL Java_com_crea_1si_eviacam_common_VisionPipeline_nativeSetDetectionSearchPolicy
+	(JNIEnv* env, jclass, jlong handle, jboolean enabled, jfloat expansion, jfloat minScale,
+	 jfloat maxScale, jint fullScanInterval)
+{
+	PipelineContext* ctx= getContext(env, handle);
+	if (ctx== NULL) return;
+
+	ctx->pipeline->setDetectionSearchPolicy(enabled, expansion, minScale, maxScale,
+											fullScanInterval);
+}
+
+JNIEXPORT void JNICALL Java_com_crea_1si_eviacam_common_VisionPipeline_nativeSetCpuUsage
+	(JNIEnv* env, jclass, jlong handle, jint value)
+{
+	PipelineContext* ctx= getContext(env, handle);
+	if (ctx== NULL) return;
+
+	ctx->pipeline->setCPUUsage(value);
 }
 
-JNIEXPORT jboolean JNICALL Java_com_crea_1si_eviacam_common_VisionPipeline_processFrame
-	(JNIEnv* env, jobject, jlong addrFrame, jint flip, jint rotation, jobject jPoint)
+JNIEXPORT jint JNICALL Java_com_crea_1si_eviacam_common_VisionPipeline_nativeGetCpuUsage
+	(JNIEnv* env, jclass, jlong handle)
 {
-	assert (g_visionPipeline);
+	PipelineContext* ctx= getContext(env, handle);
+	if (ctx== NULL) return 0;
+
+	return ctx->pipeline->getCPUUsage();
+}
+
+JNIEXPORT jboolean JNICALL Java_com_crea_1si_eviacam_common_VisionPipeline_nativeGetDetectionStats
+	(JNIEnv* env, jclass, jlong handle, jfloatArray jStats)
+{
+	PipelineContext* ctx= getContext(env, handle);
+	if (ctx== NULL) return false;
+
+	if (env->GetArrayLength(jStats)< 6) return false;
+
+	jfloat stats[6];
+	stats[0]= ctx->pipeline->getCPUUsage();
+	ctx->pipeline->getDetectionStats(stats[1], stats[2], stats[3], stats[4]);
+	stats[5]= ctx->pipeline->getDetectorStatus();
+	env->SetFloatArrayRegion(jStats, 0, 6, stats);
+
+	return true;
+}
+
+JNIEXPORT jboolean JNICALL Java_com_crea_1si_eviacam_common_VisionPipeline_nativeProcessFrame
+	(JNIEnv* env, jclass, jlong handle, jlong addrFrame, jint flip, jint rotation,
+	 jfloatArray jVel)
+{
+	PipelineContext* ctx= getContext(env, handle);
+	if (ctx== NULL) return false;
 
 	float xVel= 0, yVel= 0;
+	bool result= processFrame(ctx->pipeline, addrFrame, flip, rotation, xVel, yVel);
+	setVelocity(env, jVel, xVel, yVel);
 
-	IplImage iplimg = *(cv::Mat*) addrFrame;
-	CIplImage frame(&iplimg);
-	jboolean result= g_visionPipeline->processImage(frame, flip, rotation, xVel, yVel);
+	return result;
+}
 
-	jclass pointClass = env->GetObjectClass(jPoint);
-	jfieldID jXVelId = env->GetFieldID(pointClass, "x", "F");
-	jfieldID jYVelId = env->GetFieldID(pointClass, "y", "F");
-	env->SetFloatField(jPoint, jXVelId, xVel);
-	env->SetFloatField(jPoint, jYVelId, yVel);
+JNIEXPORT jboolean JNICALL Java_com_crea_1si_eviacam_common_VisionPipeline_nativeProcessGrayFrame
+	(JNIEnv* env, jclass, jlong handle, jlong addrGray, jlong addrPreview, jint flip,
+	 jint rotation, jfloatArray jVel)
+{
+	PipelineContext* ctx= getContext(env, handle);
+	if (ctx== NULL) return false;
+
+	float xVel= 0, yVel= 0;
+	bool result= processGrayFrame(ctx->pipeline, addrGray, addrPreview, flip, rotation,
+		xVel, yVel);
+	setVelocity(env, jVel, xVel, yVel);
 
 	return result;
 }
 
+JNIEXPORT jboolean JNICALL Java_com_crea_1si_eviacam_common_VisionPipeline_nativeProcessFrameToBuffer
+	(JNIEnv* env, jclass, jlong handle, jlong addrFrame, jint flip, jint rotation)
+{
+	PipelineContext* ctx= getContext(env, handle);
+	if (ctx== NULL) return false;
+
+	float xVel= 0, yVel= 0;
+	bool result= processFrame(ctx->pipeline, addrFrame, flip, rotation, xVel, yVel);
+	writeResult(ctx, result, xVel, yVel);
+
+	return result;
+}
+
+JNIEXPORT jboolean JNICALL Java_com_crea_1si_eviacam_common_VisionPipeline_nativeProcessGrayFrameToBuffer
+	(JNIEnv* env, jclass, jlong handle, jlong addrGray, jlong addrPreview, jint flip,
+	 jint rotation)
+{
+	PipelineContext* ctx= getContext(env, handle);
+	if (ctx== NULL) return false;
+
+	float xVel= 0, yVel= 0;
+	bool result= processGrayFrame(ctx->pipeline, addrGray, addrPreview, flip, rotation,
+		xVel, yVel);
+	writeResult(ctx, result, xVel, yVel);
+
+	return result;
+}
+
+JNIEXPORT void JNICALL Java_com_crea_1si_eviacam_common_VisionPipeline_packYUV420
+	(JNIEnv* env, jclass, jobject jY, jobject jU, jobject jV, jint width, jint height,
+	 jint yRowStride, jint yPixelStride, jint uvRowStride, jint uvPixelStride, jlong addrDst)
+{
+	const unsigned char* y= (const unsigned char*) env->GetDirectBufferAddress(jY);
+	const unsigned char* u= (const unsigned char*) env->GetDirectBufferAddress(jU);
+	const unsigned char* v= (const unsigned char*) env->GetDirectBufferAddress(jV);
+	assert (y && u && v);
+
+	cv::Mat* dst= (cv::Mat*) addrDst;
+
+	// no-op when already allocated with the right size and type
+	dst->create(height + height / 2, width, CV_8UC1);
+	assert (dst->isContinuous());
+
+	eviacam::packYUV420(y, u, v, width, height, yRowStride, yPixelStride,
+		uvRowStride, uvPixelStride, dst->ptr());
+}
+
 } // extern "C"
@@ -0,0 +1,52 @@
+/*
+ * Enable Viacam for Android, a camera based mouse emulator
+ *
+ * Copyright (C) 2015 Cesar Mauri Loba (CREA Software Systems)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+#include "yuvpack.h"
+
+#include <string.h>
+
+namespace eviacam {
+
+unsigned char* packPlane (const unsigned char* src, int width, int height,
+	int rowStride, int pixelStride, unsigned char* dst)
+{
+	for (int row= 0; row< height; row++) {
+		const unsigned char* srcRow= src + row * rowStride;
+		if (pixelStride== 1) {
+			memcpy (dst, srcRow, width);
+			dst+= width;
+		}
+		else {
+			for (int col= 0; col< width; col++) *dst++= srcRow[col * pixelStride];
+		}
+	}
+
+	return dst;
+}
+
+void packYUV420 (const unsigned char* y, const unsigned char* u, const unsigned char* v,
+	int width, int height, int yRowStride, int yPixelStride,
+	int uvRowStride, int uvPixelStride, unsigned char* dst)
+{
+	dst= packPlane(y, width, height, yRowStride, yPixelStride, dst);
+	dst= packPlane(u, width / 2, height / 2, uvRowStride, uvPixelStride, dst);
+	packPlane(v, width / 2, height / 2, uvRowStride, uvPixelStride, dst);
+}
+
+}
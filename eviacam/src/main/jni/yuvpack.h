@@ -0,0 +1,48 @@
+/*
+ * Enable Viacam for Android, a camera based mouse emulator
+ *
+ * Copyright (C) 2015 Cesar Mauri Loba (CREA Software Systems)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+#ifndef YUVPACK_H
+#define YUVPACK_H
+
+namespace eviacam {
+
+/**
+ * Copy a (possibly subsampled and interleaved) plane into a packed buffer
+ *
+ * @param src first pixel of the plane
+ * @param width, height size of the plane in pixels
+ * @param rowStride distance in bytes between the start of two rows
+ * @param pixelStride distance in bytes between two pixels of a row
+ * @param dst destination, width * height bytes are written
+ * @return pointer past the last byte written
+ */
+unsigned char* packPlane (const unsigned char* src, int width, int height,
+	int rowStride, int pixelStride, unsigned char* dst);
+
+/**
+ * Pack the planes of a YUV_420_888 image in I420 layout: full Y plane followed
+ * by the subsampled U and V planes (width * height * 3 / 2 bytes)
+ */
+void packYUV420 (const unsigned char* y, const unsigned char* u, const unsigned char* v,
+	int width, int height, int yRowStride, int yPixelStride,
+	int uvRowStride, int uvPixelStride, unsigned char* dst);
+
+}
+
+#endif
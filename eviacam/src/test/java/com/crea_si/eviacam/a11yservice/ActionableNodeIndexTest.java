@@ -0,0 +1,416 @@
+/*
+ * Enable Viacam for Android, a camera based mouse emulator
+ *
+ * Copyright (C) 2015-17 Cesar Mauri Loba (CREA Software Systems)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.crea_si.eviacam.a11yservice;
+
+import android.graphics.Point;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class ActionableNodeIndexTest {
+    private static final int CLICK= 1;
+    private static final int LONG_CLICK= 2;
+    private static final int SCROLL= 4;
+    private static final int ACTIONS= CLICK | LONG_CLICK;
+
+    private static final int SCREEN_WIDTH= 1080;
+    private static final int SCREEN_HEIGHT= 1920;
+
+    private static class Node {
+        final String name;
+        final int windowId;
+        final int[] bounds;
+        int actions;
+        boolean visible= true;
+        // false once removed from the window, refresh fails
+        boolean alive= true;
+        // null entries stand for children which could not be retrieved
+        final List<Node> children= new ArrayList<>();
+        // children seen until the next refresh, null to always see the current ones
+        List<Node> snapshot;
+
+        Node(String name, int windowId, int[] bounds, int actions) {
+            this.name= name;
+            this.windowId= windowId;
+            this.bounds= bounds;
+            this.actions= actions;
+        }
+
+        Node add(Node child) {
+            children.add(child);
+            return child;
+        }
+
+        /* From now on keeps the current children until refreshed, as AccessibilityNodeInfo */
+        void freeze() {
+            snapshot= new ArrayList<>(children);
+        }
+
+        List<Node> seenChildren() {
+            return snapshot == null ? children : snapshot;
+        }
+    }
+
+    /* Node source which counts the calls, each one a round trip with the real nodes */
+    private static class FakeNodeSource implements ActionableNodeIndex.NodeSource<Node> {
+        int calls;
+
+        @Override
+        public int getWindowId(@NonNull Node node) {
+            return node.windowId;
+        }
+
+        @Override
+        public boolean refresh(@NonNull Node node) {
+            calls++;
+            if (node.snapshot != null) node.freeze();
+            return node.alive;
+        }
+
+        @Override
+        public boolean isVisibleToUser(@NonNull Node node) {
+            calls++;
+            return node.visible;
+        }
+
+        @Override
+        public int getActions(@NonNull Node node) {
+            calls++;
+            return node.actions;
+        }
+
+        @Override
+        public void getBoundsInScreen(@NonNull Node node, @NonNull int[] out) {
+            calls++;
+            System.arraycopy(node.bounds, 0, out, 0, 4);
+        }
+
+        @Override
+        public int getChildCount(@NonNull Node node) {
+            calls++;
+            return node.seenChildren().size();
+        }
+
+        @Nullable
+        @Override
+        public Node getChild(@NonNull Node node, int index) {
+            calls++;
+            return node.seenChildren().get(index);
+        }
+    }
+
+    private static int[] rect(int left, int top, int right, int bottom) {
+        return new int[] { left, top, right, bottom };
+    }
+
+    private static Point point(int x, int y) {
+        // do not rely on the constructor, stubbed in unit tests
+        Point p= new Point();
+        p.x= x;
+        p.y= y;
+        return p;
+    }
+
+    /*
+     * The recursive search which the index replaced (formerly
+     * AccessibilityAction.findActionable0): the last actionable node in pre-order
+     * among the visible nodes whose bounds, and the ones of their ancestors,
+     * contain the point
+     */
+    private static Node findActionable0(@Nullable Node node, int x, int y, FakeNodeSource source) {
+        if (node == null) return null;
+
+        int[] b= new int[4];
+        source.getBoundsInScreen(node, b);
+        if (!(x >= b[0] && x < b[2] && y >= b[1] && y < b[3])) return null;
+        if (!source.isVisibleToUser(node)) return null;
+
+        Node result= null;
+        if ((source.getActions(node) & ACTIONS) != 0) result= node;
+
+        final int childCount= source.getChildCount(node);
+        for (int i= 0; i < childCount; i++) {
+            Node child= findActionable0(source.getChild(node, i), x, y, source);
+            if (child != null) result= child;
+        }
+        return result;
+    }
+
+    /*
+     * Random window of about the given number of nodes: nested containers, some
+     * children sticking out of their parents, some hidden, empty or missing
+     */
+    private static Node randomTree(Random random, int windowId, int nodes) {
+        Node root= new Node("root", windowId, rect(0, 0, SCREEN_WIDTH, SCREEN_HEIGHT), 0);
+        List<Node> containers= new ArrayList<>();
+        containers.add(root);
+        for (int i= 0; i < nodes; i++) {
+            Node parent= containers.get(random.nextInt(containers.size()));
+            if (random.nextInt(50) == 0) {
+                parent.children.add(null);
+                continue;
+            }
+            int[] pb= parent.bounds;
+            int w= Math.max(1, pb[2] - pb[0]), h= Math.max(1, pb[3] - pb[1]);
+            int left= pb[0] + random.nextInt(w);
+            int top= pb[1] + random.nextInt(h);
+            int right= left + random.nextInt(w);
+            int bottom= top + random.nextInt(h / 2 + 1);
+            if (random.nextInt(10) == 0) {
+                // sticks out of the parent (e.g. partially scrolled out of a list)
+                left-= random.nextInt(200);
+                bottom+= random.nextInt(300);
+            }
+            int actions= 0;
+            switch (random.nextInt(4)) {
+                case 0: actions= CLICK; break;
+                case 1: actions= CLICK | LONG_CLICK; break;
+                case 2: actions= SCROLL; break;
+                default:
+            }
+            Node n= parent.add(new Node("n" + i, windowId, rect(left, top, right, bottom), actions));
+            if (random.nextInt(30) == 0) n.visible= false;
+            if (right - left > 20 && bottom - top > 20) containers.add(n);
+        }
+        return root;
+    }
+
+    private static ActionableNodeIndex<Node> newIndex(FakeNodeSource source) {
+        return new ActionableNodeIndex<>(source, ACTIONS);
+    }
+
+    @Test
+    public void boundsAreClippedByTheAncestors() {
+        Node root= new Node("root", 1, rect(0, 0, 1000, 1000), 0);
+        Node panel= root.add(new Node("panel", 1, rect(0, 0, 100, 100), 0));
+        Node button= panel.add(new Node("button", 1, rect(50, 50, 200, 200), CLICK));
+        Node inner= button.add(new Node("inner", 1, rect(90, 90, 300, 300), LONG_CLICK));
+        Node hidden= root.add(new Node("hidden", 1, rect(500, 500, 600, 600), 0));
+        hidden.visible= false;
+        hidden.add(new Node("inHidden", 1, rect(500, 500, 600, 600), CLICK));
+        Node empty= root.add(new Node("empty", 1, rect(700, 700, 700, 800), 0));
+        empty.add(new Node("inEmpty", 1, rect(700, 700, 800, 800), CLICK));
+
+        ActionableNodeIndex<Node> index= newIndex(new FakeNodeSource());
+        assertSame(button, index.find(root, point(60, 60)));
+        assertSame(inner, index.find(root, point(95, 95)));
+        // outside the panel the button and its child cannot be reached
+        assertNull(index.find(root, point(150, 150)));
+        assertNull(index.find(root, point(95, 100)));
+        // nor the children of hidden or empty nodes
+        assertNull(index.find(root, point(550, 550)));
+        assertNull(index.find(root, point(750, 750)));
+        assertEquals(1, index.getBuilds());
+    }
+
+    @Test
+    public void matchesTheRecursiveSearch() {
+        Random random= new Random(42);
+        for (int round= 0; round < 10; round++) {
+            Node root= randomTree(random, round, 3000);
+            FakeNodeSource source= new FakeNodeSource();
+            ActionableNodeIndex<Node> index= newIndex(source);
+            for (int q= 0; q < 2000; q++) {
+                // some points out of the screen
+                int x= random.nextInt(SCREEN_WIDTH + 200) - 100;
+                int y= random.nextInt(SCREEN_HEIGHT + 200) - 100;
+                Node expected= findActionable0(root, x, y, source);
+                Node found= index.find(root, point(x, y));
+                assertSame("round " + round + " at " + x + "," + y, expected, found);
+            }
+            assertEquals(1, index.getBuilds());
+        }
+    }
+
+    @Test
+    public void windowsAreInvalidatedSeparately() {
+        Node root1= new Node("root1", 1, rect(0, 0, 1000, 1000), 0);
+        Node a= root1.add(new Node("a", 1, rect(0, 0, 500, 500), CLICK));
+        Node root2= new Node("root2", 2, rect(0, 1000, 1000, 2000), 0);
+        Node b= root2.add(new Node("b", 2, rect(0, 1000, 500, 1500), CLICK));
+
+        ActionableNodeIndex<Node> index= newIndex(new FakeNodeSource());
+        assertSame(a, index.find(root1, point(10, 10)));
+        assertSame(b, index.find(root2, point(10, 1010)));
+        assertEquals(2, index.getBuilds());
+
+        // new nodes are only seen once the window is invalidated
+        Node c= root1.add(new Node("c", 1, rect(600, 600, 700, 700), CLICK));
+        Node d= root2.add(new Node("d", 2, rect(600, 1600, 700, 1700), CLICK));
+        assertNull(index.find(root1, point(650, 650)));
+        index.invalidate(1);
+        assertSame(c, index.find(root1, point(650, 650)));
+        assertEquals(3, index.getBuilds());
+
+        // the other window keeps its index
+        assertNull(index.find(root2, point(650, 1650)));
+        assertSame(b, index.find(root2, point(10, 1010)));
+        assertEquals(3, index.getBuilds());
+
+        // -1 stands for all of them
+        index.invalidate(-1);
+        assertSame(d, index.find(root2, point(650, 1650)));
+        assertSame(a, index.find(root1, point(10, 10)));
+        assertEquals(5, index.getBuilds());
+
+        index.invalidateAll();
+        assertSame(c, index.find(root1, point(650, 650)));
+        assertEquals(6, index.getBuilds());
+    }
+
+    @Test
+    public void staleHitsRebuildTheIndex() {
+        Node root= new Node("root", 1, rect(0, 0, 1000, 1000), 0);
+        Node list= root.add(new Node("list", 1, rect(0, 0, 1000, 1000), CLICK));
+        Node item= list.add(new Node("item", 1, rect(0, 0, 1000, 100), CLICK));
+        ActionableNodeIndex<Node> index= newIndex(new FakeNodeSource());
+        assertSame(item, index.find(root, point(10, 10)));
+        assertEquals(1, index.getBuilds());
+        assertEquals(0, index.getHits());
+
+        // removed without an event
+        item.alive= false;
+        list.children.clear();
+        Node item2= list.add(new Node("item2", 1, rect(0, 0, 1000, 100), CLICK));
+        assertSame(item2, index.find(root, point(10, 10)));
+        assertEquals(2, index.getBuilds());
+
+        // moved: scrolled without an event
+        item2.bounds[1]= 200;
+        item2.bounds[3]= 300;
+        assertSame(list, index.find(root, point(10, 10)));
+        assertEquals(3, index.getBuilds());
+        assertSame(item2, index.find(root, point(10, 250)));
+        assertEquals(3, index.getBuilds());
+
+        // no longer actionable or hidden
+        item2.actions= SCROLL;
+        assertSame(list, index.find(root, point(10, 250)));
+        assertEquals(4, index.getBuilds());
+        list.visible= false;
+        assertNull(index.find(root, point(10, 250)));
+        assertEquals(5, index.getBuilds());
+
+        // valid hits do not rebuild
+        list.visible= true;
+        index.invalidate(1);
+        for (int i= 0; i < 10; i++) assertSame(list, index.find(root, point(10, 250)));
+        assertEquals(6, index.getBuilds());
+        assertEquals(9 + 1, index.getHits());
+    }
+
+    @Test
+    public void rootIsRefreshedBeforeRebuilding() {
+        Node root= new Node("root", 1, rect(0, 0, 1000, 1000), 0);
+        Node item= root.add(new Node("item", 1, rect(0, 0, 1000, 100), CLICK));
+        ActionableNodeIndex<Node> index= newIndex(new FakeNodeSource());
+        assertSame(item, index.find(root, point(10, 10)));
+
+        // the root is kept (e.g. by WindowCache) while its content changes
+        root.freeze();
+        root.children.clear();
+        item.alive= false;
+        Node item2= root.add(new Node("item2", 1, rect(0, 0, 1000, 100), CLICK));
+        index.invalidate(1);
+        assertSame(item2, index.find(root, point(10, 10)));
+
+        // also when rebuilding after a stale hit
+        root.children.clear();
+        item2.alive= false;
+        Node item3= root.add(new Node("item3", 1, rect(0, 0, 1000, 100), CLICK));
+        assertSame(item3, index.find(root, point(10, 10)));
+        assertEquals(3, index.getBuilds());
+
+        // the window is gone
+        root.alive= false;
+        index.invalidate(1);
+        assertNull(index.find(root, point(10, 10)));
+        assertEquals(3, index.getBuilds());
+        root.alive= true;
+        assertSame(item3, index.find(root, point(10, 10)));
+        assertEquals(4, index.getBuilds());
+    }
+
+    /*
+     * Cost of finding the node below the pointer in a large window: calls to the
+     * node source (i.e. round trips to the application) and time, for the index
+     * once built and for the recursive search.
+     */
+    @Test
+    public void findBenchmark() {
+        final int queries= 2000;
+        Random random= new Random(7);
+        Node root= randomTree(random, 1, 5000);
+        int[][] points= new int[queries][];
+        for (int i= 0; i < queries; i++) {
+            points[i]= new int[] { random.nextInt(SCREEN_WIDTH), random.nextInt(SCREEN_HEIGHT) };
+        }
+
+        FakeNodeSource source= new FakeNodeSource();
+        ActionableNodeIndex<Node> index= newIndex(source);
+        long t= System.nanoTime();
+        index.find(root, point(0, 0));
+        long buildTime= System.nanoTime() - t;
+        final int buildCalls= source.calls;
+
+        long bestIndex= Long.MAX_VALUE, bestWalk= Long.MAX_VALUE;
+        int indexCalls= 0, walkCalls= 0;
+        for (int run= 0; run < 5; run++) {
+            Node[] found= new Node[queries];
+            source.calls= 0;
+            t= System.nanoTime();
+            for (int i= 0; i < queries; i++) {
+                found[i]= index.find(root, point(points[i][0], points[i][1]));
+            }
+            bestIndex= Math.min(bestIndex, System.nanoTime() - t);
+            indexCalls= source.calls;
+
+            source.calls= 0;
+            t= System.nanoTime();
+            for (int i= 0; i < queries; i++) {
+                assertSame(found[i], findActionable0(root, points[i][0], points[i][1], source));
+            }
+            bestWalk= Math.min(bestWalk, System.nanoTime() - t);
+            walkCalls= source.calls;
+        }
+        assertEquals(1, index.getBuilds());
+
+        System.out.println(String.format("ActionableNodeIndex: build %.2f ms (%d calls), " +
+                        "find %.2f us (%.1f calls), recursive search %.2f us (%.1f calls)",
+                buildTime / 1e6, buildCalls,
+                bestIndex / 1e3 / queries, (double) indexCalls / queries,
+                bestWalk / 1e3 / queries, (double) walkCalls / queries));
+
+        // at most a validation of the node found: refresh, visibility, actions and bounds
+        assertTrue(indexCalls <= 4 * queries);
+        assertTrue(walkCalls > 4 * indexCalls);
+        assertTrue(bestIndex < bestWalk);
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * Enable Viacam for Android, a camera based mouse emulator
+ *
+ * Copyright (C) 2015-17 Cesar Mauri Loba (CREA Software Systems)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.crea_si.eviacam.a11yservice;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ScanDebouncerTest {
+    private static final long MIN_DELAY= 150;
+    private static final long RUN_DELAY= 700;
+    private static final long MAX_WAIT= 2000;
+
+    /*
+     * Replays events against a fake clock as AccessibilityAction does: each event
+     * supersedes the pending scan with a new one after the computed delay.
+     */
+    private static class Scheduler {
+        final ScanDebouncer debouncer= new ScanDebouncer(MIN_DELAY, RUN_DELAY, MAX_WAIT);
+        final List<Long> scans= new ArrayList<>();
+        // events not yet covered by a scan
+        final List<Long> pending= new ArrayList<>();
+        long maxLatency= 0;
+        long scanTime= -1;
+
+        void event(long t) {
+            runUntil(t);
+            pending.add(t);
+            scanTime= t + debouncer.onEvent(t);
+        }
+
+        void runUntil(long t) {
+            if (scanTime >= 0 && scanTime <= t) {
+                debouncer.onScanStarted();
+                scans.add(scanTime);
+                for (long e : pending) maxLatency= Math.max(maxLatency, scanTime - e);
+                pending.clear();
+                scanTime= -1;
+            }
+        }
+    }
+
+    @Test
+    public void isolatedEventsAreScannedSeparately() {
+        Scheduler s= new Scheduler();
+        for (int i= 0; i < 10; i++) s.event(10000 + i * 1000L);
+        s.runUntil(Long.MAX_VALUE);
+        assertEquals(10, s.scans.size());
+        // twice the interval, which starts over at the min delay
+        for (int i= 0; i < 10; i++) {
+            assertEquals(10000 + i * 1000L + 2 * MIN_DELAY, (long) s.scans.get(i));
+        }
+    }
+
+    @Test
+    public void burstIsCoalesced() {
+        Scheduler s= new Scheduler();
+        for (int i= 0; i < 20; i++) s.event(10000 + i * 10L);
+        s.runUntil(Long.MAX_VALUE);
+        assertEquals(1, s.scans.size());
+        // right after the last event
+        assertEquals(10000 + 19 * 10L + MIN_DELAY, (long) s.scans.get(0));
+    }
+
+    @Test
+    public void steadyStreamIsCoalesced() {
+        // events every 100 ms and every 400 ms (e.g. animations) for 20 s
+        for (long period : new long[] { 16, 100, 400 }) {
+            Scheduler s= new Scheduler();
+            long t= 10000;
+            for (; t < 30000; t+= period) s.event(t);
+            s.runUntil(Long.MAX_VALUE);
+
+            // a scan each MAX_WAIT ms instead of one per event
+            assertTrue("period " + period + ": " + s.scans.size() + " scans",
+                    s.scans.size() <= 20000 / MAX_WAIT + 1);
+            assertTrue(s.scans.size() >= 20000 / (MAX_WAIT + period));
+            // but no event waits longer than that
+            assertTrue("period " + period + ": " + s.maxLatency, s.maxLatency <= MAX_WAIT);
+        }
+    }
+
+    @Test
+    public void delayAdaptsToTheRate() {
+        ScanDebouncer d= new ScanDebouncer(MIN_DELAY, RUN_DELAY, MAX_WAIT);
+        long t= 10000;
+        assertEquals(2 * MIN_DELAY, d.onEvent(t));
+        d.onScanStarted();
+        // converges to twice the interval
+        long delay= 0;
+        for (int i= 0; i < 20; i++) {
+            t+= 200;
+            delay= d.onEvent(t);
+            d.onScanStarted();
+        }
+        assertTrue("" + delay, delay > 2 * 200 - 10 && delay <= 2 * 200);
+        // bounded by the run delay
+        for (int i= 0; i < 20; i++) {
+            t+= 600;
+            delay= d.onEvent(t);
+            d.onScanStarted();
+        }
+        assertEquals(RUN_DELAY, delay);
+        // and starts over after an isolated event
+        t+= RUN_DELAY;
+        assertEquals(2 * MIN_DELAY, d.onEvent(t));
+        d.onScanStarted();
+        // a fast burst, not below the min delay
+        for (int i= 0; i < 20; i++) delay= d.onEvent(t+= 5);
+        assertEquals(MIN_DELAY, delay);
+    }
+
+    @Test
+    public void maxWaitIsCountedFromTheFirstPendingEvent() {
+        ScanDebouncer d= new ScanDebouncer(MIN_DELAY, RUN_DELAY, MAX_WAIT);
+        long t= 10000;
+        d.onEvent(t);
+        for (int i= 0; i < 3; i++) d.onEvent(t+= 500);
+        // 1500 ms since the first one
+        assertEquals(MAX_WAIT - 1500, d.onEvent(t+= 0));
+        assertEquals(0, d.onEvent(t+= 600));
+
+        // a cancelled scan starts over
+        d.reset();
+        assertEquals(RUN_DELAY, d.onEvent(t+= 500));
+    }
+
+    @Test(expected= IllegalArgumentException.class)
+    public void invalidDelays() {
+        new ScanDebouncer(MIN_DELAY, MIN_DELAY - 1, MAX_WAIT);
+    }
+}
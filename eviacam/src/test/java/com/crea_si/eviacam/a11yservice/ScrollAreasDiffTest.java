@@ -0,0 +1,247 @@
+/*
+ * Enable Viacam for Android, a camera based mouse emulator
+ *
+ * Copyright (C) 2015-17 Cesar Mauri Loba (CREA Software Systems)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.crea_si.eviacam.a11yservice;
+
+import androidx.annotation.NonNull;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class ScrollAreasDiffTest {
+    private static final int BACKWARD= 1;
+    private static final int FORWARD= 2;
+
+    /* Snapshot of a node, equal to other snapshots of the same node as AccessibilityNodeInfo */
+    private static class Node {
+        final int id;
+        final int[] bounds;
+        final int actions;
+
+        Node(int id, int[] bounds, int actions) {
+            this.id= id;
+            this.bounds= bounds;
+            this.actions= actions;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Node && ((Node) o).id == id;
+        }
+
+        @Override
+        public int hashCode() {
+            return id;
+        }
+    }
+
+    private static class FakeNodeSource implements ScrollAreasDiff.NodeSource<Node> {
+        @Override
+        public int getActions(@NonNull Node node) {
+            return node.actions;
+        }
+
+        @Override
+        public void getBoundsInScreen(@NonNull Node node, @NonNull int[] out) {
+            System.arraycopy(node.bounds, 0, out, 0, 4);
+        }
+    }
+
+    /* Area with the buttons state, as ScrollLayerView */
+    private static class Area extends ScrollAreasDiff.Area<Node> {
+        boolean shown;
+        int placements;
+    }
+
+    /* Applies the diff as ScrollLayerView.updateScrollAreas does */
+    private static class Areas implements ScrollAreasDiff.RemoveListener<Area> {
+        final FakeNodeSource source= new FakeNodeSource();
+        final ScrollAreasDiff<Node, Area> diff= new ScrollAreasDiff<>(source);
+        final List<Area> areas= new ArrayList<>();
+        int count;
+        int added, removed;
+
+        void update(List<Node> nodes) {
+            count= diff.retain(areas, count, nodes, this);
+            for (int j= 0; j< nodes.size(); j++) {
+                if (diff.isRetained(j)) continue;
+                if (count >= areas.size()) areas.add(new Area());
+                Area a= areas.get(count++);
+                a.set(nodes.get(j), source);
+                a.shown= true;
+                a.placements++;
+                added++;
+            }
+        }
+
+        @Override
+        public void onRemoved(@NonNull Area area) {
+            assertTrue(area.shown);
+            area.shown= false;
+            removed++;
+        }
+    }
+
+    private static int[] rect(int left, int top, int right, int bottom) {
+        return new int[] { left, top, right, bottom };
+    }
+
+    private static List<Node> list(Node... nodes) {
+        List<Node> l= new ArrayList<>();
+        for (Node n : nodes) l.add(n);
+        return l;
+    }
+
+    /* The areas in use are exactly the nodes, with their current bounds and actions */
+    private static void assertConsistent(Areas a, List<Node> nodes) {
+        assertEquals(nodes.size(), a.count);
+        boolean[] used= new boolean[a.count];
+        for (Node n : nodes) {
+            boolean found= false;
+            for (int i= 0; i < a.count && !found; i++) {
+                Area area= a.areas.get(i);
+                if (used[i] || area.node != n) continue;
+                assertTrue(area.shown);
+                assertEquals(n.actions, area.actions);
+                assertArrayEquals(n.bounds, area.bounds);
+                used[i]= found= true;
+            }
+            assertTrue("node " + n.id + " not shown", found);
+        }
+        for (int i= a.count; i < a.areas.size(); i++) {
+            assertFalse(a.areas.get(i).shown);
+            assertNull(a.areas.get(i).node);
+        }
+    }
+
+    @Test
+    public void unchangedAreasAreKept() {
+        Areas a= new Areas();
+        Node list= new Node(1, rect(0, 0, 1080, 1000), BACKWARD | FORWARD);
+        Node pager= new Node(2, rect(0, 1000, 1080, 1500), FORWARD);
+        a.update(list(list, pager));
+        assertEquals(2, a.added);
+        Area listArea= a.areas.get(0);
+
+        // new snapshots of the same nodes
+        Node list2= new Node(1, rect(0, 0, 1080, 1000), BACKWARD | FORWARD);
+        Node pager2= new Node(2, rect(0, 1000, 1080, 1500), FORWARD);
+        a.update(list(pager2, list2));
+        assertEquals(2, a.added);
+        assertEquals(0, a.removed);
+        assertEquals(0, a.diff.getRemoved());
+        // the newest node objects are used
+        assertSame(listArea, a.areas.get(0));
+        assertSame(list2, listArea.node);
+        assertEquals(1, listArea.placements);
+        assertConsistent(a, list(pager2, list2));
+    }
+
+    @Test
+    public void changedAreasAreReplaced() {
+        Areas a= new Areas();
+        a.update(list(new Node(1, rect(0, 0, 1080, 1000), BACKWARD | FORWARD),
+                new Node(2, rect(0, 1000, 1080, 1500), FORWARD),
+                new Node(3, rect(0, 1500, 1080, 1900), FORWARD)));
+
+        // 1 scrolled to the end, 2 moved, 3 gone, 4 new
+        List<Node> nodes= list(new Node(1, rect(0, 0, 1080, 1000), BACKWARD),
+                new Node(2, rect(0, 900, 1080, 1500), FORWARD),
+                new Node(4, rect(0, 1500, 1080, 1900), BACKWARD));
+        a.update(nodes);
+        assertEquals(3, a.diff.getRemoved());
+        assertEquals(3, a.removed);
+        assertEquals(6, a.added);
+        assertConsistent(a, nodes);
+        // slots reused
+        assertEquals(3, a.areas.size());
+
+        a.update(new ArrayList<Node>());
+        assertConsistent(a, new ArrayList<Node>());
+        assertEquals(6, a.removed);
+    }
+
+    @Test
+    public void duplicatedNodesGetAnAreaEach() {
+        Areas a= new Areas();
+        Node n= new Node(1, rect(0, 0, 100, 100), FORWARD);
+        a.update(list(n, n));
+        assertConsistent(a, list(n, n));
+        a.update(list(n));
+        assertEquals(1, a.removed);
+        assertConsistent(a, list(n));
+    }
+
+    @Test
+    public void randomUpdatesStayConsistent() {
+        Random random= new Random(3);
+        Areas a= new Areas();
+        Map<Integer, Node> current= new HashMap<>();
+        int changes= 0;
+        for (int round= 0; round < 500; round++) {
+            // scroll, add and remove some of the nodes
+            List<Node> nodes= new ArrayList<>();
+            for (int id= 0; id < 40; id++) {
+                Node old= current.get(id);
+                int r= random.nextInt(10);
+                Node n;
+                if (old == null) {
+                    n= r < 3 ? new Node(id, rect(0, id * 40, 1080, id * 40 + 200), FORWARD) : null;
+                }
+                else if (r == 0) {
+                    n= null;
+                }
+                else if (r == 1) {
+                    n= new Node(id, old.bounds, old.actions ^ BACKWARD);
+                }
+                else if (r == 2) {
+                    n= new Node(id, rect(old.bounds[0], old.bounds[1] + 10, old.bounds[2],
+                            old.bounds[3]), old.actions);
+                }
+                else {
+                    n= new Node(id, old.bounds, old.actions);
+                }
+                if (n == null) current.remove(id);
+                else current.put(id, n);
+                if (n != null) nodes.add(random.nextInt(nodes.size() + 1), n);
+                if (r < 3) changes++;
+            }
+
+            int addedBefore= a.added;
+            a.update(nodes);
+            assertConsistent(a, nodes);
+            // the buttons of unchanged areas are not touched
+            assertTrue(a.added - addedBefore <= changes);
+            changes= 0;
+        }
+        // every area added is removed at most once
+        assertEquals(a.added - a.count, a.removed);
+    }
+}
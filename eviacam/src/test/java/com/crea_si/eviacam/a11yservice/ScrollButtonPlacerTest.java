@@ -0,0 +1,211 @@
+/*
+ * Enable Viacam for Android, a camera based mouse emulator
+ *
+ * Copyright (C) 2015-17 Cesar Mauri Loba (CREA Software Systems)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.crea_si.eviacam.a11yservice;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ScrollButtonPlacerTest {
+    private static final int W= 35;
+    private static final int H= 35;
+
+    /* Straightforward placement: sort the buttons which overlap horizontally */
+    private static class ReferencePlacer {
+        final List<int[]> placed= new ArrayList<>();
+
+        private List<Integer> candidates(int x) {
+            List<Integer> ys= new ArrayList<>();
+            for (int[] b : placed) {
+                if (b[0] > x - W && b[0] < x + W) ys.add(b[1]);
+            }
+            Collections.sort(ys);
+            return ys;
+        }
+
+        int placeBelow(int x, int y) {
+            for (int cy : candidates(x)) {
+                if (cy + H <= y) continue;
+                if (cy >= y + H) break;
+                y= cy + H;
+            }
+            placed.add(new int[] { x, y });
+            return y;
+        }
+
+        int placeAbove(int x, int y) {
+            List<Integer> ys= candidates(x);
+            for (int i= ys.size() - 1; i >= 0; i--) {
+                int cy= ys.get(i);
+                if (cy >= y + H) continue;
+                if (cy + H <= y) break;
+                y= cy - H;
+            }
+            placed.add(new int[] { x, y });
+            return y;
+        }
+
+        boolean remove(int x, int y) {
+            for (int i= 0; i < placed.size(); i++) {
+                if (placed.get(i)[0] == x && placed.get(i)[1] == y) {
+                    placed.remove(i);
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    private static boolean overlap(int[] a, int[] b) {
+        return Math.abs(a[0] - b[0]) < W && Math.abs(a[1] - b[1]) < H;
+    }
+
+    @Test(expected= IllegalArgumentException.class)
+    public void invalidSize() {
+        new ScrollButtonPlacer(0, 10);
+    }
+
+    @Test
+    public void freePositionIsKept() {
+        ScrollButtonPlacer placer= new ScrollButtonPlacer(W, H);
+        assertEquals(100, placer.placeBelow(0, 100));
+        assertEquals(100, placer.placeAbove(W, 100));
+        assertEquals(100, placer.placeBelow(-W, 100));
+        assertEquals(3, placer.size());
+    }
+
+    @Test
+    public void stacksVertically() {
+        ScrollButtonPlacer placer= new ScrollButtonPlacer(W, H);
+        // same x, each one goes below the previous
+        for (int i= 0; i < 5; i++) assertEquals(10 + i * H, placer.placeBelow(50, 10));
+        // partially overlapping horizontally
+        assertEquals(10 + 5 * H, placer.placeBelow(50 + W - 1, 10));
+        // not overlapping horizontally
+        assertEquals(10, placer.placeBelow(50 + W, 10));
+        assertEquals(10, placer.placeBelow(50 - W, 10));
+
+        // above, from the bottom
+        ScrollButtonPlacer up= new ScrollButtonPlacer(W, H);
+        for (int i= 0; i < 5; i++) assertEquals(500 - i * H, up.placeAbove(0, 500));
+    }
+
+    @Test
+    public void fillsGaps() {
+        ScrollButtonPlacer placer= new ScrollButtonPlacer(W, H);
+        placer.placeBelow(0, 0);
+        placer.placeBelow(0, 2 * H);
+        // the gap between both fits exactly one button
+        assertEquals(H, placer.placeBelow(0, 1));
+        // no gap left
+        assertEquals(3 * H, placer.placeBelow(0, 1));
+    }
+
+    @Test
+    public void removeAndClear() {
+        ScrollButtonPlacer placer= new ScrollButtonPlacer(W, H);
+        int y0= placer.placeBelow(10, 10);
+        int y1= placer.placeBelow(10, 10);
+        assertEquals(y0 + H, y1);
+
+        assertFalse(placer.remove(11, y0));
+        assertFalse(placer.remove(-1000, y0));
+        assertTrue(placer.remove(10, y0));
+        assertFalse(placer.remove(10, y0));
+        assertEquals(1, placer.size());
+        // the position released is used again
+        assertEquals(y0, placer.placeBelow(10, 10));
+
+        placer.clear();
+        assertEquals(0, placer.size());
+        assertEquals(10, placer.placeBelow(10, 10));
+
+        placer.setButtonSize(2 * W, H);
+        assertEquals(0, placer.size());
+    }
+
+    @Test
+    public void matchesReference() {
+        Random random= new Random(42);
+        for (int round= 0; round < 50; round++) {
+            ScrollButtonPlacer placer= new ScrollButtonPlacer(W, H);
+            ReferencePlacer reference= new ReferencePlacer();
+            for (int op= 0; op < 300; op++) {
+                int choice= random.nextInt(10);
+                if (choice < 2 && !reference.placed.isEmpty()) {
+                    int[] b= reference.placed.get(random.nextInt(reference.placed.size()));
+                    int x= b[0], y= b[1];
+                    assertTrue(reference.remove(x, y));
+                    assertTrue(placer.remove(x, y));
+                    continue;
+                }
+                // narrow area so that buttons collide often, negative x included
+                int x= random.nextInt(8 * W) - 2 * W;
+                int y= random.nextInt(20 * H) - 2 * H;
+                if (choice < 6) {
+                    assertEquals(reference.placeBelow(x, y), placer.placeBelow(x, y));
+                }
+                else {
+                    assertEquals(reference.placeAbove(x, y), placer.placeAbove(x, y));
+                }
+                assertEquals(reference.placed.size(), placer.size());
+            }
+
+            // no two placed buttons overlap
+            List<int[]> placed= reference.placed;
+            for (int i= 0; i < placed.size(); i++) {
+                for (int j= i + 1; j < placed.size(); j++) {
+                    assertFalse(overlap(placed.get(i), placed.get(j)));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void placementBenchmark() {
+        Random random= new Random(7);
+        final int buttons= 2000;
+        int[] xs= new int[buttons];
+        int[] ys= new int[buttons];
+        for (int i= 0; i < buttons; i++) {
+            xs[i]= random.nextInt(1080);
+            ys[i]= random.nextInt(1920);
+        }
+
+        ScrollButtonPlacer placer= new ScrollButtonPlacer(W, H);
+        long best= Long.MAX_VALUE;
+        for (int run= 0; run < 5; run++) {
+            placer.clear();
+            long start= System.nanoTime();
+            for (int i= 0; i < buttons; i++) placer.placeBelow(xs[i], ys[i]);
+            best= Math.min(best, System.nanoTime() - start);
+        }
+        assertEquals(buttons, placer.size());
+        System.out.println("ScrollButtonPlacer: " + (best / buttons) + " ns/placement, " +
+                buttons + " buttons");
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Enable Viacam for Android, a camera based mouse emulator
+ *
+ * Copyright (C) 2015-17 Cesar Mauri Loba (CREA Software Systems)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.crea_si.eviacam.a11yservice;
+
+import android.view.accessibility.AccessibilityNodeInfo;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ScrollHitTableTest {
+    private static final int BACKWARD= AccessibilityNodeInfo.ACTION_SCROLL_BACKWARD;
+    private static final int FORWARD= AccessibilityNodeInfo.ACTION_SCROLL_FORWARD;
+
+    @Test
+    public void empty() {
+        ScrollLayerView.NodeAction result= new ScrollLayerView.NodeAction();
+        assertEquals(0, ScrollHitTable.EMPTY.size());
+        assertFalse(ScrollHitTable.EMPTY.find(0, 0, result));
+    }
+
+    @Test
+    public void inclusiveBoundsAndOrder() {
+        ScrollHitTable table= new ScrollHitTable.Builder(2)
+                .add(10, 10, 45, 45, null, BACKWARD)
+                .add(40, 40, 75, 75, null, FORWARD)
+                .build();
+        ScrollLayerView.NodeAction result= new ScrollLayerView.NodeAction();
+
+        assertTrue(table.find(10, 10, result));
+        assertEquals(BACKWARD, result.actions);
+        assertTrue(table.find(45, 45, result));
+        assertEquals(BACKWARD, result.actions);
+        assertTrue(table.find(46, 46, result));
+        assertEquals(FORWARD, result.actions);
+        assertTrue(table.find(75, 75, result));
+        assertFalse(table.find(76, 75, result));
+        assertFalse(table.find(9, 10, result));
+    }
+
+    @Test(expected= IllegalStateException.class)
+    public void incompleteBuild() {
+        new ScrollHitTable.Builder(2).add(0, 0, 1, 1, null, BACKWARD).build();
+    }
+
+    private volatile ScrollHitTable mPublished= ScrollHitTable.EMPTY;
+
+    /*
+     * A reader querying the published tables without locking never sees a
+     * partially filled one: all the buttons of a table carry the same action.
+     */
+    @Test
+    public void publishedTablesAreComplete() throws Exception {
+        final AtomicBoolean done= new AtomicBoolean(false);
+        final AtomicInteger errors= new AtomicInteger();
+        final AtomicInteger reads= new AtomicInteger();
+
+        Thread reader= new Thread(new Runnable() {
+            @Override
+            public void run() {
+                ScrollLayerView.NodeAction result= new ScrollLayerView.NodeAction();
+                while (!done.get()) {
+                    ScrollHitTable t= mPublished;
+                    int expected= -1;
+                    for (int i= 0; i < t.size(); i++) {
+                        if (!t.find(i * 10, 0, result)) {
+                            errors.incrementAndGet();
+                            continue;
+                        }
+                        if (expected < 0) expected= result.actions;
+                        else if (result.actions != expected) errors.incrementAndGet();
+                    }
+                    reads.incrementAndGet();
+                    LockSupport.parkNanos(1000);
+                }
+            }
+        });
+        reader.start();
+
+        for (int gen= 1; gen <= 2000; gen++) {
+            int count= 1 + gen % 16;
+            ScrollHitTable.Builder b= new ScrollHitTable.Builder(count);
+            for (int i= 0; i < count; i++) b.add(i * 10, 0, i * 10 + 5, 5, null, gen);
+            mPublished= b.build();
+            if (gen % 50 == 0) LockSupport.parkNanos(100000);
+        }
+        done.set(true);
+        reader.join(5000);
+
+        assertFalse(reader.isAlive());
+        assertTrue(reads.get() > 0);
+        assertEquals(0, errors.get());
+    }
+}
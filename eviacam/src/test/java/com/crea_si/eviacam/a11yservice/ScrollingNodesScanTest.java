@@ -0,0 +1,241 @@
+/*
+ * Enable Viacam for Android, a camera based mouse emulator
+ *
+ * Copyright (C) 2015-17 Cesar Mauri Loba (CREA Software Systems)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.crea_si.eviacam.a11yservice;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ScrollingNodesScanTest {
+    private static final int SCROLL= 1;
+    private static final int CLICK= 2;
+    private static final String WEB_VIEW= "android.webkit.WebView";
+
+    private static class Node {
+        final String name;
+        final int actions;
+        final String className;
+        boolean visible= true;
+        final List<Node> children= new ArrayList<>();
+
+        Node(String name, int actions, String className, Node... children) {
+            this.name= name;
+            this.actions= actions;
+            this.className= className;
+            this.children.addAll(Arrays.asList(children));
+        }
+
+        Node(String name, int actions, Node... children) {
+            this(name, actions, "android.view.View", children);
+        }
+    }
+
+    /* Node source which counts the visited nodes and can run a hook on each visit */
+    private static class FakeNodeSource implements ScrollingNodesScan.NodeSource<Node> {
+        int visited;
+        Runnable onVisit;
+
+        @Override
+        public boolean isVisibleToUser(@NonNull Node node) {
+            visited++;
+            if (onVisit != null) onVisit.run();
+            return node.visible;
+        }
+
+        @Nullable
+        @Override
+        public CharSequence getClassName(@NonNull Node node) {
+            return node.className;
+        }
+
+        @Override
+        public int getActions(@NonNull Node node) {
+            return node.actions;
+        }
+
+        @Override
+        public int getChildCount(@NonNull Node node) {
+            return node.children.size();
+        }
+
+        @Nullable
+        @Override
+        public Node getChild(@NonNull Node node, int index) {
+            return node.children.get(index);
+        }
+    }
+
+    private static List<String> names(List<Node> nodes) {
+        List<String> names= new ArrayList<>();
+        for (Node n : nodes) names.add(n.name);
+        return names;
+    }
+
+    /* complete tree with width children per node, the leaves are scrollable */
+    private static Node bigTree(int depth, int width) {
+        if (depth == 0) return new Node("leaf", SCROLL);
+        Node n= new Node("inner", 0);
+        for (int i= 0; i < width; i++) n.children.add(bigTree(depth - 1, width));
+        return n;
+    }
+
+    @Test
+    public void findsScrollableNodes() {
+        Node hidden= new Node("hidden", SCROLL, new Node("hiddenChild", SCROLL));
+        hidden.visible= false;
+        Node root= new Node("root", 0,
+                new Node("list", SCROLL | CLICK,
+                        new Node("item", CLICK),
+                        new Node("nested", SCROLL)),
+                hidden,
+                new Node("button", CLICK));
+
+        FakeNodeSource source= new FakeNodeSource();
+        ScrollingNodesScan<Node> scan= new ScrollingNodesScan<>(source, SCROLL, WEB_VIEW);
+        ScrollingNodesScan.Result<Node> result= scan.run(root);
+
+        assertNotNull(result);
+        assertEquals(Arrays.asList("list", "nested"), names(result.nodes));
+        assertFalse(result.excludedFound);
+        assertTrue(scan.isCurrent(result.generation));
+    }
+
+    @Test
+    public void webViewSubtreeIsSkipped() {
+        Node root= new Node("root", 0,
+                new Node("web", SCROLL, WEB_VIEW, new Node("inWeb", SCROLL)),
+                new Node("list", SCROLL));
+
+        ScrollingNodesScan<Node> scan=
+                new ScrollingNodesScan<>(new FakeNodeSource(), SCROLL, WEB_VIEW);
+        ScrollingNodesScan.Result<Node> result= scan.run(root);
+
+        assertNotNull(result);
+        assertEquals(Arrays.asList("list"), names(result.nodes));
+        assertTrue(result.excludedFound);
+    }
+
+    @Test
+    public void nullRootGivesEmptyResult() {
+        ScrollingNodesScan<Node> scan=
+                new ScrollingNodesScan<>(new FakeNodeSource(), SCROLL, WEB_VIEW);
+        ScrollingNodesScan.Result<Node> result= scan.run(null);
+
+        assertNotNull(result);
+        assertTrue(result.nodes.isEmpty());
+        assertFalse(result.excludedFound);
+    }
+
+    @Test
+    public void olderResultsAreNotCurrent() {
+        ScrollingNodesScan<Node> scan=
+                new ScrollingNodesScan<>(new FakeNodeSource(), SCROLL, WEB_VIEW);
+        ScrollingNodesScan.Result<Node> first= scan.run(new Node("a", SCROLL));
+        assertNotNull(first);
+
+        scan.invalidate();
+        assertFalse(scan.isCurrent(first.generation));
+
+        ScrollingNodesScan.Result<Node> second= scan.run(new Node("b", SCROLL));
+        assertNotNull(second);
+        assertTrue(scan.isCurrent(second.generation));
+        assertFalse(scan.isCurrent(first.generation));
+    }
+
+    @Test
+    public void invalidateDuringWalkCancelsIt() {
+        final Node root= bigTree(4, 5);
+        final FakeNodeSource source= new FakeNodeSource();
+        final ScrollingNodesScan<Node> scan= new ScrollingNodesScan<>(source, SCROLL, WEB_VIEW);
+
+        ScrollingNodesScan.Result<Node> full= scan.run(root);
+        assertNotNull(full);
+        assertEquals(625, full.nodes.size());
+        final int total= source.visited;
+
+        // a new request arrives while walking the tree
+        source.visited= 0;
+        source.onVisit= new Runnable() {
+            @Override
+            public void run() {
+                if (source.visited == 10) scan.invalidate();
+            }
+        };
+        assertNull(scan.run(root));
+        // the walk stopped right after the request
+        assertEquals(10, source.visited);
+        assertTrue(source.visited < total);
+
+        // next scan is not affected
+        source.onVisit= null;
+        assertNotNull(scan.run(root));
+    }
+
+    @Test
+    public void invalidateFromAnotherThread() throws Exception {
+        final Node root= bigTree(5, 5);
+        final FakeNodeSource source= new FakeNodeSource();
+        // slow tree access, as the accessibility IPC
+        source.onVisit= new Runnable() {
+            @Override
+            public void run() {
+                LockSupport.parkNanos(20000);
+            }
+        };
+        final ScrollingNodesScan<Node> scan= new ScrollingNodesScan<>(source, SCROLL, WEB_VIEW);
+        final CountDownLatch started= new CountDownLatch(1);
+        final AtomicReference<ScrollingNodesScan.Result<Node>> result= new AtomicReference<>();
+        final AtomicReference<Integer> visited= new AtomicReference<>();
+
+        Thread scanThread= new Thread(new Runnable() {
+            @Override
+            public void run() {
+                started.countDown();
+                result.set(scan.run(root));
+                visited.set(source.visited);
+            }
+        });
+        scanThread.start();
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(5));
+        scan.invalidate();
+        scanThread.join(5000);
+
+        assertFalse(scanThread.isAlive());
+        assertNull(result.get());
+        // 3906 nodes, far from a complete walk
+        assertTrue(visited.get() < 3906);
+    }
+}
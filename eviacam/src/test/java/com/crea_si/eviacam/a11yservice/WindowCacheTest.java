@@ -0,0 +1,197 @@
+/*
+ * Enable Viacam for Android, a camera based mouse emulator
+ *
+ * Copyright (C) 2015-17 Cesar Mauri Loba (CREA Software Systems)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.crea_si.eviacam.a11yservice;
+
+import android.graphics.Point;
+
+import androidx.annotation.NonNull;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class WindowCacheTest {
+    /* Windows described as { layer, window bounds, root bounds }, null root when no bounds */
+    private static class FakeSource implements WindowCache.WindowSource<String> {
+        final List<Object[]> windows= new ArrayList<>();
+        int calls;
+
+        void add(String root, int layer, int[] windowBounds, int[] rootBounds) {
+            windows.add(new Object[] { root, layer, windowBounds, rootBounds });
+        }
+
+        void remove(String root) {
+            for (int i= 0; i < windows.size(); i++) {
+                if (root.equals(windows.get(i)[0])) windows.remove(i--);
+            }
+        }
+
+        void setLayer(String root, int layer) {
+            for (Object[] d : windows) {
+                if (root.equals(d[0])) d[1]= layer;
+            }
+        }
+
+        @Override
+        public void getWindows(@NonNull List<WindowCache.Window<String>> out) {
+            calls++;
+            for (Object[] d : windows) {
+                WindowCache.Window<String> w= new WindowCache.Window<>((Integer) d[1]);
+                System.arraycopy((int[]) d[2], 0, w.windowBounds, 0, 4);
+                w.root= (String) d[0];
+                if (d[3] != null) System.arraycopy((int[]) d[3], 0, w.rootBounds, 0, 4);
+                out.add(w);
+            }
+        }
+    }
+
+    private static int[] rect(int left, int top, int right, int bottom) {
+        return new int[] { left, top, right, bottom };
+    }
+
+    private static Point point(int x, int y) {
+        // do not rely on the constructor, stubbed in unit tests
+        Point p= new Point();
+        p.x= x;
+        p.y= y;
+        return p;
+    }
+
+    @Test
+    public void noWindows() {
+        FakeSource source= new FakeSource();
+        WindowCache<String> cache= new WindowCache<>(source);
+        assertNull(cache.findRoot(point(0, 0)));
+        assertEquals(1, source.calls);
+    }
+
+    @Test
+    public void topmostWindowWins() {
+        FakeSource source= new FakeSource();
+        // reported in any order
+        source.add("app", 1, rect(0, 0, 1080, 1920), rect(0, 0, 1080, 1920));
+        source.add("dialog", 3, rect(100, 500, 900, 1000), rect(100, 500, 900, 1000));
+        source.add("ime", 2, rect(0, 1200, 1080, 1920), rect(0, 1200, 1080, 1920));
+        WindowCache<String> cache= new WindowCache<>(source);
+
+        assertEquals("dialog", cache.findRoot(point(500, 700)));
+        assertEquals("ime", cache.findRoot(point(500, 1500)));
+        assertEquals("app", cache.findRoot(point(500, 100)));
+        // right and bottom edges excluded
+        assertEquals("app", cache.findRoot(point(900, 700)));
+        assertNull(cache.findRoot(point(1080, 100)));
+        assertNull(cache.findRoot(point(-1, 100)));
+    }
+
+    @Test
+    public void rootBoundsMustContainThePoint() {
+        FakeSource source= new FakeSource();
+        source.add("app", 1, rect(0, 0, 1080, 1920), rect(0, 0, 1080, 1920));
+        // window larger than its root
+        source.add("panel", 2, rect(0, 0, 1080, 1920), rect(0, 0, 200, 1920));
+        // window without root
+        source.add(null, 3, rect(0, 0, 1080, 100), null);
+        // empty root bounds
+        source.add("empty", 4, rect(0, 0, 1080, 1920), rect(50, 50, 50, 50));
+        WindowCache<String> cache= new WindowCache<>(source);
+
+        assertEquals("panel", cache.findRoot(point(100, 50)));
+        assertEquals("app", cache.findRoot(point(500, 50)));
+        assertEquals("app", cache.findRoot(point(500, 500)));
+    }
+
+    @Test
+    public void windowsAreFetchedOnlyAfterInvalidate() {
+        FakeSource source= new FakeSource();
+        source.add("app", 1, rect(0, 0, 1080, 1920), rect(0, 0, 1080, 1920));
+        WindowCache<String> cache= new WindowCache<>(source);
+
+        for (int i= 0; i < 10; i++) assertEquals("app", cache.findRoot(point(10, 10)));
+        assertEquals(1, source.calls);
+        assertEquals(1, cache.getMisses());
+        assertEquals(9, cache.getHits());
+
+        // a new window, unnoticed until the cache is invalidated
+        source.add("dialog", 2, rect(0, 0, 100, 100), rect(0, 0, 100, 100));
+        assertEquals("app", cache.findRoot(point(10, 10)));
+
+        cache.invalidate();
+        cache.invalidate();
+        assertEquals("dialog", cache.findRoot(point(10, 10)));
+        assertEquals(2, source.calls);
+        assertEquals(2, cache.getMisses());
+    }
+
+    @Test
+    public void removedWindowsAreForgotten() {
+        FakeSource source= new FakeSource();
+        source.add("app", 1, rect(0, 0, 1080, 1920), rect(0, 0, 1080, 1920));
+        source.add("dialog", 3, rect(100, 500, 900, 1000), rect(100, 500, 900, 1000));
+        source.add("ime", 2, rect(0, 1200, 1080, 1920), rect(0, 1200, 1080, 1920));
+        WindowCache<String> cache= new WindowCache<>(source);
+        assertEquals("dialog", cache.findRoot(point(500, 700)));
+        assertEquals("ime", cache.findRoot(point(500, 1500)));
+
+        // dismissed, but reported until the system notifies the change
+        source.remove("dialog");
+        assertEquals("dialog", cache.findRoot(point(500, 700)));
+        cache.invalidate();
+        assertEquals("app", cache.findRoot(point(500, 700)));
+        assertEquals("ime", cache.findRoot(point(500, 1500)));
+
+        source.remove("ime");
+        source.remove("app");
+        cache.invalidate();
+        assertNull(cache.findRoot(point(500, 700)));
+        assertNull(cache.findRoot(point(500, 1500)));
+        assertEquals(3, source.calls);
+    }
+
+    @Test
+    public void layerChangesReorderTheWindows() {
+        FakeSource source= new FakeSource();
+        source.add("app", 1, rect(0, 0, 1080, 1920), rect(0, 0, 1080, 1920));
+        source.add("split", 2, rect(0, 0, 1080, 1000), rect(0, 0, 1080, 1000));
+        source.add("dialog", 3, rect(0, 500, 1080, 1500), rect(0, 500, 1080, 1500));
+        WindowCache<String> cache= new WindowCache<>(source);
+        assertEquals("dialog", cache.findRoot(point(500, 700)));
+        assertEquals("split", cache.findRoot(point(500, 100)));
+
+        // the app is brought to front
+        source.setLayer("app", 4);
+        assertEquals("dialog", cache.findRoot(point(500, 700)));
+        cache.invalidate();
+        assertEquals("app", cache.findRoot(point(500, 700)));
+        assertEquals("app", cache.findRoot(point(500, 100)));
+
+        // and the split window and the dialog swap
+        source.setLayer("app", 1);
+        source.setLayer("split", 3);
+        source.setLayer("dialog", 2);
+        cache.invalidate();
+        assertEquals("split", cache.findRoot(point(500, 700)));
+        assertEquals("dialog", cache.findRoot(point(500, 1200)));
+        assertEquals("app", cache.findRoot(point(500, 1600)));
+    }
+}
@@ -0,0 +1,191 @@
+/*
+ * Enable Viacam for Android, a camera based mouse emulator
+ *
+ * Copyright (C) 2015-17 Cesar Mauri Loba (CREA Software Systems)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.crea_si.eviacam.camera;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+/*
+ * Packing of YUV_420_888 planes with the layouts delivered by camera HALs:
+ * padded rows, planar or interleaved chroma. Buffers end right after the last
+ * pixel of each plane as those of an Image do.
+ */
+public class CopyFrameIngestorTest {
+    // value of each pixel of the synthetic frames
+    private static byte pixel(int plane, int x, int y) {
+        return (byte) (plane * 85 + x * 7 + y * 13);
+    }
+
+    // bytes a plane buffer spans: the last row is not padded
+    private static int planeSize(int width, int height, int rowStride, int pixelStride) {
+        return rowStride * (height - 1) + (width - 1) * pixelStride + 1;
+    }
+
+    private static ByteBuffer allocate(int size, boolean direct) {
+        ByteBuffer b= direct ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+        for (int i= 0; i < size; i++) b.put(i, (byte) 0xEE);
+        return b;
+    }
+
+    /* Frame laid out as a camera would deliver it */
+    private static class Frame {
+        final int width, height;
+        final ByteBuffer[] buffers= new ByteBuffer[3];
+        final int[] rowStrides= new int[3];
+        final int[] pixelStrides= new int[3];
+
+        /*
+         * @param yPadding, uvPadding extra bytes at the end of each row
+         * @param interleaved chroma samples interleaved (pixel stride 2), vFirst tells
+         *   the order of the samples (NV21 when true, NV12 otherwise)
+         */
+        Frame(int width, int height, int yPadding, int uvPadding, boolean interleaved,
+              boolean vFirst, boolean direct) {
+            this.width= width;
+            this.height= height;
+            final int cw= width / 2, ch= height / 2;
+
+            rowStrides[0]= width + yPadding;
+            pixelStrides[0]= 1;
+            buffers[0]= allocate(planeSize(width, height, rowStrides[0], 1), direct);
+            for (int row= 0; row < height; row++) {
+                for (int col= 0; col < width; col++) {
+                    buffers[0].put(row * rowStrides[0] + col, pixel(0, col, row));
+                }
+            }
+
+            final int uvPixelStride= interleaved ? 2 : 1;
+            final int uvRowStride= cw * uvPixelStride + uvPadding;
+            final int uvSize= planeSize(cw, ch, uvRowStride, uvPixelStride);
+            for (int i= 1; i <= 2; i++) {
+                rowStrides[i]= uvRowStride;
+                pixelStrides[i]= uvPixelStride;
+            }
+            if (interleaved) {
+                // both chroma planes are views of the same memory
+                ByteBuffer uv= allocate(uvSize + 1, direct);
+                final int uOffset= vFirst ? 1 : 0;
+                for (int row= 0; row < ch; row++) {
+                    for (int col= 0; col < cw; col++) {
+                        uv.put(row * uvRowStride + col * 2 + uOffset, pixel(1, col, row));
+                        uv.put(row * uvRowStride + col * 2 + 1 - uOffset, pixel(2, col, row));
+                    }
+                }
+                buffers[1]= view(uv, uOffset, uvSize);
+                buffers[2]= view(uv, 1 - uOffset, uvSize);
+            } else {
+                for (int i= 1; i <= 2; i++) {
+                    buffers[i]= allocate(uvSize, direct);
+                    for (int row= 0; row < ch; row++) {
+                        for (int col= 0; col < cw; col++) {
+                            buffers[i].put(row * uvRowStride + col, pixel(i, col, row));
+                        }
+                    }
+                }
+            }
+        }
+
+        private static ByteBuffer view(ByteBuffer b, int offset, int size) {
+            ByteBuffer d= b.duplicate();
+            d.position(offset);
+            d.limit(offset + size);
+            return d.slice();
+        }
+
+        // I420 image read pixel by pixel
+        byte[] expected() {
+            final int cw= width / 2, ch= height / 2;
+            byte[] out= new byte[width * height + 2 * cw * ch];
+            int p= 0;
+            for (int row= 0; row < height; row++) {
+                for (int col= 0; col < width; col++) out[p++]= buffers[0].get(row * rowStrides[0] + col);
+            }
+            for (int i= 1; i <= 2; i++) {
+                for (int row= 0; row < ch; row++) {
+                    for (int col= 0; col < cw; col++) {
+                        out[p++]= buffers[i].get(row * rowStrides[i] + col * pixelStrides[i]);
+                    }
+                }
+            }
+            return out;
+        }
+
+        byte[] pack(CopyFrameIngestor ingestor) {
+            return ingestor.pack(width, height, buffers, rowStrides, pixelStrides);
+        }
+    }
+
+    private static void check(int width, int height, int yPadding, int uvPadding,
+                              boolean interleaved, boolean vFirst) {
+        for (boolean direct : new boolean[] { false, true }) {
+            Frame f= new Frame(width, height, yPadding, uvPadding, interleaved, vFirst, direct);
+            byte[] expected= f.expected();
+            // also check the expected image itself against the synthetic pixels
+            assertEquals(pixel(2, width / 2 - 1, height / 2 - 1), expected[expected.length - 1]);
+            assertArrayEquals(width + "x" + height + " padding " + yPadding + "/" + uvPadding +
+                    (interleaved ? (vFirst ? " NV21" : " NV12") : " planar"),
+                    expected, f.pack(new CopyFrameIngestor()));
+        }
+    }
+
+    @Test
+    public void planar() {
+        check(352, 288, 0, 0, false, false);
+        check(640, 480, 0, 0, false, false);
+    }
+
+    @Test
+    public void paddedRows() {
+        check(352, 288, 13, 7, false, false);
+        check(34, 6, 1, 3, false, false);
+    }
+
+    @Test
+    public void interleavedChroma() {
+        check(352, 288, 0, 0, true, false);
+        check(352, 288, 0, 0, true, true);
+        check(2, 2, 0, 0, true, false);
+    }
+
+    @Test
+    public void paddedRowsAndInterleavedChroma() {
+        check(640, 480, 64, 31, true, false);
+        check(640, 480, 64, 31, true, true);
+        check(34, 6, 5, 1, true, true);
+    }
+
+    @Test
+    public void buffersReusedWhileTheSizeDoesNotChange() {
+        CopyFrameIngestor ingestor= new CopyFrameIngestor();
+        byte[] first= new Frame(352, 288, 32, 16, true, false, true).pack(ingestor);
+        Frame f= new Frame(352, 288, 0, 0, false, false, true);
+        byte[] second= f.pack(ingestor);
+        assertSame(first, second);
+        assertArrayEquals(f.expected(), second);
+
+        f= new Frame(176, 144, 8, 8, true, true, true);
+        assertArrayEquals(f.expected(), f.pack(ingestor));
+    }
+}
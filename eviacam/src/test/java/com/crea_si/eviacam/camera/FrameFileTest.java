@@ -0,0 +1,191 @@
+/*
+ * Enable Viacam for Android, a camera based mouse emulator
+ *
+ * Copyright (C) 2015-17 Cesar Mauri Loba (CREA Software Systems)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.crea_si.eviacam.camera;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class FrameFileTest {
+    // retries count as dropped frames
+    private static FrameFile.Frame obtainWaiting(FrameFile.Writer w, int width, int height)
+            throws Exception {
+        FrameFile.Frame f;
+        while ((f= w.obtainFrame(width, height)) == null) Thread.sleep(1);
+        return f;
+    }
+
+    private static void fill(FrameFile.Frame f, int seed) {
+        for (int i= 0; i < f.size(); i++) f.data[i]= (byte) (seed + i);
+    }
+
+    @Test
+    public void roundTrip() throws Exception {
+        ByteArrayOutputStream out= new ByteArrayOutputStream();
+        FrameFile.Writer w= new FrameFile.Writer(out, 2);
+        for (int i= 0; i < 20; i++) {
+            // change the size in the middle to check that buffers are resized
+            int width= i < 10 ? 8 : 16;
+            FrameFile.Frame f= obtainWaiting(w, width, 6);
+            fill(f, i);
+            f.timestamp= 1000000000L + i * 33000000L;
+            f.flip= i % 3;
+            f.rotation= (i % 4) * 90;
+            w.submit(f);
+        }
+        w.close();
+        assertEquals(20, w.getWrittenFrames());
+
+        FrameFile.Reader r= new FrameFile.Reader(new ByteArrayInputStream(out.toByteArray()));
+        FrameFile.Frame expected= new FrameFile.Frame();
+        for (int i= 0; i < 20; i++) {
+            FrameFile.Frame f= r.next();
+            assertNotNull(f);
+            assertEquals(i < 10 ? 8 : 16, f.width);
+            assertEquals(6, f.height);
+            assertEquals(1000000000L + i * 33000000L, f.timestamp);
+            assertEquals(i % 3, f.flip);
+            assertEquals((i % 4) * 90, f.rotation);
+
+            expected.width= f.width;
+            expected.height= f.height;
+            expected.data= new byte[expected.size()];
+            fill(expected, i);
+            assertArrayEquals(expected.data, Arrays.copyOf(f.data, f.size()));
+        }
+        assertNull(r.next());
+        r.close();
+    }
+
+    @Test
+    public void dropsFramesWhenStorageIsSlow() throws Exception {
+        final CountDownLatch release= new CountDownLatch(1);
+        final ByteArrayOutputStream sink= new ByteArrayOutputStream();
+        OutputStream slow= new OutputStream() {
+            private void await() throws IOException {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+            }
+            @Override
+            public void write(int b) throws IOException {
+                await();
+                sink.write(b);
+            }
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                await();
+                sink.write(b, off, len);
+            }
+        };
+
+        // frames larger than the stream buffer so that each one reaches the slow stream
+        final int width= 128, height= 128;
+        FrameFile.Writer w= new FrameFile.Writer(slow, 3);
+        int submitted= 0;
+        long start= System.nanoTime();
+        for (int i= 0; i < 50; i++) {
+            FrameFile.Frame f= w.obtainFrame(width, height);
+            if (f == null) continue;
+            f.timestamp= i;
+            w.submit(f);
+            submitted++;
+        }
+        // the caller never waited for the storage
+        assertTrue(System.nanoTime() - start < 1000000000L);
+        assertEquals(3, submitted);
+        assertEquals(47, w.getDroppedFrames());
+
+        release.countDown();
+        w.close();
+        assertEquals(3, w.getWrittenFrames());
+
+        FrameFile.Reader r= new FrameFile.Reader(new ByteArrayInputStream(sink.toByteArray()));
+        for (int i= 0; i < 3; i++) {
+            FrameFile.Frame f= r.next();
+            assertNotNull(f);
+            assertEquals(i, f.timestamp);
+        }
+        assertNull(r.next());
+    }
+
+    @Test
+    public void writeErrorIsReported() throws Exception {
+        final IOException error= new IOException("disk full");
+        OutputStream failing= new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                throw error;
+            }
+        };
+
+        FrameFile.Writer w= new FrameFile.Writer(failing, 2);
+        try {
+            for (int i= 0; i < 1000; i++) {
+                FrameFile.Frame f= obtainWaiting(w, 128, 128);
+                w.submit(f);
+            }
+            fail("write error not reported");
+        }
+        catch (IOException e) {
+            assertSame(error, e);
+        }
+        try {
+            w.close();
+            fail("write error not reported by close");
+        }
+        catch (IOException e) {
+            assertSame(error, e);
+        }
+    }
+
+    @Test(expected= IOException.class)
+    public void rejectsOtherFiles() throws Exception {
+        new FrameFile.Reader(new ByteArrayInputStream(new byte[] { 1, 2, 3, 4, 0, 0, 0, 1 }));
+    }
+
+    @Test(expected= IOException.class)
+    public void truncatedFrame() throws Exception {
+        ByteArrayOutputStream out= new ByteArrayOutputStream();
+        FrameFile.Writer w= new FrameFile.Writer(out, 1);
+        w.submit(obtainWaiting(w, 4, 4));
+        w.close();
+        byte[] data= out.toByteArray();
+
+        FrameFile.Reader r= new FrameFile.Reader(
+                new ByteArrayInputStream(Arrays.copyOf(data, data.length - 1)));
+        r.next();
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * Enable Viacam for Android, a camera based mouse emulator
+ *
+ * Copyright (C) 2015-17 Cesar Mauri Loba (CREA Software Systems)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.crea_si.eviacam.camera;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import org.junit.Test;
+import org.opencv.core.Mat;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Replays synthetic recordings without the native libraries: frames are captured
+ * by overriding deliver.
+ */
+public class FrameReplaySourceTest {
+    private static final long FRAME_TIME= 20000000L;    // 20 ms
+    private static final long FIRST_TIMESTAMP= 123456789000L;
+
+    private static byte[] record(int count) throws IOException {
+        ByteArrayOutputStream out= new ByteArrayOutputStream();
+        FrameFile.Writer w= new FrameFile.Writer(out, count);
+        for (int i= 0; i < count; i++) {
+            FrameFile.Frame f= w.obtainFrame(4, 2);
+            f.data[0]= (byte) i;
+            f.timestamp= FIRST_TIMESTAMP + i * FRAME_TIME;
+            f.flip= 1;
+            f.rotation= 270;
+            w.submit(f);
+        }
+        w.close();
+        return out.toByteArray();
+    }
+
+    private static class CountingProcessor implements FrameProcessor {
+        int started, stopped;
+        @Override public void processFrame(@NonNull Mat rgba) { }
+        @Override public void processGrayFrame(@NonNull Mat gray, @Nullable Mat preview) { }
+        @Override public void onCameraStarted() { started++; }
+        @Override public void onCameraStopped() { stopped++; }
+        @Override public void onCameraErrorStopped() { }
+        @Override public void onCameraError(@NonNull Throwable error) { }
+    }
+
+    private static class CapturingSource extends FrameReplaySource {
+        final List<Long> timestamps= new ArrayList<>();
+        final List<Long> deliveryTimes= new ArrayList<>();
+        final List<Integer> firstBytes= new ArrayList<>();
+        int stopAfter= Integer.MAX_VALUE;
+
+        CapturingSource(byte[] data, FrameProcessor fp, boolean realTime) throws IOException {
+            super(new ByteArrayInputStream(data), fp, realTime);
+        }
+
+        @Override
+        void deliver(@NonNull FrameFile.Frame frame) {
+            deliveryTimes.add(System.nanoTime());
+            timestamps.add(frame.timestamp);
+            firstBytes.add((int) frame.data[0]);
+            assertEquals(1, frame.flip);
+            assertEquals(270, frame.rotation);
+            if (timestamps.size() == stopAfter) stop();
+        }
+    }
+
+    @Test
+    public void deliversRecordedFramesInOrder() throws Exception {
+        CountingProcessor fp= new CountingProcessor();
+        CapturingSource src= new CapturingSource(record(10), fp, false);
+        final List<Long> reported= new ArrayList<>();
+        src.setListener(new FrameReplaySource.Listener() {
+            @Override
+            public void onFrameProcessed(int index, long timestamp, long processingTime) {
+                assertEquals(reported.size(), index);
+                reported.add(timestamp);
+            }
+        });
+
+        assertEquals(10, src.run());
+        src.close();
+
+        for (int i= 0; i < 10; i++) {
+            // the recorded time stamps reach the processor, not the replay time
+            assertEquals(FIRST_TIMESTAMP + i * FRAME_TIME, (long) src.timestamps.get(i));
+            assertEquals(i, (int) src.firstBytes.get(i));
+        }
+        assertEquals(src.timestamps, reported);
+        assertEquals(1, fp.started);
+        assertEquals(1, fp.stopped);
+    }
+
+    @Test
+    public void realTimeKeepsRecordedPace() throws Exception {
+        CapturingSource src= new CapturingSource(record(6), new CountingProcessor(), true);
+        src.run();
+        src.close();
+
+        long start= src.deliveryTimes.get(0);
+        for (int i= 1; i < 6; i++) {
+            long elapsed= src.deliveryTimes.get(i) - start;
+            assertTrue("frame " + i + " too early", elapsed >= i * FRAME_TIME - 1000000L);
+        }
+    }
+
+    @Test
+    public void stopAndCameraNotifications() throws Exception {
+        CountingProcessor fp= new CountingProcessor();
+        CapturingSource src= new CapturingSource(record(10), fp, false);
+        src.setNotifyCameraState(false);
+        src.stopAfter= 3;
+
+        assertEquals(3, src.run());
+        src.close();
+        assertEquals(0, fp.started);
+        assertEquals(0, fp.stopped);
+    }
+}
@@ -0,0 +1,202 @@
+/*
+ * Enable Viacam for Android, a camera based mouse emulator
+ *
+ * Copyright (C) 2015-17 Cesar Mauri Loba (CREA Software Systems)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.crea_si.eviacam.camera;
+
+import com.crea_si.eviacam.common.Preferences;
+import com.crea_si.eviacam.util.FrameRing;
+
+import org.junit.Test;
+import org.opencv.core.Size;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PreviewPolicyTest {
+    @Test
+    public void shouldRender() {
+        PreviewPolicy p= new PreviewPolicy();
+        assertEquals(Preferences.PreviewMode.FULL, p.getMode());
+        assertTrue(p.shouldRender(true));
+        assertFalse(p.shouldRender(false));
+
+        assertTrue(p.setMode(Preferences.PreviewMode.REDUCED));
+        assertFalse(p.setMode(Preferences.PreviewMode.REDUCED));
+        int rendered= 0;
+        for (int i= 0; i < 10 * PreviewPolicy.REDUCED_FRAME_INTERVAL; i++) {
+            if (p.shouldRender(true)) rendered++;
+        }
+        assertEquals(10, rendered);
+
+        p.setMode(Preferences.PreviewMode.OFF);
+        for (int i= 0; i < 10; i++) assertFalse(p.shouldRender(true));
+    }
+
+    @Test
+    public void reducedSize() {
+        Size s= new Size();
+        // unknown surface: scaled by REDUCED_SCALE
+        PreviewPolicy.getReducedSize(640, 480, 0, 0, s);
+        assertEquals(320, s.width, 0);
+        assertEquals(240, s.height, 0);
+
+        // large surface: still REDUCED_SCALE
+        PreviewPolicy.getReducedSize(640, 480, 1920, 1080, s);
+        assertEquals(320, s.width, 0);
+
+        // small surface, possibly rotated: fit the largest dimension
+        PreviewPolicy.getReducedSize(640, 480, 100, 200, s);
+        assertEquals(200, s.width, 0);
+        assertEquals(150, s.height, 0);
+
+        PreviewPolicy.getReducedSize(640, 480, 1, 1, s);
+        assertEquals(1, s.width, 0);
+        assertEquals(1, s.height, 0);
+    }
+
+    /* Preview image: number of the frame it comes from */
+    private static class Preview {
+        long frame= -1;
+    }
+
+    /*
+     * Processing thread -> preview thread hand-off as done by Camera2Listener: the
+     * processing thread publishes the frames chosen by the policy in a LATEST_WINS
+     * ring and posts a draw unless one is pending. The preview thread draws the
+     * newest preview unless the preview has been turned off.
+     */
+    private static class Handoff {
+        final PreviewPolicy policy= new PreviewPolicy();
+        final FrameRing<Preview> ring= new FrameRing<>("preview", FrameRing.DropPolicy.LATEST_WINS,
+                0, new FrameRing.SlotFactory<Preview>() {
+                    @Override
+                    public Preview create() {
+                        return new Preview();
+                    }
+                });
+        final ExecutorService previewThread= Executors.newSingleThreadExecutor();
+        final AtomicBoolean scheduled= new AtomicBoolean(false);
+        final List<Long> drawn= Collections.synchronizedList(new ArrayList<Long>());
+        volatile boolean overwritten;
+        volatile long drawCost;
+        int published;
+
+        final Runnable draw= new Runnable() {
+            @Override
+            public void run() {
+                scheduled.set(false);
+                Preview p= ring.beginRead();
+                if (p == null || policy.getMode() == Preferences.PreviewMode.OFF) return;
+                long frame= p.frame;
+                LockSupport.parkNanos(drawCost);
+                // the slot held by the preview thread must not be overwritten meanwhile
+                if (p.frame != frame) overwritten= true;
+                ring.endRead();
+                drawn.add(frame);
+            }
+        };
+
+        void processFrame(long frame) {
+            if (!policy.shouldRender(true)) return;
+            Preview p= ring.beginWrite();
+            p.frame= frame;
+            ring.endWrite();
+            published++;
+            if (scheduled.compareAndSet(false, true)) previewThread.execute(draw);
+        }
+
+        void finish() throws InterruptedException {
+            previewThread.shutdown();
+            assertTrue(previewThread.awaitTermination(5, TimeUnit.SECONDS));
+            ring.release();
+            assertFalse("preview overwritten while drawn", overwritten);
+        }
+    }
+
+    private static void assertIncreasing(List<Long> drawn) {
+        for (int i= 1; i < drawn.size(); i++) {
+            assertTrue("stale preview drawn", drawn.get(i) > drawn.get(i - 1));
+        }
+    }
+
+    @Test
+    public void fullModeSlowPreview() throws Exception {
+        Handoff h= new Handoff();
+        h.drawCost= 300000;
+        for (int i= 0; i < 300; i++) {
+            h.processFrame(i);
+            LockSupport.parkNanos(50000);
+        }
+        h.finish();
+
+        assertEquals(300, h.published);
+        assertIncreasing(h.drawn);
+        // the preview skips frames but the latest one is always drawn
+        assertTrue(h.drawn.size() < 300);
+        assertEquals(299, (long) h.drawn.get(h.drawn.size() - 1));
+        assertEquals(h.drawn.size(), h.ring.getConsumedCount());
+    }
+
+    @Test
+    public void reducedMode() throws Exception {
+        Handoff h= new Handoff();
+        h.policy.setMode(Preferences.PreviewMode.REDUCED);
+        for (int i= 0; i < 100; i++) {
+            h.processFrame(i);
+            LockSupport.parkNanos(100000);
+        }
+        h.finish();
+
+        assertEquals(100 / PreviewPolicy.REDUCED_FRAME_INTERVAL, h.published);
+        assertIncreasing(h.drawn);
+        for (long frame : h.drawn) {
+            assertEquals(PreviewPolicy.REDUCED_FRAME_INTERVAL - 1,
+                    frame % PreviewPolicy.REDUCED_FRAME_INTERVAL);
+        }
+        assertEquals(99, (long) h.drawn.get(h.drawn.size() - 1));
+    }
+
+    @Test
+    public void turnedOffWhileDrawing() throws Exception {
+        Handoff h= new Handoff();
+        h.drawCost= 1000000;
+        for (int i= 0; i < 50; i++) h.processFrame(i);
+        // a preview published before turning it off must not be drawn afterwards
+        h.policy.setMode(Preferences.PreviewMode.OFF);
+        int drawnBefore= h.drawn.size();
+        for (int i= 50; i < 100; i++) h.processFrame(i);
+        h.finish();
+
+        assertEquals(50, h.published);
+        assertIncreasing(h.drawn);
+        // at most the draw in progress when the preview was turned off completes
+        assertTrue(h.drawn.size() <= drawnBefore + 1);
+        for (long frame : h.drawn) assertTrue(frame < 50);
+    }
+}
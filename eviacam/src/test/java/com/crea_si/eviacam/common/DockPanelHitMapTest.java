@@ -0,0 +1,406 @@
+/*
+ * Enable Viacam for Android, a camera based mouse emulator
+ *
+ * Copyright (C) 2015-17 Cesar Mauri Loba (CREA Software Systems)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.crea_si.eviacam.common;
+
+import android.view.View;
+
+import androidx.annotation.NonNull;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+public class DockPanelHitMapTest {
+    /* View with its location on screen, a group when children is not null */
+    private static class FakeView {
+        int id= View.NO_ID;
+        boolean visible= true;
+        int x, y, width, height;
+        List<FakeView> children;
+
+        static FakeView button(int id, int x, int y, int width, int height) {
+            FakeView v= new FakeView();
+            v.id= id;
+            v.x= x;
+            v.y= y;
+            v.width= width;
+            v.height= height;
+            return v;
+        }
+
+        static FakeView group(int x, int y, int width, int height, FakeView... children) {
+            FakeView v= button(View.NO_ID, x, y, width, height);
+            v.children= new ArrayList<>();
+            for (FakeView c : children) v.children.add(c);
+            return v;
+        }
+    }
+
+    private static final DockPanelHitMap.ViewTree<FakeView> TREE=
+            new DockPanelHitMap.ViewTree<FakeView>() {
+        @Override
+        public boolean isVisible(@NonNull FakeView v) {
+            return v.visible;
+        }
+
+        @Override
+        public void getLocationOnScreen(@NonNull FakeView v, @NonNull int[] location) {
+            location[0]= v.x;
+            location[1]= v.y;
+        }
+
+        @Override
+        public int getWidth(@NonNull FakeView v) {
+            return v.width;
+        }
+
+        @Override
+        public int getHeight(@NonNull FakeView v) {
+            return v.height;
+        }
+
+        @Override
+        public int getId(@NonNull FakeView v) {
+            return v.id;
+        }
+
+        @Override
+        public int getChildCount(@NonNull FakeView v) {
+            return v.children == null ? -1 : v.children.size();
+        }
+
+        @NonNull
+        @Override
+        public FakeView getChildAt(@NonNull FakeView v, int index) {
+            return v.children.get(index);
+        }
+    };
+
+    /* Same logic as ViewUtils.findViewWithIdBelowPoint, walking the tree each time */
+    private static int findViewWithIdBelowPoint(int px, int py, FakeView v) {
+        if (!v.visible) return View.NO_ID;
+        if (px < v.x || py < v.y || v.x + v.width < px || v.y + v.height < py) {
+            return View.NO_ID;
+        }
+        if (v.children == null) return v.id;
+        for (FakeView c : v.children) {
+            int id= findViewWithIdBelowPoint(px, py, c);
+            if (id != View.NO_ID) return id;
+        }
+        return View.NO_ID;
+    }
+
+    @Test
+    public void empty() {
+        DockPanelHitMap map= new DockPanelHitMap.Builder<>(TREE).build(null);
+        assertEquals(0, map.size());
+        assertEquals(View.NO_ID, map.find(0, 0));
+        assertEquals(View.NO_ID, DockPanelHitMap.EMPTY.find(0, 0));
+    }
+
+    @Test
+    public void panel() {
+        FakeView hidden= FakeView.button(3, 0, 100, 50, 50);
+        hidden.visible= false;
+        FakeView panel= FakeView.group(0, 0, 50, 300,
+                FakeView.button(1, 0, 0, 50, 50),
+                FakeView.button(2, 0, 50, 50, 50),
+                hidden,
+                FakeView.button(View.NO_ID, 0, 150, 50, 50),
+                // sticks out of its parent
+                FakeView.button(4, 0, 250, 50, 100));
+
+        DockPanelHitMap map= new DockPanelHitMap.Builder<>(TREE).build(panel);
+        assertEquals(3, map.size());
+        assertEquals(1, map.find(10, 10));
+        // inclusive bounds, the first one wins
+        assertEquals(1, map.find(50, 50));
+        assertEquals(2, map.find(50, 51));
+        assertEquals(View.NO_ID, map.find(10, 120));
+        assertEquals(View.NO_ID, map.find(10, 170));
+        assertEquals(4, map.find(10, 300));
+        // clipped by the panel
+        assertEquals(View.NO_ID, map.find(10, 301));
+        assertEquals(View.NO_ID, map.find(51, 10));
+    }
+
+    @Test
+    public void mapsAreNotAffectedByLaterBuilds() {
+        FakeView button= FakeView.button(1, 0, 0, 50, 50);
+        FakeView panel= FakeView.group(0, 0, 100, 100, button);
+        DockPanelHitMap.Builder<FakeView> builder= new DockPanelHitMap.Builder<>(TREE);
+
+        DockPanelHitMap before= builder.build(panel);
+        button.x= 50;
+        button.id= 2;
+        DockPanelHitMap after= builder.build(panel);
+
+        assertEquals(1, before.find(10, 10));
+        assertEquals(View.NO_ID, after.find(10, 10));
+        assertEquals(2, after.find(60, 10));
+    }
+
+    private static FakeView randomTree(Random random, int depth, int[] nextId) {
+        int x= random.nextInt(400) - 50;
+        int y= random.nextInt(400) - 50;
+        int width= random.nextInt(200);
+        int height= random.nextInt(200);
+        if (depth == 0 || random.nextInt(4) == 0) {
+            // some leaves without id
+            int id= random.nextInt(5) == 0 ? View.NO_ID : nextId[0]++;
+            FakeView v= FakeView.button(id, x, y, width, height);
+            v.visible= random.nextInt(8) != 0;
+            return v;
+        }
+        FakeView g= FakeView.group(x, y, width + 100, height + 100);
+        g.visible= random.nextInt(10) != 0;
+        int count= random.nextInt(5);
+        for (int i= 0; i < count; i++) g.children.add(randomTree(random, depth - 1, nextId));
+        return g;
+    }
+
+    @Test
+    public void matchesHierarchyWalk() {
+        Random random= new Random(99);
+        DockPanelHitMap.Builder<FakeView> builder= new DockPanelHitMap.Builder<>(TREE);
+        for (int round= 0; round < 200; round++) {
+            FakeView root= randomTree(random, 4, new int[] { 1 });
+            DockPanelHitMap map= builder.build(root);
+            for (int q= 0; q < 500; q++) {
+                int x= random.nextInt(600) - 100;
+                int y= random.nextInt(600) - 100;
+                assertEquals("round " + round + " at " + x + "," + y,
+                        findViewWithIdBelowPoint(x, y, root), map.find(x, y));
+            }
+        }
+    }
+
+    private static final int EDGE_LEFT= 0;
+    private static final int EDGE_RIGHT= 1;
+    private static final int EDGE_TOP= 2;
+    private static final int EDGE_BOTTOM= 3;
+
+    // ui_elements_size_values
+    private static final float[] SIZES= { 0.8f, 1f, 1.5f, 2f };
+
+    // { width, height, density }
+    private static final float[][] SCREENS= {
+            { 320, 480, 1f }, { 1080, 1920, 2.625f }, { 1920, 1080, 2.625f } };
+
+    private static final int BUTTONS= 10;
+    private static final int FIRST_BUTTON_ID= 100;
+    private static final int TOGGLE_ID= 200;
+
+    /*
+     * Dock panel as laid out by DockPanelLayerView: a container aligned to the
+     * edge and centered along it with the buttons of dock_panel_layout (35dp
+     * each) and the toggle button (18x30dp) on the inner side. When collapsed
+     * only the toggle button is shown.
+     */
+    private static FakeView dockPanel(int edge, float size, float[] screen, boolean collapsed) {
+        final int screenWidth= (int) screen[0], screenHeight= (int) screen[1];
+        final float density= screen[2];
+        final int button= (int) (Math.round(35 * density) * size);
+        final int shortSide= (int) (18 * density * size);
+        final int longSide= (int) (30 * density * size);
+        final boolean vertical= edge == EDGE_LEFT || edge == EDGE_RIGHT;
+        final int contents= collapsed ? 0 : BUTTONS * button;
+        final int across= collapsed ? 0 : button;
+
+        // size of the container
+        final int width= vertical ? across + shortSide : Math.max(contents, longSide);
+        final int height= vertical ? Math.max(contents, longSide) : across + shortSide;
+        int x, y;
+        switch (edge) {
+            case EDGE_LEFT: x= 0; y= (screenHeight - height) / 2; break;
+            case EDGE_RIGHT: x= screenWidth - width; y= (screenHeight - height) / 2; break;
+            case EDGE_TOP: x= (screenWidth - width) / 2; y= 0; break;
+            default: x= (screenWidth - width) / 2; y= screenHeight - height;
+        }
+
+        // buttons first on the left and top edges, toggle first otherwise
+        final boolean buttonsFirst= edge == EDGE_LEFT || edge == EDGE_TOP;
+        int buttonsX= x, buttonsY= y, toggleX= x, toggleY= y;
+        if (vertical) {
+            if (buttonsFirst) toggleX+= across;
+            else buttonsX+= shortSide;
+        }
+        else {
+            if (buttonsFirst) toggleY+= across;
+            else buttonsY+= shortSide;
+        }
+
+        FakeView buttons= FakeView.group(buttonsX, buttonsY,
+                vertical ? across : contents, vertical ? contents : across);
+        buttons.visible= !collapsed;
+        for (int i= 0; i < BUTTONS; i++) {
+            buttons.children.add(FakeView.button(FIRST_BUTTON_ID + i,
+                    vertical ? buttonsX : buttonsX + i * button,
+                    vertical ? buttonsY + i * button : buttonsY, button, button));
+        }
+
+        // toggle centered in a layout which matches the container
+        FakeView toggle= vertical ?
+                FakeView.group(toggleX, toggleY, shortSide, height, FakeView.button(TOGGLE_ID,
+                        toggleX, toggleY + (height - longSide) / 2, shortSide, longSide)) :
+                FakeView.group(toggleX, toggleY, width, shortSide, FakeView.button(TOGGLE_ID,
+                        toggleX + (width - longSide) / 2, toggleY, longSide, shortSide));
+
+        FakeView container= buttonsFirst ?
+                FakeView.group(x, y, width, height, buttons, toggle) :
+                FakeView.group(x, y, width, height, toggle, buttons);
+
+        // the layer covers the screen
+        return FakeView.group(0, 0, screenWidth, screenHeight, container);
+    }
+
+    private static boolean intersects(FakeView v, int width, int height) {
+        return v.x <= width && v.y <= height && v.x + v.width >= 0 && v.y + v.height >= 0;
+    }
+
+    @Test
+    public void allEdgesAndSizes() {
+        DockPanelHitMap.Builder<FakeView> builder= new DockPanelHitMap.Builder<>(TREE);
+        for (float[] screen : SCREENS) {
+            final int width= (int) screen[0], height= (int) screen[1];
+            for (int edge= EDGE_LEFT; edge <= EDGE_BOTTOM; edge++) {
+                for (float size : SIZES) {
+                    for (boolean collapsed : new boolean[] { false, true }) {
+                        String config= width + "x" + height + " edge " + edge + " size " + size +
+                                (collapsed ? " collapsed" : "");
+                        FakeView root= dockPanel(edge, size, screen, collapsed);
+                        DockPanelHitMap map= builder.build(root);
+                        FakeView container= root.children.get(0);
+
+                        // buttons out of the screen (e.g. extra large in landscape) are dropped
+                        int expected= 1;
+                        FakeView buttons= container.children.get(
+                                edge == EDGE_LEFT || edge == EDGE_TOP ? 0 : 1);
+                        for (FakeView b : buttons.children) {
+                            if (!collapsed && intersects(b, width, height)) expected++;
+                        }
+                        assertEquals(config, expected, map.size());
+
+                        // each button is found at its center
+                        for (FakeView b : buttons.children) {
+                            int cx= b.x + b.width / 2, cy= b.y + b.height / 2;
+                            if (collapsed || cx < 0 || cy < 0 || cx > width || cy > height) {
+                                continue;
+                            }
+                            assertEquals(config, b.id, map.find(cx, cy));
+                        }
+                        FakeView toggle= container.children.get(
+                                edge == EDGE_LEFT || edge == EDGE_TOP ? 1 : 0).children.get(0);
+                        assertEquals(config, TOGGLE_ID, map.find(toggle.x + toggle.width / 2,
+                                toggle.y + toggle.height / 2));
+
+                        // the panel is reachable at the middle of its edge
+                        int ex= edge == EDGE_LEFT ? 0 : edge == EDGE_RIGHT ? width : width / 2;
+                        int ey= edge == EDGE_TOP ? 0 : edge == EDGE_BOTTOM ? height : height / 2;
+                        assertNotEquals(config, View.NO_ID, map.find(ex, ey));
+
+                        // and every pixel around it matches the walk of the hierarchy
+                        for (int y= Math.max(-2, container.y - 2);
+                             y <= Math.min(height + 2, container.y + container.height + 2); y++) {
+                            for (int x= Math.max(-2, container.x - 2);
+                                 x <= Math.min(width + 2, container.x + container.width + 2); x++) {
+                                int id= findViewWithIdBelowPoint(x, y, root);
+                                if (id != map.find(x, y)) {
+                                    assertEquals(config + " at " + x + "," + y, id, map.find(x, y));
+                                }
+                            }
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /*
+     * Lookups of the mouse event thread, once per frame. Must not allocate and
+     * must stay well below a microsecond. The walk of the fake hierarchy is
+     * shown for reference only, on actual views each step also computes the
+     * location on screen.
+     */
+    @Test
+    public void lookupBenchmark() {
+        final int lookups= 1000000;
+        final float[] screen= SCREENS[1];
+        FakeView root= dockPanel(EDGE_LEFT, 1f, screen, false);
+        DockPanelHitMap map= new DockPanelHitMap.Builder<>(TREE).build(root);
+
+        // pointer around the panel half of the time
+        FakeView container= root.children.get(0);
+        Random random= new Random(8);
+        int[] xs= new int[1024], ys= new int[1024];
+        for (int i= 0; i < xs.length; i++) {
+            boolean near= random.nextBoolean();
+            xs[i]= random.nextInt(near ? container.width + 20 : (int) screen[0]);
+            ys[i]= near ? container.y - 10 + random.nextInt(container.height + 20) :
+                    random.nextInt((int) screen[1]);
+        }
+
+        ThreadMXBean threads= ManagementFactory.getThreadMXBean();
+        boolean allocationSupported= threads instanceof com.sun.management.ThreadMXBean &&
+                ((com.sun.management.ThreadMXBean) threads).isThreadAllocatedMemorySupported();
+
+        long bestMap= Long.MAX_VALUE, bestWalk= Long.MAX_VALUE, allocated= 0;
+        int hitsMap= 0, hitsWalk= 0;
+        for (int run= 0; run < 5; run++) {
+            hitsMap= hitsWalk= 0;
+            long bytes= allocatedBytes(allocationSupported);
+            long start= System.nanoTime();
+            for (int i= 0; i < lookups; i++) {
+                if (map.find(xs[i & 1023], ys[i & 1023]) != View.NO_ID) hitsMap++;
+            }
+            bestMap= Math.min(bestMap, System.nanoTime() - start);
+            allocated= allocatedBytes(allocationSupported) - bytes;
+
+            start= System.nanoTime();
+            for (int i= 0; i < lookups; i++) {
+                if (findViewWithIdBelowPoint(xs[i & 1023], ys[i & 1023], root) != View.NO_ID) {
+                    hitsWalk++;
+                }
+            }
+            bestWalk= Math.min(bestWalk, System.nanoTime() - start);
+        }
+
+        System.out.println(String.format("DockPanelHitMap: %.1f ns/lookup, walk %.1f ns/lookup",
+                (double) bestMap / lookups, (double) bestWalk / lookups));
+        assertEquals(hitsWalk, hitsMap);
+        assertTrue(hitsMap > 0);
+        if (allocationSupported) assertTrue(allocated + " bytes", allocated < 4096);
+        assertTrue(bestMap < 1000L * lookups);
+    }
+
+    private static long allocatedBytes(boolean supported) {
+        if (!supported) return 0;
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+                .getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+}
@@ -0,0 +1,298 @@
+/*
+ * Enable Viacam for Android, a camera based mouse emulator
+ *
+ * Copyright (C) 2015-17 Cesar Mauri Loba (CREA Software Systems)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.crea_si.eviacam.common;
+
+import android.os.IBinder;
+
+import com.crea_si.input_method_aidl.IClickableIME;
+import com.crea_si.input_method_aidl.IClickableIMEListener;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class IMEClickSenderTest {
+    // time the fake IME takes to perform a click
+    private static final long CLICK_MS= 100;
+
+    /**
+     * IME in another process. The oneway calls are queued and run in order on
+     * its binder thread, the blocking ones fail the test.
+     */
+    private static class FakeIME implements IClickableIME {
+        final ExecutorService binderThread= Executors.newSingleThreadExecutor();
+        final AtomicInteger setListenerCalls= new AtomicInteger();
+        final AtomicInteger asyncClicks= new AtomicInteger();
+        final AtomicInteger performedClicks= new AtomicInteger();
+
+        // keyboard bounds: left, top, right, bottom
+        volatile int[] keyboard= { 0, 800, 480, 1200 };
+        private IClickableIMEListener mListener;
+
+        @Override
+        public boolean click(int x, int y) {
+            throw new AssertionError("blocking click");
+        }
+
+        @Override
+        public void openIME() {
+            throw new AssertionError("unexpected call");
+        }
+
+        @Override
+        public void closeIME() {
+            throw new AssertionError("unexpected call");
+        }
+
+        @Override
+        public void toggleIME() {
+            throw new AssertionError("unexpected call");
+        }
+
+        @Override
+        public void setListener(final IClickableIMEListener l) {
+            setListenerCalls.incrementAndGet();
+            binderThread.execute(new Runnable() {
+                @Override
+                public void run() {
+                    mListener= l;
+                    if (l == null) return;
+                    int[] k= keyboard;
+                    try {
+                        l.onKeyboardBounds(k[0], k[1], k[2], k[3]);
+                    } catch (Exception e) {
+                        throw new AssertionError(e);
+                    }
+                }
+            });
+        }
+
+        @Override
+        public void clickAsync(final int x, final int y) {
+            asyncClicks.incrementAndGet();
+            binderThread.execute(new Runnable() {
+                @Override
+                public void run() {
+                    sleep(CLICK_MS);
+                    int[] k= keyboard;
+                    boolean performed= x >= k[0] && x < k[2] && y >= k[1] && y < k[3];
+                    if (performed) performedClicks.incrementAndGet();
+                    try {
+                        if (mListener != null) mListener.onClickDone(x, y, performed);
+                    } catch (Exception e) {
+                        throw new AssertionError(e);
+                    }
+                }
+            });
+        }
+
+        @Override
+        public IBinder asBinder() {
+            return null;
+        }
+
+        /** Wait until the queued calls have run */
+        void sync() throws Exception {
+            binderThread.submit(new Runnable() {
+                @Override
+                public void run() { }
+            }).get(5, TimeUnit.SECONDS);
+        }
+
+        /** Keep the binder thread busy until the latch is released */
+        void hold(final CountDownLatch latch) {
+            binderThread.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        latch.await();
+                    } catch (InterruptedException e) {
+                        // done
+                    }
+                }
+            });
+        }
+    }
+
+    /** Forwards the calls of the IME as InputMethodAction does */
+    private static class Forwarder implements IClickableIMEListener {
+        IMEClickSender sender;
+
+        @Override
+        public void onKeyboardBounds(int left, int top, int right, int bottom) {
+            sender.onKeyboardBounds(left, top, right, bottom);
+        }
+
+        @Override
+        public void onClickDone(int x, int y, boolean performed) {
+            sender.onClickDone(x, y, performed);
+        }
+
+        @Override
+        public IBinder asBinder() {
+            return null;
+        }
+    }
+
+    private static void sleep(long ms) {
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException e) {
+            // done
+        }
+    }
+
+    private FakeIME mIME;
+    private IMEClickSender mSender;
+    private final BlockingQueue<int[]> mRejected= new LinkedBlockingQueue<>();
+
+    @Before
+    public void setUp() {
+        mIME= new FakeIME();
+        Forwarder f= new Forwarder();
+        mSender= new IMEClickSender(f);
+        f.sender= mSender;
+        mSender.setOnClickNotPerformedListener(new InputMethodAction.OnClickNotPerformedListener() {
+            @Override
+            public void onClickNotPerformed(int x, int y) {
+                mRejected.add(new int[] { x, y });
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        mIME.binderThread.shutdownNow();
+    }
+
+    private void connect() throws Exception {
+        mSender.setRemote(mIME);
+        mIME.sync();
+    }
+
+    @Test
+    public void clicksDoNotBlock() throws Exception {
+        connect();
+
+        final int clicks= 20;
+        long start= System.nanoTime();
+        for (int i= 0; i < clicks; i++) assertTrue(mSender.click(10 + i, 900));
+        long elapsedMs= TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        // the IME needs CLICK_MS for each one
+        assertTrue(elapsedMs + " ms", elapsedMs < CLICK_MS);
+        assertEquals(clicks, mIME.asyncClicks.get());
+
+        mIME.sync();
+        assertEquals(clicks, mIME.performedClicks.get());
+        assertTrue(mRejected.isEmpty());
+        assertEquals(1, mIME.setListenerCalls.get());
+    }
+
+    @Test
+    public void outsideClicksFallThrough() throws Exception {
+        connect();
+
+        final int clicks= 10000;
+        long start= System.nanoTime();
+        for (int i= 0; i < clicks; i++) assertFalse(mSender.click(i % 480, i % 800));
+        long elapsed= System.nanoTime() - start;
+
+        System.out.println(String.format("IMEClickSender: %.1f ns/outside click",
+                (double) elapsed / clicks));
+        // no remote calls at all
+        assertEquals(0, mIME.asyncClicks.get());
+        assertTrue(elapsed + " ns", elapsed < TimeUnit.MILLISECONDS.toNanos(CLICK_MS));
+    }
+
+    @Test
+    public void hiddenKeyboardLetsClicksThrough() throws Exception {
+        mIME.keyboard= new int[] { 0, 0, 0, 0 };
+        connect();
+        assertFalse(mSender.click(0, 0));
+        assertFalse(mSender.click(10, 900));
+        assertEquals(0, mIME.asyncClicks.get());
+    }
+
+    @Test
+    public void unknownBoundsSendTheClick() throws Exception {
+        // the IME has not answered yet
+        CountDownLatch latch= new CountDownLatch(1);
+        mIME.hold(latch);
+        mSender.setRemote(mIME);
+
+        long start= System.nanoTime();
+        assertTrue(mSender.click(10, 10));
+        assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(CLICK_MS));
+        latch.countDown();
+
+        // outside the keyboard, given back
+        int[] rejected= mRejected.poll(5, TimeUnit.SECONDS);
+        assertArrayEquals(new int[] { 10, 10 }, rejected);
+        mIME.sync();
+        assertEquals(2, mIME.setListenerCalls.get());
+        assertFalse(mSender.click(10, 10));
+        assertEquals(1, mIME.asyncClicks.get());
+    }
+
+    @Test
+    public void movedKeyboardGivesTheClickBack() throws Exception {
+        connect();
+
+        // the keyboard moves and the IME has not published it yet
+        mIME.keyboard= new int[] { 0, 400, 480, 800 };
+        assertTrue(mSender.click(10, 900));
+        assertArrayEquals(new int[] { 10, 900 }, mRejected.poll(5, TimeUnit.SECONDS));
+
+        // bounds requested again
+        mIME.sync();
+        assertFalse(mSender.click(10, 900));
+        assertTrue(mSender.click(10, 500));
+        mIME.sync();
+        assertEquals(1, mIME.performedClicks.get());
+        assertNull(mRejected.poll());
+    }
+
+    @Test
+    public void noRemote() throws Exception {
+        assertFalse(mSender.click(10, 900));
+        connect();
+        mSender.release();
+        assertFalse(mSender.click(10, 900));
+        assertEquals(0, mIME.asyncClicks.get());
+
+        // listener removed
+        assertEquals(2, mIME.setListenerCalls.get());
+    }
+}
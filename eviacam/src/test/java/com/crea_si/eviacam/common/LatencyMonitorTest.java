@@ -0,0 +1,94 @@
+/*
+ * Enable Viacam for Android, a camera based mouse emulator
+ *
+ * Copyright (C) 2015-17 Cesar Mauri Loba (CREA Software Systems)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.crea_si.eviacam.common;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertEquals;
+
+public class LatencyMonitorTest {
+    @Before
+    public void setUp() {
+        LatencyMonitor.reset();
+    }
+
+    @After
+    public void tearDown() {
+        LatencyMonitor.setEnabled(false);
+        LatencyMonitor.reset();
+    }
+
+    // count column of a stage in the CSV export
+    private static long getCount(String stage) {
+        for (String line : LatencyMonitor.toCsv().split("\n")) {
+            String[] fields= line.split(",");
+            if (fields[0].equals(stage)) return Long.parseLong(fields[1]);
+        }
+        throw new AssertionError("stage not found: " + stage);
+    }
+
+    @Test
+    public void disabledRecordsNothing() {
+        LatencyMonitor.setEnabled(false);
+        long t= LatencyMonitor.start();
+        assertEquals(0, t);
+        LatencyMonitor.end(LatencyMonitor.STAGE_VISION, t);
+        assertEquals(0, getCount("vision"));
+        assertEquals("disabled", LatencyMonitor.getSummary());
+    }
+
+    @Test
+    public void concurrentEnd() throws Exception {
+        LatencyMonitor.setEnabled(true);
+        final int threads= 6, perThread= 50000;
+        final CountDownLatch go= new CountDownLatch(1);
+        Thread[] workers= new Thread[threads];
+        for (int i= 0; i < threads; i++) {
+            // two threads per stage
+            final int stage= i % 3 == 0 ? LatencyMonitor.STAGE_FRAME :
+                    i % 3 == 1 ? LatencyMonitor.STAGE_VISION : LatencyMonitor.STAGE_DISPATCH;
+            workers[i]= new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        go.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int j= 0; j < perThread; j++) {
+                        LatencyMonitor.end(stage, LatencyMonitor.start());
+                    }
+                }
+            });
+            workers[i].start();
+        }
+        go.countDown();
+        for (Thread t : workers) t.join();
+
+        assertEquals(2 * perThread, getCount("frame"));
+        assertEquals(2 * perThread, getCount("vision"));
+        assertEquals(2 * perThread, getCount("dispatch"));
+        assertEquals(0, getCount("pointer"));
+    }
+}
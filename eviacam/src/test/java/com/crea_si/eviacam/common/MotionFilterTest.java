@@ -0,0 +1,312 @@
+/*
+ * Enable Viacam for Android, a camera based mouse emulator
+ *
+ * Copyright (C) 2015-17 Cesar Mauri Loba (CREA Software Systems)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.crea_si.eviacam.common;
+
+import android.graphics.PointF;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class MotionFilterTest {
+    private static final long FRAME_TIME= 33333333L;    // 30 fps
+    private static final long FIRST_TIMESTAMP= 5000000000L;
+    private static final int SMOOTHING_MAX= 8;
+
+    private interface Factory {
+        MotionFilter create();
+    }
+
+    private static final Factory LOW_PASS= new Factory() {
+        @Override public MotionFilter create() { return new LowPassMotionFilter(); }
+    };
+    private static final Factory ONE_EURO= new Factory() {
+        @Override public MotionFilter create() { return new OneEuroMotionFilter(); }
+    };
+    private static final Factory KALMAN= new Factory() {
+        @Override public MotionFilter create() { return new KalmanMotionFilter(); }
+    };
+    private static final Factory[] ALL= { LOW_PASS, ONE_EURO, KALMAN };
+
+    private static MotionFilter create(Factory factory, int smoothness) {
+        MotionFilter f= factory.create();
+        f.setSmoothness(smoothness);
+        return f;
+    }
+
+    // do not rely on the methods of PointF, stubbed in unit tests
+    private static void set(PointF p, float x, float y) {
+        p.x= x;
+        p.y= y;
+    }
+
+    private static PointF point(float x, float y) {
+        PointF p= new PointF();
+        set(p, x, y);
+        return p;
+    }
+
+    /**
+     * Output of a filter for a step from 0 to 1 on both axes
+     *
+     * @param before frames at 0
+     * @param after frames at 1, returned
+     * @param frameTime time between frames (ns)
+     */
+    private static float[] step(MotionFilter f, int before, int after, long frameTime) {
+        PointF p= new PointF();
+        long t= FIRST_TIMESTAMP;
+        for (int i= 0; i < before; i++) {
+            set(p, 0, 0);
+            f.filter(p, t);
+            t+= frameTime;
+        }
+        float[] out= new float[after];
+        for (int i= 0; i < after; i++) {
+            set(p, 1, 1);
+            f.filter(p, t);
+            assertEquals("both axes are filtered alike", p.x, p.y, 1e-6f);
+            out[i]= p.x;
+            t+= frameTime;
+        }
+        return out;
+    }
+
+    @Test
+    public void noSmoothingIsTransparent() {
+        Random random= new Random(1);
+        for (Factory factory : ALL) {
+            MotionFilter f= create(factory, 0);
+            PointF p= new PointF();
+            for (int i= 0; i < 100; i++) {
+                float x= random.nextFloat() * 20 - 10, y= random.nextFloat() * 20 - 10;
+                set(p, x, y);
+                f.filter(p, FIRST_TIMESTAMP + i * FRAME_TIME);
+                assertEquals(x, p.x, 1e-6f);
+                assertEquals(y, p.y, 1e-6f);
+            }
+        }
+    }
+
+    @Test
+    public void stepResponseConverges() {
+        for (Factory factory : ALL) {
+            for (int s= 1; s <= SMOOTHING_MAX; s++) {
+                MotionFilter f= create(factory, s);
+                String name= f.getClass().getSimpleName() + " smoothness " + s;
+                float[] out= step(f, 10, 600, FRAME_TIME);
+
+                // smoothed, then reaches the input
+                assertTrue(name + ": not smoothed " + out[0], out[0] > 0 && out[0] < 1);
+                assertEquals(name, 1.0f, out[out.length - 1], 1e-3f);
+
+                for (int i= 1; i < out.length; i++) {
+                    if (factory == KALMAN) {
+                        // the constant velocity model overshoots a bit
+                        assertTrue(name + ": overshoot " + out[i], out[i] < 1.25f);
+                    }
+                    else {
+                        assertTrue(name + ": not monotonic", out[i] >= out[i - 1] - 1e-6f);
+                        assertTrue(name + ": overshoot " + out[i], out[i] <= 1.0f + 1e-6f);
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void moreSmoothnessIsSlower() {
+        for (Factory factory : ALL) {
+            float prev= 1;
+            for (int s= 1; s <= SMOOTHING_MAX; s++) {
+                float first= step(create(factory, s), 10, 1, FRAME_TIME)[0];
+                assertTrue(factory.create().getClass().getSimpleName() + " smoothness " + s,
+                        first < prev);
+                prev= first;
+            }
+        }
+    }
+
+    @Test
+    public void lowPassStepResponse() {
+        for (int s= 1; s <= SMOOTHING_MAX; s++) {
+            // first order filter: 1 - w^n with w= log10(s + 1)
+            double w= Math.log10(s + 1);
+            float[] out= step(create(LOW_PASS, s), 0, 20, FRAME_TIME);
+            for (int n= 0; n < out.length; n++) {
+                assertEquals("smoothness " + s + " frame " + n,
+                        1.0 - Math.pow(w, n + 1), out[n], 1e-5);
+            }
+        }
+    }
+
+    @Test
+    public void oneEuroFollowsTheTimestamps() {
+        final int s= 4;
+        // same step at 30 and 60 fps: same response in time, not in frames
+        float[] out30= step(create(ONE_EURO, s), 10, 30, FRAME_TIME);
+        float[] out60= step(create(ONE_EURO, s), 20, 60, FRAME_TIME / 2);
+        for (int i= 0; i < 30; i++) {
+            float sameTime= Math.abs(out60[2 * i + 1] - out30[i]);
+            assertEquals("at " + (i + 1) + " frames of 30 fps", out30[i], out60[2 * i + 1], 0.075f);
+            if (out30[i] < 0.95f) {
+                assertTrue("at " + (i + 1) + " frames", sameTime < Math.abs(out60[i] - out30[i]));
+            }
+        }
+
+        // a missed frame is a longer period, the output moves further
+        MotionFilter regular= create(ONE_EURO, s);
+        MotionFilter gap= create(ONE_EURO, s);
+        step(regular, 10, 0, FRAME_TIME);
+        step(gap, 10, 0, FRAME_TIME);
+        PointF a= point(1, 1), b= point(1, 1);
+        regular.filter(a, FIRST_TIMESTAMP + 10 * FRAME_TIME);
+        gap.filter(b, FIRST_TIMESTAMP + 12 * FRAME_TIME);
+        assertTrue(b.x > a.x);
+    }
+
+    @Test
+    public void oneEuroWithoutUsableTimestamps() {
+        final int s= 4;
+        float[] expected= step(create(ONE_EURO, s), 10, 20, FRAME_TIME);
+
+        // repeated or backwards time stamps fall back to the default period (30 fps)
+        float[] repeated= step(create(ONE_EURO, s), 10, 20, 0);
+        float[] backwards= step(create(ONE_EURO, s), 10, 20, -FRAME_TIME);
+        for (int i= 0; i < expected.length; i++) {
+            assertEquals(expected[i], repeated[i], 1e-4f);
+            assertEquals(expected[i], backwards[i], 1e-4f);
+        }
+
+        // the period of the first sample after a reset is not taken from before it
+        MotionFilter f= create(ONE_EURO, s);
+        step(f, 10, 10, FRAME_TIME);
+        f.reset();
+        PointF p= new PointF();
+        f.filter(p, FIRST_TIMESTAMP + 3600L * 1000000000L);
+        set(p, 1, 1);
+        f.filter(p, FIRST_TIMESTAMP + 3600L * 1000000000L + FRAME_TIME);
+        float[] fresh= step(create(ONE_EURO, s), 1, 1, FRAME_TIME);
+        assertEquals(fresh[0], p.x, 1e-4f);
+    }
+
+    @Test
+    public void frameBasedFiltersIgnoreTimestamps() {
+        Random random= new Random(2);
+        for (Factory factory : new Factory[] { LOW_PASS, KALMAN }) {
+            MotionFilter regular= create(factory, 3);
+            MotionFilter irregular= create(factory, 3);
+            PointF a= new PointF(), b= new PointF();
+            long t= FIRST_TIMESTAMP;
+            for (int i= 0; i < 200; i++) {
+                float x= random.nextFloat() * 10;
+                set(a, x, -x);
+                set(b, x, -x);
+                regular.filter(a, FIRST_TIMESTAMP + i * FRAME_TIME);
+                t+= random.nextInt(3) * FRAME_TIME;
+                irregular.filter(b, t);
+                assertEquals(a.x, b.x, 0);
+                assertEquals(a.y, b.y, 0);
+            }
+        }
+    }
+
+    @Test
+    public void reducesJitter() {
+        for (Factory factory : ALL) {
+            MotionFilter f= create(factory, 4);
+            Random random= new Random(3);
+            PointF p= new PointF();
+            double inVar= 0, outVar= 0;
+            int n= 0;
+            for (int i= 0; i < 2000; i++) {
+                float noise= (float) random.nextGaussian();
+                set(p, 2 + noise, 0);
+                f.filter(p, FIRST_TIMESTAMP + i * FRAME_TIME);
+                if (i < 100) continue;
+                inVar+= noise * noise;
+                outVar+= (p.x - 2) * (p.x - 2);
+                n++;
+            }
+            assertTrue(f.getClass().getSimpleName() + ": " + (outVar / n) + " vs " + (inVar / n),
+                    outVar < 0.7 * inVar);
+        }
+    }
+
+    @Test
+    public void resetForgetsHistory() {
+        for (Factory factory : ALL) {
+            MotionFilter f= create(factory, 5);
+            step(f, 0, 50, FRAME_TIME);
+            f.reset();
+            PointF p= new PointF();
+            f.filter(p, FIRST_TIMESTAMP);
+            assertEquals(f.getClass().getSimpleName(), 0, p.x, 1e-6f);
+            assertEquals(f.getClass().getSimpleName(), 0, p.y, 1e-6f);
+        }
+    }
+
+    @Test
+    public void filterBenchmark() {
+        final int samples= 1000000;
+        float[] input= new float[1024];
+        Random random= new Random(4);
+        for (int i= 0; i < input.length; i++) input[i]= random.nextFloat() * 20 - 10;
+
+        ThreadMXBean threads= ManagementFactory.getThreadMXBean();
+        boolean allocationSupported= threads instanceof com.sun.management.ThreadMXBean &&
+                ((com.sun.management.ThreadMXBean) threads).isThreadAllocatedMemorySupported();
+
+        for (Factory factory : ALL) {
+            MotionFilter f= create(factory, 4);
+            PointF p= new PointF();
+            float sum= 0;
+            long best= Long.MAX_VALUE, allocated= 0;
+            for (int run= 0; run < 5; run++) {
+                long bytes= allocatedBytes(allocationSupported);
+                long start= System.nanoTime();
+                for (int i= 0; i < samples; i++) {
+                    set(p, input[i & 1023], input[(i + 7) & 1023]);
+                    f.filter(p, FIRST_TIMESTAMP + i * FRAME_TIME);
+                    sum+= p.x + p.y;
+                }
+                best= Math.min(best, System.nanoTime() - start);
+                allocated= allocatedBytes(allocationSupported) - bytes;
+            }
+            String name= f.getClass().getSimpleName();
+            assertTrue(name, !Float.isNaN(sum) && !Float.isInfinite(sum));
+            // one filter call per frame, it must not allocate
+            if (allocationSupported) assertTrue(name + ": " + allocated + " bytes", allocated < 4096);
+            System.out.println(String.format("%s: %.1f ns/frame", name,
+                    (double) best / samples));
+        }
+    }
+
+    private static long allocatedBytes(boolean supported) {
+        if (!supported) return 0;
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+                .getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+}
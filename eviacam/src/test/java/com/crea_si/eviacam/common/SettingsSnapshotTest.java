@@ -0,0 +1,529 @@
+/*
+ * Enable Viacam for Android, a camera based mouse emulator
+ *
+ * Copyright (C) 2015-17 Cesar Mauri Loba (CREA Software Systems)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.crea_si.eviacam.common;
+
+import android.content.SharedPreferences;
+import android.content.res.Resources;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.crea_si.eviacam.R;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class SettingsSnapshotTest {
+    private FakeSharedPreferences mSharedPreferences;
+    private Preferences mPreferences;
+
+    @Before
+    public void setUp() throws Exception {
+        mSharedPreferences= new FakeSharedPreferences();
+        mPreferences= new Preferences(new FakeResources(), mSharedPreferences);
+    }
+
+    @Test
+    public void defaults() {
+        SettingsSnapshot s= mPreferences.getSettings();
+        assertEquals(8, s.getHorizontalSpeed());
+        assertEquals(8, s.getVerticalSpeed());
+        assertEquals(2, s.getAcceleration());
+        assertEquals(2, s.getMotionSmoothing());
+        assertEquals(1, s.getMotionThreshold());
+        assertEquals(Preferences.MotionFilterType.LOW_PASS, s.getMotionFilter());
+        assertTrue(s.getEnableDwell());
+        assertEquals(10, s.getDwellTime());
+        assertEquals(7, s.getDwellArea());
+        assertFalse(s.getConsecutiveClicks());
+        assertTrue(s.getSoundOnClick());
+        assertEquals(0, s.getClickKey());
+        assertEquals(4, s.getKeypressTime());
+        assertEquals(1, s.getDockingPanelEdge());
+        assertEquals(1.0f, s.getUIElementsSize(), 0);
+        assertEquals(0, s.getTimeWithoutDetection());
+    }
+
+    @Test
+    public void outOfRangeValuesAreClamped() {
+        mSharedPreferences.edit()
+                .putInt(Preferences.KEY_HORIZONTAL_SPEED, 100)
+                .putInt(Preferences.KEY_VERTICAL_SPEED, -3)
+                .putInt(Preferences.KEY_ACCELERATION, 6)
+                .putInt(Preferences.KEY_MOTION_SMOOTHING, -1)
+                .putInt(Preferences.KEY_MOTION_THRESHOLD, 99)
+                .putInt(Preferences.KEY_DWELL_TIME, 0)
+                .putInt(Preferences.KEY_DWELL_AREA, 16)
+                .putInt(Preferences.KEY_KEYPRESS_TIME, 1000)
+                .apply();
+
+        SettingsSnapshot s= mPreferences.getSettings();
+        assertEquals(25, s.getHorizontalSpeed());
+        assertEquals(1, s.getVerticalSpeed());
+        assertEquals(5, s.getAcceleration());
+        assertEquals(0, s.getMotionSmoothing());
+        assertEquals(5, s.getMotionThreshold());
+        assertEquals(1, s.getDwellTime());
+        assertEquals(15, s.getDwellArea());
+        assertEquals(20, s.getKeypressTime());
+    }
+
+    @Test
+    public void wrongStringValuesFallBackToDefaults() {
+        String[][] cases= {
+            // ui elements size, time without detection, docking panel edge, motion filter
+            { "abc", "x", "left", "bogus" },
+            { "NaN", "-3", "0", "" },
+            { "-1.5", "", "5", "LOW_PASS" },
+            { "0", "1.5", "-1", "kalman " },
+        };
+        for (String[] c : cases) {
+            mSharedPreferences.edit()
+                    .putString(Preferences.KEY_UI_ELEMENTS_SIZE, c[0])
+                    .putString(Preferences.KEY_TIME_WITHOUT_DETECTION, c[1])
+                    .putString(Preferences.KEY_DOCKING_PANEL_EDGE, c[2])
+                    .putString(Preferences.KEY_MOTION_FILTER, c[3])
+                    .apply();
+
+            SettingsSnapshot s= mPreferences.getSettings();
+            assertEquals(c[0], 1.0f, s.getUIElementsSize(), 0);
+            assertEquals(c[1], 0, s.getTimeWithoutDetection());
+            assertEquals(c[2], 1, s.getDockingPanelEdge());
+            assertEquals(c[3], Preferences.MotionFilterType.LOW_PASS, s.getMotionFilter());
+        }
+    }
+
+    @Test
+    public void validStringValues() {
+        mSharedPreferences.edit()
+                .putString(Preferences.KEY_UI_ELEMENTS_SIZE, "1.5")
+                .putString(Preferences.KEY_TIME_WITHOUT_DETECTION, "60")
+                .putString(Preferences.KEY_DOCKING_PANEL_EDGE, "4")
+                .putString(Preferences.KEY_MOTION_FILTER, "one_euro")
+                .apply();
+
+        SettingsSnapshot s= mPreferences.getSettings();
+        assertEquals(1.5f, s.getUIElementsSize(), 0);
+        assertEquals(60, s.getTimeWithoutDetection());
+        assertEquals(4, s.getDockingPanelEdge());
+        assertEquals(Preferences.MotionFilterType.ONE_EURO, s.getMotionFilter());
+
+        mSharedPreferences.edit().putString(Preferences.KEY_MOTION_FILTER, "kalman").apply();
+        assertEquals(Preferences.MotionFilterType.KALMAN,
+                mPreferences.getSettings().getMotionFilter());
+    }
+
+    @Test
+    public void snapshotsAreNotModified() {
+        SettingsSnapshot before= mPreferences.getSettings();
+        assertSame(before, mPreferences.getSettings());
+
+        mPreferences.setHorizontalSpeed(20);
+        SettingsSnapshot after= mPreferences.getSettings();
+        assertNotSame(before, after);
+        assertEquals(8, before.getHorizontalSpeed());
+        assertEquals(20, after.getHorizontalSpeed());
+        // the rest of the values are carried over
+        assertEquals(before.getDwellTime(), after.getDwellTime());
+    }
+
+    /* Records the notifications and what getSettings returned at that moment */
+    private class RecordingListener implements Preferences.OnSettingsChangeListener {
+        final List<String> keys= new ArrayList<>();
+        final List<SettingsSnapshot> snapshots= new ArrayList<>();
+        final List<SettingsSnapshot> published= new ArrayList<>();
+
+        @Override
+        public void onSettingsChanged(@NonNull SettingsSnapshot settings, @NonNull String key) {
+            keys.add(key);
+            snapshots.add(settings);
+            published.add(mPreferences.getSettings());
+        }
+    }
+
+    @Test
+    public void listenersGetThePublishedSnapshot() {
+        RecordingListener first= new RecordingListener();
+        RecordingListener second= new RecordingListener();
+        mPreferences.registerOnSettingsChangeListener(first);
+        mPreferences.registerOnSettingsChangeListener(second);
+
+        mPreferences.setVerticalSpeed(12);
+
+        for (RecordingListener l : new RecordingListener[] { first, second }) {
+            assertEquals(1, l.keys.size());
+            assertEquals(Preferences.KEY_VERTICAL_SPEED, l.keys.get(0));
+            assertEquals(12, l.snapshots.get(0).getVerticalSpeed());
+            assertSame(l.published.get(0), l.snapshots.get(0));
+        }
+        // all the listeners get the same snapshot
+        assertSame(first.snapshots.get(0), second.snapshots.get(0));
+    }
+
+    @Test
+    public void registerUnregister() {
+        RecordingListener l= new RecordingListener();
+        mPreferences.registerOnSettingsChangeListener(l);
+        mPreferences.registerOnSettingsChangeListener(l);
+
+        mSharedPreferences.edit().putBoolean(Preferences.KEY_ENABLE_DWELL, false).apply();
+        assertEquals(1, l.keys.size());
+        assertFalse(l.snapshots.get(0).getEnableDwell());
+
+        mPreferences.unregisterOnSettingsChangeListener(l);
+        mSharedPreferences.edit().putBoolean(Preferences.KEY_ENABLE_DWELL, true).apply();
+        assertEquals(1, l.keys.size());
+        // unregistered listeners do not prevent the snapshot from being updated
+        assertTrue(mPreferences.getSettings().getEnableDwell());
+    }
+
+    @Test
+    public void nullKeyIsIgnored() {
+        RecordingListener l= new RecordingListener();
+        mPreferences.registerOnSettingsChangeListener(l);
+        SettingsSnapshot before= mPreferences.getSettings();
+
+        // sent by SharedPreferences when cleared
+        mSharedPreferences.notifyChanged(null);
+        assertTrue(l.keys.isEmpty());
+        assertSame(before, mPreferences.getSettings());
+    }
+
+    /* Settings read for each frame by the pointer and the dwell click, from the snapshot */
+    private static long readSnapshot(SettingsSnapshot s) {
+        long sum= s.getHorizontalSpeed() + s.getVerticalSpeed() + s.getAcceleration() +
+                s.getMotionSmoothing() + s.getMotionThreshold() + s.getMotionFilter().ordinal() +
+                (s.getEnableDwell() ? 1 : 0) + s.getDwellTime() + s.getDwellArea() +
+                (s.getConsecutiveClicks() ? 1 : 0) + s.getDockingPanelEdge();
+        return sum + Float.floatToIntBits(s.getUIElementsSize());
+    }
+
+    /* Same settings from the getters of Preferences, as before the snapshots */
+    private static long readPreferences(Preferences p) {
+        long sum= p.getHorizontalSpeed() + p.getVerticalSpeed() + p.getAcceleration() +
+                p.getMotionSmoothing() + p.getMotionThreshold() + p.getMotionFilter().ordinal() +
+                (p.getEnableDwell() ? 1 : 0) + p.getDwellTime() + p.getDwellArea() +
+                (p.getConsecutiveClicks() ? 1 : 0) + p.getDockingPanelEdge();
+        return sum + Float.floatToIntBits(p.getUIElementsSize());
+    }
+
+    private static long allocatedBytes() {
+        ThreadMXBean threads= ManagementFactory.getThreadMXBean();
+        if (!(threads instanceof com.sun.management.ThreadMXBean)) return -1;
+        com.sun.management.ThreadMXBean t= (com.sun.management.ThreadMXBean) threads;
+        if (!t.isThreadAllocatedMemorySupported()) return -1;
+        return t.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    /*
+     * Compares reading the hot path settings from the published snapshot with the
+     * getters of Preferences, which look the values up in SharedPreferences and
+     * parse and validate them on every call. The in memory SharedPreferences of the
+     * test has no locking, so the cost of the getters is underestimated.
+     */
+    @Test
+    public void readBenchmark() {
+        final int reads= 200000;
+        mSharedPreferences.edit()
+                .putInt(Preferences.KEY_HORIZONTAL_SPEED, 12)
+                .putString(Preferences.KEY_UI_ELEMENTS_SIZE, "1.5")
+                .putString(Preferences.KEY_DOCKING_PANEL_EDGE, "3")
+                .putString(Preferences.KEY_MOTION_FILTER, "one_euro")
+                .apply();
+        final long expected= readPreferences(mPreferences);
+        assertEquals(expected, readSnapshot(mPreferences.getSettings()));
+
+        long bestSnapshot= Long.MAX_VALUE, bestGetters= Long.MAX_VALUE;
+        long snapshotBytes= 0, gettersBytes= 0;
+        for (int run= 0; run < 5; run++) {
+            long sum= 0;
+            long bytes= allocatedBytes();
+            long t= System.nanoTime();
+            for (int i= 0; i < reads; i++) sum+= readSnapshot(mPreferences.getSettings());
+            bestSnapshot= Math.min(bestSnapshot, System.nanoTime() - t);
+            snapshotBytes= allocatedBytes() - bytes;
+            assertEquals(expected * reads, sum);
+
+            sum= 0;
+            bytes= allocatedBytes();
+            t= System.nanoTime();
+            for (int i= 0; i < reads; i++) sum+= readPreferences(mPreferences);
+            bestGetters= Math.min(bestGetters, System.nanoTime() - t);
+            gettersBytes= allocatedBytes() - bytes;
+            assertEquals(expected * reads, sum);
+        }
+
+        System.out.println(String.format("settings read: snapshot %.1f ns (%d bytes), " +
+                        "getters %.1f ns (%d bytes)",
+                (double) bestSnapshot / reads, snapshotBytes / reads,
+                (double) bestGetters / reads, gettersBytes / reads));
+
+        // a field read per setting against a lookup and a parse
+        assertTrue(bestSnapshot * 4 < bestGetters);
+        if (snapshotBytes >= 0) assertTrue(snapshotBytes + " bytes", snapshotBytes < 4096);
+    }
+
+    /**
+     * Resources which take the values of the default resource files
+     */
+    @SuppressWarnings("deprecation")
+    private static class FakeResources extends Resources {
+        private final Map<Integer, String> mValues= new HashMap<>();
+        private final Map<Integer, String[]> mArrays= new HashMap<>();
+
+        FakeResources() throws Exception {
+            super(null, null, null);
+
+            Map<String, String> values= new HashMap<>();
+            Map<String, String[]> arrays= new HashMap<>();
+            File[] files= new File("src/main/res/values").listFiles();
+            assertTrue("resources not found", files != null);
+            for (File f : files) {
+                if (!f.getName().endsWith(".xml")) continue;
+                Element root= DocumentBuilderFactory.newInstance().newDocumentBuilder()
+                        .parse(f).getDocumentElement();
+                NodeList nodes= root.getChildNodes();
+                for (int i= 0; i < nodes.getLength(); i++) {
+                    if (!(nodes.item(i) instanceof Element)) continue;
+                    Element e= (Element) nodes.item(i);
+                    String name= e.getAttribute("name");
+                    if (e.getTagName().equals("string-array")) {
+                        NodeList items= e.getElementsByTagName("item");
+                        String[] a= new String[items.getLength()];
+                        for (int j= 0; j < a.length; j++) a[j]= items.item(j).getTextContent();
+                        arrays.put(name, a);
+                    }
+                    else {
+                        values.put(e.getTagName() + "/" + name, e.getTextContent().trim());
+                    }
+                }
+            }
+
+            addIds(R.integer.class, "integer", values);
+            addIds(R.bool.class, "bool", values);
+            addIds(R.string.class, "string", values);
+            for (Field f : R.array.class.getFields()) {
+                String[] a= arrays.get(f.getName());
+                if (a != null) mArrays.put(f.getInt(null), a);
+            }
+        }
+
+        private void addIds(Class<?> c, String type, Map<String, String> values)
+                throws IllegalAccessException {
+            for (Field f : c.getFields()) {
+                String v= values.get(type + "/" + f.getName());
+                if (v != null) mValues.put(f.getInt(null), v);
+            }
+        }
+
+        private String value(int id) {
+            String v= mValues.get(id);
+            if (v == null) throw new NotFoundException("resource " + id);
+            return v;
+        }
+
+        @Override
+        public int getInteger(int id) {
+            return Integer.parseInt(value(id));
+        }
+
+        @Override
+        public boolean getBoolean(int id) {
+            return Boolean.parseBoolean(value(id));
+        }
+
+        @NonNull
+        @Override
+        public String getString(int id) {
+            return value(id);
+        }
+
+        @NonNull
+        @Override
+        public String[] getStringArray(int id) {
+            String[] a= mArrays.get(id);
+            if (a == null) throw new NotFoundException("resource " + id);
+            return a;
+        }
+    }
+
+    /**
+     * In memory shared preferences which notify the changes synchronously
+     */
+    private static class FakeSharedPreferences implements SharedPreferences {
+        private final Map<String, Object> mValues= new HashMap<>();
+        private final List<OnSharedPreferenceChangeListener> mListeners= new ArrayList<>();
+
+        void notifyChanged(@Nullable String key) {
+            for (OnSharedPreferenceChangeListener l : new ArrayList<>(mListeners)) {
+                l.onSharedPreferenceChanged(this, key);
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        private <T> T get(String key, T def) {
+            Object v= mValues.get(key);
+            return v == null ? def : (T) v;
+        }
+
+        @Override
+        public Map<String, ?> getAll() {
+            return new HashMap<>(mValues);
+        }
+
+        @Nullable
+        @Override
+        public String getString(String key, @Nullable String defValue) {
+            return get(key, defValue);
+        }
+
+        @Nullable
+        @Override
+        public Set<String> getStringSet(String key, @Nullable Set<String> defValues) {
+            return get(key, defValues);
+        }
+
+        @Override
+        public int getInt(String key, int defValue) {
+            return get(key, defValue);
+        }
+
+        @Override
+        public long getLong(String key, long defValue) {
+            return get(key, defValue);
+        }
+
+        @Override
+        public float getFloat(String key, float defValue) {
+            return get(key, defValue);
+        }
+
+        @Override
+        public boolean getBoolean(String key, boolean defValue) {
+            return get(key, defValue);
+        }
+
+        @Override
+        public boolean contains(String key) {
+            return mValues.containsKey(key);
+        }
+
+        @Override
+        public Editor edit() {
+            return new FakeEditor();
+        }
+
+        @Override
+        public void registerOnSharedPreferenceChangeListener(
+                OnSharedPreferenceChangeListener listener) {
+            if (!mListeners.contains(listener)) mListeners.add(listener);
+        }
+
+        @Override
+        public void unregisterOnSharedPreferenceChangeListener(
+                OnSharedPreferenceChangeListener listener) {
+            mListeners.remove(listener);
+        }
+
+        private class FakeEditor implements Editor {
+            private final Map<String, Object> mChanges= new HashMap<>();
+
+            private Editor put(String key, Object value) {
+                mChanges.put(key, value);
+                return this;
+            }
+
+            @Override
+            public Editor putString(String key, @Nullable String value) {
+                return put(key, value);
+            }
+
+            @Override
+            public Editor putStringSet(String key, @Nullable Set<String> values) {
+                return put(key, values);
+            }
+
+            @Override
+            public Editor putInt(String key, int value) {
+                return put(key, value);
+            }
+
+            @Override
+            public Editor putLong(String key, long value) {
+                return put(key, value);
+            }
+
+            @Override
+            public Editor putFloat(String key, float value) {
+                return put(key, value);
+            }
+
+            @Override
+            public Editor putBoolean(String key, boolean value) {
+                return put(key, value);
+            }
+
+            @Override
+            public Editor remove(String key) {
+                return put(key, null);
+            }
+
+            @Override
+            public Editor clear() {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public boolean commit() {
+                for (Map.Entry<String, Object> e : mChanges.entrySet()) {
+                    if (e.getValue() == null) mValues.remove(e.getKey());
+                    else mValues.put(e.getKey(), e.getValue());
+                }
+                for (String key : mChanges.keySet()) notifyChanged(key);
+                return true;
+            }
+
+            @Override
+            public void apply() {
+                commit();
+            }
+        }
+    }
+}
@@ -0,0 +1,277 @@
+/*
+ * Enable Viacam for Android, a camera based mouse emulator
+ *
+ * Copyright (C) 2015-17 Cesar Mauri Loba (CREA Software Systems)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.crea_si.eviacam.common;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Locking of VisionPipeline, with a fake native part
+ */
+public class VisionPipelineTest {
+    private static final long HANDLE= 1234;
+
+    private static class FakeBackend implements VisionPipeline.Backend {
+        volatile boolean alive;
+        final AtomicInteger frames= new AtomicInteger();
+        final AtomicInteger violations= new AtomicInteger();
+        final List<String> calls= Collections.synchronizedList(new ArrayList<String>());
+
+        // when set, each frame waits for a permit after signalling inFrame
+        volatile Semaphore gate;
+        final Semaphore inFrame= new Semaphore(0);
+
+        private void check(long handle) {
+            if (!alive || handle != HANDLE) violations.incrementAndGet();
+        }
+
+        private void call(String name, long handle) {
+            check(handle);
+            calls.add(name + "@" + Thread.currentThread().getName());
+        }
+
+        @Override public long init(int detectorType, String cascadeName) {
+            alive= true;
+            return HANDLE;
+        }
+        @Override public void cleanup(long handle) {
+            check(handle);
+            alive= false;
+        }
+        @Override public boolean setFaceDetector(long handle, int type, String name) {
+            call("setFaceDetector", handle);
+            return true;
+        }
+        @Override public boolean setResultBuffer(long handle, ByteBuffer buffer) {
+            call("setResultBuffer", handle);
+            return true;
+        }
+        @Override public void setTrackerParameters(long handle, int pyrLevels, int winSize,
+                                                   int maxIter, float epsilon) {
+            call("setTrackerParameters", handle);
+        }
+        @Override public void setDetectionSearchPolicy(long handle, boolean enabled,
+                                                       float expansion, float minScale,
+                                                       float maxScale, int fullScanInterval) {
+            call("setDetectionSearchPolicy", handle);
+        }
+        @Override public void setCpuUsage(long handle, int value) {
+            call("setCpuUsage=" + value, handle);
+        }
+        @Override public int getCpuUsage(long handle) {
+            check(handle);
+            return VisionPipeline.CPU_NORMAL;
+        }
+        @Override public boolean getDetectionStats(long handle, float[] stats) {
+            check(handle);
+            stats[VisionPipeline.STAT_FRAME_TIME]= frames.get();
+            return true;
+        }
+        @Override public boolean processFrame(long handle, long mat, int flip, int rotation,
+                                              float[] vel) {
+            return frame(handle);
+        }
+        @Override public boolean processGrayFrame(long handle, long gray, long preview,
+                                                  int flip, int rotation, float[] vel) {
+            return frame(handle);
+        }
+        @Override public boolean processFrameToBuffer(long handle, long mat, int flip,
+                                                      int rotation) {
+            return frame(handle);
+        }
+        @Override public boolean processGrayFrameToBuffer(long handle, long gray,
+                                                          long preview, int flip,
+                                                          int rotation) {
+            return frame(handle);
+        }
+
+        private boolean frame(long handle) {
+            check(handle);
+            Semaphore g= gate;
+            if (g != null) {
+                inFrame.release();
+                g.acquireUninterruptibly();
+            }
+            // a cleanup must not run while the frame uses the native state
+            check(handle);
+            frames.incrementAndGet();
+            return true;
+        }
+    }
+
+    private static Thread startFrames(final VisionPipeline vp, final int count) {
+        Thread t= new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (int i= 0; i < count; i++) {
+                    if (!vp.processGrayFrameToBuffer(1, 0, 0, 0)) return;
+                }
+            }
+        }, "frames");
+        t.start();
+        return t;
+    }
+
+    // run on another thread and check that it does not block
+    private static void assertDoesNotBlock(Runnable r) throws InterruptedException {
+        Thread t= new Thread(r);
+        t.start();
+        t.join(2000);
+        if (t.isAlive()) fail("blocked behind the frame in progress");
+    }
+
+    @Test
+    public void settingsDoNotWaitForTheFrame() throws Exception {
+        final FakeBackend backend= new FakeBackend();
+        final VisionPipeline vp= new VisionPipeline(backend, 0, "cascade");
+        backend.gate= new Semaphore(0);
+
+        Thread frames= startFrames(vp, 2);
+        assertTrue(backend.inFrame.tryAcquire(2, TimeUnit.SECONDS));
+
+        assertDoesNotBlock(new Runnable() {
+            @Override
+            public void run() {
+                vp.setCpuUsage(VisionPipeline.CPU_HIGHEST);
+                vp.setTrackerParameters(2, 15, 10, 0.1f);
+                vp.setDetectionSearchPolicy(true, 2, 0.5f, 1.5f, 10);
+                assertEquals(VisionPipeline.CPU_HIGHEST, vp.getCpuUsage());
+                float[] stats= new float[VisionPipeline.STAT_SIZE];
+                assertTrue(vp.getDetectionStats(stats));
+            }
+        });
+        assertTrue(backend.calls.isEmpty());
+
+        // applied once, by the frames thread, before the next frame
+        backend.gate.release(2);
+        frames.join();
+        assertEquals(2, backend.frames.get());
+        assertEquals(3, backend.calls.size());
+        assertTrue(backend.calls.contains("setCpuUsage=" + VisionPipeline.CPU_HIGHEST + "@frames"));
+        assertTrue(backend.calls.contains("setTrackerParameters@frames"));
+        assertTrue(backend.calls.contains("setDetectionSearchPolicy@frames"));
+        assertEquals(0, backend.violations.get());
+    }
+
+    @Test
+    public void unchangedSettingsAreNotApplied() {
+        FakeBackend backend= new FakeBackend();
+        VisionPipeline vp= new VisionPipeline(backend, 0, "cascade");
+        vp.setCpuUsage(VisionPipeline.CPU_NORMAL);
+        for (int i= 0; i < 3; i++) vp.processFrameToBuffer(1, 0, 0);
+        assertTrue(backend.calls.isEmpty());
+        vp.cleanup();
+    }
+
+    @Test
+    public void cleanupWaitsForTheFrame() throws Exception {
+        FakeBackend backend= new FakeBackend();
+        final VisionPipeline vp= new VisionPipeline(backend, 0, "cascade");
+        backend.gate= new Semaphore(0);
+
+        Thread frames= startFrames(vp, Integer.MAX_VALUE);
+        assertTrue(backend.inFrame.tryAcquire(2, TimeUnit.SECONDS));
+
+        Thread cleanup= new Thread(new Runnable() {
+            @Override
+            public void run() {
+                vp.cleanup();
+            }
+        });
+        cleanup.start();
+        cleanup.join(200);
+        assertTrue(cleanup.isAlive());
+        assertTrue(backend.alive);
+
+        backend.gate.release(Integer.MAX_VALUE / 2);
+        cleanup.join();
+        frames.join();
+        assertFalse(backend.alive);
+        assertEquals(0, backend.violations.get());
+
+        // frames are ignored once cleaned up
+        int processed= backend.frames.get();
+        assertFalse(vp.processGrayFrameToBuffer(1, 0, 0, 0));
+        assertFalse(vp.processFrameToBuffer(1, 0, 0));
+        assertEquals(processed, backend.frames.get());
+        assertFalse(vp.getDetectionStats(new float[VisionPipeline.STAT_SIZE]));
+        vp.setCpuUsage(VisionPipeline.CPU_LOW);
+        vp.cleanup();
+        try {
+            vp.setFaceDetector(0, "cascade");
+            fail("setFaceDetector after cleanup");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void closeDuringProcessing() throws Exception {
+        for (int round= 0; round < 50; round++) {
+            final FakeBackend backend= new FakeBackend();
+            final VisionPipeline vp= new VisionPipeline(backend, 0, "cascade");
+            final CountDownLatch started= new CountDownLatch(1);
+
+            Thread frames= new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    started.countDown();
+                    while (vp.processGrayFrameToBuffer(1, 0, 0, 0)) { /* loop */ }
+                }
+            });
+            Thread settings= new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    float[] stats= new float[VisionPipeline.STAT_SIZE];
+                    int i= 0;
+                    while (vp.getDetectionStats(stats)) {
+                        vp.setCpuUsage(i++ % 5);
+                        vp.setTrackerParameters(i % 4, 15, 10, 0.1f);
+                    }
+                }
+            });
+            frames.start();
+            settings.start();
+            started.await();
+            Thread.sleep(2);
+            vp.cleanup();
+            frames.join(2000);
+            settings.join(2000);
+
+            assertFalse(frames.isAlive());
+            assertFalse(settings.isAlive());
+            assertFalse(backend.alive);
+            assertEquals(0, backend.violations.get());
+        }
+    }
+}
@@ -0,0 +1,335 @@
+/*
+ * Enable Viacam for Android, a camera based mouse emulator
+ *
+ * Copyright (C) 2015-17 Cesar Mauri Loba (CREA Software Systems)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.crea_si.eviacam.slavemode;
+
+import androidx.annotation.NonNull;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ClientQueueTest {
+    private static final long TIMEOUT_MS= 5000;
+
+    /** Records the events delivered to it */
+    private static class Listener {
+        final String name;
+        final List<String> delivered;
+
+        Listener(String name, List<String> delivered) {
+            this.name= name;
+            this.delivered= delivered;
+        }
+
+        void receive(String event) {
+            synchronized (delivered) {
+                delivered.add(name + ":" + event);
+            }
+        }
+    }
+
+    private static class TestEvent extends ListenerDispatcher.Event<Listener> {
+        final String name;
+        final boolean coalescable;
+        // when set, delivery waits for it
+        CountDownLatch gate;
+        final CountDownLatch entered= new CountDownLatch(1);
+        int refs;
+        int acquired;
+
+        TestEvent(String name, boolean coalescable) {
+            this.name= name;
+            this.coalescable= coalescable;
+        }
+
+        @Override
+        void deliverTo(@NonNull Listener listener) {
+            entered.countDown();
+            if (gate != null) {
+                try {
+                    gate.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            listener.receive(name);
+        }
+
+        @Override
+        boolean isCoalescable() {
+            return coalescable;
+        }
+
+        @Override
+        synchronized void acquire() {
+            refs++;
+            acquired++;
+        }
+
+        @Override
+        synchronized void release() {
+            refs--;
+        }
+
+        synchronized int getRefs() {
+            return refs;
+        }
+    }
+
+    private final List<String> mDelivered= new ArrayList<>();
+    private final List<TestEvent> mEvents= new ArrayList<>();
+    private ScheduledThreadPoolExecutor mExecutor;
+
+    @After
+    public void tearDown() throws InterruptedException {
+        if (mExecutor != null) {
+            mExecutor.shutdown();
+            assertTrue(mExecutor.awaitTermination(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        }
+    }
+
+    private ClientQueue<Listener> newQueue(String name, int threads) {
+        if (mExecutor == null) mExecutor= new ScheduledThreadPoolExecutor(threads);
+        return new ClientQueue<>(0, new Listener(name, mDelivered), mExecutor);
+    }
+
+    private TestEvent event(String name, boolean coalescable) {
+        TestEvent e= new TestEvent(name, coalescable);
+        mEvents.add(e);
+        return e;
+    }
+
+    private List<String> delivered() {
+        synchronized (mDelivered) {
+            return new ArrayList<>(mDelivered);
+        }
+    }
+
+    private void waitDelivered(int count) throws InterruptedException {
+        final long end= System.currentTimeMillis() + TIMEOUT_MS;
+        while (delivered().size() < count) {
+            assertTrue("timeout, delivered: " + delivered(), System.currentTimeMillis() < end);
+            Thread.sleep(5);
+        }
+    }
+
+    /** Wait until the pool is idle and check every queued event has been released */
+    private void assertAllReleased() throws InterruptedException {
+        final long end= System.currentTimeMillis() + TIMEOUT_MS;
+        while (mExecutor.getActiveCount() > 0 || !mExecutor.getQueue().isEmpty()) {
+            assertTrue(System.currentTimeMillis() < end);
+            Thread.sleep(5);
+        }
+        for (TestEvent e : mEvents) assertEquals(e.name, 0, e.getRefs());
+    }
+
+    @Test
+    public void deliversInOrder() throws InterruptedException {
+        ClientQueue<Listener> q= newQueue("a", 2);
+        for (int i= 0; i < 20; i++) q.enqueue(event("e" + i, i % 2 == 0), i);
+
+        waitDelivered(20);
+        List<String> d= delivered();
+        for (int i= 0; i < 20; i++) assertEquals("a:e" + i, d.get(i));
+        assertAllReleased();
+    }
+
+    @Test
+    public void trailingMoveIsDelivered() throws InterruptedException {
+        ClientQueue<Listener> q= newQueue("a", 2);
+        q.setRateLimit(10);
+
+        q.enqueue(event("move0", true), 1000);
+        waitDelivered(1);
+
+        // within the interval and nothing queued to replace: kept for later
+        TestEvent superseded= event("move1", true);
+        q.enqueue(superseded, 1010);
+        q.enqueue(event("move2", true), 1020);
+        assertEquals(0, superseded.getRefs());
+        assertEquals(1, delivered().size());
+
+        waitDelivered(2);
+        assertEquals("a:move2", delivered().get(1));
+
+        // the interval restarts at the trailing delivery
+        q.enqueue(event("move3", true), 1100);
+        Thread.sleep(200);
+        assertEquals(3, delivered().size());
+        assertEquals("a:move3", delivered().get(2));
+        assertAllReleased();
+    }
+
+    @Test
+    public void limitedMoveReplacesQueuedMove() throws InterruptedException {
+        ClientQueue<Listener> q= newQueue("a", 1);
+        q.setRateLimit(10);
+
+        // keep the thread busy so that the events stay queued
+        TestEvent blocker= event("down", false);
+        blocker.gate= new CountDownLatch(1);
+        q.enqueue(blocker, 1000);
+        q.enqueue(event("move0", true), 1000);
+        TestEvent replaced= event("move1", true);
+        q.enqueue(replaced, 1010);
+        q.enqueue(event("move2", true), 1020);
+        assertEquals(0, replaced.getRefs());
+        blocker.gate.countDown();
+
+        waitDelivered(2);
+        Thread.sleep(200);
+        List<String> d= delivered();
+        assertEquals(2, d.size());
+        assertEquals("a:down", d.get(0));
+        assertEquals("a:move2", d.get(1));
+        assertAllReleased();
+    }
+
+    @Test
+    public void limitedMoveGoesBeforeLaterEvents() throws InterruptedException {
+        ClientQueue<Listener> q= newQueue("a", 2);
+        q.setRateLimit(10);
+
+        q.enqueue(event("move0", true), 1000);
+        waitDelivered(1);
+        q.enqueue(event("move1", true), 1010);
+        q.enqueue(event("down", false), 1020);
+        q.enqueue(event("up", false), 1030);
+
+        waitDelivered(4);
+        Thread.sleep(200);
+        List<String> d= delivered();
+        assertEquals(4, d.size());
+        assertEquals("a:move1", d.get(1));
+        assertEquals("a:down", d.get(2));
+        assertEquals("a:up", d.get(3));
+        assertAllReleased();
+    }
+
+    @Test
+    public void overflowDropsOldest() throws InterruptedException {
+        ClientQueue<Listener> q= newQueue("a", 2);
+
+        TestEvent blocker= event("blocker", false);
+        blocker.gate= new CountDownLatch(1);
+        q.enqueue(blocker, 0);
+        assertTrue(blocker.entered.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+
+        final int extra= 5;
+        for (int i= 0; i < ClientQueue.CAPACITY + extra; i++) q.enqueue(event("e" + i, false), 0);
+        for (int i= 0; i < extra; i++) assertEquals(0, mEvents.get(i + 1).getRefs());
+        assertTrue(q.getStats().contains("dropped=" + extra));
+        blocker.gate.countDown();
+
+        waitDelivered(ClientQueue.CAPACITY + 1);
+        List<String> d= delivered();
+        assertEquals("a:blocker", d.get(0));
+        assertEquals("a:e" + extra, d.get(1));
+        assertEquals("a:e" + (ClientQueue.CAPACITY + extra - 1), d.get(d.size() - 1));
+        assertAllReleased();
+    }
+
+    @Test
+    public void slowClientDoesNotDelayOthers() throws InterruptedException {
+        final int threads= 2;
+        ClientQueue<Listener> slow= newQueue("slow", threads);
+        ClientQueue<Listener> fast= newQueue("fast", threads);
+
+        TestEvent stuck= event("stuck", false);
+        stuck.gate= new CountDownLatch(1);
+        slow.enqueue(stuck, 0);
+        for (int i= 0; i < 10; i++) slow.enqueue(event("s" + i, false), 0);
+        assertTrue(stuck.entered.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+
+        try {
+            for (int i= 0; i < 100; i++) {
+                fast.enqueue(event("f" + i, false), 0);
+                if (i % 10 == 9) waitDelivered(i + 1);
+            }
+            for (String s : delivered()) assertTrue(s, s.startsWith("fast:"));
+        }
+        finally {
+            stuck.gate.countDown();
+        }
+        waitDelivered(111);
+        assertTrue(mExecutor.getLargestPoolSize() <= threads);
+        assertAllReleased();
+    }
+
+    @Test
+    public void clientsShareThreadFairly() throws InterruptedException {
+        ClientQueue<Listener> a= newQueue("a", 1);
+        ClientQueue<Listener> b= newQueue("b", 1);
+
+        // hold the only thread while both queues fill up
+        final CountDownLatch gate= new CountDownLatch(1);
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    gate.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        for (int i= 0; i < 30; i++) a.enqueue(event("a" + i, false), 0);
+        b.enqueue(event("b0", false), 0);
+        gate.countDown();
+
+        waitDelivered(31);
+        List<String> d= delivered();
+        assertTrue(d.toString(), d.indexOf("b:b0") <= ClientQueue.MAX_BATCH);
+        for (int i= 0; i < 30; i++) assertTrue(d.contains("a:a" + i));
+        assertAllReleased();
+    }
+
+    @Test
+    public void closeReleasesPendingEvents() throws InterruptedException {
+        ClientQueue<Listener> q= newQueue("a", 2);
+        q.setRateLimit(10);
+
+        TestEvent blocker= event("blocker", false);
+        blocker.gate= new CountDownLatch(1);
+        q.enqueue(blocker, 1000);
+        assertTrue(blocker.entered.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        q.enqueue(event("move0", true), 1000);
+        q.enqueue(event("down", false), 1000);
+        q.enqueue(event("move1", true), 1010);
+        q.close();
+        q.enqueue(event("late", false), 1020);
+
+        blocker.gate.countDown();
+        waitDelivered(1);
+        Thread.sleep(200);
+        assertEquals(1, delivered().size());
+        assertFalse(mEvents.get(mEvents.size() - 1).acquired > 0);
+        assertAllReleased();
+    }
+}
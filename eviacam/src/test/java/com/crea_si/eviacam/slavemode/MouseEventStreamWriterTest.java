@@ -0,0 +1,266 @@
+/*
+ * Enable Viacam for Android, a camera based mouse emulator
+ *
+ * Copyright (C) 2015-17 Cesar Mauri Loba (CREA Software Systems)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.crea_si.eviacam.slavemode;
+
+import androidx.annotation.NonNull;
+
+import com.crea_si.eviacam.api.MouseEventStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Pipe;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class MouseEventStreamWriterTest {
+    private static final int MOVE= 2;
+
+    /* Write side of an actual non-blocking pipe */
+    private static class PipeSink implements MouseEventStreamWriter.Sink {
+        final Pipe.SinkChannel channel;
+        int writes;
+        boolean closed;
+
+        PipeSink(Pipe pipe) throws IOException {
+            channel= pipe.sink();
+            channel.configureBlocking(false);
+        }
+
+        @Override
+        public int write(@NonNull ByteBuffer b) throws IOException {
+            writes++;
+            return channel.write(b);
+        }
+
+        @Override
+        public void close() throws IOException {
+            closed= true;
+            channel.close();
+        }
+    }
+
+    private Pipe mPipe;
+    private PipeSink mSink;
+    private final ByteBuffer mReadBuffer= ByteBuffer.allocate(MouseEventStream.MAX_BATCH_SIZE * 4)
+            .order(ByteOrder.nativeOrder());
+
+    @Before
+    public void setUp() throws IOException {
+        mPipe= Pipe.open();
+        mPipe.source().configureBlocking(false);
+        mSink= new PipeSink(mPipe);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        mPipe.sink().close();
+        mPipe.source().close();
+    }
+
+    /* Read the samples available in the pipe as { seq, action, x, y, time } */
+    private List<long[]> drain() throws IOException {
+        List<long[]> samples= new ArrayList<>();
+        while (mPipe.source().read(mReadBuffer) > 0) {
+            mReadBuffer.flip();
+            // whole batches are written, records are never split
+            assertEquals(0, mReadBuffer.remaining() % MouseEventStream.RECORD_SIZE);
+            while (mReadBuffer.hasRemaining()) {
+                samples.add(new long[] { mReadBuffer.getInt(), mReadBuffer.getInt(),
+                        mReadBuffer.getInt(), mReadBuffer.getInt(), mReadBuffer.getLong() });
+            }
+            mReadBuffer.clear();
+        }
+        return samples;
+    }
+
+    @Test
+    public void framesAreWrittenInOrder() throws IOException {
+        MouseEventStreamWriter w= new MouseEventStreamWriter(mSink);
+        for (int frame= 0; frame < 100; frame++) {
+            for (int i= 0; i <= frame % 3; i++) assertTrue(w.add(MOVE, frame, i, 1000L + frame));
+            assertTrue(w.flush());
+        }
+        // nothing pending, no write
+        assertTrue(w.flush());
+        assertEquals(100, mSink.writes);
+
+        List<long[]> samples= drain();
+        assertEquals(w.getWritten(), samples.size());
+        assertEquals(0, w.getDropped());
+        int seq= 0;
+        for (int frame= 0; frame < 100; frame++) {
+            for (int i= 0; i <= frame % 3; i++) {
+                long[] s= samples.get(seq);
+                assertEquals(seq++, s[0]);
+                assertEquals(MOVE, s[1]);
+                assertEquals(frame, s[2]);
+                assertEquals(i, s[3]);
+                assertEquals(1000L + frame, s[4]);
+            }
+        }
+    }
+
+    @Test
+    public void largeFramesAreSplitInBatches() throws IOException {
+        MouseEventStreamWriter w= new MouseEventStreamWriter(mSink);
+        final int perBatch= MouseEventStream.MAX_BATCH_SIZE / MouseEventStream.RECORD_SIZE;
+        for (int i= 0; i < perBatch * 2 + 1; i++) w.add(MOVE, i, i, i);
+        w.flush();
+        assertEquals(3, mSink.writes);
+        List<long[]> samples= drain();
+        assertEquals(perBatch * 2 + 1, samples.size());
+        for (int i= 0; i < samples.size(); i++) assertEquals(i, samples.get(i)[0]);
+    }
+
+    @Test
+    public void fullPipeDropsBatches() throws IOException {
+        MouseEventStreamWriter w= new MouseEventStreamWriter(mSink);
+
+        // the client does not read, the writer must neither block nor fail
+        int frames= 0;
+        long slowest= 0;
+        while (w.getDropped() == 0 || frames < 20000) {
+            w.add(MOVE, frames, 0, frames);
+            w.add(MOVE, frames, 1, frames);
+            long start= System.nanoTime();
+            assertTrue(w.flush());
+            slowest= Math.max(slowest, System.nanoTime() - start);
+            frames++;
+            assertTrue("pipe never full", frames < 10000000);
+        }
+        assertTrue(slowest + " ns", slowest < 100000000L);
+        final long written= w.getWritten();
+        final long dropped= w.getDropped();
+        assertEquals(2L * frames, written + dropped);
+
+        // all the samples in the pipe, then the client catches up
+        List<long[]> samples= drain();
+        assertEquals(written, samples.size());
+        for (int i= 0; i < samples.size(); i++) assertEquals(i, samples.get(i)[0]);
+
+        // sequence numbers kept advancing, the gap tells how many were lost
+        w.add(MOVE, 0, 0, 0);
+        assertTrue(w.flush());
+        samples= drain();
+        assertEquals(1, samples.size());
+        assertEquals(written + dropped, samples.get(0)[0]);
+    }
+
+    @Test
+    public void brokenPipeClosesTheStream() throws IOException {
+        MouseEventStreamWriter w= new MouseEventStreamWriter(mSink);
+        w.add(MOVE, 0, 0, 0);
+        assertTrue(w.flush());
+
+        // the client goes away
+        mPipe.source().close();
+        w.add(MOVE, 1, 1, 1);
+        assertFalse(w.flush());
+        assertTrue(w.isClosed());
+        assertTrue(mSink.closed);
+
+        assertFalse(w.add(MOVE, 2, 2, 2));
+        assertFalse(w.flush());
+        assertEquals(1, w.getWritten());
+        // closing again does nothing
+        w.close();
+    }
+
+    /*
+     * Cost per sample of the stream, a write per frame, against sending each
+     * event on its own as the listener path does. Binder is not available in
+     * local tests, so the per event path is emulated with a write to the same
+     * pipe per event, which is cheaper than a binder transaction with a
+     * MotionEvent: the comparison is in favour of the per event path.
+     *
+     * The pipe is drained between chunks of frames (not timed), so that no
+     * sample is dropped and both paths deliver the same samples.
+     */
+    @Test
+    public void throughputBenchmark() throws IOException {
+        final int frames= 100000;
+        // fits in the pipe buffer (64 KiB on Linux, at least 4 KiB)
+        final int chunk= 16;
+        MouseEventStreamWriter stream= new MouseEventStreamWriter(mSink);
+        ByteBuffer single= ByteBuffer.allocateDirect(MouseEventStream.RECORD_SIZE)
+                .order(ByteOrder.nativeOrder());
+
+        long bestStream= Long.MAX_VALUE, bestPerEvent= Long.MAX_VALUE;
+        int streamWrites= 0, perEventWrites= 0, samples= 0, seq= 0;
+        for (int run= 0; run < 5; run++) {
+            // a move per frame plus a press or release every few frames
+            long elapsed= 0;
+            int writes= mSink.writes;
+            samples= 0;
+            for (int f= 0; f < frames; f+= chunk) {
+                long start= System.nanoTime();
+                for (int i= f; i < f + chunk; i++) {
+                    stream.add(MOVE, i, i, i);
+                    if ((i & 3) == 0) stream.add(0, i, i, i);
+                    stream.flush();
+                }
+                elapsed+= System.nanoTime() - start;
+                samples+= drain().size();
+            }
+            bestStream= Math.min(bestStream, elapsed);
+            streamWrites= mSink.writes - writes;
+            assertEquals(frames + frames / 4, samples);
+
+            elapsed= 0;
+            writes= mSink.writes;
+            samples= 0;
+            for (int f= 0; f < frames; f+= chunk) {
+                long start= System.nanoTime();
+                for (int i= f; i < f + chunk; i++) {
+                    for (int e= 0; e < ((i & 3) == 0 ? 2 : 1); e++) {
+                        single.clear();
+                        MouseEventStream.putSample(single, seq++, MOVE, i, i, i);
+                        single.flip();
+                        mSink.write(single);
+                    }
+                }
+                elapsed+= System.nanoTime() - start;
+                samples+= drain().size();
+            }
+            bestPerEvent= Math.min(bestPerEvent, elapsed);
+            perEventWrites= mSink.writes - writes;
+            assertEquals(frames + frames / 4, samples);
+        }
+        assertEquals(0, stream.getDropped());
+
+        System.out.println(String.format("MouseEventStream: %.1f ns/sample (%.2f writes/sample)" +
+                        ", a write per event %.1f ns/sample (%.2f writes/sample)",
+                (double) bestStream / samples, (double) streamWrites / samples,
+                (double) bestPerEvent / samples, (double) perEventWrites / samples));
+        // a write, i.e. an IPC, per frame instead of per event
+        assertEquals(frames, streamWrites);
+        assertEquals(samples, perEventWrites);
+        // with so few samples per frame the times are close, allow for noise
+        assertTrue(bestStream < bestPerEvent * 5 / 4);
+    }
+}
@@ -0,0 +1,292 @@
+/*
+ * Enable Viacam for Android, a camera based mouse emulator
+ *
+ * Copyright (C) 2015-17 Cesar Mauri Loba (CREA Software Systems)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.crea_si.eviacam.slavemode;
+
+import android.os.IBinder;
+import android.view.InputDevice;
+import android.view.MotionEvent;
+
+import com.crea_si.eviacam.api.IMouseEventListener;
+import com.crea_si.input_method_aidl.MotionEventFactory;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Constructor;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class MouseEventTest {
+    /** Counts the events received */
+    private static class Listener implements IMouseEventListener {
+        volatile int received;
+        MotionEvent last;
+
+        @Override
+        public synchronized void onMouseEvent(MotionEvent e) {
+            received++;
+            last= e;
+        }
+
+        @Override
+        public IBinder asBinder() {
+            return null;
+        }
+    }
+
+    // MotionEvent.obtain needs the native code, an empty instance is enough here
+    private static MotionEvent newMotionEvent() throws Exception {
+        Constructor<MotionEvent> c= MotionEvent.class.getDeclaredConstructor();
+        c.setAccessible(true);
+        return c.newInstance();
+    }
+
+    /**
+     * The MotionEvent pool lives in the native code, here it is replaced by a ring of
+     * instances handed out in turn. Also checks that the factory always passes the
+     * same pointer arrays.
+     */
+    private static class PooledFactory extends MotionEventFactory {
+        private final MotionEvent[] mRing;
+        private int mNext= 0;
+        private MotionEvent.PointerProperties[] mProperties;
+        private MotionEvent.PointerCoords[] mCoords;
+        int arraysChanged= 0;
+
+        PooledFactory(int size) throws Exception {
+            super(InputDevice.SOURCE_CLASS_POINTER, 0.0f);
+            mRing= new MotionEvent[size];
+            for (int i= 0; i < size; i++) mRing[i]= newMotionEvent();
+        }
+
+        @Override
+        protected MotionEvent newEvent(long downTime, long eventTime, int action,
+                                       int pointerCount,
+                                       MotionEvent.PointerProperties[] properties,
+                                       MotionEvent.PointerCoords[] coords) {
+            if (mProperties == null) {
+                mProperties= properties;
+                mCoords= coords;
+            }
+            else if (mProperties != properties || mCoords != coords) {
+                arraysChanged++;
+            }
+            MotionEvent e= mRing[mNext];
+            mNext= (mNext + 1) % mRing.length;
+            return e;
+        }
+    }
+
+    @Test
+    public void wrapperIsReusedOnceReleased() throws Exception {
+        MouseEvent e= MouseEvent.obtain(newMotionEvent(), MotionEvent.ACTION_MOVE);
+        assertTrue(e.isCoalescable());
+        e.release();
+
+        MouseEvent e2= MouseEvent.obtain(newMotionEvent(), MotionEvent.ACTION_DOWN);
+        assertSame(e, e2);
+        assertFalse(e2.isCoalescable());
+        e2.release();
+    }
+
+    @Test
+    public void keptWhileReferenced() throws Exception {
+        MotionEvent m= newMotionEvent();
+        MouseEvent e= MouseEvent.obtain(m, MotionEvent.ACTION_UP);
+        // two client queues
+        e.acquire();
+        e.acquire();
+        e.release();
+
+        Listener l= new Listener();
+        e.deliverTo(l);
+        e.release();
+        assertSame(m, l.last);
+
+        // still referenced by one queue, cannot be handed out again
+        MouseEvent other= MouseEvent.obtain(newMotionEvent(), MotionEvent.ACTION_MOVE);
+        assertNotSame(e, other);
+        other.release();
+
+        e.deliverTo(l);
+        assertSame(m, l.last);
+        e.release();
+        assertEquals(2, l.received);
+    }
+
+    @Test
+    public void releasingTooManyTimesFails() throws Exception {
+        MouseEvent e= MouseEvent.obtain(newMotionEvent(), MotionEvent.ACTION_MOVE);
+        e.release();
+        try {
+            e.release();
+            fail();
+        }
+        catch (IllegalStateException ex) {
+            // expected
+        }
+    }
+
+    @Test
+    public void steadyStreamDoesNotAllocateWrappers() throws Exception {
+        final int clients= 3;
+        final int events= 2000;
+        ScheduledThreadPoolExecutor executor= new ScheduledThreadPoolExecutor(2);
+        Listener[] listeners= new Listener[clients];
+        @SuppressWarnings("unchecked")
+        ClientQueue<IMouseEventListener>[] queues= new ClientQueue[clients];
+        for (int i= 0; i < clients; i++) {
+            listeners[i]= new Listener();
+            queues[i]= new ClientQueue<IMouseEventListener>(i, listeners[i], executor);
+        }
+
+        Set<MouseEvent> wrappers= Collections.newSetFromMap(new IdentityHashMap<MouseEvent, Boolean>());
+        for (int n= 0; n < events; n++) {
+            MouseEvent e= MouseEvent.obtain(newMotionEvent(), MotionEvent.ACTION_DOWN);
+            wrappers.add(e);
+            for (ClientQueue<IMouseEventListener> q : queues) q.enqueue(e, n);
+            e.release();
+
+            // a client keeping up with the events
+            if (n % 16 == 15) {
+                for (Listener l : listeners) {
+                    while (l.received < n + 1) Thread.sleep(1);
+                }
+            }
+        }
+
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+        for (Listener l : listeners) assertEquals(events, l.received);
+        assertTrue("wrappers: " + wrappers.size(), wrappers.size() <= MouseEvent.POOL_SIZE);
+    }
+
+    /**
+     * Path of a mouse event in SlaveModeEngineImpl.sendMouseEvent with one client
+     * queue, delivered on the same thread: moves and a click every 30 frames.
+     */
+    private static void frame(PooledFactory factory, Listener l, int n, long now)
+            throws Exception {
+        final int action;
+        MotionEvent event;
+        if (n % 30 == 10) {
+            action= MotionEvent.ACTION_DOWN;
+            event= factory.obtainDown(now, n, n);
+        }
+        else if (n % 30 == 12) {
+            action= MotionEvent.ACTION_UP;
+            event= factory.obtainUp(now, n, n);
+        }
+        else {
+            action= MotionEvent.ACTION_MOVE;
+            event= factory.obtainMove(now, n, n);
+        }
+
+        MouseEvent e= MouseEvent.obtain(event, action);
+        e.acquire();
+        e.release();
+        e.deliverTo(l);
+        e.release();
+    }
+
+    /** Send events at 60 per second */
+    private static void realTime(PooledFactory factory, Listener l, int n, long now, int count)
+            throws Exception {
+        final long periodMs= 1000 / 60;
+        long deadline= System.nanoTime();
+        for (int i= 0; i < count; i++, n++, now+= periodMs) {
+            deadline+= TimeUnit.MILLISECONDS.toNanos(periodMs);
+            while (System.nanoTime() < deadline) LockSupport.parkNanos(deadline - System.nanoTime());
+            frame(factory, l, n, now);
+        }
+    }
+
+    /**
+     * Allocations of the event path (MotionEvent, pointer arrays and wrappers) at 60
+     * events/s, first in real time and then a 10 minutes session with simulated time
+     * stamps. The delivery thread pool is left out: it is not part of the path.
+     */
+    @Test
+    public void sixtyEventsPerSecondBenchmark() throws Exception {
+        final long periodMs= 1000 / 60;
+        PooledFactory factory= new PooledFactory(4);
+        Listener l= new Listener();
+
+        ThreadMXBean threads= ManagementFactory.getThreadMXBean();
+        boolean allocationSupported= threads instanceof com.sun.management.ThreadMXBean &&
+                ((com.sun.management.ThreadMXBean) threads).isThreadAllocatedMemorySupported();
+
+        // warm up, including the pacing
+        int n= 0;
+        long now= 0;
+        for (; n < 20000; n++, now+= periodMs) frame(factory, l, n, now);
+        realTime(factory, l, n, now, 10);
+        n+= 10;
+        now+= 10 * periodMs;
+
+        // allocated by the measurement itself
+        long bytes= allocatedBytes(allocationSupported);
+        final long overhead= allocatedBytes(allocationSupported) - bytes;
+
+        final int realTimeEvents= 60;
+        bytes= allocatedBytes(allocationSupported);
+        realTime(factory, l, n, now, realTimeEvents);
+        long realTimeBytes= allocatedBytes(allocationSupported) - bytes - overhead;
+        n+= realTimeEvents;
+        now+= realTimeEvents * periodMs;
+
+        final int sessionEvents= 60 * 60 * 10;
+        bytes= allocatedBytes(allocationSupported);
+        long start= System.nanoTime();
+        for (int i= 0; i < sessionEvents; i++, n++, now+= periodMs) frame(factory, l, n, now);
+        long elapsed= System.nanoTime() - start;
+        long sessionBytes= allocatedBytes(allocationSupported) - bytes - overhead;
+
+        System.out.println(String.format(
+                "MouseEvent: %.1f ns/event, %d bytes in 1 s, %.3f bytes/event in 10 min",
+                (double) elapsed / sessionEvents, realTimeBytes,
+                (double) sessionBytes / sessionEvents));
+        assertEquals(n, l.received);
+        assertEquals(0, factory.getDroppedEvents());
+        assertEquals(0, factory.arraysChanged);
+        if (allocationSupported) {
+            assertTrue(realTimeBytes + " bytes", realTimeBytes < 256);
+            assertTrue(sessionBytes + " bytes", sessionBytes < 4096);
+        }
+    }
+
+    private static long allocatedBytes(boolean supported) {
+        if (!supported) return 0;
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+                .getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+}
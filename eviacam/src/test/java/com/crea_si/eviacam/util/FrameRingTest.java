@@ -0,0 +1,457 @@
+/*
+ * Enable Viacam for Android, a camera based mouse emulator
+ *
+ * Copyright (C) 2015-17 Cesar Mauri Loba (CREA Software Systems)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.crea_si.eviacam.util;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class FrameRingTest {
+    private static final int QUEUE_CAPACITY= 4;
+
+    // time that a thread may wait to be scheduled on a loaded machine (ns)
+    private static final long SCHEDULING_SLACK= 50000000L;
+
+    /* Synthetic frame: a sequence number and a payload derived from it */
+    static class Slot {
+        long seq;
+        long check;
+        final long[] payload= new long[64];
+        // published frames before this one and time of publication (System.nanoTime)
+        long publishIndex;
+        long publishTime;
+        // times freed by a SlotCleaner
+        final AtomicInteger cleaned= new AtomicInteger();
+    }
+
+    private static final FrameRing.SlotFactory<Slot> FACTORY= new FrameRing.SlotFactory<Slot>() {
+        @Override
+        public Slot create() {
+            return new Slot();
+        }
+    };
+
+    /* Keeps all the slots created to check that they are freed */
+    static class TrackingFactory implements FrameRing.SlotFactory<Slot> {
+        final List<Slot> created= new ArrayList<>();
+
+        @Override
+        public synchronized Slot create() {
+            Slot s= new Slot();
+            created.add(s);
+            return s;
+        }
+
+        synchronized void assertAllCleanedOnce() {
+            for (Slot s : created) assertEquals(1, s.cleaned.get());
+        }
+    }
+
+    private static final FrameRing.SlotCleaner<Slot> CLEANER= new FrameRing.SlotCleaner<Slot>() {
+        @Override
+        public void cleanup(Slot slot) {
+            slot.cleaned.incrementAndGet();
+        }
+    };
+
+    // publish a frame as the producer does
+    private static boolean publish(FrameRing<Slot> ring, long seq) {
+        Slot s= ring.beginWrite();
+        if (s == null) return false;
+        fill(s, seq);
+        s.publishIndex= ring.getPublishedCount();
+        s.publishTime= System.nanoTime();
+        ring.endWrite();
+        return true;
+    }
+
+    private static void fill(Slot s, long seq) {
+        s.seq= seq;
+        for (int i= 0; i < s.payload.length; i++) s.payload[i]= seq * 31 + i;
+        s.check= seq ^ 0x5555;
+    }
+
+    // the slot must not change while the consumer holds it
+    private static void verify(Slot s) {
+        final long seq= s.seq;
+        for (int i= 0; i < s.payload.length; i++) {
+            if (s.payload[i] != seq * 31 + i) throw new AssertionError("torn frame " + seq);
+        }
+        if (s.check != (seq ^ 0x5555)) throw new AssertionError("torn frame " + seq);
+        if (s.cleaned.get() != 0) throw new AssertionError("freed slot in use " + seq);
+    }
+
+    // sleep rather than spin so that both threads progress on a single CPU
+    private static void pause(long nanos) {
+        if (nanos > 0) LockSupport.parkNanos(nanos);
+    }
+
+    @Test
+    public void latestWinsSingleThread() {
+        FrameRing<Slot> ring= new FrameRing<>("test", FrameRing.DropPolicy.LATEST_WINS, 0, FACTORY);
+        assertEquals(3, ring.getSlots().size());
+        assertNull(ring.beginRead());
+        assertFalse(ring.hasPending());
+
+        for (int i= 0; i < 3; i++) {
+            fill(ring.beginWrite(), i);
+            ring.endWrite();
+        }
+        assertTrue(ring.hasPending());
+        Slot s= ring.beginRead();
+        assertEquals(2, s.seq);
+        ring.endRead();
+        assertNull(ring.beginRead());
+
+        assertEquals(3, ring.getPublishedCount());
+        assertEquals(1, ring.getConsumedCount());
+        assertEquals(2, ring.getDroppedCount());
+        ring.release();
+    }
+
+    @Test
+    public void queueSingleThread() {
+        FrameRing<Slot> ring= new FrameRing<>("test", FrameRing.DropPolicy.QUEUE, 2, FACTORY);
+        fill(ring.beginWrite(), 0);
+        ring.endWrite();
+        fill(ring.beginWrite(), 1);
+        ring.endWrite();
+        // full
+        assertNull(ring.beginWrite());
+
+        Slot s= ring.beginRead();
+        assertEquals(0, s.seq);
+        try {
+            ring.beginRead();
+            fail("beginRead twice without endRead");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        // the slot being read is not given to the producer
+        assertNull(ring.beginWrite());
+        ring.endRead();
+
+        Slot w= ring.beginWrite();
+        assertSame(s, w);
+        fill(w, 2);
+        ring.endWrite();
+
+        assertEquals(1, ring.beginRead().seq);
+        ring.endRead();
+        assertEquals(2, ring.beginRead().seq);
+        ring.endRead();
+        assertNull(ring.beginRead());
+
+        assertEquals(3, ring.getPublishedCount());
+        assertEquals(3, ring.getConsumedCount());
+        assertEquals(2, ring.getDroppedCount());
+        ring.release();
+    }
+
+    @Test(expected= IllegalArgumentException.class)
+    public void queueNeedsTwoSlots() {
+        new FrameRing<>("test", FrameRing.DropPolicy.QUEUE, 1, FACTORY);
+    }
+
+    @Test
+    public void summary() {
+        FrameRing<Slot> ring= new FrameRing<>("summary_ring", FrameRing.DropPolicy.QUEUE, 4, FACTORY);
+        assertTrue(FrameRing.getSummary().contains("summary_ring (queue)"));
+        ring.release();
+        assertFalse(FrameRing.getSummary().contains("summary_ring"));
+    }
+
+    /* Result of run */
+    static class RunResult {
+        FrameRing<Slot> ring;
+        // frames published between the publication of a frame and its consumption
+        long maxLag;
+        // longest time between the publication of a frame and its consumption
+        long maxAge;
+    }
+
+    /*
+     * Runs a producer which publishes frames at a fixed rate and a consumer which
+     * takes consumerCost to process each frame. Checks the hand-off and returns
+     * the ring for the counters to be checked, along with the age of the frames
+     * when they were consumed.
+     */
+    private static RunResult run(FrameRing.DropPolicy policy, final int frames,
+                                 final long frameTime, final long consumerCost)
+            throws Exception {
+        final RunResult result= new RunResult();
+        final FrameRing<Slot> ring= new FrameRing<>("test", policy, QUEUE_CAPACITY, FACTORY);
+        result.ring= ring;
+        final AtomicReference<Throwable> error= new AtomicReference<>();
+        final long[] lastSeq= { -1 };
+        final boolean[] producerDone= { false };
+
+        Thread producer= new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (int i= 0; i < frames; i++) {
+                    publish(ring, i);
+                    pause(frameTime);
+                }
+            }
+        }, "producer");
+
+        Thread consumer= new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (true) {
+                        boolean done;
+                        synchronized (producerDone) {
+                            done= producerDone[0];
+                        }
+                        final long published= ring.getPublishedCount();
+                        Slot s= ring.beginRead();
+                        if (s == null) {
+                            if (done) return;
+                            Thread.yield();
+                            continue;
+                        }
+                        result.maxAge= Math.max(result.maxAge, System.nanoTime() - s.publishTime);
+                        result.maxLag= Math.max(result.maxLag, published - 1 - s.publishIndex);
+                        if (s.seq <= lastSeq[0]) {
+                            throw new AssertionError("out of order " + s.seq + " after " + lastSeq[0]);
+                        }
+                        lastSeq[0]= s.seq;
+                        verify(s);
+                        pause(consumerCost);
+                        verify(s);
+                        ring.endRead();
+                    }
+                }
+                catch (Throwable t) {
+                    error.set(t);
+                }
+            }
+        }, "consumer");
+
+        consumer.start();
+        producer.start();
+        producer.join();
+        synchronized (producerDone) {
+            producerDone[0]= true;
+        }
+        consumer.join();
+
+        if (error.get() != null) throw new AssertionError(error.get());
+        ring.release();
+        return result;
+    }
+
+    /*
+     * Bound of the age of the frames: the frames which can be ahead of a frame when
+     * it is read, plus the one being consumed, each taking the longest of the frame
+     * time and the consumer cost, plus time for the scheduler to run the threads
+     */
+    private static long maxAge(int maxLag, long frameTime, long consumerCost) {
+        return (maxLag + 2) * Math.max(frameTime, consumerCost) + SCHEDULING_SLACK;
+    }
+
+    @Test
+    public void latestWinsWithSlowConsumer() throws Exception {
+        final int frames= 2000;
+        RunResult r= run(FrameRing.DropPolicy.LATEST_WINS, frames, 20000, 150000);
+        FrameRing<Slot> ring= r.ring;
+
+        // the producer never waits nor drops, the consumer skips stale frames
+        assertEquals(frames, ring.getPublishedCount());
+        assertEquals(frames, ring.getConsumedCount() + ring.getDroppedCount());
+        assertTrue(ring.getDroppedCount() > frames / 2);
+        assertFalse(ring.hasPending());
+
+        // always the newest frame
+        assertEquals(0, r.maxLag);
+        assertTrue("max age " + r.maxAge, r.maxAge < maxAge(0, 20000, 150000));
+    }
+
+    @Test
+    public void latestWinsWithFastConsumer() throws Exception {
+        final int frames= 500;
+        RunResult r= run(FrameRing.DropPolicy.LATEST_WINS, frames, 200000, 0);
+        FrameRing<Slot> ring= r.ring;
+        assertEquals(frames, ring.getPublishedCount());
+        assertEquals(frames, ring.getConsumedCount() + ring.getDroppedCount());
+        assertTrue(ring.getConsumedCount() > frames * 9 / 10);
+        assertEquals(0, r.maxLag);
+        assertTrue("max age " + r.maxAge, r.maxAge < maxAge(0, 200000, 0));
+    }
+
+    @Test
+    public void queueWithSlowConsumer() throws Exception {
+        final int frames= 2000;
+        RunResult r= run(FrameRing.DropPolicy.QUEUE, frames, 20000, 150000);
+        FrameRing<Slot> ring= r.ring;
+
+        // frames which did not fit are dropped by the producer, the rest are consumed in order
+        assertEquals(frames, ring.getPublishedCount() + ring.getDroppedCount());
+        assertEquals(ring.getPublishedCount(), ring.getConsumedCount());
+        assertTrue(ring.getDroppedCount() > frames / 2);
+        assertFalse(ring.hasPending());
+
+        // at most a full queue ahead
+        assertTrue("max lag " + r.maxLag, r.maxLag <= QUEUE_CAPACITY - 1);
+        assertTrue("max age " + r.maxAge,
+                r.maxAge < maxAge(QUEUE_CAPACITY - 1, 20000, 150000));
+    }
+
+    @Test
+    public void queueWithBurstyConsumer() throws Exception {
+        final int frames= 3000;
+        // consumer as fast as the producer on average, the queue absorbs the jitter
+        RunResult r= run(FrameRing.DropPolicy.QUEUE, frames, 50000, 20000);
+        FrameRing<Slot> ring= r.ring;
+        assertEquals(frames, ring.getPublishedCount() + ring.getDroppedCount());
+        assertEquals(ring.getPublishedCount(), ring.getConsumedCount());
+        assertTrue("max lag " + r.maxLag, r.maxLag <= QUEUE_CAPACITY - 1);
+        assertTrue("max age " + r.maxAge,
+                r.maxAge < maxAge(QUEUE_CAPACITY - 1, 50000, 20000));
+    }
+
+    @Test
+    public void disposeFreesEverySlotOnce() {
+        for (FrameRing.DropPolicy policy : FrameRing.DropPolicy.values()) {
+            TrackingFactory factory= new TrackingFactory();
+            FrameRing<Slot> ring= new FrameRing<>("dispose_ring", policy, QUEUE_CAPACITY, factory);
+
+            // as left by stopped threads: frames pending and a slot kept by the consumer
+            publish(ring, 0);
+            publish(ring, 1);
+            assertEquals(policy == FrameRing.DropPolicy.QUEUE ? 0 : 1, ring.beginRead().seq);
+            publish(ring, 2);
+
+            ring.dispose(CLEANER);
+            ring.dispose(CLEANER);
+            assertEquals(ring.getSlots().size(), factory.created.size());
+            factory.assertAllCleanedOnce();
+            assertFalse(FrameRing.getSummary().contains("dispose_ring"));
+        }
+    }
+
+    @Test
+    public void retireOnTheConsumerThread() throws Exception {
+        TrackingFactory factory= new TrackingFactory();
+        FrameRing<Slot> ring= new FrameRing<>("test", FrameRing.DropPolicy.QUEUE, QUEUE_CAPACITY, factory);
+        ExecutorService consumer= Executors.newSingleThreadExecutor();
+        final Thread[] consumerThread= new Thread[1];
+        consumer.submit(new Runnable() {
+            @Override
+            public void run() {
+                consumerThread[0]= Thread.currentThread();
+            }
+        }).get();
+
+        final Thread[] disposedBy= new Thread[1];
+        ring.retire(new FrameRing.SlotCleaner<Slot>() {
+            @Override
+            public void cleanup(Slot slot) {
+                disposedBy[0]= Thread.currentThread();
+                CLEANER.cleanup(slot);
+            }
+        }, consumer);
+        consumer.shutdown();
+        assertTrue(consumer.awaitTermination(10, TimeUnit.SECONDS));
+
+        assertSame(consumerThread[0], disposedBy[0]);
+        factory.assertAllCleanedOnce();
+
+        // the consumer has finished: disposed right away
+        TrackingFactory factory2= new TrackingFactory();
+        FrameRing<Slot> ring2= new FrameRing<>("test", FrameRing.DropPolicy.LATEST_WINS, 0, factory2);
+        ring2.retire(CLEANER, consumer);
+        factory2.assertAllCleanedOnce();
+    }
+
+    /*
+     * Same protocol as Camera2Listener: the producer publishes frames and schedules
+     * the consumer on its thread, from time to time it replaces the ring by one with
+     * the other policy and retires the old one. At the end the current ring is
+     * disposed, as cleanup does. All the slots must be freed once, never while in use.
+     */
+    @Test
+    public void policySwapsFreeEverySlot() throws Exception {
+        final int frames= 3000;
+        final int framesPerSwap= 50;
+        final TrackingFactory factory= new TrackingFactory();
+        final ExecutorService consumer= Executors.newSingleThreadExecutor();
+        final AtomicReference<FrameRing<Slot>> current= new AtomicReference<>(
+                new FrameRing<>("test", FrameRing.DropPolicy.QUEUE, QUEUE_CAPACITY, factory));
+        final AtomicReference<Throwable> error= new AtomicReference<>();
+        final AtomicInteger retired= new AtomicInteger();
+
+        final Runnable consume= new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    FrameRing<Slot> ring= current.get();
+                    Slot s;
+                    while ((s= ring.beginRead()) != null) {
+                        verify(s);
+                        pause(30000);
+                        verify(s);
+                        ring.endRead();
+                    }
+                }
+                catch (Throwable t) {
+                    error.compareAndSet(null, t);
+                }
+            }
+        };
+
+        for (int i= 0; i < frames; i++) {
+            if (i % framesPerSwap == framesPerSwap - 1) {
+                FrameRing<Slot> old= current.get();
+                FrameRing.DropPolicy policy= old.getPolicy() == FrameRing.DropPolicy.QUEUE ?
+                        FrameRing.DropPolicy.LATEST_WINS : FrameRing.DropPolicy.QUEUE;
+                current.set(new FrameRing<>("test", policy, QUEUE_CAPACITY, factory));
+                old.retire(CLEANER, consumer);
+                retired.incrementAndGet();
+            }
+            if (publish(current.get(), i)) consumer.execute(consume);
+            pause(10000);
+        }
+
+        consumer.shutdown();
+        assertTrue(consumer.awaitTermination(30, TimeUnit.SECONDS));
+        current.get().dispose(CLEANER);
+
+        if (error.get() != null) throw new AssertionError(error.get());
+        assertEquals(frames / framesPerSwap, retired.get());
+        factory.assertAllCleanedOnce();
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * Enable Viacam for Android, a camera based mouse emulator
+ *
+ * Copyright (C) 2015-17 Cesar Mauri Loba (CREA Software Systems)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.crea_si.eviacam.util;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LatencyHistogramTest {
+    // LatencyHistogram.NUM_BUCKETS
+    private static final int NUM_BUCKETS= 128;
+
+    @Test
+    public void smallValuesHaveTheirOwnBucket() {
+        for (int us= 0; us < 4; us++) {
+            assertEquals(us, LatencyHistogram.bucketIndex(us));
+            assertEquals(us, LatencyHistogram.bucketUpperBound(us));
+        }
+        assertEquals(4, LatencyHistogram.bucketIndex(4));
+    }
+
+    @Test
+    public void bucketEdges() {
+        for (int i= 0; i < NUM_BUCKETS - 1; i++) {
+            long upper= LatencyHistogram.bucketUpperBound(i);
+            assertEquals("upper bound of " + i, i, LatencyHistogram.bucketIndex(upper));
+            assertEquals("value after " + i, i + 1, LatencyHistogram.bucketIndex(upper + 1));
+        }
+    }
+
+    @Test
+    public void relativeErrorBelowQuarter() {
+        for (long us= 1; us < 100000000L; us= us * 3 / 2 + 1) {
+            long upper= LatencyHistogram.bucketUpperBound(LatencyHistogram.bucketIndex(us));
+            assertTrue(upper >= us);
+            assertTrue("error for " + us, upper - us < us / 4.0 + 1);
+        }
+    }
+
+    @Test
+    public void largeValuesGoToLastBucket() {
+        assertEquals(NUM_BUCKETS - 1, LatencyHistogram.bucketIndex(Long.MAX_VALUE / 1000));
+        assertEquals(NUM_BUCKETS - 1, LatencyHistogram.bucketIndex(1L << 40));
+    }
+
+    @Test
+    public void empty() {
+        LatencyHistogram h= new LatencyHistogram();
+        assertEquals(0, h.getCount());
+        assertEquals(0, h.getPercentile(50));
+        assertEquals(0.0, h.getMean(), 0.0);
+        assertEquals(0.0, h.getMax(), 0.0);
+    }
+
+    @Test
+    public void percentiles() {
+        LatencyHistogram h= new LatencyHistogram();
+        for (int us= 1; us <= 1000; us++) h.record(us * 1000L);
+
+        assertEquals(1000, h.getCount());
+        assertEquals(500.5, h.getMean(), 1e-9);
+        assertEquals(1000.0, h.getMax(), 0.0);
+
+        assertEquals(1, h.getPercentile(0));
+        assertEquals(1, h.getPercentile(-5));
+        for (int p : new int[] { 10, 50, 90, 95, 99, 100 }) {
+            long v= h.getPercentile(p);
+            assertTrue("p" + p + "=" + v, v >= p * 10 && v < p * 10 * 1.25 + 1);
+        }
+        assertEquals(h.getPercentile(100), h.getPercentile(150));
+    }
+
+    @Test
+    public void percentileRank() {
+        LatencyHistogram h= new LatencyHistogram();
+        // 90 fast values and 10 slow ones
+        for (int i= 0; i < 90; i++) h.record(2000);
+        for (int i= 0; i < 10; i++) h.record(50000000);
+
+        assertEquals(2, h.getPercentile(90));
+        assertTrue(h.getPercentile(91) >= 50000);
+    }
+
+    @Test
+    public void negativeValuesAreZero() {
+        LatencyHistogram h= new LatencyHistogram();
+        h.record(-10);
+        assertEquals(1, h.getCount());
+        assertEquals(0, h.getPercentile(100));
+        assertEquals(0.0, h.getMax(), 0.0);
+    }
+
+    @Test
+    public void reset() {
+        LatencyHistogram h= new LatencyHistogram();
+        h.record(123456);
+        h.reset();
+        assertEquals(0, h.getCount());
+        assertEquals(0, h.getPercentile(100));
+        assertEquals(0.0, h.getMax(), 0.0);
+    }
+
+    @Test
+    public void concurrentRecording() throws Exception {
+        final int threads= 8, perThread= 100000;
+        final LatencyHistogram h= new LatencyHistogram();
+        final CountDownLatch go= new CountDownLatch(1);
+        Thread[] workers= new Thread[threads];
+        for (int t= 0; t < threads; t++) {
+            final long value= (t + 1) * 1000L;
+            workers[t]= new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        go.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int i= 0; i < perThread; i++) h.record(value);
+                }
+            });
+            workers[t].start();
+        }
+        go.countDown();
+        for (Thread t : workers) t.join();
+
+        assertEquals(threads * perThread, h.getCount());
+        assertEquals(threads, h.getMax(), 0.0);
+        assertEquals((threads + 1) / 2.0, h.getMean(), 1e-9);
+        // no lost bucket increments: every thread owns 1/threads of the values
+        for (int t= 1; t <= threads; t++) {
+            long upper= LatencyHistogram.bucketUpperBound(LatencyHistogram.bucketIndex(t));
+            assertEquals(upper, h.getPercentile(100.0 * t / threads));
+        }
+    }
+}
@@ -0,0 +1,216 @@
+/*
+ * Enable Viacam for Android, a camera based mouse emulator
+ *
+ * Copyright (C) 2015-17 Cesar Mauri Loba (CREA Software Systems)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.crea_si.eviacam.util;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class RectGridIndexTest {
+    @Test
+    public void empty() {
+        RectGridIndex<String> index= new RectGridIndex<>();
+        assertEquals(0, index.size());
+        assertNull(index.query(0, 0));
+    }
+
+    @Test
+    public void emptyRectanglesAreNotAdded() {
+        RectGridIndex<String> index= new RectGridIndex<>();
+        assertFalse(index.add(10, 10, 10, 20, "a"));
+        assertFalse(index.add(10, 10, 20, 10, "b"));
+        assertFalse(index.add(20, 20, 10, 10, "c"));
+        assertEquals(0, index.size());
+        assertNull(index.query(10, 10));
+    }
+
+    @Test(expected= IllegalArgumentException.class)
+    public void invalidCellSize() {
+        new RectGridIndex<String>(0);
+    }
+
+    @Test
+    public void addAfterQueryThrows() {
+        RectGridIndex<String> index= new RectGridIndex<>();
+        index.add(0, 0, 10, 10, "a");
+        index.query(5, 5);
+        try {
+            index.add(0, 0, 5, 5, "b");
+            fail();
+        }
+        catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void edgesFollowRectConvention() {
+        RectGridIndex<String> index= new RectGridIndex<>(8);
+        index.add(10, 20, 30, 40, "a");
+        assertEquals("a", index.query(10, 20));
+        assertEquals("a", index.query(29, 39));
+        assertNull(index.query(30, 30));
+        assertNull(index.query(20, 40));
+        assertNull(index.query(9, 30));
+        assertNull(index.query(20, 19));
+    }
+
+    @Test
+    public void lastAddedWins() {
+        RectGridIndex<String> index= new RectGridIndex<>(16);
+        index.add(0, 0, 1080, 1920, "window");
+        index.add(0, 100, 1080, 300, "list");
+        index.add(20, 120, 500, 180, "item");
+
+        assertEquals("item", index.query(100, 150));
+        assertEquals("list", index.query(600, 150));
+        assertEquals("window", index.query(600, 1000));
+        assertNull(index.query(1080, 0));
+    }
+
+    @Test
+    public void negativeCoordinates() {
+        RectGridIndex<String> index= new RectGridIndex<>(10);
+        index.add(-100, -50, -10, 5, "a");
+        index.add(-5, -5, 5, 5, "b");
+        assertEquals("a", index.query(-100, -50));
+        assertEquals("b", index.query(-1, -1));
+        assertNull(index.query(-7, 0));
+        assertNull(index.query(-101, 0));
+    }
+
+    private static int bruteForce(int[][] rects, int count, int x, int y) {
+        for (int i= count - 1; i >= 0; i--) {
+            int[] r= rects[i];
+            if (x >= r[0] && x < r[2] && y >= r[1] && y < r[3]) return i;
+        }
+        return -1;
+    }
+
+    @Test
+    public void matchesBruteForce() {
+        Random random= new Random(1234);
+        for (int cellSize : new int[] { 1, 7, 96, 4096 }) {
+            for (int round= 0; round < 20; round++) {
+                // more than the initial capacity to exercise growth
+                final int count= 1 + random.nextInt(300);
+                int[][] rects= new int[count][];
+                RectGridIndex<Integer> index= new RectGridIndex<>(cellSize);
+                int added= 0;
+                for (int i= 0; i < count; i++) {
+                    int left= random.nextInt(1200) - 100;
+                    int top= random.nextInt(2000) - 100;
+                    // some empty ones
+                    int right= left + random.nextInt(400);
+                    int bottom= top + random.nextInt(400);
+                    if (index.add(left, top, right, bottom, added)) {
+                        rects[added++]= new int[] { left, top, right, bottom };
+                    }
+                }
+                assertEquals(added, index.size());
+
+                for (int q= 0; q < 2000; q++) {
+                    int x= random.nextInt(1500) - 200;
+                    int y= random.nextInt(2400) - 200;
+                    int expected= bruteForce(rects, added, x, y);
+                    Integer found= index.query(x, y);
+                    assertEquals("cell " + cellSize + " at " + x + "," + y,
+                            expected, found == null ? -1 : (int) found);
+                }
+
+                // every corner is a boundary case
+                for (int i= 0; i < added; i++) {
+                    int[] r= rects[i];
+                    int[][] points= { { r[0], r[1] }, { r[2] - 1, r[3] - 1 },
+                            { r[2], r[1] }, { r[0], r[3] } };
+                    for (int[] p : points) {
+                        Integer found= index.query(p[0], p[1]);
+                        assertEquals(bruteForce(rects, added, p[0], p[1]),
+                                found == null ? -1 : (int) found);
+                    }
+                }
+            }
+        }
+    }
+
+    /*
+     * Point queries on a large window, against the linear scan of the rectangles
+     * which the index replaces. Same results and the index must be faster.
+     */
+    @Test
+    public void queryBenchmark() {
+        // a large window: 2000 nodes, a list of rows with a few children each
+        final int count= 2000;
+        int[][] rects= new int[count][];
+        RectGridIndex<Integer> index= new RectGridIndex<>();
+        int n= 0;
+        for (int row= 0; row < 500; row++) {
+            int top= row * 40;
+            rects[n]= new int[] { 0, top, 1080, top + 40 };
+            index.add(0, top, 1080, top + 40, n++);
+            for (int c= 0; c < 3; c++) {
+                rects[n]= new int[] { c * 360, top, c * 360 + 300, top + 40 };
+                index.add(c * 360, top, c * 360 + 300, top + 40, n++);
+            }
+        }
+
+        final int queries= 20000;
+        Random random= new Random(5);
+        int[] xs= new int[queries], ys= new int[queries];
+        for (int i= 0; i < queries; i++) {
+            xs[i]= random.nextInt(1200) - 60;
+            ys[i]= random.nextInt(20100) - 50;
+        }
+
+        int[] expected= new int[queries];
+        int[] found= new int[queries];
+        long bestIndex= Long.MAX_VALUE, bestScan= Long.MAX_VALUE;
+        for (int run= 0; run < 5; run++) {
+            long start= System.nanoTime();
+            for (int i= 0; i < queries; i++) {
+                Integer item= index.query(xs[i], ys[i]);
+                found[i]= item == null ? -1 : item;
+            }
+            bestIndex= Math.min(bestIndex, System.nanoTime() - start);
+
+            start= System.nanoTime();
+            for (int i= 0; i < queries; i++) expected[i]= bruteForce(rects, count, xs[i], ys[i]);
+            bestScan= Math.min(bestScan, System.nanoTime() - start);
+
+            for (int i= 0; i < queries; i++) {
+                assertEquals("at " + xs[i] + "," + ys[i], expected[i], found[i]);
+            }
+        }
+
+        int hits= 0;
+        for (int i= 0; i < queries; i++) if (found[i] != -1) hits++;
+        assertTrue(hits > 0 && hits < queries);
+
+        System.out.println("RectGridIndex: " + (bestIndex / queries) + " ns/query, linear scan " +
+                (bestScan / queries) + " ns/query, " + n + " rectangles");
+        assertTrue(bestIndex < bestScan);
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Enable Viacam for Android, a camera based mouse emulator
+ *
+ * Copyright (C) 2015-17 Cesar Mauri Loba (CREA Software Systems)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.Locale;
+
+/**
+ * Measures the per call cost of returning the motion of a frame through JNI
+ * (see jnioverhead_bench.cpp). Run with: make bench
+ */
+public class JniOverheadBenchmark {
+    /* Same layout as android.graphics.PointF, which is not available on the host */
+    static class Point {
+        float x;
+        float y;
+    }
+
+    private static native void lookupPerCall(Point p, float x, float y);
+    private static native void cachedFieldIds(Point p, float x, float y);
+    private static native void floatArray(float[] vel, float x, float y);
+    private static native boolean setBuffer(ByteBuffer buffer);
+    private static native void directBuffer(float x, float y);
+
+    private static final int CALLS= 2000000;
+    private static final int RUNS= 5;
+
+    private interface Method {
+        // returns something derived from the result so that it is not optimized away
+        float call(int i);
+    }
+
+    private static double measure(Method m) {
+        double best= Double.MAX_VALUE;
+        float sink= 0;
+        for (int run= 0; run < RUNS; run++) {
+            long t= System.nanoTime();
+            for (int i= 0; i < CALLS; i++) sink+= m.call(i);
+            best= Math.min(best, (double) (System.nanoTime() - t) / CALLS);
+        }
+        if (sink == 42) System.out.print("");
+        return best;
+    }
+
+    private static void report(String name, double nanos, double baseline) {
+        System.out.println(String.format(Locale.US, "%-16s %8.1f ns/call  %5.2fx",
+                name, nanos, baseline / nanos));
+    }
+
+    public static void main(String[] args) {
+        System.loadLibrary("jnioverhead_bench");
+
+        final Point point= new Point();
+        final float[] vel= new float[2];
+        ByteBuffer bb= ByteBuffer.allocateDirect(2 * 4).order(ByteOrder.nativeOrder());
+        final FloatBuffer result= bb.asFloatBuffer();
+        if (!setBuffer(bb)) throw new IllegalStateException("not a direct buffer");
+
+        double lookup= measure(new Method() {
+            @Override
+            public float call(int i) {
+                lookupPerCall(point, i, -i);
+                return point.x + point.y;
+            }
+        });
+        double cached= measure(new Method() {
+            @Override
+            public float call(int i) {
+                cachedFieldIds(point, i, -i);
+                return point.x + point.y;
+            }
+        });
+        double array= measure(new Method() {
+            @Override
+            public float call(int i) {
+                floatArray(vel, i, -i);
+                return vel[0] + vel[1];
+            }
+        });
+        double buffer= measure(new Method() {
+            @Override
+            public float call(int i) {
+                directBuffer(i, -i);
+                return result.get(0) + result.get(1);
+            }
+        });
+
+        System.out.println(String.format(Locale.US, "%d calls, best of %d runs", CALLS, RUNS));
+        report("lookupPerCall", lookup, lookup);
+        report("cachedFieldIds", cached, lookup);
+        report("floatArray", array, lookup);
+        report("directBuffer", buffer, lookup);
+    }
+}
@@ -0,0 +1,210 @@
+/*
+ * Enable Viacam for Android, a camera based mouse emulator
+ *
+ * Copyright (C) 2015 Cesar Mauri Loba (CREA Software Systems)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ * Deterministic test of DetectionGovernor
+ *
+ * Drives the governor as FaceDetection does, with a fake clock and a fake
+ * detector which runs in the background for a given cost, and checks that
+ * the share of time spent detecting stays under the budget of each level.
+ */
+
+#include "detectiongovernor.h"
+
+#include <stdio.h>
+#include <stdlib.h>
+
+using namespace eviacam;
+
+// Maximum fraction of time spent detecting for each CPU usage level (see detectiongovernor.cpp)
+static const float CPU_BUDGETS[DetectionGovernor::NUM_LEVELS]= { 0.05f, 0.1f, 0.2f, 0.4f, 1.0f };
+
+// Time between frames (in ms)
+#define FRAME_TIME 33
+
+static int g_failures= 0;
+
+#define CHECK(cond, ...) \
+	do { \
+		if (!(cond)) { \
+			fprintf (stderr, "%s:%d: FAILED: ", __FILE__, __LINE__); \
+			fprintf (stderr, __VA_ARGS__); \
+			fprintf (stderr, "\n"); \
+			g_failures++; \
+		} \
+	} while (0)
+
+/*
+ * Fake face detector. Detections run in the background for a given cost,
+ * the result is available once the fake clock reaches the end time.
+ */
+class FakeDetector
+{
+public:
+	FakeDetector (unsigned long minCost, unsigned long maxCost, unsigned int seed)
+	: m_minCost(minCost), m_maxCost(maxCost), m_seed(seed), m_busy(false)
+	, m_start(0), m_cost(0), m_busyTime(0) { }
+
+	bool isBusy () const { return m_busy; }
+
+	void start (unsigned long now) {
+		m_busy= true;
+		m_start= now;
+		m_cost= m_minCost;
+		if (m_maxCost> m_minCost) m_cost+= rand_r(&m_seed) % (m_maxCost - m_minCost + 1);
+	}
+
+	// returns true when a started detection has finished at time now
+	bool finished (unsigned long now, unsigned long& cost) {
+		if (!m_busy || now< m_start + m_cost) return false;
+		m_busy= false;
+		m_busyTime+= m_cost;
+		cost= m_cost;
+		return true;
+	}
+
+	unsigned long getBusyTime () const { return m_busyTime; }
+
+private:
+	unsigned long m_minCost, m_maxCost;
+	unsigned int m_seed;
+	bool m_busy;
+	unsigned long m_start;
+	unsigned long m_cost;
+	unsigned long m_busyTime;
+};
+
+struct RunResult {
+	float load;			// fraction of time spent detecting
+	unsigned int detections;
+};
+
+/*
+ * Simulate duration ms of frames. faceFound tells the outcome of each detection.
+ * Like FaceDetection, a finished detection is retrieved on the next frame and a
+ * new one is not started until then.
+ */
+static RunResult run (DetectionGovernor& governor, FakeDetector& detector,
+					  unsigned long& now, unsigned long duration, bool faceFound)
+{
+	RunResult result= { 0, 0 };
+	const unsigned long busyBefore= detector.getBusyTime();
+	const unsigned long end= now + duration;
+	bool pendingResult= false;
+
+	for (; now< end; now+= FRAME_TIME) {
+		unsigned long cost;
+		if (detector.finished(now, cost)) {
+			governor.detectionFinished(cost, faceFound);
+			pendingResult= false;
+		}
+
+		if (governor.frame(now) && !pendingResult && !detector.isBusy()) {
+			governor.detectionStarted(now);
+			detector.start(now);
+			pendingResult= true;
+			result.detections++;
+		}
+	}
+
+	result.load= (float) (detector.getBusyTime() - busyBefore) / (float) duration;
+	return result;
+}
+
+static void testBudget (bool faceFound, unsigned long minCost, unsigned long maxCost)
+{
+	for (int level= 0; level< DetectionGovernor::NUM_LEVELS; level++) {
+		DetectionGovernor governor;
+		governor.setLevel(level);
+		FakeDetector detector(minCost, maxCost, 1234 + level);
+		unsigned long now= 1000;
+
+		// warm up the running averages
+		run (governor, detector, now, 10000, faceFound);
+		RunResult r= run (governor, detector, now, 120000, faceFound);
+
+		// 10% margin because the budget applies to the average cost
+		CHECK (r.load<= CPU_BUDGETS[level] * 1.1f,
+			"level %d, face %s, cost %lu-%lu ms: load %.3f over budget %.3f",
+			level, faceFound ? "found" : "lost", minCost, maxCost, r.load, CPU_BUDGETS[level]);
+		CHECK (r.detections> 0, "level %d: no detections", level);
+	}
+}
+
+static void testBackoffAndRecovery ()
+{
+	DetectionGovernor governor;
+	governor.setLevel(3);
+	FakeDetector detector(10, 10, 1);
+	unsigned long now= 1000;
+
+	// detections as often as the budget allows while the face is not found
+	run (governor, detector, now, 5000, false);
+	const unsigned long lostPeriod= governor.getPeriod();
+	CHECK (lostPeriod<= 10 / CPU_BUDGETS[3] + 1, "lost period %lu too long", lostPeriod);
+
+	// the period grows while the face is being found on consecutive detections
+	run (governor, detector, now, 2 * FRAME_TIME, true);
+	const unsigned long shortPeriod= governor.getPeriod();
+	run (governor, detector, now, 20000, true);
+	const unsigned long longPeriod= governor.getPeriod();
+	CHECK (shortPeriod> lostPeriod, "no base period after face found (%lu)", shortPeriod);
+	CHECK (longPeriod> shortPeriod, "no backoff (%lu <= %lu)", longPeriod, shortPeriod);
+
+	// and falls back immediately after a tracking loss
+	governor.trackingLost();
+	CHECK (governor.getPeriod()== lostPeriod,
+		"period after tracking loss %lu, expected %lu", governor.getPeriod(), lostPeriod);
+
+	// a detection is due on the first frame after the loss when the budget allows it
+	now+= lostPeriod;
+	CHECK (governor.frame(now), "no detection after tracking loss");
+}
+
+static void testStats ()
+{
+	DetectionGovernor governor;
+	FakeDetector detector(40, 40, 1);
+	unsigned long now= 1000;
+
+	run (governor, detector, now, 10000, true);
+	CHECK (governor.getAvgDetectionCost()> 39.0f && governor.getAvgDetectionCost()< 41.0f,
+		"average cost %.2f", governor.getAvgDetectionCost());
+	CHECK (governor.getAvgFrameTime()> FRAME_TIME - 1 && governor.getAvgFrameTime()< FRAME_TIME + 1,
+		"average frame time %.2f", governor.getAvgFrameTime());
+	CHECK (governor.getDetectionLoad()> 0.0f && governor.getDetectionLoad()<= CPU_BUDGETS[2],
+		"detection load %.3f", governor.getDetectionLoad());
+}
+
+int main ()
+{
+	testBudget (true, 30, 30);
+	testBudget (false, 30, 30);
+	testBudget (true, 20, 150);
+	testBudget (false, 20, 150);
+	testBackoffAndRecovery ();
+	testStats ();
+
+	if (g_failures) {
+		fprintf (stderr, "%d check(s) failed\n", g_failures);
+		return EXIT_FAILURE;
+	}
+	printf ("detectiongovernor_test: OK\n");
+	return EXIT_SUCCESS;
+}
@@ -0,0 +1,208 @@
+/*
+ * Enable Viacam for Android, a camera based mouse emulator
+ *
+ * Copyright (C) 2015 Cesar Mauri Loba (CREA Software Systems)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ * Benchmark of the face search window policy (see FaceDetection::SearchPolicy)
+ *
+ * Moves an image with a face around the frame and runs FaceDetection on
+ * each frame as VisionPipeline does, giving the face found in the previous
+ * frame as the expected location. For each policy it reports the time per
+ * detection, the detection rate and how many detections agree with a full
+ * frame scan of the same frame.
+ *
+ * Usage:
+ *   facesearch_bench <image with a face> [<haar cascade>]
+ *
+ * Without image there is nothing to measure (no face, only full scans) and
+ * the benchmark is skipped.
+ */
+
+#include "testutil.h"
+#include "facedetection.h"
+
+#include <opencv2/imgproc/imgproc.hpp>
+#include <opencv2/highgui/highgui.hpp>
+#include <math.h>
+#include <unistd.h>
+#include <algorithm>
+#include <vector>
+
+using namespace eviacam;
+
+// Capture size used by the app
+#define WIDTH 352
+#define HEIGHT 288
+
+#define NUM_FRAMES 200
+
+// maximum time to wait for a detection (in ms)
+#define DETECTION_TIMEOUT 2000
+
+#define DEFAULT_CASCADE "../../main/res/raw/haarcascade.xml"
+
+// minimum intersection over union to consider two detections the same face
+#define MIN_OVERLAP 0.5f
+
+struct Config {
+	const char* name;
+	FaceDetection::SearchPolicy policy;
+};
+
+// first one is the reference. Second one is the default of the settings
+static const Config CONFIGS[]= {
+	{ "full scan",         { false, 1.0f, 1.0f, 1.0f, 1 } },
+	{ "default",           { true, 2.0f, 0.6f, 1.6f, 10 } },
+	{ "tight window",      { true, 1.5f, 0.6f, 1.6f, 10 } },
+	{ "wide window",       { true, 3.0f, 0.6f, 1.6f, 10 } },
+	{ "narrow scales",     { true, 2.0f, 0.8f, 1.25f, 10 } },
+	{ "wide scales",       { true, 2.0f, 0.4f, 2.5f, 10 } },
+	{ "frequent rescan",   { true, 2.0f, 0.6f, 1.6f, 3 } },
+	{ "rare rescan",       { true, 2.0f, 0.6f, 1.6f, 30 } },
+};
+
+struct Detection {
+	bool found;
+	CvRect face;
+};
+
+static float overlap (const CvRect& a, const CvRect& b)
+{
+	int x1= std::max(a.x, b.x), y1= std::max(a.y, b.y);
+	int x2= std::min(a.x + a.width, b.x + b.width);
+	int y2= std::min(a.y + a.height, b.y + b.height);
+	if (x2<= x1 || y2<= y1) return 0;
+	float inter= (float) (x2 - x1) * (y2 - y1);
+	return inter / (a.width * a.height + b.width * b.height - inter);
+}
+
+// Frames of the face moving and changing its size
+static void makeFrames (const cv::Mat& face, std::vector<cv::Mat>& frames)
+{
+	cv::Point2f center(WIDTH / 2.0f, HEIGHT / 2.0f);
+	frames.resize(NUM_FRAMES);
+	for (int i= 0; i< NUM_FRAMES; i++) {
+		float scale= 1.0f + 0.15f * sinf(i * 0.05f);
+		cv::Mat m= cv::getRotationMatrix2D(center, 0, scale);
+		m.at<double>(0, 2)+= 40.0 * sin(i * 0.07);
+		m.at<double>(1, 2)+= 25.0 * cos(i * 0.09);
+		cv::warpAffine(face, frames[i], m, cv::Size(WIDTH, HEIGHT), cv::INTER_LINEAR,
+			cv::BORDER_REPLICATE);
+	}
+}
+
+static void run (const Config& c, const char* cascade, std::vector<cv::Mat>& frames,
+				 std::vector<Detection>& reference)
+{
+	FaceDetection detection(FaceDetector::HAAR, cascade);
+	detection.setCpuUsage(FaceDetection::CPU_HIGHEST);
+	detection.setSearchPolicy(c.policy);
+
+	std::vector<Detection> results(frames.size());
+	double total= 0, worst= 0;
+	int found= 0, agree= 0, compared= 0, timeouts= 0;
+	CvRect expected= cvRect(0, 0, 0, 0);
+
+	for (size_t i= 0; i< frames.size(); i++) {
+		IplImage ipl= frames[i];
+		CIplImage frame(&ipl);
+		bool faceDetected= false, done= false;
+		CvSize frameSize;
+		CvRect face;
+		double start= 0, deadline= nowMs() + DETECTION_TIMEOUT;
+
+		// the frame is dropped while the worker is busy, submit until taken
+		while (!done && nowMs()< deadline) {
+			start= nowMs();
+			detection.submitFrame(frame, expected);
+			for (int wait= 0; wait< 100 && !done; wait++) {
+				done= detection.retrieveDetectionInfo(faceDetected, frameSize, face);
+				if (!done) usleep(100);
+			}
+		}
+		if (!done) {
+			timeouts++;
+			continue;
+		}
+
+		// the first detection also loads the cascade (see FaceDetection::setDetector)
+		double elapsed= nowMs() - start;
+		if (i> 0) {
+			total+= elapsed;
+			if (elapsed> worst) worst= elapsed;
+		}
+
+		results[i].found= faceDetected;
+		results[i].face= face;
+		if (faceDetected) {
+			found++;
+			expected= face;
+		}
+		else
+			expected= cvRect(0, 0, 0, 0);
+
+		if (!reference.empty() && reference[i].found) {
+			compared++;
+			if (faceDetected && overlap(face, reference[i].face)>= MIN_OVERLAP) agree++;
+		}
+	}
+
+	int measured= (int) frames.size() - timeouts - 1;
+	printf ("%-16s %3.1f %4.2f %4.2f %2d   %7.2f  %7.2f   %5.1f%%   %5.1f%%\n",
+		c.name, c.policy.expansion, c.policy.minScale, c.policy.maxScale,
+		c.policy.fullScanInterval, measured ? total / measured : 0, worst,
+		100.0 * found / frames.size(), compared ? 100.0 * agree / compared : 0);
+
+	CHECK (timeouts== 0, "%s: %d frames not processed", c.name, timeouts);
+	if (reference.empty()) reference= results;
+}
+
+int main (int argc, char* argv[])
+{
+	if (argc< 2) {
+		printf ("facesearch_bench: skipped, no face image (facesearch_bench <image> [<cascade>])\n");
+		return 0;
+	}
+	const char* cascade= (argc> 2 ? argv[2] : DEFAULT_CASCADE);
+
+	cv::Mat image= cv::imread(argv[1], 0);
+	if (image.empty()) {
+		fprintf (stderr, "facesearch_bench: cannot read %s\n", argv[1]);
+		return 1;
+	}
+
+	// the face fills about the same part of the frame than with the app
+	cv::Mat face;
+	float scale= std::min((float) WIDTH / image.cols, (float) HEIGHT / image.rows);
+	cv::resize(image, face, cv::Size((int) (image.cols * scale), (int) (image.rows * scale)));
+	cv::Mat centered(HEIGHT, WIDTH, CV_8UC1, cv::Scalar(128));
+	cv::Mat roi= centered(cv::Rect((WIDTH - face.cols) / 2, (HEIGHT - face.rows) / 2,
+		face.cols, face.rows));
+	face.copyTo(roi);
+
+	std::vector<cv::Mat> frames;
+	makeFrames(centered, frames);
+
+	std::vector<Detection> reference;
+	printf ("policy           exp  min  max  N   ms/det   max ms   found   agree\n");
+	for (unsigned int c= 0; c< sizeof(CONFIGS) / sizeof(CONFIGS[0]); c++) {
+		run (CONFIGS[c], cascade, frames, reference);
+	}
+
+	return testResult("facesearch_bench");
+}
@@ -0,0 +1,163 @@
+/*
+ * Enable Viacam for Android, a camera based mouse emulator
+ *
+ * Copyright (C) 2015 Cesar Mauri Loba (CREA Software Systems)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+#include "framefile.h"
+
+// see FrameFile.java
+#define MAGIC 0x45564652	// "EVFR"
+#define VERSION 1
+
+/*
+ * Big endian integers, as written by DataOutputStream
+ */
+static bool readInt (FILE* f, int size, int64_t& value)
+{
+	unsigned char b[8];
+	if (fread(b, 1, size, f)!= (size_t) size) return false;
+
+	uint64_t v= 0;
+	for (int i= 0; i< size; i++) v= (v << 8) | b[i];
+	// sign extension
+	if (size< 8 && (b[0] & 0x80)) v|= ~(uint64_t) 0 << (size * 8);
+	value= (int64_t) v;
+
+	return true;
+}
+
+static bool writeInt (FILE* f, int size, int64_t value)
+{
+	unsigned char b[8];
+	for (int i= size - 1; i>= 0; i--) {
+		b[i]= (unsigned char) (value & 0xff);
+		value>>= 8;
+	}
+	return fwrite(b, 1, size, f)== (size_t) size;
+}
+
+FrameFileReader::FrameFileReader ()
+: m_file(NULL)
+, m_truncated(false)
+{
+}
+
+FrameFileReader::~FrameFileReader ()
+{
+	close ();
+}
+
+bool FrameFileReader::open (const char* path)
+{
+	close ();
+	m_truncated= false;
+
+	m_file= fopen(path, "rb");
+	if (m_file== NULL) return false;
+
+	int64_t magic, version;
+	if (!readInt(m_file, 4, magic) || magic!= MAGIC ||
+		!readInt(m_file, 4, version) || version!= VERSION) {
+		close ();
+		return false;
+	}
+
+	return true;
+}
+
+bool FrameFileReader::next (RecordedFrame& frame)
+{
+	if (m_file== NULL) return false;
+
+	int64_t timestamp;
+	if (!readInt(m_file, 8, timestamp)) return false;	// end of file
+
+	int64_t width, height, flip, rotation;
+	if (!readInt(m_file, 4, width) || !readInt(m_file, 4, height) ||
+		!readInt(m_file, 1, flip) || !readInt(m_file, 2, rotation) ||
+		width<= 0 || height<= 0) {
+		m_truncated= true;
+		return false;
+	}
+
+	frame.timestamp= timestamp;
+	frame.width= (int) width;
+	frame.height= (int) height;
+	frame.flip= (int) flip;
+	frame.rotation= (int) rotation;
+	frame.data.resize(frame.width * frame.height);
+	if (fread(&frame.data[0], 1, frame.data.size(), m_file)!= frame.data.size()) {
+		m_truncated= true;
+		return false;
+	}
+
+	return true;
+}
+
+void FrameFileReader::close ()
+{
+	if (m_file) fclose(m_file);
+	m_file= NULL;
+}
+
+FrameFileWriter::FrameFileWriter ()
+: m_file(NULL)
+, m_failed(false)
+{
+}
+
+FrameFileWriter::~FrameFileWriter ()
+{
+	close ();
+}
+
+bool FrameFileWriter::open (const char* path)
+{
+	close ();
+	m_failed= false;
+
+	m_file= fopen(path, "wb");
+	if (m_file== NULL) return false;
+
+	m_failed= !writeInt(m_file, 4, MAGIC) || !writeInt(m_file, 4, VERSION);
+
+	return !m_failed;
+}
+
+bool FrameFileWriter::write (const RecordedFrame& frame)
+{
+	if (m_file== NULL) return false;
+
+	if (!writeInt(m_file, 8, frame.timestamp) ||
+		!writeInt(m_file, 4, frame.width) || !writeInt(m_file, 4, frame.height) ||
+		!writeInt(m_file, 1, frame.flip) || !writeInt(m_file, 2, frame.rotation) ||
+		fwrite(&frame.data[0], 1, frame.data.size(), m_file)!= frame.data.size()) {
+		m_failed= true;
+	}
+
+	return !m_failed;
+}
+
+bool FrameFileWriter::close ()
+{
+	if (m_file) {
+		if (fclose(m_file)!= 0) m_failed= true;
+		m_file= NULL;
+	}
+
+	return !m_failed;
+}
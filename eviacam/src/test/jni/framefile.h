@@ -0,0 +1,81 @@
+/*
+ * Enable Viacam for Android, a camera based mouse emulator
+ *
+ * Copyright (C) 2015 Cesar Mauri Loba (CREA Software Systems)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+#ifndef FRAMEFILE_H
+#define FRAMEFILE_H
+
+/*
+ * Frame recordings of the app (see FrameFile.java for the format) on the host
+ */
+
+#include <stdio.h>
+#include <stdint.h>
+#include <vector>
+
+struct RecordedFrame {
+	int64_t timestamp;	// ns
+	int width, height;
+	int flip;
+	int rotation;
+	std::vector<unsigned char> data;	// width * height bytes of luma
+};
+
+class FrameFileReader
+{
+public:
+	FrameFileReader ();
+	~FrameFileReader ();
+
+	// Open a recording and check its header
+	bool open (const char* path);
+
+	// Read the next frame. Return false at the end of the file or on error,
+	// see truncated()
+	bool next (RecordedFrame& frame);
+
+	// Whether the file ended in the middle of a frame
+	bool truncated () const { return m_truncated; }
+
+	void close ();
+
+private:
+	FILE* m_file;
+	bool m_truncated;
+};
+
+class FrameFileWriter
+{
+public:
+	FrameFileWriter ();
+	~FrameFileWriter ();
+
+	// Create a recording and write its header
+	bool open (const char* path);
+
+	bool write (const RecordedFrame& frame);
+
+	// Return false if any write failed
+	bool close ();
+
+private:
+	FILE* m_file;
+	bool m_failed;
+};
+
+#endif
@@ -0,0 +1,89 @@
+/*
+ * Enable Viacam for Android, a camera based mouse emulator
+ *
+ * Copyright (C) 2015 Cesar Mauri Loba (CREA Software Systems)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ * Native part of JniOverheadBenchmark
+ *
+ * Each entry point returns a motion vector to Java in one of the ways used by
+ * visionpipeline_jni.cpp over time, so that the per call cost of the JNI transfer
+ * can be compared on a host JVM without OpenCV:
+ *
+ *   lookupPerCall:  GetObjectClass + GetFieldID + SetFloatField for each call
+ *   cachedFieldIds: SetFloatField with field IDs looked up on first use
+ *   floatArray:     SetFloatArrayRegion on a float[2] (processFrame)
+ *   directBuffer:   stores into a registered direct buffer (processFrameToBuffer)
+ */
+
+#include <jni.h>
+
+static jfieldID g_xId;
+static jfieldID g_yId;
+static jfloat* g_buffer;
+static jobject g_bufferRef;
+
+extern "C" {
+
+JNIEXPORT void JNICALL Java_JniOverheadBenchmark_lookupPerCall
+	(JNIEnv* env, jclass, jobject jPoint, jfloat x, jfloat y)
+{
+	jclass cls= env->GetObjectClass(jPoint);
+	jfieldID xId= env->GetFieldID(cls, "x", "F");
+	jfieldID yId= env->GetFieldID(cls, "y", "F");
+	env->SetFloatField(jPoint, xId, x);
+	env->SetFloatField(jPoint, yId, y);
+	env->DeleteLocalRef(cls);
+}
+
+JNIEXPORT void JNICALL Java_JniOverheadBenchmark_cachedFieldIds
+	(JNIEnv* env, jclass, jobject jPoint, jfloat x, jfloat y)
+{
+	if (g_xId== NULL) {
+		jclass cls= env->GetObjectClass(jPoint);
+		g_xId= env->GetFieldID(cls, "x", "F");
+		g_yId= env->GetFieldID(cls, "y", "F");
+		env->DeleteLocalRef(cls);
+	}
+	env->SetFloatField(jPoint, g_xId, x);
+	env->SetFloatField(jPoint, g_yId, y);
+}
+
+JNIEXPORT void JNICALL Java_JniOverheadBenchmark_floatArray
+	(JNIEnv* env, jclass, jfloatArray jVel, jfloat x, jfloat y)
+{
+	const jfloat vel[2]= { x, y };
+	env->SetFloatArrayRegion(jVel, 0, 2, vel);
+}
+
+JNIEXPORT jboolean JNICALL Java_JniOverheadBenchmark_setBuffer
+	(JNIEnv* env, jclass, jobject jBuffer)
+{
+	if (g_bufferRef) env->DeleteGlobalRef(g_bufferRef);
+	g_bufferRef= env->NewGlobalRef(jBuffer);
+	g_buffer= (jfloat*) env->GetDirectBufferAddress(jBuffer);
+	return g_buffer!= NULL;
+}
+
+JNIEXPORT void JNICALL Java_JniOverheadBenchmark_directBuffer
+	(JNIEnv*, jclass, jfloat x, jfloat y)
+{
+	g_buffer[0]= x;
+	g_buffer[1]= y;
+}
+
+} // extern "C"
@@ -0,0 +1,262 @@
+/*
+ * Enable Viacam for Android, a camera based mouse emulator
+ *
+ * Copyright (C) 2015 Cesar Mauri Loba (CREA Software Systems)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ * Test of several vision pipelines running at the same time
+ *
+ * Each stream is a different synthetic sequence (scene, motion, flip and
+ * rotation). The results of each pipeline must be the same when:
+ *
+ * - run alone, one stream after the other (reference)
+ * - all pipelines are fed in turns from a single thread
+ * - each pipeline runs on its own thread, all at the same time
+ *
+ * so no state is shared between instances. Pipelines are also created and
+ * destroyed concurrently (see nativeInit and nativeCleanup in
+ * visionpipeline_jni.cpp). Reports the throughput of one and several threads.
+ */
+
+#include "testutil.h"
+#include "syntheticscene.h"
+#include "visionpipeline.h"
+#include "facedetector.h"
+
+#include <math.h>
+#include <pthread.h>
+#include <vector>
+
+using namespace eviacam;
+
+// Capture size used by the app
+#define WIDTH 352
+#define HEIGHT 288
+
+#define NUM_STREAMS 4
+#define NUM_FRAMES 120
+#define LIFECYCLE_ITERATIONS 20
+
+struct Stream {
+	unsigned int seed;
+	float amplitude;
+	float phase;
+	int flip, rotation;
+};
+
+static const Stream STREAMS[NUM_STREAMS]= {
+	{ 1, 3.0f, 0.0f, 0, 0 },
+	{ 2, 5.0f, 1.0f, 0, 90 },
+	{ 3, 2.0f, 2.0f, 1, 270 },
+	{ 4, 4.0f, 3.0f, 2, 180 },
+};
+
+struct FrameResult {
+	bool faceDetected;
+	float xVel, yVel;
+	float x, y, width, height;
+	int corners;
+};
+
+typedef std::vector<FrameResult> Results;
+
+static void renderStream (const Stream& s, std::vector<cv::Mat>& frames)
+{
+	SyntheticScene scene(WIDTH, HEIGHT, s.seed);
+	frames.resize(NUM_FRAMES);
+	for (int i= 0; i< NUM_FRAMES; i++) {
+		float t= i + s.phase;
+		scene.render(s.amplitude * sinf(t * 0.2f), s.amplitude * 0.7f * cosf(t * 0.15f),
+			0, frames[i]);
+	}
+}
+
+// Process one frame as processGrayFrame in visionpipeline_jni.cpp does
+static FrameResult process (VisionPipeline& pipeline, const Stream& s, const cv::Mat& image)
+{
+	cv::Mat input= image;
+	IplImage iplImage= input;
+	CIplImage frame(&iplImage);
+
+	FrameResult r;
+	r.xVel= r.yVel= 0;
+	r.faceDetected= pipeline.processImage(frame, NULL, s.flip, s.rotation, r.xVel, r.yVel);
+	pipeline.getTrackArea(r.x, r.y, r.width, r.height);
+	r.corners= pipeline.getCornerCount();
+
+	return r;
+}
+
+// Exact comparison: the same input must give the same output bit by bit
+static int firstMismatch (const Results& a, const Results& b)
+{
+	if (a.size()!= b.size()) return 0;
+	for (unsigned int i= 0; i< a.size(); i++) {
+		if (a[i].faceDetected!= b[i].faceDetected || a[i].corners!= b[i].corners ||
+			a[i].xVel!= b[i].xVel || a[i].yVel!= b[i].yVel ||
+			a[i].x!= b[i].x || a[i].y!= b[i].y ||
+			a[i].width!= b[i].width || a[i].height!= b[i].height) return i;
+	}
+	return -1;
+}
+
+// no cascade: face detection disabled so that the results are deterministic
+static VisionPipeline* createPipeline ()
+{
+	return new VisionPipeline(FaceDetector::HAAR, "");
+}
+
+static std::vector<cv::Mat> g_frames[NUM_STREAMS];
+
+struct Worker {
+	pthread_t thread;
+	int stream;
+	Results results;
+	int lifecycles;
+};
+
+// Start of the concurrent run, so that all threads process at the same time
+static pthread_mutex_t g_startMutex= PTHREAD_MUTEX_INITIALIZER;
+static pthread_cond_t g_startCondition= PTHREAD_COND_INITIALIZER;
+static bool g_started= false;
+
+static void waitStart ()
+{
+	pthread_mutex_lock(&g_startMutex);
+	while (!g_started) pthread_cond_wait(&g_startCondition, &g_startMutex);
+	pthread_mutex_unlock(&g_startMutex);
+}
+
+static void start (bool started)
+{
+	pthread_mutex_lock(&g_startMutex);
+	g_started= started;
+	pthread_cond_broadcast(&g_startCondition);
+	pthread_mutex_unlock(&g_startMutex);
+}
+
+static void* processEntry (void* arg)
+{
+	Worker* w= (Worker*) arg;
+	const Stream& s= STREAMS[w->stream];
+
+	VisionPipeline* pipeline= createPipeline();
+	waitStart();
+	for (int i= 0; i< NUM_FRAMES; i++) {
+		w->results.push_back(process(*pipeline, s, g_frames[w->stream][i]));
+	}
+	delete pipeline;
+
+	return NULL;
+}
+
+static void* lifecycleEntry (void* arg)
+{
+	Worker* w= (Worker*) arg;
+	const Stream& s= STREAMS[w->stream];
+
+	waitStart();
+	for (int i= 0; i< LIFECYCLE_ITERATIONS; i++) {
+		VisionPipeline* pipeline= createPipeline();
+		process(*pipeline, s, g_frames[w->stream][0]);
+		process(*pipeline, s, g_frames[w->stream][1]);
+		delete pipeline;
+		w->lifecycles++;
+	}
+
+	return NULL;
+}
+
+// Run a worker for each stream on its own thread, returns the elapsed time in ms
+static double runThreads (Worker* workers, void* (*entry)(void*))
+{
+	start (false);
+	for (int s= 0; s< NUM_STREAMS; s++) {
+		workers[s].stream= s;
+		workers[s].results.reserve(NUM_FRAMES);
+		workers[s].lifecycles= 0;
+		pthread_create(&workers[s].thread, NULL, entry, &workers[s]);
+	}
+
+	double startTime= nowMs();
+	start (true);
+	for (int s= 0; s< NUM_STREAMS; s++) pthread_join(workers[s].thread, NULL);
+
+	return nowMs() - startTime;
+}
+
+int main ()
+{
+	for (int s= 0; s< NUM_STREAMS; s++) renderStream (STREAMS[s], g_frames[s]);
+
+	// reference: one pipeline at a time
+	Results reference[NUM_STREAMS];
+	double sequentialTime= 0;
+	for (int s= 0; s< NUM_STREAMS; s++) {
+		VisionPipeline* pipeline= createPipeline();
+		double startTime= nowMs();
+		for (int i= 0; i< NUM_FRAMES; i++) {
+			reference[s].push_back(process(*pipeline, STREAMS[s], g_frames[s][i]));
+		}
+		sequentialTime+= nowMs() - startTime;
+		delete pipeline;
+
+		int tracked= 0;
+		for (int i= 0; i< NUM_FRAMES; i++) if (reference[s][i].corners> 0) tracked++;
+		CHECK (tracked> NUM_FRAMES / 2, "stream %d: only %d frames tracked", s, tracked);
+	}
+
+	// all pipelines alive at the same time, fed in turns
+	{
+		VisionPipeline* pipelines[NUM_STREAMS];
+		Results results[NUM_STREAMS];
+		for (int s= 0; s< NUM_STREAMS; s++) pipelines[s]= createPipeline();
+		for (int i= 0; i< NUM_FRAMES; i++) {
+			for (int s= 0; s< NUM_STREAMS; s++) {
+				results[s].push_back(process(*pipelines[s], STREAMS[s], g_frames[s][i]));
+			}
+		}
+		for (int s= 0; s< NUM_STREAMS; s++) {
+			delete pipelines[s];
+			int mismatch= firstMismatch(reference[s], results[s]);
+			CHECK (mismatch< 0, "interleaved: stream %d differs at frame %d", s, mismatch);
+		}
+	}
+
+	// one thread per pipeline
+	Worker workers[NUM_STREAMS];
+	double concurrentTime= runThreads(workers, processEntry);
+	for (int s= 0; s< NUM_STREAMS; s++) {
+		int mismatch= firstMismatch(reference[s], workers[s].results);
+		CHECK (mismatch< 0, "concurrent: stream %d differs at frame %d", s, mismatch);
+	}
+
+	// creation and destruction of pipelines on several threads
+	Worker lifecycles[NUM_STREAMS];
+	runThreads(lifecycles, lifecycleEntry);
+	for (int s= 0; s< NUM_STREAMS; s++) {
+		CHECK (lifecycles[s].lifecycles== LIFECYCLE_ITERATIONS, "thread %d: %d pipelines",
+			s, lifecycles[s].lifecycles);
+	}
+
+	int frames= NUM_STREAMS * NUM_FRAMES;
+	printf ("1 thread:  %7.1f frames/s\n", frames * 1000.0 / sequentialTime);
+	printf ("%d threads: %7.1f frames/s (x%.2f)\n", NUM_STREAMS,
+		frames * 1000.0 / concurrentTime, sequentialTime / concurrentTime);
+
+	return testResult("multipipeline_test");
+}
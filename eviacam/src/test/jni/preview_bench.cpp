@@ -0,0 +1,331 @@
+/*
+ * Enable Viacam for Android, a camera based mouse emulator
+ *
+ * Copyright (C) 2015 Cesar Mauri Loba (CREA Software Systems)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ * Benchmark of the preview modes (see PreviewPolicy.java)
+ *
+ * Replays a recording made by the app (or, without one, a synthetic sequence)
+ * through VisionPipeline doing, for each preview mode, the native work of the
+ * processing and preview threads of Camera2Listener (processFrame and
+ * mPreviewRunnable):
+ *
+ *   off:     the luma plane is processed, no preview
+ *   reduced: one out of REDUCED_FRAME_INTERVAL frames is converted to BGRA, the
+ *            feedback is drawn on it, it is downscaled by REDUCED_SCALE
+ *            (INTER_AREA) and copied to the bitmap
+ *   full:    every frame is converted to BGRA, the feedback is drawn on it and
+ *            it is copied to the bitmap
+ *
+ * The copy to a buffer allocated once stands for Utils.matToBitmap on the
+ * reused bitmap. Reports the time and the heap allocations (malloc calls, all
+ * threads, glibc only) per frame. Checks that the preview buffers are reused,
+ * that the full preview adds no allocations per frame and that the modes which
+ * draw less cost less.
+ */
+
+#include "testutil.h"
+#include "syntheticscene.h"
+#include "framefile.h"
+#include "visionpipeline.h"
+#include "facedetector.h"
+
+#include <opencv2/imgproc/imgproc.hpp>
+#include <math.h>
+#include <stdlib.h>
+#include <string.h>
+#include <vector>
+
+using namespace eviacam;
+
+// Capture size used by the app, for the synthetic sequence
+#define WIDTH 352
+#define HEIGHT 288
+#define SYNTHETIC_FRAMES 300
+
+// Same values than PreviewPolicy.java
+#define REDUCED_FRAME_INTERVAL 2
+#define REDUCED_SCALE 0.5f
+
+// frames of the first pass not measured, buffers are allocated meanwhile
+#define WARMUP_FRAMES 10
+#define PASSES 3
+
+enum EMode { MODE_OFF= 0, MODE_REDUCED, MODE_FULL, NUM_MODES };
+static const char* MODE_NAMES[NUM_MODES]= { "off", "reduced", "full" };
+
+/*
+ * Count of the heap allocations made while g_counting is set. Wraps the malloc
+ * family of glibc, which also serves operator new and the OpenCV allocator.
+ */
+static volatile bool g_counting= false;
+static volatile long g_allocs= 0;
+
+#ifdef __GLIBC__
+extern "C" {
+void* __libc_malloc (size_t size);
+void* __libc_calloc (size_t n, size_t size);
+void* __libc_realloc (void* p, size_t size);
+void* __libc_memalign (size_t alignment, size_t size);
+
+static inline void countAlloc ()
+{
+	if (g_counting) __sync_fetch_and_add(&g_allocs, 1);
+}
+
+void* malloc (size_t size)
+{
+	countAlloc();
+	return __libc_malloc(size);
+}
+
+void* calloc (size_t n, size_t size)
+{
+	countAlloc();
+	return __libc_calloc(n, size);
+}
+
+void* realloc (void* p, size_t size)
+{
+	countAlloc();
+	return __libc_realloc(p, size);
+}
+
+void* memalign (size_t alignment, size_t size)
+{
+	countAlloc();
+	return __libc_memalign(alignment, size);
+}
+
+int posix_memalign (void** p, size_t alignment, size_t size)
+{
+	countAlloc();
+	*p= __libc_memalign(alignment, size);
+	return *p ? 0 : 12; // ENOMEM
+}
+}
+static const bool ALLOCS_COUNTED= true;
+#else
+static const bool ALLOCS_COUNTED= false;
+#endif
+
+// Frame as captured: packed I420 image (see CapturedFrame.java)
+struct Frame {
+	cv::Mat yuv;
+	int flip, rotation;
+};
+
+static void addFrame (const cv::Mat& luma, int flip, int rotation, std::vector<Frame>& frames)
+{
+	Frame f;
+	f.yuv.create(luma.rows + luma.rows / 2, luma.cols, CV_8UC1);
+	cv::Mat y= f.yuv.rowRange(0, luma.rows);
+	luma.copyTo(y);
+	// gray chroma, the conversion costs the same
+	cv::Mat uv= f.yuv.rowRange(luma.rows, f.yuv.rows);
+	uv= cv::Scalar(128);
+	f.flip= flip;
+	f.rotation= rotation;
+	frames.push_back(f);
+}
+
+static bool loadRecording (const char* path, std::vector<Frame>& frames)
+{
+	FrameFileReader reader;
+	if (!reader.open(path)) {
+		fprintf (stderr, "cannot open %s\n", path);
+		return false;
+	}
+	RecordedFrame rf;
+	while (reader.next(rf)) {
+		cv::Mat luma(rf.height, rf.width, CV_8UC1, &rf.data[0]);
+		addFrame (luma, rf.flip, rf.rotation, frames);
+	}
+	if (reader.truncated()) fprintf (stderr, "%s: truncated, replaying the complete frames\n", path);
+	return !frames.empty();
+}
+
+static void syntheticSequence (std::vector<Frame>& frames)
+{
+	SyntheticScene scene(WIDTH, HEIGHT, 1);
+	cv::Mat luma;
+	for (int i= 0; i< SYNTHETIC_FRAMES; i++) {
+		scene.render(3.0f * sinf(i * 0.2f), 2.0f * cosf(i * 0.15f), 0, luma);
+		addFrame (luma, 0, 0, frames);
+	}
+}
+
+static bool processLuma (VisionPipeline& pipeline, const Frame& f, cv::Mat* preview)
+{
+	// luma plane of the packed frame, as CapturedFrame.getLuma
+	cv::Mat luma= f.yuv.rowRange(0, f.yuv.rows * 2 / 3);
+	IplImage iplLuma= luma;
+	CIplImage frame(&iplLuma);
+	float xVel= 0, yVel= 0;
+	if (preview) {
+		IplImage iplPreview= *preview;
+		CIplImage previewImage(&iplPreview);
+		return pipeline.processImage(frame, &previewImage, f.flip, f.rotation, xVel, yVel);
+	}
+	return pipeline.processImage(frame, NULL, f.flip, f.rotation, xVel, yVel);
+}
+
+// Copy to the bitmap, which is reconfigured (not reallocated) for smaller images
+static void copyToBitmap (const cv::Mat& image, std::vector<unsigned char>& bitmap)
+{
+	cv::Mat view(image.rows, image.cols, CV_8UC4, &bitmap[0], image.cols * 4);
+	image.copyTo(view);
+}
+
+struct ModeResult {
+	double msPerFrame;
+	double allocsPerFrame;
+	int rendered;
+	bool buffersReused;
+};
+
+static ModeResult run (const std::vector<Frame>& frames, EMode mode)
+{
+	const int width= frames[0].yuv.cols;
+	const int height= frames[0].yuv.rows * 2 / 3;
+
+	// no cascade: face detection disabled so that only the preview changes
+	VisionPipeline pipeline(FaceDetector::HAAR, "");
+
+	// slot of the preview ring, downscaled preview and bitmap, allocated once
+	cv::Mat preview(height, width, CV_8UC4);
+	cv::Mat scaled;
+	std::vector<unsigned char> bitmap(width * height * 4);
+	const cv::Size reducedSize(
+		(int) (width * REDUCED_SCALE + 0.5f), (int) (height * REDUCED_SCALE + 0.5f));
+
+	const unsigned char* previewData= preview.data;
+	const unsigned char* scaledData= NULL;
+
+	ModeResult r;
+	r.rendered= 0;
+	r.buffersReused= true;
+	double time= 0;
+	long allocs= 0;
+	int measured= 0, frameCount= 0;
+
+	for (int pass= 0; pass< PASSES; pass++) {
+		for (unsigned int i= 0; i< frames.size(); i++) {
+			const Frame& f= frames[i];
+			const bool measure= pass> 0 || i>= WARMUP_FRAMES;
+
+			// PreviewPolicy.shouldRender
+			bool render= (mode== MODE_FULL);
+			if (mode== MODE_REDUCED) render= (++frameCount % REDUCED_FRAME_INTERVAL== 0);
+
+			g_allocs= 0;
+			g_counting= measure;
+			double start= nowMs();
+
+			if (!render) {
+				processLuma (pipeline, f, NULL);
+			}
+			else {
+				cv::cvtColor(f.yuv, preview, CV_YUV2BGRA_YV12);
+				processLuma (pipeline, f, &preview);
+				if (mode== MODE_REDUCED) {
+					cv::resize(preview, scaled, reducedSize, 0, 0, cv::INTER_AREA);
+					copyToBitmap (scaled, bitmap);
+				}
+				else {
+					copyToBitmap (preview, bitmap);
+				}
+			}
+
+			double elapsed= nowMs() - start;
+			g_counting= false;
+
+			if (render && pass== 0 && mode== MODE_REDUCED && scaledData== NULL) {
+				scaledData= scaled.data;
+			}
+			if (!measure) continue;
+
+			time+= elapsed;
+			allocs+= g_allocs;
+			measured++;
+			if (render) r.rendered++;
+		}
+	}
+
+	if (preview.data!= previewData) r.buffersReused= false;
+	if (mode== MODE_REDUCED && scaled.data!= scaledData) r.buffersReused= false;
+
+	r.msPerFrame= time / measured;
+	r.allocsPerFrame= (double) allocs / measured;
+	return r;
+}
+
+int main (int argc, char* argv[])
+{
+	std::vector<Frame> frames;
+	if (argc> 1) {
+		if (!loadRecording(argv[1], frames)) return 1;
+	}
+	else {
+		syntheticSequence (frames);
+	}
+	CHECK (frames.size()> WARMUP_FRAMES, "too few frames: %d", (int) frames.size());
+	if (frames.size()<= WARMUP_FRAMES) return testResult("preview_bench");
+
+	printf ("%d frames of %dx%d, %d passes\n", (int) frames.size(), frames[0].yuv.cols,
+		frames[0].yuv.rows * 2 / 3, PASSES);
+	printf ("mode      ms/frame  allocs/frame  previews\n");
+
+	ModeResult results[NUM_MODES];
+	for (int m= 0; m< NUM_MODES; m++) {
+		results[m]= run(frames, (EMode) m);
+		if (ALLOCS_COUNTED) {
+			printf ("%-8s  %8.3f  %12.2f  %8d\n", MODE_NAMES[m], results[m].msPerFrame,
+				results[m].allocsPerFrame, results[m].rendered);
+		}
+		else {
+			printf ("%-8s  %8.3f  %12s  %8d\n", MODE_NAMES[m], results[m].msPerFrame,
+				"n/a", results[m].rendered);
+		}
+		CHECK (results[m].buffersReused, "%s: preview buffers reallocated", MODE_NAMES[m]);
+	}
+
+	const ModeResult& off= results[MODE_OFF];
+	const ModeResult& reduced= results[MODE_REDUCED];
+	const ModeResult& full= results[MODE_FULL];
+
+	CHECK (off.rendered== 0, "off: %d previews", off.rendered);
+	CHECK (abs(reduced.rendered - full.rendered / REDUCED_FRAME_INTERVAL)<= 1,
+		"reduced: %d previews out of %d frames", reduced.rendered, full.rendered);
+
+	// less work, less time
+	CHECK (off.msPerFrame< full.msPerFrame, "off (%.3f ms) not faster than full (%.3f ms)",
+		off.msPerFrame, full.msPerFrame);
+	CHECK (reduced.msPerFrame< full.msPerFrame,
+		"reduced (%.3f ms) not faster than full (%.3f ms)",
+		reduced.msPerFrame, full.msPerFrame);
+
+	// the conversion, the feedback and the copy work on the buffers allocated once
+	if (ALLOCS_COUNTED) {
+		CHECK (full.allocsPerFrame - off.allocsPerFrame< 0.5,
+			"full preview allocates: %.2f allocs/frame vs %.2f without preview",
+			full.allocsPerFrame, off.allocsPerFrame);
+	}
+
+	return testResult("preview_bench");
+}
@@ -0,0 +1,220 @@
+/*
+ * Enable Viacam for Android, a camera based mouse emulator
+ *
+ * Copyright (C) 2015 Cesar Mauri Loba (CREA Software Systems)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ * Replay of frame recordings through VisionPipeline, as fast as possible
+ *
+ * Without arguments, writes synthetic recordings with a known motion and a
+ * recorded flip and rotation, replays them as the engine does (the recorded
+ * orientation is given to the pipeline) and checks the motion output: it has
+ * to match the scene motion seen through that orientation and be the same
+ * on every replay.
+ *
+ * With a recording made by the app (Settings > record frames, files
+ * frames-*.evfr in the app external files directory) replays it and prints
+ * the motion of each frame and the processing time:
+ *
+ *   replay_test <recording>
+ */
+
+#include "testutil.h"
+#include "framefile.h"
+#include "syntheticscene.h"
+#include "visionpipeline.h"
+#include "facedetector.h"
+
+#include <math.h>
+#include <stdlib.h>
+#include <unistd.h>
+#include <vector>
+
+using namespace eviacam;
+
+// Capture size used by the app
+#define WIDTH 352
+#define HEIGHT 288
+
+#define NUM_FRAMES 60
+#define FRAME_TIME 33333333LL	// ns
+
+struct Motion {
+	bool faceDetected;
+	float xVel, yVel;
+	int corners;
+};
+
+// Scene motion of each frame
+static void sceneMotion (int frame, float& dx, float& dy)
+{
+	dx= 3.0f * sinf(frame * 0.2f);
+	dy= 2.0f * cosf(frame * 0.15f);
+}
+
+/*
+ * Displacement seen by the pipeline after applying flip and rotation as
+ * VisionPipeline::processImage does
+ */
+static void orient (int flip, int rotation, float dx, float dy, float& x, float& y)
+{
+	if (flip== 1) dy= -dy;			// around the X axis
+	else if (flip== 2) dx= -dx;		// around the Y axis
+
+	switch (rotation) {
+	case 90: x= -dy; y= dx; break;
+	case 180: x= -dx; y= -dy; break;
+	case 270: x= dy; y= -dx; break;
+	default: x= dx; y= dy;
+	}
+}
+
+/*
+ * Feed all the frames of a recording to a new pipeline
+ *
+ * @return false if the recording cannot be read
+ */
+static bool replay (const char* path, std::vector<Motion>& motion, double& ms)
+{
+	FrameFileReader reader;
+	if (!reader.open(path)) return false;
+
+	// no cascade: face detection disabled so that the results are deterministic
+	VisionPipeline pipeline(FaceDetector::HAAR, "");
+
+	motion.clear();
+	ms= 0;
+	RecordedFrame f;
+	while (reader.next(f)) {
+		cv::Mat mat(f.height, f.width, CV_8UC1, &f.data[0]);
+		IplImage ipl= mat;
+		CIplImage frame(&ipl);
+
+		Motion m;
+		m.xVel= m.yVel= 0;
+		double start= nowMs();
+		m.faceDetected= pipeline.processImage(frame, NULL, f.flip, f.rotation, m.xVel, m.yVel);
+		ms+= nowMs() - start;
+		m.corners= pipeline.getCornerCount();
+		motion.push_back(m);
+	}
+
+	return !reader.truncated();
+}
+
+static void testOrientation (const SyntheticScene& scene, int flip, int rotation)
+{
+	char path[]= "/tmp/replay_testXXXXXX";
+	int fd= mkstemp(path);
+	CHECK (fd>= 0, "cannot create temporary file");
+	if (fd< 0) return;
+	close (fd);
+
+	// recording
+	FrameFileWriter writer;
+	CHECK (writer.open(path), "cannot write %s", path);
+	RecordedFrame f;
+	cv::Mat gray;
+	for (int i= 0; i< NUM_FRAMES; i++) {
+		float dx, dy;
+		sceneMotion(i, dx, dy);
+		scene.render(dx, dy, 0, gray);
+
+		f.timestamp= 1000000000LL + i * FRAME_TIME;
+		f.width= gray.cols;
+		f.height= gray.rows;
+		f.flip= flip;
+		f.rotation= rotation;
+		f.data.assign(gray.data, gray.data + gray.total());
+		writer.write(f);
+	}
+	CHECK (writer.close(), "error writing %s", path);
+
+	// replay
+	std::vector<Motion> first, second;
+	double ms;
+	CHECK (replay(path, first, ms), "flip %d rotation %d: cannot replay", flip, rotation);
+	CHECK (first.size()== NUM_FRAMES, "flip %d rotation %d: %d frames replayed",
+		flip, rotation, (int) first.size());
+
+	float error= 0;
+	int tracked= 0;
+	for (size_t i= 1; i< first.size(); i++) {
+		if (first[i].corners== 0) continue;
+		float dx, dy, pdx, pdy, x, y;
+		sceneMotion(i, dx, dy);
+		sceneMotion(i - 1, pdx, pdy);
+		orient(flip, rotation, dx - pdx, dy - pdy, x, y);
+		error+= hypotf(first[i].xVel - x, first[i].yVel - y);
+		tracked++;
+	}
+	CHECK (tracked> NUM_FRAMES / 2, "flip %d rotation %d: only %d frames tracked",
+		flip, rotation, tracked);
+	CHECK (tracked> 0 && error / tracked< 0.25f, "flip %d rotation %d: mean motion error %f px",
+		flip, rotation, tracked ? error / tracked : 0);
+
+	// the output only depends on the recording, not on the pace
+	replay(path, second, ms);
+	bool same= (first.size()== second.size());
+	for (size_t i= 0; same && i< first.size(); i++) {
+		same= first[i].xVel== second[i].xVel && first[i].yVel== second[i].yVel &&
+			first[i].corners== second[i].corners;
+	}
+	CHECK (same, "flip %d rotation %d: replays differ", flip, rotation);
+
+	// truncated recordings are reported
+	CHECK (truncate(path, 8 + 19 + WIDTH * HEIGHT + 100)== 0, "cannot truncate %s", path);
+	CHECK (!replay(path, second, ms) && second.size()== 1,
+		"flip %d rotation %d: truncated recording not detected", flip, rotation);
+
+	unlink (path);
+}
+
+static int replayRecording (const char* path)
+{
+	std::vector<Motion> motion;
+	double ms;
+	bool ok= replay(path, motion, ms);
+
+	printf ("frame  face     xVel     yVel  corners\n");
+	for (size_t i= 0; i< motion.size(); i++) {
+		printf ("%5d  %4d  %7.3f  %7.3f  %7d\n", (int) i, motion[i].faceDetected,
+			motion[i].xVel, motion[i].yVel, motion[i].corners);
+	}
+	if (!motion.empty()) {
+		printf ("%d frames, %.3f ms/frame\n", (int) motion.size(), ms / motion.size());
+	}
+	if (!ok) {
+		fprintf (stderr, "replay_test: cannot read %s or truncated\n", path);
+		return 1;
+	}
+	return 0;
+}
+
+int main (int argc, char* argv[])
+{
+	if (argc> 1) return replayRecording(argv[1]);
+
+	SyntheticScene scene(WIDTH, HEIGHT, 2);
+
+	testOrientation (scene, 0, 0);
+	testOrientation (scene, 0, 90);
+	testOrientation (scene, 1, 270);
+	testOrientation (scene, 2, 180);
+
+	return testResult("replay_test");
+}
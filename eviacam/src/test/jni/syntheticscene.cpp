@@ -0,0 +1,64 @@
+/*
+ * Enable Viacam for Android, a camera based mouse emulator
+ *
+ * Copyright (C) 2015 Cesar Mauri Loba (CREA Software Systems)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+#include "syntheticscene.h"
+
+#include <opencv2/imgproc/imgproc.hpp>
+#include <math.h>
+
+// number of random rectangles drawn on the texture
+#define NUM_BLOBS 400
+
+SyntheticScene::SyntheticScene (int width, int height, unsigned int seed)
+: m_width(width)
+, m_height(height)
+{
+	cv::RNG rng(seed);
+	cv::Mat texture(2 * height, 2 * width, CV_8UC1);
+	rng.fill(texture, cv::RNG::UNIFORM, 0, 256);
+
+	for (int i= 0; i< NUM_BLOBS; i++) {
+		cv::Point p1(rng.uniform(0, texture.cols), rng.uniform(0, texture.rows));
+		cv::Point p2(p1.x + rng.uniform(4, 40), p1.y + rng.uniform(4, 40));
+		cv::rectangle(texture, p1, p2, cv::Scalar(rng.uniform(0, 256)), CV_FILLED);
+	}
+
+	// smooth the noise so that the gradients are meaningful at any pyramid level
+	cv::GaussianBlur(texture, m_texture, cv::Size(0, 0), 1.5);
+}
+
+void SyntheticScene::render (float dx, float dy, float angle, cv::Mat& frame) const
+{
+	// map each point of the frame to the texture: q= tc + R(-angle) * (p - c - d)
+	const double a= -angle * CV_PI / 180.0;
+	const double c= cos(a), s= sin(a);
+	const double cx= m_width / 2.0 + dx, cy= m_height / 2.0 + dy;
+	const double tx= m_width, ty= m_height;
+
+	cv::Mat m(2, 3, CV_64F);
+	m.at<double>(0, 0)= c;
+	m.at<double>(0, 1)= -s;
+	m.at<double>(0, 2)= tx - (c * cx - s * cy);
+	m.at<double>(1, 0)= s;
+	m.at<double>(1, 1)= c;
+	m.at<double>(1, 2)= ty - (s * cx + c * cy);
+
+	cv::warpAffine(m_texture, frame, m, cv::Size(m_width, m_height),
+		cv::INTER_LINEAR | cv::WARP_INVERSE_MAP);
+}
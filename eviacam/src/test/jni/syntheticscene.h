@@ -0,0 +1,55 @@
+/*
+ * Enable Viacam for Android, a camera based mouse emulator
+ *
+ * Copyright (C) 2015 Cesar Mauri Loba (CREA Software Systems)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+#ifndef SYNTHETICSCENE_H
+#define SYNTHETICSCENE_H
+
+#include <opencv2/core/core.hpp>
+
+/**
+ * Textured scene to generate frames with a known motion
+ *
+ * The texture (random blobs, blurred) has plenty of corners for the motion
+ * tracker and no faces. Frames are views of the texture moved and rotated
+ * around the center of the frame.
+ */
+class SyntheticScene
+{
+public:
+	SyntheticScene (int width, int height, unsigned int seed);
+
+	int width () const { return m_width; }
+	int height () const { return m_height; }
+
+	/**
+	 * Render a grayscale frame
+	 *
+	 * @param dx, dy displacement of the scene in pixels
+	 * @param angle rotation of the scene in degrees (clockwise)
+	 * @param frame output, (re)allocated as width x height CV_8UC1
+	 */
+	void render (float dx, float dy, float angle, cv::Mat& frame) const;
+
+private:
+	int m_width, m_height;
+	// twice the size of the frame so that it is always covered
+	cv::Mat m_texture;
+};
+
+#endif
@@ -0,0 +1,61 @@
+/*
+ * Enable Viacam for Android, a camera based mouse emulator
+ *
+ * Copyright (C) 2015 Cesar Mauri Loba (CREA Software Systems)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+#ifndef TESTUTIL_H
+#define TESTUTIL_H
+
+/*
+ * Helpers shared by the host tests and benchmarks of the vision pipeline
+ */
+
+#include <stdio.h>
+#include <time.h>
+
+static int g_failures= 0;
+
+#define CHECK(cond, ...) \
+	do { \
+		if (!(cond)) { \
+			fprintf (stderr, "%s:%d: FAILED: ", __FILE__, __LINE__); \
+			fprintf (stderr, __VA_ARGS__); \
+			fprintf (stderr, "\n"); \
+			g_failures++; \
+		} \
+	} while (0)
+
+// Monotonic time in ms with sub-millisecond resolution
+static inline double nowMs ()
+{
+	struct timespec ts;
+	clock_gettime(CLOCK_MONOTONIC, &ts);
+	return ts.tv_sec * 1000.0 + ts.tv_nsec / 1000000.0;
+}
+
+// Exit status of a test: prints the result
+static inline int testResult (const char* name)
+{
+	if (g_failures) {
+		fprintf (stderr, "%s: %d check(s) failed\n", name, g_failures);
+		return 1;
+	}
+	printf ("%s: OK\n", name);
+	return 0;
+}
+
+#endif
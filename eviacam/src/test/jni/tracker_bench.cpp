@@ -0,0 +1,144 @@
+/*
+ * Enable Viacam for Android, a camera based mouse emulator
+ *
+ * Copyright (C) 2015 Cesar Mauri Loba (CREA Software Systems)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ * Benchmark of the forward-backward Lucas-Kanade motion tracker
+ *
+ * Runs synthetic sequences with a known motion (slow and fast translation,
+ * rotation) through VisionPipeline for several tracker configurations (see
+ * setTrackerParams) and reports, for each one, the mean motion error, the
+ * fraction of frames with motion, the corners kept by the forward-backward
+ * check and the time per frame.
+ */
+
+#include "testutil.h"
+#include "syntheticscene.h"
+#include "visionpipeline.h"
+#include "facedetector.h"
+
+#include <math.h>
+#include <vector>
+
+using namespace eviacam;
+
+// Capture size used by the app
+#define WIDTH 352
+#define HEIGHT 288
+
+#define NUM_FRAMES 300
+#define WARMUP_FRAMES 10
+
+struct Sequence {
+	const char* name;
+	float amplitude;	// pixels
+	float rotation;		// degrees
+};
+
+static const Sequence SEQUENCES[]= {
+	{ "slow translation", 2.0f, 0 },
+	{ "fast translation", 8.0f, 0 },
+	{ "rotation", 1.0f, 4.0f },
+};
+
+struct TrackerConfig {
+	int pyrLevels, winSize, maxIter;
+	float epsilon;
+};
+
+// first one is the default of VisionPipeline
+static const TrackerConfig CONFIGS[]= {
+	{ 2, 11, 14, 0.03f },
+	{ 0, 11, 14, 0.03f },
+	{ 1, 11, 14, 0.03f },
+	{ 3, 11, 14, 0.03f },
+	{ 2, 7, 14, 0.03f },
+	{ 2, 15, 14, 0.03f },
+	{ 2, 11, 5, 0.1f },
+	{ 2, 11, 30, 0.01f },
+};
+
+static void sceneMotion (const Sequence& s, int frame, float& dx, float& dy, float& angle)
+{
+	dx= s.amplitude * sinf(frame * 0.2f);
+	dy= s.amplitude * 0.7f * cosf(frame * 0.15f);
+	angle= s.rotation * sinf(frame * 0.1f);
+}
+
+static void run (const SyntheticScene& scene, const Sequence& s, const TrackerConfig& c)
+{
+	// no cascade: only the motion tracker runs
+	VisionPipeline pipeline(FaceDetector::HAAR, "");
+	pipeline.setTrackerParams(c.pyrLevels, c.winSize, c.maxIter, c.epsilon);
+
+	// frames rendered in advance so that only the pipeline is timed
+	std::vector<cv::Mat> frames(NUM_FRAMES);
+	for (int i= 0; i< NUM_FRAMES; i++) {
+		float dx, dy, angle;
+		sceneMotion(s, i, dx, dy, angle);
+		scene.render(dx, dy, angle, frames[i]);
+	}
+
+	double error= 0, time= 0;
+	int tracked= 0, corners= 0, measured= 0;
+	for (int i= 0; i< NUM_FRAMES; i++) {
+		IplImage ipl= frames[i];
+		CIplImage frame(&ipl);
+		float xVel= 0, yVel= 0;
+
+		double start= nowMs();
+		pipeline.processImage(frame, NULL, 0, 0, xVel, yVel);
+		double elapsed= nowMs() - start;
+
+		if (i< WARMUP_FRAMES) continue;
+		time+= elapsed;
+		measured++;
+		corners+= pipeline.getCornerCount();
+
+		// rotation has no single displacement, the translation of the center is used
+		float dx, dy, angle, pdx, pdy, pangle;
+		sceneMotion(s, i, dx, dy, angle);
+		sceneMotion(s, i - 1, pdx, pdy, pangle);
+		if (xVel!= 0 || yVel!= 0) {
+			error+= hypotf(xVel - (dx - pdx), yVel - (dy - pdy));
+			tracked++;
+		}
+	}
+
+	printf ("%-16s %d %2d %2d %.2f   %6.3f   %5.1f%%   %5.1f   %6.3f\n",
+		s.name, c.pyrLevels, c.winSize, c.maxIter, c.epsilon,
+		tracked ? error / tracked : 0, 100.0 * tracked / measured,
+		(double) corners / measured, time / measured);
+
+	CHECK (tracked> 0, "%s: nothing tracked with pyrLevels %d winSize %d",
+		s.name, c.pyrLevels, c.winSize);
+}
+
+int main ()
+{
+	SyntheticScene scene(WIDTH, HEIGHT, 1);
+
+	printf ("sequence         L  W  I  eps    err(px)  tracked  corners  ms/frame\n");
+	for (unsigned int s= 0; s< sizeof(SEQUENCES) / sizeof(SEQUENCES[0]); s++) {
+		for (unsigned int c= 0; c< sizeof(CONFIGS) / sizeof(CONFIGS[0]); c++) {
+			run (scene, SEQUENCES[s], CONFIGS[c]);
+		}
+	}
+
+	return testResult("tracker_bench");
+}
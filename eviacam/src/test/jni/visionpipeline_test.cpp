@@ -0,0 +1,163 @@
+/*
+ * Enable Viacam for Android, a camera based mouse emulator
+ *
+ * Copyright (C) 2015 Cesar Mauri Loba (CREA Software Systems)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ * Test of the grayscale input of VisionPipeline
+ *
+ * Feeds the same synthetic sequence, for each flip and rotation, through
+ * three pipelines as the JNI layer does (see processGrayFrame and
+ * processFrame in visionpipeline_jni.cpp):
+ *
+ * - luma plane without preview (preview hidden)
+ * - luma plane with a BGRA preview on which feedback is drawn
+ * - BGRA frame, converted to grayscale by the pipeline (former path)
+ *
+ * and checks that the motion, tracking area and corners match.
+ */
+
+#include "testutil.h"
+#include "syntheticscene.h"
+#include "visionpipeline.h"
+#include "facedetector.h"
+
+#include <opencv2/imgproc/imgproc.hpp>
+#include <math.h>
+
+using namespace eviacam;
+
+// Capture size used by the app
+#define WIDTH 352
+#define HEIGHT 288
+
+#define NUM_FRAMES 60
+
+// Scene motion of each frame
+static void sceneMotion (int frame, float& dx, float& dy)
+{
+	dx= 3.0f * sinf(frame * 0.2f);
+	dy= 2.0f * cosf(frame * 0.15f);
+}
+
+struct FrameResult {
+	bool faceDetected;
+	float xVel, yVel;
+	float x, y, width, height;
+	int corners;
+};
+
+static FrameResult process (VisionPipeline& pipeline, cv::Mat& image, cv::Mat* preview,
+							int flip, int rotation)
+{
+	// same wrapping than visionpipeline_jni.cpp
+	IplImage iplImage= image;
+	CIplImage frame(&iplImage);
+
+	FrameResult r;
+	r.xVel= r.yVel= 0;
+	if (preview) {
+		IplImage iplPreview= *preview;
+		CIplImage previewImage(&iplPreview);
+		r.faceDetected= pipeline.processImage(frame, &previewImage, flip, rotation, r.xVel, r.yVel);
+	}
+	else {
+		r.faceDetected= pipeline.processImage(frame, NULL, flip, rotation, r.xVel, r.yVel);
+	}
+	pipeline.getTrackArea(r.x, r.y, r.width, r.height);
+	r.corners= pipeline.getCornerCount();
+
+	return r;
+}
+
+static bool same (const FrameResult& a, const FrameResult& b, float tolerance)
+{
+	return a.faceDetected== b.faceDetected && a.corners== b.corners &&
+		fabsf(a.xVel - b.xVel)<= tolerance && fabsf(a.yVel - b.yVel)<= tolerance &&
+		fabsf(a.x - b.x)<= tolerance && fabsf(a.y - b.y)<= tolerance &&
+		fabsf(a.width - b.width)<= tolerance && fabsf(a.height - b.height)<= tolerance;
+}
+
+static void testPaths (const SyntheticScene& scene, int flip, int rotation)
+{
+	// no cascade: face detection disabled so that the results are deterministic
+	VisionPipeline luma(FaceDetector::HAAR, "");
+	VisionPipeline lumaPreview(FaceDetector::HAAR, "");
+	VisionPipeline bgra(FaceDetector::HAAR, "");
+
+	cv::Mat gray, grayCopy, preview, color, previewBefore;
+	float error= 0;
+	int tracked= 0;
+
+	for (int i= 0; i< NUM_FRAMES; i++) {
+		float dx, dy;
+		sceneMotion(i, dx, dy);
+		scene.render(dx, dy, 0, gray);
+		cv::cvtColor(gray, color, CV_GRAY2BGRA);
+		color.copyTo(preview);
+		previewBefore= preview.clone();
+		grayCopy= gray.clone();
+
+		FrameResult a= process(luma, gray, NULL, flip, rotation);
+		FrameResult b= process(lumaPreview, grayCopy, &preview, flip, rotation);
+		FrameResult c= process(bgra, color, &color, flip, rotation);
+
+		CHECK (same(a, b, 0), "flip %d rotation %d frame %d: luma (%f, %f) != luma with preview (%f, %f)",
+			flip, rotation, i, a.xVel, a.yVel, b.xVel, b.yVel);
+		// the BGR to gray conversion of a gray image is exact
+		CHECK (same(a, c, 1e-3f), "flip %d rotation %d frame %d: luma (%f, %f) != BGRA (%f, %f)",
+			flip, rotation, i, a.xVel, a.yVel, c.xVel, c.yVel);
+
+		// the input is left untouched, feedback only goes to the preview
+		CHECK (cv::countNonZero(gray != grayCopy)== 0, "flip %d rotation %d: input modified",
+			flip, rotation);
+		if (i> 0) {
+			cv::Mat diff;
+			cv::absdiff(preview, previewBefore, diff);
+			CHECK (cv::countNonZero(diff.reshape(1))> 0, "flip %d rotation %d: no feedback drawn",
+				flip, rotation);
+		}
+
+		// the motion itself, in the frame as seen by the tracker
+		if (i> 0 && flip== 0 && rotation== 0 && a.corners> 0) {
+			float pdx, pdy;
+			sceneMotion(i - 1, pdx, pdy);
+			error+= hypotf(a.xVel - (dx - pdx), a.yVel - (dy - pdy));
+			tracked++;
+		}
+	}
+
+	if (flip== 0 && rotation== 0) {
+		CHECK (tracked> NUM_FRAMES / 2, "only %d frames tracked", tracked);
+		CHECK (tracked> 0 && error / tracked< 0.25f, "mean motion error %f px",
+			tracked ? error / tracked : 0);
+	}
+}
+
+int main ()
+{
+	SyntheticScene scene(WIDTH, HEIGHT, 1);
+
+	static const int ROTATIONS[]= { 0, 90, 180, 270 };
+	for (int flip= 0; flip<= 2; flip++) {
+		for (unsigned int r= 0; r< sizeof(ROTATIONS) / sizeof(ROTATIONS[0]); r++) {
+			testPaths (scene, flip, ROTATIONS[r]);
+		}
+	}
+
+	return testResult("visionpipeline_test");
+}
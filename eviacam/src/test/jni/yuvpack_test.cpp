@@ -0,0 +1,162 @@
+/*
+ * Enable Viacam for Android, a camera based mouse emulator
+ *
+ * Copyright (C) 2015 Cesar Mauri Loba (CREA Software Systems)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ * Test of the YUV_420_888 plane packing used by NativeFrameIngestor
+ *
+ * Builds synthetic frames with the layouts delivered by camera HALs (padded
+ * rows, planar or interleaved chroma) and checks that the packed I420 image
+ * is bit-exact with the pixels read one by one. The buffers end right after
+ * the last pixel of each plane, as the Image planes do, so reading past the
+ * last row would be caught by valgrind or the address sanitizer.
+ */
+
+#include "yuvpack.h"
+
+#include <stdio.h>
+#include <stdlib.h>
+#include <vector>
+
+using namespace eviacam;
+
+static int g_failures= 0;
+
+#define CHECK(cond, ...) \
+	do { \
+		if (!(cond)) { \
+			fprintf (stderr, "%s:%d: FAILED: ", __FILE__, __LINE__); \
+			fprintf (stderr, __VA_ARGS__); \
+			fprintf (stderr, "\n"); \
+			g_failures++; \
+		} \
+	} while (0)
+
+// Value of each pixel of the synthetic frames
+static unsigned char pixel (int plane, int x, int y)
+{
+	return (unsigned char) (plane * 85 + x * 7 + y * 13);
+}
+
+// Bytes a plane buffer spans: the last row is not padded
+static int planeSize (int width, int height, int rowStride, int pixelStride)
+{
+	return rowStride * (height - 1) + (width - 1) * pixelStride + 1;
+}
+
+/*
+ * Frame laid out as a camera would deliver it
+ *
+ * @param yPadding, uvPadding extra bytes at the end of each row
+ * @param interleaved chroma samples interleaved (pixel stride 2). vFirst tells
+ *   the order of the samples (NV21 when true, NV12 otherwise)
+ */
+static void testLayout (int width, int height, int yPadding, int uvPadding,
+	bool interleaved, bool vFirst)
+{
+	const int cw= width / 2, ch= height / 2;
+	const int yRowStride= width + yPadding;
+	const int uvPixelStride= interleaved ? 2 : 1;
+	const int uvRowStride= cw * uvPixelStride + uvPadding;
+
+	std::vector<unsigned char> y(planeSize(width, height, yRowStride, 1), 0xEE);
+	for (int row= 0; row< height; row++)
+		for (int col= 0; col< width; col++)
+			y[row * yRowStride + col]= pixel(0, col, row);
+
+	// both chroma planes share the buffer when interleaved
+	std::vector<unsigned char> u, v;
+	const unsigned char* uPtr;
+	const unsigned char* vPtr;
+	const int uvSize= planeSize(cw, ch, uvRowStride, uvPixelStride);
+	if (interleaved) {
+		u.assign(uvSize + 1, 0xEE);
+		const int uOffset= vFirst ? 1 : 0;
+		for (int row= 0; row< ch; row++)
+			for (int col= 0; col< cw; col++) {
+				u[row * uvRowStride + col * 2 + uOffset]= pixel(1, col, row);
+				u[row * uvRowStride + col * 2 + 1 - uOffset]= pixel(2, col, row);
+			}
+		uPtr= &u[uOffset];
+		vPtr= &u[1 - uOffset];
+	}
+	else {
+		u.assign(uvSize, 0xEE);
+		v.assign(uvSize, 0xEE);
+		for (int row= 0; row< ch; row++)
+			for (int col= 0; col< cw; col++) {
+				u[row * uvRowStride + col]= pixel(1, col, row);
+				v[row * uvRowStride + col]= pixel(2, col, row);
+			}
+		uPtr= &u[0];
+		vPtr= &v[0];
+	}
+
+	// one guard byte after the packed image
+	const int size= width * height + 2 * cw * ch;
+	std::vector<unsigned char> dst(size + 1, 0x55);
+	packYUV420 (&y[0], uPtr, vPtr, width, height, yRowStride, 1,
+		uvRowStride, uvPixelStride, &dst[0]);
+
+	int errors= 0;
+	const unsigned char* p= &dst[0];
+	for (int row= 0; row< height; row++)
+		for (int col= 0; col< width; col++)
+			if (*p++ != pixel(0, col, row)) errors++;
+	for (int plane= 1; plane<= 2; plane++)
+		for (int row= 0; row< ch; row++)
+			for (int col= 0; col< cw; col++)
+				if (*p++ != pixel(plane, col, row)) errors++;
+
+	CHECK (errors== 0, "%dx%d, padding %d/%d, %s: %d wrong pixels", width, height,
+		yPadding, uvPadding, interleaved ? (vFirst ? "NV21" : "NV12") : "planar", errors);
+	CHECK (dst[size]== 0x55, "%dx%d: written past the packed image", width, height);
+}
+
+static void testPackPlane ()
+{
+	// returns the end of the written data
+	const unsigned char src[]= { 1, 0, 2, 0, 3, 9, 4, 0, 5, 0, 6 };
+	unsigned char dst[7]= { 0, 0, 0, 0, 0, 0, 0x55 };
+	unsigned char* end= packPlane(src, 3, 2, 6, 2, dst);
+	CHECK (end== dst + 6, "packPlane returned %d", (int) (end - dst));
+	for (int i= 0; i< 6; i++) CHECK (dst[i]== i + 1, "packPlane dst[%d]= %d", i, dst[i]);
+	CHECK (dst[6]== 0x55, "packPlane written past the end");
+}
+
+int main ()
+{
+	static const int SIZES[][2]= { { 352, 288 }, { 640, 480 }, { 2, 2 }, { 34, 6 } };
+
+	testPackPlane ();
+	for (unsigned int i= 0; i< sizeof(SIZES) / sizeof(SIZES[0]); i++) {
+		const int w= SIZES[i][0], h= SIZES[i][1];
+		testLayout (w, h, 0, 0, false, false);
+		testLayout (w, h, 13, 7, false, false);
+		testLayout (w, h, 0, 0, true, false);
+		testLayout (w, h, 64, 31, true, false);
+		testLayout (w, h, 64, 31, true, true);
+	}
+
+	if (g_failures) {
+		fprintf (stderr, "%d check(s) failed\n", g_failures);
+		return EXIT_FAILURE;
+	}
+	printf ("yuvpack_test: OK\n");
+	return EXIT_SUCCESS;
+}
@@ -0,0 +1,235 @@
+/*
+ * Enable Viacam for Android, a camera based mouse emulator
+ *
+ * Copyright (C) 2015-17 Cesar Mauri Loba (CREA Software Systems)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ * Offline evaluation of the face detector backends
+ *
+ * Runs each detector on a set of annotated images and reports precision,
+ * recall and the average detection time per frame. Built for the host
+ * (see Makefile) using the same detector code shipped in the app.
+ *
+ * Usage:
+ *   detector_eval <annotations> <type>:<cascade> [<type>:<cascade> ...]
+ *
+ *   annotations: text file with a line per image. Each line contains the
+ *     image path (relative to the annotations file) optionally followed
+ *     by the face bounding box "x y width height". Images without face
+ *     contain only the path. Lines starting with # are ignored.
+ *   type: haar or cascade_classifier (see FaceDetector::EType)
+ *   cascade: path of the cascade file (haar or LBP)
+ *
+ * Example:
+ *   detector_eval faces/annotations.txt haar:../../src/main/res/raw/haarcascade.xml \
+ *       cascade_classifier:../../src/main/res/raw/lbpcascade.xml
+ *
+ * A detection is correct when its intersection over union with the annotated
+ * face is at least MIN_OVERLAP. Images are processed at the capture size used
+ * by the app when larger than it.
+ */
+
+#include "facedetector.h"
+
+#include <opencv/highgui.h>
+#include <stdio.h>
+#include <string.h>
+#include <time.h>
+#include <algorithm>
+#include <string>
+#include <vector>
+
+using namespace eviacam;
+
+// minimum intersection over union for a detection to be correct
+#define MIN_OVERLAP 0.5f
+
+// maximum width of the processed images (capture width used by the app)
+#define MAX_IMAGE_WIDTH 352
+
+// minimum size of the faces to detect (same as FaceDetection)
+#define MIN_FACE_SIZE 65
+
+struct Sample {
+	std::string path;
+	bool hasFace;
+	CvRect face;
+};
+
+struct Result {
+	int truePositives;
+	int falsePositives;
+	int falseNegatives;
+	int frames;
+	double totalMs;
+};
+
+static
+double nowMs ()
+{
+	struct timespec ts;
+	clock_gettime(CLOCK_MONOTONIC, &ts);
+	return ts.tv_sec * 1000.0 + ts.tv_nsec / 1000000.0;
+}
+
+static
+float overlap (const CvRect& a, const CvRect& b)
+{
+	int x1= std::max(a.x, b.x), y1= std::max(a.y, b.y);
+	int x2= std::min(a.x + a.width, b.x + b.width);
+	int y2= std::min(a.y + a.height, b.y + b.height);
+	if (x2<= x1 || y2<= y1) return 0;
+
+	float intersection= (float) (x2 - x1) * (y2 - y1);
+	float unionArea= (float) a.width * a.height + (float) b.width * b.height - intersection;
+	return intersection / unionArea;
+}
+
+static
+bool loadAnnotations (const char* fileName, std::vector<Sample>& samples)
+{
+	FILE* f= fopen(fileName, "r");
+	if (f== NULL) return false;
+
+	// image paths are relative to the annotations file
+	std::string dir(fileName);
+	size_t slash= dir.find_last_of('/');
+	dir= (slash== std::string::npos)? "" : dir.substr(0, slash + 1);
+
+	char line[1024];
+	while (fgets(line, sizeof(line), f)) {
+		if (line[0]== '#') continue;
+
+		char path[1024];
+		Sample s;
+		int n= sscanf(line, "%1023s %d %d %d %d", path,
+			&s.face.x, &s.face.y, &s.face.width, &s.face.height);
+		if (n< 1) continue;
+
+		s.path= dir + path;
+		s.hasFace= (n== 5);
+		samples.push_back(s);
+	}
+
+	fclose(f);
+	return true;
+}
+
+static
+bool evaluate (FaceDetector& detector, const std::vector<Sample>& samples, Result& r)
+{
+	memset(&r, 0, sizeof(r));
+
+	for (size_t i= 0; i< samples.size(); i++) {
+		const Sample& s= samples[i];
+
+		IplImage* img= cvLoadImage(s.path.c_str(), CV_LOAD_IMAGE_GRAYSCALE);
+		if (img== NULL) {
+			fprintf(stderr, "cannot load image: %s\n", s.path.c_str());
+			return false;
+		}
+
+		// scale down to the size of the camera frames
+		float scale= 1.0f;
+		if (img->width> MAX_IMAGE_WIDTH) {
+			scale= (float) MAX_IMAGE_WIDTH / img->width;
+			IplImage* small= cvCreateImage(
+				cvSize(MAX_IMAGE_WIDTH, (int) (img->height * scale)), IPL_DEPTH_8U, 1);
+			cvResize(img, small, CV_INTER_AREA);
+			cvReleaseImage(&img);
+			img= small;
+		}
+
+		CvRect face;
+		double start= nowMs();
+		bool found= detector.detect(img, cvSize(MIN_FACE_SIZE, MIN_FACE_SIZE),
+			cvSize(0, 0), face);
+		r.totalMs+= nowMs() - start;
+		r.frames++;
+
+		cvReleaseImage(&img);
+
+		if (found) {
+			CvRect expected= cvRect(
+				(int) (s.face.x * scale), (int) (s.face.y * scale),
+				(int) (s.face.width * scale), (int) (s.face.height * scale));
+			if (s.hasFace && overlap(face, expected)>= MIN_OVERLAP) r.truePositives++;
+			else {
+				r.falsePositives++;
+				if (s.hasFace) r.falseNegatives++;
+			}
+		}
+		else if (s.hasFace) r.falseNegatives++;
+	}
+
+	return true;
+}
+
+int main (int argc, char* argv[])
+{
+	if (argc< 3) {
+		fprintf(stderr, "usage: %s <annotations> <type>:<cascade> [<type>:<cascade> ...]\n",
+			argv[0]);
+		return 1;
+	}
+
+	std::vector<Sample> samples;
+	if (!loadAnnotations(argv[1], samples)) {
+		fprintf(stderr, "cannot read annotations: %s\n", argv[1]);
+		return 1;
+	}
+
+	printf("%-20s %-40s %10s %10s %10s\n", "detector", "cascade", "precision", "recall",
+		"ms/frame");
+
+	for (int i= 2; i< argc; i++) {
+		std::string arg(argv[i]);
+		size_t colon= arg.find(':');
+		if (colon== std::string::npos) {
+			fprintf(stderr, "invalid detector specification: %s\n", argv[i]);
+			return 1;
+		}
+
+		std::string type= arg.substr(0, colon);
+		std::string cascade= arg.substr(colon + 1);
+
+		FaceDetector* detector= NULL;
+		if (type== "haar")
+			detector= FaceDetector::create(FaceDetector::HAAR, cascade.c_str());
+		else if (type== "cascade_classifier")
+			detector= FaceDetector::create(FaceDetector::CASCADE_CLASSIFIER, cascade.c_str());
+
+		if (detector== NULL) {
+			fprintf(stderr, "cannot create detector: %s\n", argv[i]);
+			return 1;
+		}
+
+		Result r;
+		bool ok= evaluate(*detector, samples, r);
+		delete detector;
+		if (!ok) return 1;
+
+		int detections= r.truePositives + r.falsePositives;
+		int faces= r.truePositives + r.falseNegatives;
+		printf("%-20s %-40s %10.3f %10.3f %10.2f\n", type.c_str(), cascade.c_str(),
+			detections? (float) r.truePositives / detections : 0.0f,
+			faces? (float) r.truePositives / faces : 0.0f,
+			r.frames? r.totalMs / r.frames : 0.0);
+	}
+
+	return 0;
+}
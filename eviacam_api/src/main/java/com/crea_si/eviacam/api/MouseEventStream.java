@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2015-17 Cesar Mauri Loba (CREA Software Systems)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.crea_si.eviacam.api;
+
+import android.os.ParcelFileDescriptor;
+import android.util.Log;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * High rate channel for pointer events
+ *
+ * Instead of one binder transaction (and one MotionEvent) for each event, the
+ * service writes compact samples to a pipe, all the samples generated for a
+ * frame in a single write. Each sample takes RECORD_SIZE bytes:
+ *
+ *   int  sequence number (consecutive, gaps mean lost samples)
+ *   int  action (MotionEvent.ACTION_*)
+ *   int  x
+ *   int  y
+ *   long event time (SystemClock.uptimeMillis() base)
+ *
+ * in native byte order. The service never blocks writing: when the pipe is
+ * full the batch is dropped and the client notices it by the sequence numbers.
+ *
+ * This class contains the format definition and the client side reader.
+ */
+public class MouseEventStream {
+    public static final int RECORD_SIZE= 24;
+
+    // writes up to this size are atomic for pipes, so samples are never split
+    public static final int MAX_BATCH_SIZE= 4096 / RECORD_SIZE * RECORD_SIZE;
+
+    private static final String TAG= "eviacam_api";
+
+    private final ParcelFileDescriptor mPfd;
+    private final MouseStreamListener mListener;
+    private final Thread mThread;
+    private volatile boolean mClosed= false;
+
+    /**
+     * Append a sample to a batch
+     */
+    public static void putSample(ByteBuffer b, int seq, int action, int x, int y, long time) {
+        b.putInt(seq);
+        b.putInt(action);
+        b.putInt(x);
+        b.putInt(y);
+        b.putLong(time);
+    }
+
+    MouseEventStream(ParcelFileDescriptor pfd, MouseStreamListener listener) {
+        if (pfd== null || listener== null) throw new NullPointerException();
+        mPfd= pfd;
+        mListener= listener;
+        mThread= new Thread(new Runnable() {
+            @Override
+            public void run() {
+                readLoop();
+            }
+        }, "MouseEventStream");
+        mThread.start();
+    }
+
+    /**
+     * Stop reading and release the pipe. The listener receives
+     * onMouseStreamClosed once the reading thread finishes.
+     */
+    void close() {
+        mClosed= true;
+        try {
+            mPfd.close();
+        } catch (IOException e) {
+            Log.d(TAG, "MouseEventStream.close: exception: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Read samples until the end of the stream
+     *
+     * Reads need not be aligned to records nor batches: an incomplete record
+     * is kept until the rest arrives.
+     *
+     * @param in stream of samples
+     * @param listener receives the samples and the gaps in the sequence
+     * @throws IOException on read error
+     */
+    static void readSamples(InputStream in, MouseStreamListener listener) throws IOException {
+        final byte[] buffer= new byte[MAX_BATCH_SIZE * 2];
+        final ByteBuffer bb= ByteBuffer.wrap(buffer).order(ByteOrder.nativeOrder());
+        int pending= 0;
+        int expectedSeq= 0;
+        boolean first= true;
+
+        for (;;) {
+            int n= in.read(buffer, pending, buffer.length - pending);
+            if (n < 0) break;
+            pending+= n;
+
+            int offset= 0;
+            while (pending - offset >= RECORD_SIZE) {
+                int seq= bb.getInt(offset);
+                int action= bb.getInt(offset + 4);
+                int x= bb.getInt(offset + 8);
+                int y= bb.getInt(offset + 12);
+                long time= bb.getLong(offset + 16);
+                offset+= RECORD_SIZE;
+
+                if (!first && seq != expectedSeq) {
+                    listener.onMouseSamplesLost(seq - expectedSeq);
+                }
+                first= false;
+                expectedSeq= seq + 1;
+
+                listener.onMouseSample(seq, action, x, y, time);
+            }
+
+            // keep the incomplete record, if any, at the beginning
+            System.arraycopy(buffer, offset, buffer, 0, pending - offset);
+            pending-= offset;
+        }
+    }
+
+    private void readLoop() {
+        final InputStream in= new FileInputStream(mPfd.getFileDescriptor());
+        try {
+            readSamples(in, mListener);
+        }
+        catch (IOException e) {
+            if (!mClosed) Log.d(TAG, "MouseEventStream: exception: " + e.getMessage());
+        }
+        finally {
+            // the descriptor belongs to mPfd, closing it is enough
+            try {
+                mPfd.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+
+        mListener.onMouseStreamClosed();
+    }
+}
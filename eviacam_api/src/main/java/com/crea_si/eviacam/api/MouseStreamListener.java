@@ -0,0 +1,46 @@
+/*
+ * Copyright (C) 2015-17 Cesar Mauri Loba (CREA Software Systems)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.crea_si.eviacam.api;
+
+/**
+ * Interface for receiving pointer samples through the mouse event stream
+ * (see SlaveMode.openMouseStream). Methods are called from a background thread.
+ */
+public interface MouseStreamListener {
+    /**
+     * Called for each pointer sample
+     *
+     * @param seq sequence number of the sample
+     * @param action MotionEvent.ACTION_MOVE, ACTION_DOWN or ACTION_UP
+     * @param x x coordinate in screen pixels
+     * @param y y coordinate in screen pixels
+     * @param eventTime time of the event in SystemClock.uptimeMillis() base
+     */
+    void onMouseSample(int seq, int action, int x, int y, long eventTime);
+
+    /**
+     * Called when samples have been dropped because the client did not
+     * read them fast enough
+     *
+     * @param count number of lost samples
+     */
+    void onMouseSamplesLost(int count);
+
+    /**
+     * Called when the stream has been closed by either side
+     */
+    void onMouseStreamClosed();
+}
@@ -20,6 +20,7 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.ServiceConnection;
 import android.os.IBinder;
+import android.os.ParcelFileDescriptor;
 import android.os.RemoteException;
 import android.util.Log;
 import android.view.MotionEvent;
@@ -64,6 +65,9 @@ public class SlaveMode implements ServiceConnection, IReadyEventListener {
     // binder (proxy) with the remote input method service
     private ISlaveMode mSlaveMode;
 
+    // reader of the mouse event stream, if open
+    private MouseEventStream mMouseEventStream;
+
     /**
      * Connect to the remote eviacam slave mode service
      * 
@@ -91,6 +95,7 @@ public class SlaveMode implements ServiceConnection, IReadyEventListener {
      * Disconnect from eviacam slave mode service
      */
     public void disconnect() {
+        closeMouseStream();
         mContext.unbindService(this);
         mSlaveMode = null;
     }
@@ -99,6 +104,14 @@ public class SlaveMode implements ServiceConnection, IReadyEventListener {
         mContext= c;
         mSlaveModeStatusListener = callback;
     }
+
+    /**
+     * Instance already connected to a service, e.g. a fake one
+     */
+    SlaveMode (Context c, SlaveModeStatusListener callback, ISlaveMode slaveMode) {
+        this(c, callback);
+        mSlaveMode= slaveMode;
+    }
     
     @Override
     public void onServiceConnected(ComponentName name, IBinder service) {
@@ -130,6 +143,10 @@ public class SlaveMode implements ServiceConnection, IReadyEventListener {
         // This is called when the connection with the service has been
         // unexpectedly disconnected -- that is, its process crashed.
         Log.d(TAG, "EViacam API:onServiceDisconnected");
+        if (mMouseEventStream!= null) {
+            mMouseEventStream.close();
+            mMouseEventStream= null;
+        }
         mContext.unbindService(this);
         mSlaveModeStatusListener.onDisconnected();
         mSlaveMode = null;
@@ -232,6 +249,74 @@ public class SlaveMode implements ServiceConnection, IReadyEventListener {
         }
     }
 
+    /**
+     * Open the high rate stream of mouse events
+     *
+     * Alternative to registerMouseListener for clients which need every pointer
+     * sample with low overhead: samples are delivered in batches through a pipe
+     * instead of one binder call per event. Only one stream can be open.
+     *
+     * @param listener the listener, called from a background thread
+     * @return true if the stream has been opened, false otherwise
+     */
+    public boolean openMouseStream(MouseStreamListener listener) {
+        if (mSlaveMode== null || mMouseEventStream!= null) return false;
+        try {
+            ParcelFileDescriptor pfd= mSlaveMode.openMouseEventStream();
+            if (pfd== null) return false;
+            mMouseEventStream= new MouseEventStream(pfd, listener);
+            return true;
+        } catch (RemoteException e) {
+            Log.d(TAG, "SlaveMode.openMouseStream: exception: " + e.getMessage());
+        }
+        return false;
+    }
+
+    /**
+     * Close the stream of mouse events (if any)
+     */
+    public void closeMouseStream() {
+        if (mMouseEventStream== null) return;
+        mMouseEventStream.close();
+        mMouseEventStream= null;
+        if (mSlaveMode== null) return;
+        try {
+            mSlaveMode.closeMouseEventStream();
+        } catch (RemoteException e) {
+            Log.d(TAG, "SlaveMode.closeMouseStream: exception: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Limit the rate of pointer move events sent to the mouse listener.
+     * Presses and releases are always delivered.
+     *
+     * @param eventsPerSecond maximum rate, 0 means no limit
+     */
+    public void setMouseEventRateLimit(int eventsPerSecond) {
+        if (mSlaveMode== null) return;
+        try {
+            mSlaveMode.setMouseEventRateLimit(eventsPerSecond);
+        } catch (RemoteException e) {
+            Log.d(TAG, "SlaveMode.setMouseEventRateLimit: exception: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Get delivery statistics of the registered listeners (for debugging)
+     *
+     * @return statistics, one line per listener, or null on error
+     */
+    public String getListenerStats() {
+        if (mSlaveMode== null) return null;
+        try {
+            return mSlaveMode.getListenerStats();
+        } catch (RemoteException e) {
+            Log.d(TAG, "SlaveMode.getListenerStats: exception: " + e.getMessage());
+        }
+        return null;
+    }
+
     /**
      * Register the listener for menu events
      *
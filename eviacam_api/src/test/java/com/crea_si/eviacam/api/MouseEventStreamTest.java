@@ -0,0 +1,200 @@
+/*
+ * Copyright (C) 2015-17 Cesar Mauri Loba (CREA Software Systems)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.crea_si.eviacam.api;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class MouseEventStreamTest {
+    private static class RecordingListener implements MouseStreamListener {
+        final List<long[]> samples= new ArrayList<>();
+        final List<Integer> lost= new ArrayList<>();
+        int closed;
+
+        @Override
+        public void onMouseSample(int seq, int action, int x, int y, long eventTime) {
+            samples.add(new long[] { seq, action, x, y, eventTime });
+        }
+
+        @Override
+        public void onMouseSamplesLost(int count) {
+            lost.add(count);
+        }
+
+        @Override
+        public void onMouseStreamClosed() {
+            closed++;
+        }
+    }
+
+    /* Returns the data in chunks of random size, as a pipe might */
+    private static class ChunkedInputStream extends InputStream {
+        private final byte[] mData;
+        private final Random mRandom;
+        private int mPos= 0;
+
+        ChunkedInputStream(byte[] data, long seed) {
+            mData= data;
+            mRandom= new Random(seed);
+        }
+
+        @Override
+        public int read() {
+            return mPos < mData.length ? mData[mPos++] & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (mPos >= mData.length) return -1;
+            int n= Math.min(Math.min(len, mData.length - mPos), 1 + mRandom.nextInt(100));
+            System.arraycopy(mData, mPos, b, off, n);
+            mPos+= n;
+            return n;
+        }
+    }
+
+    private static ByteBuffer newBatch() {
+        return ByteBuffer.allocate(MouseEventStream.MAX_BATCH_SIZE).order(ByteOrder.nativeOrder());
+    }
+
+    private static byte[] toBytes(ByteBuffer b) {
+        byte[] data= new byte[b.position()];
+        b.flip();
+        b.get(data);
+        return data;
+    }
+
+    @Test
+    public void batchSize() {
+        assertEquals(0, MouseEventStream.MAX_BATCH_SIZE % MouseEventStream.RECORD_SIZE);
+        // writes to a pipe up to PIPE_BUF (4096 at least) bytes are atomic
+        assertTrue(MouseEventStream.MAX_BATCH_SIZE <= 4096);
+        ByteBuffer b= newBatch();
+        MouseEventStream.putSample(b, 0, 0, 0, 0, 0);
+        assertEquals(MouseEventStream.RECORD_SIZE, b.position());
+    }
+
+    @Test
+    public void samplesSplitAcrossReads() throws IOException {
+        ByteBuffer b= newBatch();
+        for (int i= 0; i < 100 && b.remaining() >= MouseEventStream.RECORD_SIZE; i++) {
+            MouseEventStream.putSample(b, i, i % 3, -i, i * 2, 1000L * i + (1L << 40));
+        }
+        final int count= b.position() / MouseEventStream.RECORD_SIZE;
+        byte[] data= toBytes(b);
+
+        for (long seed= 0; seed < 20; seed++) {
+            RecordingListener l= new RecordingListener();
+            MouseEventStream.readSamples(new ChunkedInputStream(data, seed), l);
+
+            assertEquals(count, l.samples.size());
+            assertTrue(l.lost.isEmpty());
+            for (int i= 0; i < count; i++) {
+                long[] s= l.samples.get(i);
+                assertEquals(i, s[0]);
+                assertEquals(i % 3, s[1]);
+                assertEquals(-i, s[2]);
+                assertEquals(i * 2, s[3]);
+                assertEquals(1000L * i + (1L << 40), s[4]);
+            }
+        }
+    }
+
+    @Test
+    public void gapsAreReported() throws IOException {
+        ByteBuffer b= newBatch();
+        // first sequence number need not be 0
+        MouseEventStream.putSample(b, 5, 0, 0, 0, 0);
+        MouseEventStream.putSample(b, 6, 0, 0, 0, 0);
+        // a dropped batch of 3 samples
+        MouseEventStream.putSample(b, 10, 0, 0, 0, 0);
+        MouseEventStream.putSample(b, 11, 0, 0, 0, 0);
+        // a trailing partial record is ignored
+        b.putInt(12);
+
+        RecordingListener l= new RecordingListener();
+        MouseEventStream.readSamples(new ByteArrayInputStream(toBytes(b)), l);
+
+        assertEquals(4, l.samples.size());
+        assertEquals(1, l.lost.size());
+        assertEquals(3, (int) l.lost.get(0));
+    }
+
+    @Test
+    public void loopback() throws Exception {
+        final PipedInputStream in= new PipedInputStream(MouseEventStream.MAX_BATCH_SIZE * 4);
+        final PipedOutputStream out= new PipedOutputStream(in);
+        // the last batch is not dropped, otherwise the gap could not be noticed
+        final int frames= 550;
+
+        Thread writer= new Thread(new Runnable() {
+            @Override
+            public void run() {
+                ByteBuffer b= newBatch();
+                int seq= 0;
+                try {
+                    for (int f= 0; f < frames; f++) {
+                        // a few samples per frame, every frame in a single write
+                        b.clear();
+                        for (int i= 0; i <= f % 4; i++) {
+                            MouseEventStream.putSample(b, seq, 2, f, i, f);
+                            seq++;
+                        }
+                        // emulate a batch dropped by the service
+                        if (f % 100 == 99) continue;
+                        out.write(b.array(), 0, b.position());
+                    }
+                    out.close();
+                }
+                catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        });
+        writer.start();
+
+        RecordingListener l= new RecordingListener();
+        MouseEventStream.readSamples(in, l);
+        writer.join(5000);
+
+        int expected= 0, dropped= 0;
+        for (int f= 0; f < frames; f++) {
+            if (f % 100 == 99) dropped+= f % 4 + 1;
+            else expected+= f % 4 + 1;
+        }
+        assertEquals(expected, l.samples.size());
+        int lost= 0;
+        for (int c : l.lost) lost+= c;
+        assertEquals(dropped, lost);
+        // in order
+        for (int i= 1; i < l.samples.size(); i++) {
+            assertTrue(l.samples.get(i)[0] > l.samples.get(i - 1)[0]);
+        }
+    }
+}
@@ -0,0 +1,234 @@
+/*
+ * Copyright (C) 2015-17 Cesar Mauri Loba (CREA Software Systems)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.crea_si.eviacam.api;
+
+import android.os.IBinder;
+import android.os.ParcelFileDescriptor;
+import android.os.RemoteException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SlaveModeTest {
+    private static final long TIMEOUT_MS= 5000;
+
+    /* Read side of the stream backed by a file, delivers its contents and then the end */
+    private static class FilePfd extends ParcelFileDescriptor {
+        private final FileInputStream mIn;
+        volatile boolean closed;
+
+        FilePfd(File file) throws IOException {
+            super((ParcelFileDescriptor) null);
+            mIn= new FileInputStream(file);
+        }
+
+        @Override
+        public FileDescriptor getFileDescriptor() {
+            try {
+                return mIn.getFD();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            closed= true;
+            mIn.close();
+        }
+    }
+
+    /* Service which only implements the mouse event stream */
+    private static class FakeSlaveMode implements ISlaveMode {
+        File streamFile;
+        boolean fail;
+        final List<FilePfd> opened= new ArrayList<>();
+        int closeCalls;
+
+        @Override
+        public ParcelFileDescriptor openMouseEventStream() throws RemoteException {
+            if (fail) throw new RemoteException();
+            if (streamFile == null) return null;
+            try {
+                FilePfd pfd= new FilePfd(streamFile);
+                opened.add(pfd);
+                return pfd;
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        @Override
+        public void closeMouseEventStream() throws RemoteException {
+            if (fail) throw new RemoteException();
+            closeCalls++;
+        }
+
+        @Override public void init(IReadyEventListener listener) { }
+        @Override public boolean start() { return true; }
+        @Override public void stop() { }
+        @Override public void setOperationMode(int mode) { }
+        @Override public boolean registerGamepadListener(IGamepadEventListener l) { return false; }
+        @Override public void unregisterGamepadListener() { }
+        @Override public boolean registerMouseListener(IMouseEventListener l) { return false; }
+        @Override public void unregisterMouseListener() { }
+        @Override public boolean registerDockPanelListener(IDockPanelEventListener l) { return false; }
+        @Override public void unregisterDockPanelListener() { }
+        @Override public void setMouseEventRateLimit(int eventsPerSecond) { }
+        @Override public String getListenerStats() { return ""; }
+        @Override public IBinder asBinder() { return null; }
+    }
+
+    private static class RecordingListener implements MouseStreamListener {
+        final List<long[]> samples= new ArrayList<>();
+        final List<Integer> lost= new ArrayList<>();
+        final CountDownLatch closed= new CountDownLatch(1);
+
+        @Override
+        public synchronized void onMouseSample(int seq, int action, int x, int y, long eventTime) {
+            samples.add(new long[] { seq, action, x, y, eventTime });
+        }
+
+        @Override
+        public synchronized void onMouseSamplesLost(int count) {
+            lost.add(count);
+        }
+
+        @Override
+        public void onMouseStreamClosed() {
+            closed.countDown();
+        }
+    }
+
+    private File mFile;
+    private FakeSlaveMode mService;
+    private SlaveMode mSlaveMode;
+
+    @Before
+    public void setUp() throws IOException {
+        mFile= File.createTempFile("mouse_stream", ".bin");
+        mService= new FakeSlaveMode();
+        mSlaveMode= new SlaveMode(null, null, mService);
+    }
+
+    @After
+    public void tearDown() {
+        mFile.delete();
+    }
+
+    /* Samples 0..count-1 with a gap of lost ones after the first half */
+    private void writeSamples(int count, int lost) throws IOException {
+        ByteBuffer b= ByteBuffer.allocate((count + 1) * MouseEventStream.RECORD_SIZE)
+                .order(ByteOrder.nativeOrder());
+        for (int i= 0; i < count; i++) {
+            int seq= i < count / 2 ? i : i + lost;
+            MouseEventStream.putSample(b, seq, i % 3, i, -i, 1000L + i);
+        }
+        FileOutputStream out= new FileOutputStream(mFile);
+        out.write(b.array(), 0, b.position());
+        out.close();
+    }
+
+    @Test
+    public void samplesAreDelivered() throws Exception {
+        writeSamples(500, 7);
+        mService.streamFile= mFile;
+        RecordingListener l= new RecordingListener();
+
+        assertTrue(mSlaveMode.openMouseStream(l));
+        assertTrue(l.closed.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+
+        synchronized (l) {
+            assertEquals(500, l.samples.size());
+            for (int i= 0; i < 500; i++) {
+                long[] s= l.samples.get(i);
+                assertEquals(i < 250 ? i : i + 7, s[0]);
+                assertEquals(i % 3, s[1]);
+                assertEquals(i, s[2]);
+                assertEquals(-i, s[3]);
+                assertEquals(1000L + i, s[4]);
+            }
+            assertEquals(1, l.lost.size());
+            assertEquals(7, (int) l.lost.get(0));
+        }
+        // the reader releases the descriptor at the end of the stream
+        assertTrue(mService.opened.get(0).closed);
+    }
+
+    @Test
+    public void onlyOneStreamAtATime() throws Exception {
+        writeSamples(10, 0);
+        mService.streamFile= mFile;
+        RecordingListener l= new RecordingListener();
+        assertTrue(mSlaveMode.openMouseStream(l));
+        assertFalse(mSlaveMode.openMouseStream(new RecordingListener()));
+        assertEquals(1, mService.opened.size());
+        assertTrue(l.closed.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+
+        // until closed, also on the service side
+        mSlaveMode.closeMouseStream();
+        assertEquals(1, mService.closeCalls);
+        mSlaveMode.closeMouseStream();
+        assertEquals(1, mService.closeCalls);
+
+        RecordingListener l2= new RecordingListener();
+        assertTrue(mSlaveMode.openMouseStream(l2));
+        assertTrue(l2.closed.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        assertEquals(10, l2.samples.size());
+    }
+
+    @Test
+    public void failuresAreReported() throws Exception {
+        // not connected
+        SlaveMode disconnected= new SlaveMode(null, null, null);
+        assertFalse(disconnected.openMouseStream(new RecordingListener()));
+
+        // the service cannot open the stream
+        assertFalse(mSlaveMode.openMouseStream(new RecordingListener()));
+
+        // the service is gone
+        mService.fail= true;
+        mService.streamFile= mFile;
+        assertFalse(mSlaveMode.openMouseStream(new RecordingListener()));
+        assertTrue(mService.opened.isEmpty());
+
+        // none of them leaves a stream open
+        mService.fail= false;
+        mSlaveMode.closeMouseStream();
+        assertEquals(0, mService.closeCalls);
+        writeSamples(1, 0);
+        RecordingListener l= new RecordingListener();
+        assertTrue(mSlaveMode.openMouseStream(l));
+        assertTrue(l.closed.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+    }
+}
@@ -0,0 +1,291 @@
+/*
+ * Copyright (C) 2015-17 Cesar Mauri Loba (CREA Software Systems)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.crea_si.input_method_aidl;
+
+import android.util.Log;
+import android.view.MotionEvent;
+
+/**
+ * Builds the MotionEvents of synthetic gestures
+ *
+ * Keeps track of the state of the gesture (pointers down and down time) so that the
+ * generated events form a valid sequence: DOWN, MOVE*, (POINTER_DOWN, MOVE*, POINTER_UP)*,
+ * UP or CANCEL. Requests that would break the sequence (e.g. UP without DOWN) are
+ * logged and dropped: they return null and leave the state untouched, so that a
+ * glitch in the caller never throws on its thread. Event times going backwards are
+ * replaced by the time of the last event. Moves are also accepted when no pointer is
+ * down (i.e. a pointer that is not pressed), in this case the down time is the event
+ * time.
+ *
+ * Events are taken from the MotionEvent pool and the pointer arrays are reused, so a
+ * steady stream of events does not allocate provided that each event is recycled once
+ * consumed.
+ *
+ * Not thread safe, use one instance per event source.
+ */
+public class MotionEventFactory {
+    private static final String TAG = "MotionEventFactory";
+
+    // maximum number of simultaneous pointers
+    public static final int MAX_POINTERS= 4;
+
+    private final int mSource;
+    private final float mPressure;
+
+    // state of the pointers currently down, by index
+    private final MotionEvent.PointerProperties[] mProperties=
+            new MotionEvent.PointerProperties[MAX_POINTERS];
+    private final MotionEvent.PointerCoords[] mCoords= new MotionEvent.PointerCoords[MAX_POINTERS];
+    private int mPointerCount= 0;
+
+    private long mDownTime= 0;
+    private long mLastEventTime= 0;
+
+    // requests dropped because they would break the sequence
+    private int mDroppedEvents= 0;
+
+    /**
+     * Constructor
+     *
+     * @param source source of the events (see InputDevice)
+     * @param pressure pressure reported for the pointers
+     */
+    public MotionEventFactory(int source, float pressure) {
+        mSource= source;
+        mPressure= pressure;
+        for (int i= 0; i< MAX_POINTERS; i++) {
+            mProperties[i]= new MotionEvent.PointerProperties();
+            mCoords[i]= new MotionEvent.PointerCoords();
+        }
+    }
+
+    /**
+     * @return true if a gesture is in progress (at least one pointer down)
+     */
+    public boolean isDown() {
+        return mPointerCount> 0;
+    }
+
+    /**
+     * @return number of pointers down
+     */
+    public int getPointerCount() {
+        return mPointerCount;
+    }
+
+    /**
+     * @return number of requests dropped because they would break the sequence
+     */
+    public int getDroppedEvents() {
+        return mDroppedEvents;
+    }
+
+    /**
+     * Start a gesture
+     *
+     * @return the event or null if a gesture is in progress
+     */
+    public MotionEvent obtainDown(long eventTime, float x, float y) {
+        if (mPointerCount!= 0) return drop("DOWN while a gesture is in progress");
+        eventTime= checkTime(eventTime);
+        mDownTime= eventTime;
+        setPointer(0, 0, x, y);
+        mPointerCount= 1;
+        return obtain(mDownTime, eventTime, MotionEvent.ACTION_DOWN);
+    }
+
+    /**
+     * Move the first pointer (or the pointer not pressed when no gesture in progress)
+     *
+     * @return the event (never null)
+     */
+    public MotionEvent obtainMove(long eventTime, float x, float y) {
+        return obtainMove(eventTime, mPointerCount> 0? mProperties[0].id : 0, x, y);
+    }
+
+    /**
+     * Move a pointer, the rest keep their last location
+     *
+     * @param pointerId id of the pointer (see MotionEvent.getPointerId)
+     * @return the event or null if the pointer is not down
+     */
+    public MotionEvent obtainMove(long eventTime, int pointerId, float x, float y) {
+        if (mPointerCount== 0) {
+            if (pointerId!= 0) return drop("MOVE of pointer " + pointerId + " which is not down");
+            eventTime= checkTime(eventTime);
+            setPointer(0, 0, x, y);
+            mPointerCount= 1;
+            MotionEvent e= obtain(eventTime, eventTime, MotionEvent.ACTION_MOVE);
+            mPointerCount= 0;
+            return e;
+        }
+
+        int index= indexOf(pointerId);
+        if (index< 0) return drop("MOVE of pointer " + pointerId + " which is not down");
+        eventTime= checkTime(eventTime);
+        mCoords[index].x= x;
+        mCoords[index].y= y;
+        return obtain(mDownTime, eventTime, MotionEvent.ACTION_MOVE);
+    }
+
+    /**
+     * Finish the gesture, only the last pointer can be still down
+     *
+     * @return the event or null if not exactly one pointer is down
+     */
+    public MotionEvent obtainUp(long eventTime, float x, float y) {
+        if (mPointerCount!= 1) {
+            return drop(mPointerCount== 0?
+                    "UP without DOWN" : "UP while " + mPointerCount + " pointers are down");
+        }
+        eventTime= checkTime(eventTime);
+        mCoords[0].x= x;
+        mCoords[0].y= y;
+        MotionEvent e= obtain(mDownTime, eventTime, MotionEvent.ACTION_UP);
+        mPointerCount= 0;
+        return e;
+    }
+
+    /**
+     * Put down an additional pointer (e.g. the second finger of a zoom gesture). The id
+     * assigned to the new pointer can be obtained with e.getPointerId(e.getActionIndex())
+     *
+     * @return the event or null if no gesture in progress or too many pointers
+     */
+    public MotionEvent obtainPointerDown(long eventTime, float x, float y) {
+        if (mPointerCount== 0) return drop("POINTER_DOWN without DOWN");
+        if (mPointerCount== MAX_POINTERS) return drop("Too many pointers");
+        eventTime= checkTime(eventTime);
+
+        final int index= mPointerCount;
+        setPointer(index, unusedId(), x, y);
+        mPointerCount++;
+        return obtain(mDownTime, eventTime, MotionEvent.ACTION_POINTER_DOWN |
+                (index << MotionEvent.ACTION_POINTER_INDEX_SHIFT));
+    }
+
+    /**
+     * Lift a pointer while others remain down
+     *
+     * @param pointerId id of the pointer (see MotionEvent.getPointerId)
+     * @return the event or null if less than two pointers or the pointer is not down
+     */
+    public MotionEvent obtainPointerUp(long eventTime, int pointerId) {
+        if (mPointerCount< 2) return drop("POINTER_UP needs at least two pointers down");
+        final int index= indexOf(pointerId);
+        if (index< 0) return drop("POINTER_UP of pointer " + pointerId + " which is not down");
+        eventTime= checkTime(eventTime);
+        MotionEvent e= obtain(mDownTime, eventTime, MotionEvent.ACTION_POINTER_UP |
+                (index << MotionEvent.ACTION_POINTER_INDEX_SHIFT));
+
+        // Remove the pointer keeping the order of the rest
+        MotionEvent.PointerProperties p= mProperties[index];
+        MotionEvent.PointerCoords c= mCoords[index];
+        for (int i= index; i< mPointerCount - 1; i++) {
+            mProperties[i]= mProperties[i + 1];
+            mCoords[i]= mCoords[i + 1];
+        }
+        mProperties[mPointerCount - 1]= p;
+        mCoords[mPointerCount - 1]= c;
+        mPointerCount--;
+
+        return e;
+    }
+
+    /**
+     * Abort the gesture in progress
+     *
+     * @return the event or null if no gesture in progress
+     */
+    public MotionEvent obtainCancel(long eventTime) {
+        if (mPointerCount== 0) return drop("CANCEL without DOWN");
+        eventTime= checkTime(eventTime);
+        MotionEvent e= obtain(mDownTime, eventTime, MotionEvent.ACTION_CANCEL);
+        mPointerCount= 0;
+        return e;
+    }
+
+    /**
+     * Forget the gesture in progress (if any) without generating events
+     */
+    public void reset() {
+        mPointerCount= 0;
+    }
+
+    private long checkTime(long eventTime) {
+        if (eventTime< mLastEventTime) {
+            Log.w(TAG, "Event time going backwards: " + eventTime + " < " + mLastEventTime);
+            return mLastEventTime;
+        }
+        return eventTime;
+    }
+
+    private MotionEvent drop(String reason) {
+        mDroppedEvents++;
+        Log.w(TAG, "Event dropped: " + reason);
+        return null;
+    }
+
+    private void setPointer(int index, int id, float x, float y) {
+        MotionEvent.PointerProperties p= mProperties[index];
+        p.clear();
+        p.id= id;
+        MotionEvent.PointerCoords c= mCoords[index];
+        c.clear();
+        c.x= x;
+        c.y= y;
+        c.pressure= mPressure;
+        c.size= 1.0f;
+    }
+
+    private int indexOf(int pointerId) {
+        for (int i= 0; i< mPointerCount; i++) {
+            if (mProperties[i].id== pointerId) return i;
+        }
+        return -1;
+    }
+
+    // lowest id not in use
+    private int unusedId() {
+        int id= 0;
+        for (int i= 0; i< mPointerCount; i++) {
+            if (mProperties[i].id== id) {
+                id++;
+                i= -1;
+            }
+        }
+        return id;
+    }
+
+    private MotionEvent obtain(long downTime, long eventTime, int action) {
+        mLastEventTime= eventTime;
+        return newEvent(downTime, eventTime, action, mPointerCount, mProperties, mCoords);
+    }
+
+    /**
+     * Create the event from the current state of the pointers. The arrays are owned by
+     * the factory and reused for every event, their contents are copied by
+     * MotionEvent.obtain. Can be overridden to replace the MotionEvent pool (e.g. in
+     * host tests).
+     */
+    protected MotionEvent newEvent(long downTime, long eventTime, int action,
+                                   int pointerCount,
+                                   MotionEvent.PointerProperties[] properties,
+                                   MotionEvent.PointerCoords[] coords) {
+        return MotionEvent.obtain(downTime, eventTime, action, pointerCount,
+                properties, coords, 0, 0, 1.0f, 1.0f, 0, 0, mSource, 0);
+    }
+}
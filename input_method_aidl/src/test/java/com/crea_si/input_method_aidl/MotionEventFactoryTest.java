@@ -0,0 +1,164 @@
+/*
+ * Copyright (C) 2015-17 Cesar Mauri Loba (CREA Software Systems)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.crea_si.input_method_aidl;
+
+import android.view.MotionEvent;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class MotionEventFactoryTest {
+    /**
+     * Records the events instead of creating them (MotionEvent.obtain is native)
+     */
+    private static class RecordingFactory extends MotionEventFactory {
+        final List<String> events= new ArrayList<>();
+
+        RecordingFactory() {
+            super(0, 1.0f);
+        }
+
+        @Override
+        protected MotionEvent newEvent(long downTime, long eventTime, int action,
+                                       int pointerCount,
+                                       MotionEvent.PointerProperties[] properties,
+                                       MotionEvent.PointerCoords[] coords) {
+            events.add(event(action & MotionEvent.ACTION_MASK, pointerCount,
+                    downTime, eventTime));
+            return null;
+        }
+    }
+
+    private static String event(int action, int pointers, long downTime, long eventTime) {
+        return action + " n=" + pointers + " down=" + downTime + " t=" + eventTime;
+    }
+
+    private static final int DOWN= MotionEvent.ACTION_DOWN;
+    private static final int UP= MotionEvent.ACTION_UP;
+    private static final int MOVE= MotionEvent.ACTION_MOVE;
+    private static final int CANCEL= MotionEvent.ACTION_CANCEL;
+    private static final int POINTER_DOWN= MotionEvent.ACTION_POINTER_DOWN;
+    private static final int POINTER_UP= MotionEvent.ACTION_POINTER_UP;
+
+    private RecordingFactory mFactory;
+
+    @Before
+    public void setUp() {
+        mFactory= new RecordingFactory();
+    }
+
+    private void assertEvents(String... expected) {
+        assertEquals(Arrays.asList(expected), mFactory.events);
+        mFactory.events.clear();
+    }
+
+    @Test
+    public void clickKeepsDownTime() {
+        mFactory.obtainMove(5, 1, 1);
+        mFactory.obtainDown(10, 1, 1);
+        mFactory.obtainMove(20, 2, 2);
+        mFactory.obtainUp(30, 2, 2);
+        assertFalse(mFactory.isDown());
+        assertEvents(event(MOVE, 1, 5, 5),
+                event(DOWN, 1, 10, 10),
+                event(MOVE, 1, 10, 20),
+                event(UP, 1, 10, 30));
+        assertEquals(0, mFactory.getDroppedEvents());
+    }
+
+    @Test
+    public void secondPointer() {
+        mFactory.obtainDown(10, 1, 1);
+        mFactory.obtainPointerDown(20, 5, 5);
+        assertEquals(2, mFactory.getPointerCount());
+        mFactory.obtainMove(30, 1, 6, 6);
+        mFactory.obtainPointerUp(40, 1);
+        mFactory.obtainUp(50, 1, 1);
+        assertEvents(event(DOWN, 1, 10, 10),
+                event(POINTER_DOWN, 2, 10, 20),
+                event(MOVE, 2, 10, 30),
+                event(POINTER_UP, 2, 10, 40),
+                event(UP, 1, 10, 50));
+        assertEquals(0, mFactory.getDroppedEvents());
+    }
+
+    @Test
+    public void invalidSequencesAreDropped() {
+        assertNull(mFactory.obtainUp(10, 1, 1));
+        assertNull(mFactory.obtainCancel(10));
+        assertNull(mFactory.obtainPointerDown(10, 1, 1));
+        assertNull(mFactory.obtainMove(10, 3, 1, 1));
+        assertEvents();
+        assertEquals(4, mFactory.getDroppedEvents());
+        assertFalse(mFactory.isDown());
+
+        mFactory.obtainDown(20, 1, 1);
+        assertNull(mFactory.obtainDown(30, 1, 1));
+        assertNull(mFactory.obtainPointerUp(30, 0));
+        mFactory.obtainPointerDown(40, 2, 2);
+        assertNull(mFactory.obtainPointerUp(50, 7));
+        assertNull(mFactory.obtainUp(50, 1, 1));
+        assertEquals(8, mFactory.getDroppedEvents());
+
+        // the gesture in progress is not affected
+        assertEquals(2, mFactory.getPointerCount());
+        mFactory.obtainCancel(60);
+        assertFalse(mFactory.isDown());
+        assertEvents(event(DOWN, 1, 20, 20),
+                event(POINTER_DOWN, 2, 20, 40),
+                event(CANCEL, 2, 20, 60));
+    }
+
+    @Test
+    public void tooManyPointersAreDropped() {
+        mFactory.obtainDown(10, 1, 1);
+        for (int i= 1; i < MotionEventFactory.MAX_POINTERS; i++) {
+            mFactory.obtainPointerDown(10, i, i);
+        }
+        assertNull(mFactory.obtainPointerDown(10, 9, 9));
+        assertEquals(1, mFactory.getDroppedEvents());
+        assertEquals(MotionEventFactory.MAX_POINTERS, mFactory.getPointerCount());
+    }
+
+    @Test
+    public void timeGoingBackwardsIsClamped() {
+        mFactory.obtainDown(100, 1, 1);
+        mFactory.obtainMove(90, 2, 2);
+        mFactory.obtainUp(95, 2, 2);
+        assertTrue(mFactory.events.get(1).endsWith("t=100"));
+        assertTrue(mFactory.events.get(2).endsWith("t=100"));
+        assertEquals(0, mFactory.getDroppedEvents());
+    }
+
+    @Test
+    public void resetForgetsGesture() {
+        mFactory.obtainDown(10, 1, 1);
+        mFactory.reset();
+        assertNull(mFactory.obtainUp(20, 1, 1));
+        mFactory.obtainDown(30, 1, 1);
+        assertEquals(1, mFactory.getDroppedEvents());
+        assertTrue(mFactory.isDown());
+    }
+}
@@ -0,0 +1,262 @@
+/*
+ * Copyright (C) 2015-17 Cesar Mauri Loba (CREA Software Systems)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.crea_si.softkeyboard;
+
+import android.content.res.AssetFileDescriptor;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.PriorityQueue;
+
+/**
+ * Read only dictionary in the compact binary format written by DictionaryWriter
+ *
+ * The file is memory mapped and queried in place, so opening a large dictionary
+ * is immediate and does not use heap memory.
+ *
+ * Format (big endian):
+ *   header: int magic, int version, int bigram table offset, int bigram count
+ *   node:   int parent offset, char label, byte frequency (0 if not a word),
+ *           byte maximum frequency of the subtree, char number of children,
+ *           int[] offsets of the children sorted by label
+ *   bigram table entry: int word node, int list offset, int list size (sorted by word node)
+ *   bigram list item:   int next word node, byte frequency
+ *
+ * Frequencies are in the range 1..255.
+ */
+class BinaryDictionary {
+    static final int MAGIC = 0x45564443;
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 16;
+    static final int NODE_SIZE = 10;
+    static final int BIGRAM_ENTRY_SIZE = 12;
+    static final int BIGRAM_ITEM_SIZE = 5;
+    static final int MAX_FREQUENCY = 255;
+
+    // root node is just after the header
+    private static final int ROOT = HEADER_SIZE;
+
+    // flag of the entries of the search queue which are complete words
+    private static final long WORD_FLAG = 1L << 32;
+
+    interface WordCallback {
+        void onWord(String word, int frequency);
+    }
+
+    interface Visitor extends WordCallback {
+        void onBigram(String first, String second, int frequency);
+    }
+
+    private final ByteBuffer mBuffer;
+    private final int mBigramTable;
+    private final int mBigramCount;
+
+    BinaryDictionary(ByteBuffer buffer) throws IOException {
+        if (buffer.capacity() < HEADER_SIZE + NODE_SIZE || buffer.getInt(0) != MAGIC) {
+            throw new IOException("Not a dictionary");
+        }
+        if (buffer.getInt(4) != VERSION) {
+            throw new IOException("Unsupported dictionary version " + buffer.getInt(4));
+        }
+        mBuffer = buffer;
+        mBigramTable = buffer.getInt(8);
+        mBigramCount = buffer.getInt(12);
+    }
+
+    /**
+     * Map a dictionary file
+     */
+    static BinaryDictionary open(File file) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            FileChannel channel = in.getChannel();
+            // the mapping stays valid once the channel is closed
+            return new BinaryDictionary(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Map a dictionary stored uncompressed in the assets
+     */
+    static BinaryDictionary open(AssetFileDescriptor afd) throws IOException {
+        FileInputStream in = new FileInputStream(afd.getFileDescriptor());
+        try {
+            return new BinaryDictionary(in.getChannel().map(FileChannel.MapMode.READ_ONLY,
+                    afd.getStartOffset(), afd.getLength()));
+        } finally {
+            in.close();
+            afd.close();
+        }
+    }
+
+    /**
+     * @return frequency of the word or 0 if not in the dictionary
+     */
+    int getFrequency(CharSequence word) {
+        int node = findNode(word);
+        return (node < 0 ? 0 : frequency(node));
+    }
+
+    /**
+     * Find the most frequent words starting with a prefix, in descending order of frequency
+     *
+     * @param prefix prefix, the word itself is included when in the dictionary
+     * @param max maximum number of words
+     * @param callback receives the words
+     */
+    void getCompletions(CharSequence prefix, int max, WordCallback callback) {
+        final int start = findNode(prefix);
+        if (start < 0 || max <= 0) return;
+
+        // Best first search, the maximum frequency of a subtree bounds all its words
+        PriorityQueue<Long> queue = new PriorityQueue<>(16, Collections.<Long>reverseOrder());
+        queue.add(entry(maxFrequency(start), false, start));
+        int found = 0;
+        while (found < max && !queue.isEmpty()) {
+            final long e = queue.poll();
+            final int node = (int) e;
+            if ((e & WORD_FLAG) != 0) {
+                callback.onWord(getWord(node), frequency(node));
+                found++;
+                continue;
+            }
+            if (frequency(node) > 0) queue.add(entry(frequency(node), true, node));
+            for (int i = 0, n = childCount(node); i < n; i++) {
+                final int child = child(node, i);
+                queue.add(entry(maxFrequency(child), false, child));
+            }
+        }
+    }
+
+    /**
+     * Get the words which usually follow a given one
+     */
+    void getBigrams(CharSequence word, WordCallback callback) {
+        if (mBigramCount == 0) return;
+        final int node = findNode(word);
+        if (node < 0) return;
+
+        int lo = 0, hi = mBigramCount - 1;
+        while (lo <= hi) {
+            final int mid = (lo + hi) >>> 1;
+            final int entry = mBigramTable + mid * BIGRAM_ENTRY_SIZE;
+            final int first = mBuffer.getInt(entry);
+            if (first < node) lo = mid + 1;
+            else if (first > node) hi = mid - 1;
+            else {
+                final int list = mBuffer.getInt(entry + 4);
+                final int size = mBuffer.getInt(entry + 8);
+                for (int i = 0; i < size; i++) {
+                    final int item = list + i * BIGRAM_ITEM_SIZE;
+                    callback.onWord(getWord(mBuffer.getInt(item)), mBuffer.get(item + 4) & 0xFF);
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * Enumerate all the words and bigrams
+     */
+    void forEach(Visitor visitor) {
+        ArrayDeque<Integer> stack = new ArrayDeque<>();
+        stack.push(ROOT);
+        while (!stack.isEmpty()) {
+            final int node = stack.pop();
+            if (frequency(node) > 0) visitor.onWord(getWord(node), frequency(node));
+            for (int i = 0, n = childCount(node); i < n; i++) stack.push(child(node, i));
+        }
+
+        for (int b = 0; b < mBigramCount; b++) {
+            final int entry = mBigramTable + b * BIGRAM_ENTRY_SIZE;
+            final String first = getWord(mBuffer.getInt(entry));
+            final int list = mBuffer.getInt(entry + 4);
+            final int size = mBuffer.getInt(entry + 8);
+            for (int i = 0; i < size; i++) {
+                final int item = list + i * BIGRAM_ITEM_SIZE;
+                visitor.onBigram(first, getWord(mBuffer.getInt(item)), mBuffer.get(item + 4) & 0xFF);
+            }
+        }
+    }
+
+    private int findNode(CharSequence word) {
+        int node = ROOT;
+        for (int i = 0; i < word.length() && node >= 0; i++) {
+            node = findChild(node, word.charAt(i));
+        }
+        return node;
+    }
+
+    private int findChild(int node, char c) {
+        int lo = 0, hi = childCount(node) - 1;
+        while (lo <= hi) {
+            final int mid = (lo + hi) >>> 1;
+            final int child = child(node, mid);
+            final char label = label(child);
+            if (label < c) lo = mid + 1;
+            else if (label > c) hi = mid - 1;
+            else return child;
+        }
+        return -1;
+    }
+
+    private String getWord(int node) {
+        StringBuilder sb = new StringBuilder();
+        while (node > ROOT) {
+            sb.append(label(node));
+            final int parent = parent(node);
+            // parents are always stored before their children
+            if (parent >= node) throw new IllegalStateException("Corrupted dictionary");
+            node = parent;
+        }
+        return sb.reverse().toString();
+    }
+
+    private int parent(int node) {
+        return mBuffer.getInt(node);
+    }
+
+    private char label(int node) {
+        return mBuffer.getChar(node + 4);
+    }
+
+    private int frequency(int node) {
+        return mBuffer.get(node + 6) & 0xFF;
+    }
+
+    private int maxFrequency(int node) {
+        return mBuffer.get(node + 7) & 0xFF;
+    }
+
+    private int childCount(int node) {
+        return mBuffer.getChar(node + 8);
+    }
+
+    private int child(int node, int i) {
+        return mBuffer.getInt(node + NODE_SIZE + 4 * i);
+    }
+
+    private static long entry(int priority, boolean word, int node) {
+        return ((long) priority << 33) | (word ? WORD_FLAG : 0) | node;
+    }
+}
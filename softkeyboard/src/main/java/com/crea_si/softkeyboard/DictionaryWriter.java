@@ -0,0 +1,234 @@
+/*
+ * Copyright (C) 2015-17 Cesar Mauri Loba (CREA Software Systems)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.crea_si.softkeyboard;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Builds dictionaries in the format read by BinaryDictionary
+ *
+ * Can be run on a host JVM to build the dictionaries bundled in the assets from
+ * a word list (see readWordList):
+ *
+ *   java com.crea_si.softkeyboard.DictionaryWriter en.txt en.dict
+ */
+class DictionaryWriter {
+    private static class Node {
+        final Node mParent;
+        final char mLabel;
+        final TreeMap<Character, Node> mChildren = new TreeMap<>();
+        HashMap<Node, Integer> mBigrams;
+        int mFrequency;
+        int mMaxFrequency;
+        int mOffset;
+
+        Node(Node parent, char label) {
+            mParent = parent;
+            mLabel = label;
+        }
+    }
+
+    private final Node mRoot = new Node(null, '\0');
+
+    /**
+     * Add a word or update its frequency
+     *
+     * @param frequency clamped to 1..255
+     */
+    void addWord(String word, int frequency) {
+        getNode(word).mFrequency = clamp(frequency);
+    }
+
+    /**
+     * Add a bigram or update its frequency. The words are added when missing.
+     *
+     * @param frequency clamped to 1..255
+     */
+    void addBigram(String first, String second, int frequency) {
+        Node n1 = getNode(first);
+        Node n2 = getNode(second);
+        if (n1.mFrequency == 0) n1.mFrequency = 1;
+        if (n2.mFrequency == 0) n2.mFrequency = 1;
+        if (n1.mBigrams == null) n1.mBigrams = new HashMap<>();
+        n1.mBigrams.put(n2, clamp(frequency));
+    }
+
+    /**
+     * Serialize the dictionary
+     */
+    ByteBuffer build() {
+        // Breadth first order so that parents are stored before their children
+        List<Node> nodes = new ArrayList<>();
+        ArrayDeque<Node> queue = new ArrayDeque<>();
+        queue.add(mRoot);
+        int offset = BinaryDictionary.HEADER_SIZE;
+        int bigramCount = 0, bigramItems = 0;
+        while (!queue.isEmpty()) {
+            Node n = queue.poll();
+            n.mOffset = offset;
+            offset += BinaryDictionary.NODE_SIZE + 4 * n.mChildren.size();
+            nodes.add(n);
+            queue.addAll(n.mChildren.values());
+            if (n.mBigrams != null) {
+                bigramCount++;
+                bigramItems += n.mBigrams.size();
+            }
+        }
+
+        // Maximum frequency of each subtree, children are visited before their parents
+        for (int i = nodes.size() - 1; i >= 0; i--) {
+            Node n = nodes.get(i);
+            n.mMaxFrequency = Math.max(n.mMaxFrequency, n.mFrequency);
+            if (n.mParent != null) {
+                n.mParent.mMaxFrequency = Math.max(n.mParent.mMaxFrequency, n.mMaxFrequency);
+            }
+        }
+
+        final int bigramTable = offset;
+        int bigramList = bigramTable + bigramCount * BinaryDictionary.BIGRAM_ENTRY_SIZE;
+        ByteBuffer buffer = ByteBuffer.allocate(bigramList + bigramItems * BinaryDictionary.BIGRAM_ITEM_SIZE);
+        buffer.putInt(BinaryDictionary.MAGIC);
+        buffer.putInt(BinaryDictionary.VERSION);
+        buffer.putInt(bigramTable);
+        buffer.putInt(bigramCount);
+
+        for (Node n : nodes) {
+            buffer.putInt(n.mParent == null ? 0 : n.mParent.mOffset);
+            buffer.putChar(n.mLabel);
+            buffer.put((byte) n.mFrequency);
+            buffer.put((byte) n.mMaxFrequency);
+            buffer.putChar((char) n.mChildren.size());
+            for (Node child : n.mChildren.values()) buffer.putInt(child.mOffset);
+        }
+
+        // Nodes are in increasing offset order, so the table is sorted by word node
+        for (Node n : nodes) {
+            if (n.mBigrams == null) continue;
+            buffer.putInt(n.mOffset);
+            buffer.putInt(bigramList);
+            buffer.putInt(n.mBigrams.size());
+            final int entryEnd = buffer.position();
+            buffer.position(bigramList);
+            for (Map.Entry<Node, Integer> e : n.mBigrams.entrySet()) {
+                buffer.putInt(e.getKey().mOffset);
+                buffer.put((byte) (int) e.getValue());
+            }
+            bigramList = buffer.position();
+            buffer.position(entryEnd);
+        }
+
+        buffer.rewind();
+        return buffer;
+    }
+
+    /**
+     * Write a built dictionary replacing the file atomically
+     */
+    static void save(ByteBuffer buffer, File file) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        FileOutputStream out = new FileOutputStream(tmp);
+        try {
+            out.getChannel().write(buffer.duplicate());
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(file)) {
+            tmp.delete();
+            throw new IOException("Cannot write " + file);
+        }
+    }
+
+    /**
+     * Add the entries of a word list. UTF-8 text, one entry per line:
+     * "word frequency" or "first second frequency" for bigrams. Empty lines
+     * and lines starting with # are ignored.
+     *
+     * @throws IOException on read error or malformed line
+     */
+    void readWordList(File file) throws IOException {
+        BufferedReader in = new BufferedReader(
+                new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            String line;
+            int number = 0;
+            while ((line = in.readLine()) != null) {
+                number++;
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) continue;
+                String[] fields = line.split("\\s+");
+                try {
+                    if (fields.length == 2) {
+                        addWord(fields[0], Integer.parseInt(fields[1]));
+                    } else if (fields.length == 3) {
+                        addBigram(fields[0], fields[1], Integer.parseInt(fields[2]));
+                    } else {
+                        throw new NumberFormatException();
+                    }
+                } catch (NumberFormatException e) {
+                    throw new IOException(file + ":" + number + ": malformed entry");
+                }
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Build a dictionary from a word list
+     *
+     * @param args word list and destination file
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            System.err.println("Usage: DictionaryWriter <word list> <dictionary>");
+            System.exit(1);
+        }
+        DictionaryWriter writer = new DictionaryWriter();
+        writer.readWordList(new File(args[0]));
+        save(writer.build(), new File(args[1]));
+    }
+
+    private Node getNode(String word) {
+        Node node = mRoot;
+        for (int i = 0; i < word.length(); i++) {
+            final char c = word.charAt(i);
+            Node child = node.mChildren.get(c);
+            if (child == null) {
+                child = new Node(node, c);
+                node.mChildren.put(c, child);
+            }
+            node = child;
+        }
+        return node;
+    }
+
+    private static int clamp(int frequency) {
+        return Math.max(1, Math.min(BinaryDictionary.MAX_FREQUENCY, frequency));
+    }
+}
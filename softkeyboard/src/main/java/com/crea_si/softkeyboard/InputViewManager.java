@@ -17,15 +17,14 @@ package com.crea_si.softkeyboard;
 
 import android.content.Context;
 import android.content.SharedPreferences;
+import android.graphics.Rect;
 import android.inputmethodservice.InputMethodService;
 import android.inputmethodservice.Keyboard;
 import android.inputmethodservice.KeyboardView;
 import android.os.Handler;
-import android.os.SystemClock;
 import android.preference.PreferenceManager;
 import androidx.annotation.Nullable;
 import android.text.InputType;
-import android.view.MotionEvent;
 import android.view.View;
 import android.view.inputmethod.EditorInfo;
 import android.view.inputmethod.InputMethodManager;
@@ -60,6 +59,9 @@ class InputViewManager {
 
     private LatinKeyboardView mInputView;
 
+    // receives the keys clicked on the view
+    private KeyboardView.OnKeyboardActionListener mKeyboardActionListener;
+
     private int mCurrentLayout= NONE_LAYOUT;
     private int mCurrentQwertySubtype = QWERTY_NONE;
 
@@ -164,6 +166,7 @@ class InputViewManager {
         mInputView= (LatinKeyboardView)
                 mIMEService.getLayoutInflater().inflate(R.layout.input, null);
         mInputView.setOnKeyboardActionListener(listener);
+        mKeyboardActionListener= listener;
         return mInputView;
     }
 
@@ -292,9 +295,25 @@ class InputViewManager {
         
         return coord;
     }
+
+    /**
+     * Get the bounds of the keyboard relative to the screen
+     * @param r rect to store the bounds, set to empty when the keyboard is not shown
+     */
+    void getKeyboardBoundsOnScreen(Rect r) {
+        if (mInputView == null || !mInputView.isShown()) {
+            r.setEmpty();
+            return;
+        }
+        mInputView.getLocationOnScreen(mTmpCoord);
+        r.set(mTmpCoord[0], mTmpCoord[1],
+                mTmpCoord[0] + mInputView.getWidth(), mTmpCoord[1] + mInputView.getHeight());
+    }
+    private final int[] mTmpCoord= new int[2];
     
     /**
-     * Perform a click on the keyboard
+     * Perform a click on the keyboard. The key is found using the hit table of the
+     * layout and sent to the listener directly, without synthesizing touch events.
      * @param x - abscissa coordinate relative to the view of the keyboard
      * @param y - ordinate coordinate relative to the view of the keyboard
      * @return - true if click performed
@@ -303,29 +322,62 @@ class InputViewManager {
         // has clicked inside the keyboard?
         if (mInputView == null) return false;
 
-        long time= SystemClock.uptimeMillis();
-        MotionEvent down= MotionEvent.obtain(time, time, MotionEvent.ACTION_DOWN, x, y, 0);
+        // previous key still highlighted? release it now
+        releasePressedKey();
+
+        LatinKeyboard keyboard= (LatinKeyboard) mInputView.getKeyboard();
+        if (keyboard == null) return false;
 
-        // dispatch down event
-        mInputView.dispatchTouchEvent(down);
+        int index= keyboard.getHitTable().findKey(x - mInputView.getPaddingLeft(),
+                y - mInputView.getPaddingTop());
+        if (index == KeyHitTable.NOT_A_KEY) return false;
 
-        // program up event after some ms
-        mDelayedX= x;
-        mDelayedY= y;
-        mHandler.postDelayed(mDelayedEvent, 150);
+        // highlight the key for a while
+        Keyboard.Key key= keyboard.getKeys().get(index);
+        key.pressed= true;
+        mInputView.invalidateKey(index);
+        mPressedKey= key;
+        mPressedKeyboard= keyboard;
+        mPressedKeyIndex= index;
+        mHandler.postDelayed(mReleasePressedKey, 150);
+
+        // send the key as KeyboardView does
+        KeyboardView.OnKeyboardActionListener listener= mKeyboardActionListener;
+        if (key.text != null) {
+            listener.onText(key.text);
+            listener.onRelease(KeyHitTable.NOT_A_KEY);
+        }
+        else {
+            final int code= key.codes[0];
+            listener.onPress(code);
+            listener.onKey(code, key.codes);
+            listener.onRelease(code);
+        }
 
         return true;
     }
 
-    /* Runnable and parameters to send the UP event */
-    private int mDelayedX, mDelayedY;
-    private Runnable mDelayedEvent= new Runnable() {
+    /* Key highlighted by the last click */
+    private Keyboard.Key mPressedKey;
+    private Keyboard mPressedKeyboard;
+    private int mPressedKeyIndex;
+
+    private void releasePressedKey() {
+        if (mPressedKey == null) return;
+        mHandler.removeCallbacks(mReleasePressedKey);
+        mPressedKey.pressed= false;
+        // the layout might have changed meanwhile
+        if (mInputView != null && mInputView.getKeyboard() == mPressedKeyboard) {
+            mInputView.invalidateKey(mPressedKeyIndex);
+        }
+        mPressedKey= null;
+        mPressedKeyboard= null;
+    }
+
+    private final Runnable mReleasePressedKey= new Runnable() {
         @Override
         public void run() {
-            long time= SystemClock.uptimeMillis();
-            MotionEvent up=
-                    MotionEvent.obtain(time, time, MotionEvent.ACTION_UP, mDelayedX, mDelayedY, 0);
-            if (mInputView!= null) mInputView.dispatchTouchEvent(up);
+            releasePressedKey();
         }
     };
     
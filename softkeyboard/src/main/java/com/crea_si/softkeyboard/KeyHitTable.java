@@ -0,0 +1,217 @@
+/*
+ * Copyright (C) 2015-17 Cesar Mauri Loba (CREA Software Systems)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.crea_si.softkeyboard;
+
+import android.inputmethodservice.Keyboard;
+
+import java.util.List;
+
+/**
+ * Precomputed lookup of the key below a point of a keyboard
+ *
+ * Resolves points as KeyboardView does for touches: the key which contains the point
+ * or, for near misses, the closest character key within the proximity threshold.
+ * Keys are bucketed in a grid so that each lookup only tests a few of them.
+ *
+ * Works on a copy of the geometry of the keys (see Shape) so that it does not depend
+ * on the framework classes and can be tested on a host JVM.
+ */
+class KeyHitTable {
+    static final int NOT_A_KEY = -1;
+
+    // extra margin around each key when bucketing, covers keys which adjust isInside
+    private static final int MARGIN = 16;
+
+    /**
+     * Geometry of a key, the fields of Keyboard.Key used to resolve a point
+     */
+    static final class Shape {
+        int x;
+        int y;
+        int width;
+        int height;
+        int gap;
+        int edgeFlags;
+        // first code of the key
+        int code;
+        // moves the inside area of the key down (see LatinKeyboard.LatinKey)
+        int insideOffsetY;
+
+        /**
+         * Same as Keyboard.Key.isInside: keys on the edges of the keyboard extend
+         * beyond it
+         */
+        boolean isInside(int px, int py) {
+            py -= insideOffsetY;
+            boolean leftEdge = (edgeFlags & Keyboard.EDGE_LEFT) > 0;
+            boolean rightEdge = (edgeFlags & Keyboard.EDGE_RIGHT) > 0;
+            boolean topEdge = (edgeFlags & Keyboard.EDGE_TOP) > 0;
+            boolean bottomEdge = (edgeFlags & Keyboard.EDGE_BOTTOM) > 0;
+            return (px >= x || (leftEdge && px <= x + width))
+                    && (px < x + width || (rightEdge && px >= x))
+                    && (py >= y || (topEdge && py <= y + height))
+                    && (py < y + height || (bottomEdge && py >= y));
+        }
+
+        /**
+         * Same as Keyboard.Key.squaredDistanceFrom: to the centre of the key
+         */
+        int squaredDistanceFrom(int px, int py) {
+            int xDist = x + width / 2 - px;
+            int yDist = y + height / 2 - py;
+            return xDist * xDist + yDist * yDist;
+        }
+    }
+
+    private final Shape[] mKeys;
+
+    // squared distance to the centre of a key to consider it near
+    private final int mProximityThreshold;
+
+    private final int mCellSize;
+    private final int mCols;
+    private final int mRows;
+
+    // keys of each cell: indexes from mCellKeys[mCellStart[c]] to mCellKeys[mCellStart[c+1]-1]
+    private final int[] mCellStart;
+    private final int[] mCellKeys;
+
+    KeyHitTable(Keyboard keyboard) {
+        this(shapesOf(keyboard), keyboard.getMinWidth(), keyboard.getHeight());
+    }
+
+    /**
+     * @param keys geometry of the keys, in the order of Keyboard.getKeys()
+     * @param width width of the keyboard
+     * @param height height of the keyboard
+     */
+    KeyHitTable(Shape[] keys, int width, int height) {
+        mKeys = keys;
+        mProximityThreshold = computeProximityThreshold(mKeys);
+
+        final int radius = (int) Math.ceil(Math.sqrt(mProximityThreshold));
+        mCellSize = Math.max(MARGIN, radius);
+        mCols = Math.max(1, (width + mCellSize - 1) / mCellSize);
+        mRows = Math.max(1, (height + mCellSize - 1) / mCellSize);
+
+        // Cells covered by each key: its bounds plus margin and the proximity circle
+        final int[] range = new int[mKeys.length * 4];
+        for (int i = 0; i < mKeys.length; i++) {
+            Shape k = mKeys[i];
+            int cx = k.x + k.width / 2;
+            int cy = k.y + k.height / 2;
+            range[i * 4] = toCol(Math.min(k.x - MARGIN, cx - radius));
+            range[i * 4 + 1] = toCol(Math.max(k.x + k.width + MARGIN, cx + radius));
+            range[i * 4 + 2] = toRow(Math.min(k.y - MARGIN, cy - radius));
+            range[i * 4 + 3] = toRow(Math.max(k.y + k.height + MARGIN, cy + radius));
+        }
+
+        // Count the keys of each cell
+        final int cells = mCols * mRows;
+        mCellStart = new int[cells + 1];
+        for (int i = 0; i < mKeys.length; i++) {
+            for (int r = range[i * 4 + 2]; r <= range[i * 4 + 3]; r++) {
+                for (int c = range[i * 4]; c <= range[i * 4 + 1]; c++) {
+                    mCellStart[r * mCols + c + 1]++;
+                }
+            }
+        }
+        for (int c = 0; c < cells; c++) mCellStart[c + 1] += mCellStart[c];
+
+        // Fill them in key order
+        mCellKeys = new int[mCellStart[cells]];
+        final int[] next = new int[cells];
+        System.arraycopy(mCellStart, 0, next, 0, cells);
+        for (int i = 0; i < mKeys.length; i++) {
+            for (int r = range[i * 4 + 2]; r <= range[i * 4 + 3]; r++) {
+                for (int c = range[i * 4]; c <= range[i * 4 + 1]; c++) {
+                    mCellKeys[next[r * mCols + c]++] = i;
+                }
+            }
+        }
+    }
+
+    /**
+     * Find the key for a point
+     *
+     * @param x - abscissa coordinate relative to the keyboard
+     * @param y - ordinate coordinate relative to the keyboard
+     * @return index of the key (in getKeys()) or NOT_A_KEY
+     */
+    int findKey(int x, int y) {
+        final int cell = toRow(y) * mCols + toCol(x);
+        int primary = NOT_A_KEY;
+        int closest = NOT_A_KEY;
+        int closestDist = mProximityThreshold;
+        for (int i = mCellStart[cell], end = mCellStart[cell + 1]; i < end; i++) {
+            final int index = mCellKeys[i];
+            final Shape k = mKeys[index];
+            if (k.isInside(x, y)) {
+                primary = index;
+            } else if (k.code > 32) {
+                // only character keys are corrected
+                int dist = k.squaredDistanceFrom(x, y);
+                if (dist < closestDist) {
+                    closestDist = dist;
+                    closest = index;
+                }
+            }
+        }
+        return (primary != NOT_A_KEY ? primary : closest);
+    }
+
+    private static Shape[] shapesOf(Keyboard keyboard) {
+        List<Keyboard.Key> keys = keyboard.getKeys();
+        Shape[] shapes = new Shape[keys.size()];
+        for (int i = 0; i < shapes.length; i++) {
+            Keyboard.Key k = keys.get(i);
+            Shape s = new Shape();
+            s.x = k.x;
+            s.y = k.y;
+            s.width = k.width;
+            s.height = k.height;
+            s.gap = k.gap;
+            s.edgeFlags = k.edgeFlags;
+            s.code = k.codes[0];
+            if (keyboard instanceof LatinKeyboard) s.insideOffsetY = LatinKeyboard.insideOffsetY(s.code);
+            shapes[i] = s;
+        }
+        return shapes;
+    }
+
+    // points outside the keyboard map to the nearest cell
+    private int toCol(int x) {
+        return (x < 0 ? 0 : Math.min(mCols - 1, x / mCellSize));
+    }
+
+    private int toRow(int y) {
+        return (y < 0 ? 0 : Math.min(mRows - 1, y / mCellSize));
+    }
+
+    /**
+     * Same threshold KeyboardView uses: based on the average size of the keys
+     */
+    private static int computeProximityThreshold(Shape[] keys) {
+        if (keys.length == 0) return 0;
+        int dimensionSum = 0;
+        for (Shape k : keys) {
+            dimensionSum += Math.min(k.width, k.height) + k.gap;
+        }
+        if (dimensionSum < 0) return 0;
+        int threshold = (int) (dimensionSum * 1.4f / keys.length);
+        return threshold * threshold;
+    }
+}
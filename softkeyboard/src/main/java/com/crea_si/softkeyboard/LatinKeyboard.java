@@ -29,6 +29,9 @@ class LatinKeyboard extends Keyboard {
 
     private Key mEnterKey;
     private Key mSpaceKey;
+
+    // lookup table of keys by location, built on first use
+    private KeyHitTable mHitTable;
     
     LatinKeyboard(Context context, int xmlLayoutResId) {
         super(context, xmlLayoutResId);
@@ -88,6 +91,22 @@ class LatinKeyboard extends Keyboard {
         }
     }
 
+    /**
+     * Get the table to find which key is below a point
+     */
+    KeyHitTable getHitTable() {
+        if (mHitTable == null) mHitTable = new KeyHitTable(this);
+        return mHitTable;
+    }
+
+    /**
+     * How much the inside area of a key is moved down, reduces the target area of
+     * the key that closes the keyboard
+     */
+    static int insideOffsetY(int code) {
+        return (code == KEYCODE_CANCEL ? 10 : 0);
+    }
+
     void setSwitchLanguageIcon(final Drawable icon) {
         if (mSpaceKey != null) {
             mSpaceKey.icon = icon;
@@ -106,7 +125,7 @@ class LatinKeyboard extends Keyboard {
          */
         @Override
         public boolean isInside(int x, int y) {
-            return super.isInside(x, codes[0] == KEYCODE_CANCEL ? y - 10 : y);
+            return super.isInside(x, y - insideOffsetY(codes[0]));
         }
     }
 
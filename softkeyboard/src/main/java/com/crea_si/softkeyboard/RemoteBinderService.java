@@ -20,6 +20,7 @@ import java.util.concurrent.Callable;
 import java.util.concurrent.FutureTask;
 
 import com.crea_si.input_method_aidl.IClickableIME;
+import com.crea_si.input_method_aidl.IClickableIMEListener;
 
 import android.app.Service;
 import android.content.Intent;
@@ -82,6 +83,38 @@ public class RemoteBinderService extends Service {
             };
             mMainThreadHandler.post(r);
         }
+
+        @Override
+        public void setListener(final IClickableIMEListener listener) throws RemoteException {
+            Runnable r= new Runnable() {
+                @Override
+                public void run() {
+                    if (BuildConfig.DEBUG) Log.d(EVIACAMSOFTKBD.TAG, "RemoteBinderService: setListener");
+                    SoftKeyboard.setRemoteListener(listener);
+                }
+            };
+            mMainThreadHandler.post(r);
+        }
+
+        @Override
+        public void clickAsync(final int x, final int y) throws RemoteException {
+            // oneway call, nobody waits for the main thread
+            Runnable r= new Runnable() {
+                @Override
+                public void run() {
+                    boolean performed;
+                    try {
+                        performed= SoftKeyboard.click(x, y);
+                    }
+                    catch(Exception e) {
+                        ACRA.getErrorReporter().handleException(e);
+                        performed= false;
+                    }
+                    SoftKeyboard.notifyClickDone(x, y, performed);
+                }
+            };
+            mMainThreadHandler.post(r);
+        }
     };
 
     /** Calls click on the main thread and waits for the result */
@@ -19,16 +19,19 @@
 package com.crea_si.softkeyboard;
 
 import android.app.Dialog;
+import android.graphics.Rect;
 import android.inputmethodservice.InputMethodService;
 import android.inputmethodservice.Keyboard;
 import android.inputmethodservice.KeyboardView;
 import android.os.IBinder;
+import android.os.RemoteException;
 import android.text.InputType;
 import android.text.method.MetaKeyKeyListener;
 import android.util.Log;
 import android.view.KeyCharacterMap;
 import android.view.KeyEvent;
 import android.view.View;
+import android.view.ViewTreeObserver;
 import android.view.Window;
 import android.view.inputmethod.CompletionInfo;
 import android.view.inputmethod.EditorInfo;
@@ -36,6 +39,8 @@ import android.view.inputmethod.InputConnection;
 import android.view.inputmethod.InputMethodManager;
 import android.view.inputmethod.InputMethodSubtype;
 
+import com.crea_si.input_method_aidl.IClickableIMEListener;
+
 import java.util.ArrayList;
 import java.util.List;
 
@@ -71,6 +76,35 @@ public class SoftKeyboard extends InputMethodService
     private boolean mPredictionOn;
     private boolean mCompletionOn;
 
+    // maximum number of predictions shown in the candidates view
+    private static final int MAX_PREDICTIONS = 8;
+
+    private WordPredictor mWordPredictor;
+    // last word committed, used to predict the next one
+    private String mPreviousWord;
+    // suggestions shown in the candidates view when predicting, null otherwise
+    private List<String> mSuggestions;
+
+    // listener of the remote service, receives the keyboard bounds and click results.
+    // Cleared when the process of the remote service dies (see setRemoteListener)
+    private static volatile IClickableIMEListener sRemoteListener;
+    private static IBinder.DeathRecipient sRemoteListenerDeath;
+    private static final Object sRemoteListenerLock = new Object();
+
+    // last bounds sent to the remote listener
+    private final Rect mPublishedBounds= new Rect();
+    private final Rect mTmpBounds= new Rect();
+    private final Rect mTmpCandidatesBounds= new Rect();
+    private final int[] mTmpCoord= new int[2];
+
+    private final ViewTreeObserver.OnGlobalLayoutListener mOnGlobalLayoutListener=
+            new ViewTreeObserver.OnGlobalLayoutListener() {
+        @Override
+        public void onGlobalLayout() {
+            publishKeyboardBounds(false);
+        }
+    };
+
     /**
      * Main initialization of the input method component
      */
@@ -82,6 +116,7 @@ public class SoftKeyboard extends InputMethodService
         sInstance = this;
         mInputMethodManager = (InputMethodManager) getSystemService(INPUT_METHOD_SERVICE);
         mWordSeparators = getResources().getString(R.string.kbd_word_separators);
+        mWordPredictor = new WordPredictor(this);
     }
 
     /**
@@ -103,6 +138,7 @@ public class SoftKeyboard extends InputMethodService
         if (BuildConfig.DEBUG) Log.d(EVIACAMSOFTKBD.TAG, "onInitializeInterface");
         View v= mInputViewManager.createView(this);
         mInputViewManager.selectSavedLayout();
+        v.getViewTreeObserver().addOnGlobalLayoutListener(mOnGlobalLayoutListener);
         return v;
     }
 
@@ -112,8 +148,9 @@ public class SoftKeyboard extends InputMethodService
      */
     @Override
     public View onCreateCandidatesView() {
-        // Currently disabled
-        return null;
+        mCandidateView = new CandidateView(this);
+        mCandidateView.setService(this);
+        return mCandidateView;
     }
 
     /**
@@ -134,6 +171,7 @@ public class SoftKeyboard extends InputMethodService
         // Reset our state.  We want to do this even if restarting, because
         // the underlying state of the text editor could have changed in any way.
         mComposing.setLength(0);
+        mPreviousWord = null;
         updateCandidates();
 
         if (!restarting) {
@@ -202,6 +240,11 @@ public class SoftKeyboard extends InputMethodService
                 mInputViewManager.selectLayout(InputViewManager.QWERTY_LAYOUT);
                 mInputViewManager.updateShiftKeyState(attribute);
         }
+
+        if (mPredictionOn) {
+            InputMethodSubtype subtype = mInputMethodManager.getCurrentInputMethodSubtype();
+            mWordPredictor.setLanguage(subtype == null ? null : subtype.getLocale());
+        }
     }
 
     /*
@@ -217,6 +260,7 @@ public class SoftKeyboard extends InputMethodService
         mInputViewManager.enableSelected(null);
         mInputViewManager.updateEnterLabel(attribute);
         mReadyForInput = true;
+        publishKeyboardBounds(false);
     }
 
     @Override
@@ -225,6 +269,7 @@ public class SoftKeyboard extends InputMethodService
         mReadyForInput = false;
         super.onFinishInputView(finishingInput);
         mInputViewManager.saveCurrentLayout();
+        publishKeyboardBounds(false);
     }
 
     /**
@@ -246,6 +291,7 @@ public class SoftKeyboard extends InputMethodService
         setCandidatesViewShown(false);
 
         mInputViewManager.closing();
+        mWordPredictor.save();
     }
 
     /**
@@ -255,6 +301,9 @@ public class SoftKeyboard extends InputMethodService
     @Override
     public void onDestroy() {
         if (BuildConfig.DEBUG) Log.d(EVIACAMSOFTKBD.TAG, "SoftKeyboard: onDestroy");
+        mReadyForInput = false;
+        publishKeyboardBounds(false);
+        mWordPredictor.close();
         sInstance = null;
         super.onDestroy();
     }
@@ -267,6 +316,7 @@ public class SoftKeyboard extends InputMethodService
          */
         mInputViewManager.selectSubtype(subtype);
         mInputViewManager.enableSelected(subtype);
+        if (subtype != null) mWordPredictor.setLanguage(subtype.getLocale());
     }
 
     /**
@@ -284,6 +334,7 @@ public class SoftKeyboard extends InputMethodService
         if (mComposing.length() > 0 && (newSelStart != candidatesEnd
                 || newSelEnd != candidatesEnd)) {
             mComposing.setLength(0);
+            mPreviousWord = null;
             updateCandidates();
             InputConnection ic = getCurrentInputConnection();
             if (ic != null) {
@@ -446,6 +497,10 @@ public class SoftKeyboard extends InputMethodService
     private void commitTyped(InputConnection inputConnection) {
         if (mComposing.length() > 0) {
             inputConnection.commitText(mComposing, mComposing.length());
+            if (mPredictionOn) {
+                mWordPredictor.learn(mComposing, mPreviousWord);
+                mPreviousWord = mComposing.toString();
+            }
             mComposing.setLength(0);
             updateCandidates();
         }
@@ -510,6 +565,10 @@ public class SoftKeyboard extends InputMethodService
                 commitTyped(ic);
             }
             sendKey(primaryCode, ic);
+
+            // Only words separated by spaces are related
+            if (primaryCode != ' ') mPreviousWord = null;
+            updateCandidates();
         } else if (primaryCode == Keyboard.KEYCODE_DELETE) {
             handleBackspace();
         } else if (primaryCode == Keyboard.KEYCODE_SHIFT) {
@@ -550,6 +609,14 @@ public class SoftKeyboard extends InputMethodService
         InputConnection ic = sInstance.getCurrentInputConnection();
         if (ic == null) return false;
 
+        // has clicked a candidate?
+        CandidateView cv = sInstance.mCandidateView;
+        Rect r = sInstance.mTmpCandidatesBounds;
+        if (sInstance.getViewBoundsOnScreen(cv, r) && r.contains(x, y)) {
+            cv.takeSuggestionAt(x - r.left);
+            return true;
+        }
+
         // has clicked inside the keyboard?
         int[] coord = sInstance.mInputViewManager.getKeyboardLocationOnScreen();
         if (coord == null || x < coord[0] || y < coord[1]) return false;
@@ -561,6 +628,117 @@ public class SoftKeyboard extends InputMethodService
         return sInstance.mInputViewManager.performClick(x, y);
     }
 
+    /**
+     * Set the listener of the remote service and send it the current keyboard bounds
+     * (empty when the keyboard has not been created yet)
+     * <p>
+     * Needs to be static because is called from an external service
+     */
+    static void setRemoteListener(IClickableIMEListener l) {
+        synchronized (sRemoteListenerLock) {
+            if (sRemoteListenerDeath != null) {
+                sRemoteListener.asBinder().unlinkToDeath(sRemoteListenerDeath, 0);
+                sRemoteListenerDeath = null;
+            }
+            sRemoteListener = null;
+            if (l == null) return;
+
+            final IBinder binder = l.asBinder();
+            IBinder.DeathRecipient death = new IBinder.DeathRecipient() {
+                @Override
+                public void binderDied() {
+                    clearRemoteListener(binder);
+                }
+            };
+            try {
+                binder.linkToDeath(death, 0);
+            } catch (RemoteException e) {
+                Log.d(EVIACAMSOFTKBD.TAG, "SoftKeyboard: remote listener already dead");
+                return;
+            }
+            sRemoteListener = l;
+            sRemoteListenerDeath = death;
+        }
+
+        if (sInstance != null) {
+            sInstance.publishKeyboardBounds(true);
+        } else {
+            try {
+                l.onKeyboardBounds(0, 0, 0, 0);
+            } catch (RemoteException e) {
+                Log.d(EVIACAMSOFTKBD.TAG, "SoftKeyboard: cannot publish keyboard bounds");
+            }
+        }
+    }
+
+    /**
+     * Forget the remote listener whose process died, unless it has been replaced
+     */
+    private static void clearRemoteListener(IBinder binder) {
+        synchronized (sRemoteListenerLock) {
+            IClickableIMEListener l = sRemoteListener;
+            if (l == null || l.asBinder() != binder) return;
+            if (BuildConfig.DEBUG) Log.d(EVIACAMSOFTKBD.TAG, "SoftKeyboard: remote listener died");
+            sRemoteListener = null;
+            sRemoteListenerDeath = null;
+        }
+    }
+
+    /**
+     * Report the result of an asynchronous click to the remote listener
+     */
+    static void notifyClickDone(int x, int y, boolean performed) {
+        IClickableIMEListener l = sRemoteListener;
+        if (l == null) return;
+        try {
+            l.onClickDone(x, y, performed);
+        } catch (RemoteException e) {
+            Log.d(EVIACAMSOFTKBD.TAG, "SoftKeyboard: cannot notify click result");
+        }
+    }
+
+    /**
+     * Send the bounds of the keyboard to the remote listener when they change so that
+     * it can tell which clicks belong to the keyboard without asking
+     *
+     * @param force send them even when not changed
+     */
+    private void publishKeyboardBounds(boolean force) {
+        IClickableIMEListener l = sRemoteListener;
+        if (l == null) return;
+
+        if (mReadyForInput && mInputViewManager != null) {
+            mInputViewManager.getKeyboardBoundsOnScreen(mTmpBounds);
+            // the candidates are clickable as well
+            if (getViewBoundsOnScreen(mCandidateView, mTmpCandidatesBounds)) {
+                mTmpBounds.union(mTmpCandidatesBounds);
+            }
+        } else {
+            mTmpBounds.setEmpty();
+        }
+        if (!force && mTmpBounds.equals(mPublishedBounds)) return;
+        mPublishedBounds.set(mTmpBounds);
+
+        try {
+            l.onKeyboardBounds(mTmpBounds.left, mTmpBounds.top, mTmpBounds.right, mTmpBounds.bottom);
+        } catch (RemoteException e) {
+            Log.d(EVIACAMSOFTKBD.TAG, "SoftKeyboard: cannot publish keyboard bounds");
+        }
+    }
+
+    /**
+     * Get the bounds of a view relative to the screen
+     *
+     * @return false if the view is null or not shown
+     */
+    private boolean getViewBoundsOnScreen(View v, Rect r) {
+        if (v == null || !v.isShown()) return false;
+        v.getLocationOnScreen(mTmpCoord);
+        r.set(mTmpCoord[0], mTmpCoord[1],
+                mTmpCoord[0] + v.getWidth(), mTmpCoord[1] + v.getHeight());
+        return !r.isEmpty();
+    }
+
     @Override
     public void onText(CharSequence text) {
         InputConnection ic = getCurrentInputConnection();
@@ -580,7 +758,24 @@ public class SoftKeyboard extends InputMethodService
      * candidates.
      */
     private void updateCandidates() {
-        if (!mCompletionOn) {
+        mSuggestions = null;
+        if (mPredictionOn) {
+            // Word being typed followed by the predictions, or the next words
+            // when nothing is being typed
+            List<String> list = new ArrayList<>();
+            boolean typedWordValid = false;
+            if (mComposing.length() > 0) {
+                list.add(mComposing.toString());
+                typedWordValid = mWordPredictor.isValidWord(mComposing);
+            }
+            list.addAll(mWordPredictor.getSuggestions(mComposing, mPreviousWord, MAX_PREDICTIONS));
+            if (list.size() > 0) {
+                mSuggestions = list;
+                setSuggestions(list, true, typedWordValid);
+            } else {
+                setSuggestions(null, false, false);
+            }
+        } else if (!mCompletionOn) {
             if (mComposing.length() > 0) {
                 ArrayList<String> list = new ArrayList<>();
                 list.add(mComposing.toString());
@@ -618,6 +813,10 @@ public class SoftKeyboard extends InputMethodService
             updateCandidates();
         } else {
             keyDownUp(KeyEvent.KEYCODE_DEL, ic);
+            if (mPreviousWord != null) {
+                mPreviousWord = null;
+                updateCandidates();
+            }
         }
         mInputViewManager.updateShiftKeyState(null);
     }
@@ -663,6 +862,19 @@ public class SoftKeyboard extends InputMethodService
                 mCandidateView.clear();
             }
             mInputViewManager.updateShiftKeyState(null);
+        } else if (mSuggestions != null && index >= 0 && index < mSuggestions.size()
+                && (index > 0 || mComposing.length() == 0)) {
+            // Prediction picked, the first suggestion is the word being typed
+            // when composing, which is committed as is below
+            InputConnection ic = getCurrentInputConnection();
+            if (ic == null) return;
+            final String word = mSuggestions.get(index);
+            ic.commitText(word + " ", 1);
+            mComposing.setLength(0);
+            mWordPredictor.learn(word, mPreviousWord);
+            mPreviousWord = word;
+            updateCandidates();
+            mInputViewManager.updateShiftKeyState(null);
         } else if (mComposing.length() > 0) {
             // If we were generating candidate suggestions for the current
             // text, we would commit one of them here.  But for this sample,
@@ -0,0 +1,177 @@
+/*
+ * Copyright (C) 2015-17 Cesar Mauri Loba (CREA Software Systems)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.crea_si.softkeyboard;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Words and bigrams learned from what the user types
+ *
+ * Kept in memory and persisted as a BinaryDictionary. Frequencies grow each time
+ * a word is typed and the least frequent words are evicted when full.
+ */
+class UserDictionary {
+    private static final int MAX_WORDS = 5000;
+    private static final int MAX_BIGRAMS_PER_WORD = 32;
+    private static final int INITIAL_FREQUENCY = 128;
+    private static final int FREQUENCY_STEP = 16;
+
+    private final TreeMap<String, Integer> mWords = new TreeMap<>();
+    private final HashMap<String, HashMap<String, Integer>> mBigrams = new HashMap<>();
+    private boolean mDirty;
+
+    /**
+     * Replace the contents with those of a saved dictionary
+     */
+    void load(BinaryDictionary dict) {
+        clear();
+        dict.forEach(new BinaryDictionary.Visitor() {
+            @Override
+            public void onWord(String word, int frequency) {
+                mWords.put(word, frequency);
+            }
+
+            @Override
+            public void onBigram(String first, String second, int frequency) {
+                getBigramMap(first).put(second, frequency);
+            }
+        });
+        mDirty = false;
+    }
+
+    /**
+     * Forget all the learned words
+     */
+    void clear() {
+        mWords.clear();
+        mBigrams.clear();
+        mDirty = false;
+    }
+
+    /**
+     * Record that a word has been typed
+     *
+     * @param word the word
+     * @param previous the word typed just before, or null
+     */
+    void learn(String word, String previous) {
+        mWords.put(word, increase(mWords.get(word)));
+        if (previous != null) {
+            HashMap<String, Integer> next = getBigramMap(previous);
+            next.put(word, increase(next.get(word)));
+            if (next.size() > MAX_BIGRAMS_PER_WORD) removeLeastFrequent(next);
+        }
+        if (mWords.size() > MAX_WORDS) {
+            forget(removeLeastFrequent(mWords));
+        }
+        mDirty = true;
+    }
+
+    /**
+     * Remove the bigrams of an evicted word, both from and to it
+     */
+    private void forget(String word) {
+        mBigrams.remove(word);
+        Iterator<HashMap<String, Integer>> it = mBigrams.values().iterator();
+        while (it.hasNext()) {
+            HashMap<String, Integer> next = it.next();
+            if (next.remove(word) != null && next.isEmpty()) it.remove();
+        }
+    }
+
+    /**
+     * @return frequency of the word or 0 if never typed
+     */
+    int getFrequency(String word) {
+        Integer f = mWords.get(word);
+        return (f == null ? 0 : f);
+    }
+
+    /**
+     * Get all the learned words starting with a prefix
+     */
+    void getCompletions(String prefix, BinaryDictionary.WordCallback callback) {
+        for (Map.Entry<String, Integer> e :
+                mWords.subMap(prefix, true, prefix + '\uffff', false).entrySet()) {
+            callback.onWord(e.getKey(), e.getValue());
+        }
+    }
+
+    /**
+     * Get the learned words which have followed a given one
+     */
+    void getBigrams(String word, BinaryDictionary.WordCallback callback) {
+        HashMap<String, Integer> next = mBigrams.get(word);
+        if (next == null) return;
+        for (Map.Entry<String, Integer> e : next.entrySet()) {
+            callback.onWord(e.getKey(), e.getValue());
+        }
+    }
+
+    /**
+     * @return true when there are changes not saved yet
+     */
+    boolean isDirty() {
+        return mDirty;
+    }
+
+    /**
+     * Build the persistent representation of the dictionary and mark it as saved
+     */
+    DictionaryWriter snapshot() {
+        DictionaryWriter writer = new DictionaryWriter();
+        for (Map.Entry<String, Integer> e : mWords.entrySet()) {
+            writer.addWord(e.getKey(), e.getValue());
+        }
+        for (Map.Entry<String, HashMap<String, Integer>> e : mBigrams.entrySet()) {
+            for (Map.Entry<String, Integer> b : e.getValue().entrySet()) {
+                writer.addBigram(e.getKey(), b.getKey(), b.getValue());
+            }
+        }
+        mDirty = false;
+        return writer;
+    }
+
+    private HashMap<String, Integer> getBigramMap(String word) {
+        HashMap<String, Integer> next = mBigrams.get(word);
+        if (next == null) {
+            next = new HashMap<>();
+            mBigrams.put(word, next);
+        }
+        return next;
+    }
+
+    private static int increase(Integer frequency) {
+        if (frequency == null) return INITIAL_FREQUENCY;
+        return Math.min(BinaryDictionary.MAX_FREQUENCY, frequency + FREQUENCY_STEP);
+    }
+
+    private static String removeLeastFrequent(Map<String, Integer> map) {
+        String least = null;
+        int min = Integer.MAX_VALUE;
+        for (Map.Entry<String, Integer> e : map.entrySet()) {
+            if (e.getValue() < min) {
+                min = e.getValue();
+                least = e.getKey();
+            }
+        }
+        map.remove(least);
+        return least;
+    }
+}
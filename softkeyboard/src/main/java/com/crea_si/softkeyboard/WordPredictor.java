@@ -0,0 +1,302 @@
+/*
+ * Copyright (C) 2015-17 Cesar Mauri Loba (CREA Software Systems)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.crea_si.softkeyboard;
+
+import android.content.Context;
+import android.content.res.AssetFileDescriptor;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Suggests completions and next words for the candidates view
+ *
+ * Combines the main dictionary of the language, bundled in the assets as
+ * dictionaries/<language>.dict, with the words learned from the user.
+ *
+ * Must be used from the main thread only, saving is done in the background.
+ */
+class WordPredictor {
+    private static final String DEFAULT_LANGUAGE = "en";
+
+    // number of main dictionary completions considered before merging
+    private static final int CANDIDATES = 24;
+
+    // score added to the words which usually follow the previous one
+    private static final int BIGRAM_BONUS = 256;
+
+    private static final int MIN_WORD_LENGTH = 2;
+    private static final int MAX_WORD_LENGTH = 32;
+
+    private final Context mContext;
+    private final ExecutorService mSaveExecutor = Executors.newSingleThreadExecutor();
+    // saves not finished yet, by file
+    private final HashMap<File, Future<?>> mPendingSaves = new HashMap<>();
+    private final UserDictionary mUserDictionary = new UserDictionary();
+    private final HashMap<String, Integer> mScores = new HashMap<>();
+    private BinaryDictionary mMainDictionary;
+    private String mLanguage;
+
+    WordPredictor(Context c) {
+        mContext = c;
+    }
+
+    /**
+     * Select the dictionaries of a language
+     *
+     * @param locale locale string of the subtype (i.e. "es_ES"), null or empty for default
+     */
+    void setLanguage(String locale) {
+        String language = DEFAULT_LANGUAGE;
+        if (locale != null && locale.length() > 0) {
+            final int sep = locale.indexOf('_');
+            language = (sep < 0 ? locale : locale.substring(0, sep)).toLowerCase(Locale.US);
+        }
+        if (language.equals(mLanguage)) return;
+
+        save();
+        mLanguage = language;
+        mMainDictionary = openMainDictionary(language);
+        mUserDictionary.clear();
+        try {
+            File file = getUserDictionaryFile();
+            // a save of this language could be still running (e.g. quick switch back)
+            waitForPendingSave(file);
+            if (file.exists()) mUserDictionary.load(BinaryDictionary.open(file));
+        } catch (IOException | RuntimeException e) {
+            Log.w(EVIACAMSOFTKBD.TAG, "WordPredictor: cannot load user dictionary", e);
+        }
+    }
+
+    /**
+     * Get the suggestions for the word being typed
+     *
+     * @param composing word being typed, if empty, next words are suggested
+     * @param previous previous word or null
+     * @param max maximum number of suggestions
+     * @return suggestions in descending order of relevance, without the composing word itself
+     */
+    List<String> getSuggestions(CharSequence composing, String previous, int max) {
+        final String prefix = composing.toString().toLowerCase(Locale.getDefault());
+        mScores.clear();
+
+        BinaryDictionary.WordCallback collector = new BinaryDictionary.WordCallback() {
+            @Override
+            public void onWord(String word, int frequency) {
+                Integer score = mScores.get(word);
+                if (score == null || score < frequency) mScores.put(word, frequency);
+            }
+        };
+
+        if (prefix.length() > 0) {
+            if (mMainDictionary != null) {
+                try {
+                    mMainDictionary.getCompletions(prefix, CANDIDATES, collector);
+                } catch (RuntimeException e) {
+                    disableMainDictionary(e);
+                }
+            }
+            mUserDictionary.getCompletions(prefix, collector);
+        }
+
+        if (previous != null) {
+            final String prev = previous.toLowerCase(Locale.getDefault());
+            BinaryDictionary.WordCallback bigrams = new BinaryDictionary.WordCallback() {
+                @Override
+                public void onWord(String word, int frequency) {
+                    if (!word.startsWith(prefix)) return;
+                    Integer score = mScores.get(word);
+                    mScores.put(word, (score == null ? 0 : score) + BIGRAM_BONUS + frequency);
+                }
+            };
+            if (mMainDictionary != null) {
+                try {
+                    mMainDictionary.getBigrams(prev, bigrams);
+                } catch (RuntimeException e) {
+                    disableMainDictionary(e);
+                }
+            }
+            mUserDictionary.getBigrams(prev, bigrams);
+        }
+
+        mScores.remove(prefix);
+
+        List<Map.Entry<String, Integer>> entries = new ArrayList<>(mScores.entrySet());
+        Collections.sort(entries, new Comparator<Map.Entry<String, Integer>>() {
+            @Override
+            public int compare(Map.Entry<String, Integer> a, Map.Entry<String, Integer> b) {
+                if (!a.getValue().equals(b.getValue())) return b.getValue() - a.getValue();
+                if (a.getKey().length() != b.getKey().length()) {
+                    return a.getKey().length() - b.getKey().length();
+                }
+                return a.getKey().compareTo(b.getKey());
+            }
+        });
+
+        List<String> result = new ArrayList<>();
+        for (int i = 0; i < entries.size() && i < max; i++) {
+            result.add(matchCase(composing, entries.get(i).getKey()));
+        }
+        return result;
+    }
+
+    /**
+     * @return true if the word is known
+     */
+    boolean isValidWord(CharSequence word) {
+        final String w = word.toString().toLowerCase(Locale.getDefault());
+        if (mUserDictionary.getFrequency(w) > 0) return true;
+        if (mMainDictionary == null) return false;
+        try {
+            return mMainDictionary.getFrequency(w) > 0;
+        } catch (RuntimeException e) {
+            disableMainDictionary(e);
+            return false;
+        }
+    }
+
+    /**
+     * Learn a word typed by the user
+     *
+     * @param word word
+     * @param previous previous word or null
+     */
+    void learn(CharSequence word, CharSequence previous) {
+        final String w = normalize(word);
+        if (w == null) return;
+        mUserDictionary.learn(w, previous == null ? null : normalize(previous));
+    }
+
+    /**
+     * Save the learned words, if changed
+     */
+    void save() {
+        if (mLanguage == null || !mUserDictionary.isDirty()) return;
+
+        final DictionaryWriter writer = mUserDictionary.snapshot();
+        final File file = getUserDictionaryFile();
+        Future<?> f = mSaveExecutor.submit(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    DictionaryWriter.save(writer.build(), file);
+                } catch (IOException e) {
+                    Log.w(EVIACAMSOFTKBD.TAG, "WordPredictor: cannot save user dictionary", e);
+                }
+            }
+        });
+
+        // forget the finished ones
+        Iterator<Future<?>> it = mPendingSaves.values().iterator();
+        while (it.hasNext()) {
+            if (it.next().isDone()) it.remove();
+        }
+        mPendingSaves.put(file, f);
+    }
+
+    /**
+     * Block until the last save of a file, if any, has finished
+     */
+    private void waitForPendingSave(File file) {
+        Future<?> f = mPendingSaves.remove(file);
+        if (f == null) return;
+        try {
+            f.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            Log.w(EVIACAMSOFTKBD.TAG, "WordPredictor: user dictionary save failed", e);
+        }
+    }
+
+    /**
+     * Save pending changes and release resources
+     */
+    void close() {
+        save();
+        mSaveExecutor.shutdown();
+    }
+
+    private File getUserDictionaryFile() {
+        return new File(mContext.getFilesDir(), "user_" + mLanguage + ".dict");
+    }
+
+    private BinaryDictionary openMainDictionary(String language) {
+        final String name = "dictionaries/" + language + ".dict";
+        try {
+            // Stored uncompressed, so it can be mapped
+            AssetFileDescriptor afd = mContext.getAssets().openFd(name);
+            return BinaryDictionary.open(afd);
+        } catch (IOException e) {
+            // Missing or compressed
+        }
+
+        try {
+            InputStream in = mContext.getAssets().open(name);
+            try {
+                byte[] data = new byte[in.available()];
+                int read = 0, n;
+                while (read < data.length && (n = in.read(data, read, data.length - read)) > 0) {
+                    read += n;
+                }
+                return new BinaryDictionary(ByteBuffer.wrap(data, 0, read).slice());
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            if (BuildConfig.DEBUG) Log.d(EVIACAMSOFTKBD.TAG, "WordPredictor: no dictionary for " + language);
+            return null;
+        }
+    }
+
+    private void disableMainDictionary(RuntimeException e) {
+        Log.e(EVIACAMSOFTKBD.TAG, "WordPredictor: corrupted dictionary for " + mLanguage, e);
+        mMainDictionary = null;
+    }
+
+    private static String normalize(CharSequence word) {
+        final int length = word.length();
+        if (length < MIN_WORD_LENGTH || length > MAX_WORD_LENGTH) return null;
+        for (int i = 0; i < length; i++) {
+            final char c = word.charAt(i);
+            if (!Character.isLetter(c) && c != '\'') return null;
+        }
+        return word.toString().toLowerCase(Locale.getDefault());
+    }
+
+    private static String matchCase(CharSequence typed, String word) {
+        if (typed.length() == 0 || !Character.isUpperCase(typed.charAt(0))) return word;
+        if (typed.length() > 1 && Character.isUpperCase(typed.charAt(typed.length() - 1))) {
+            return word.toUpperCase(Locale.getDefault());
+        }
+        return Character.toUpperCase(word.charAt(0)) + word.substring(1);
+    }
+}
@@ -0,0 +1,291 @@
+/*
+ * Copyright (C) 2015-17 Cesar Mauri Loba (CREA Software Systems)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.crea_si.softkeyboard;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Builds dictionaries with DictionaryWriter and reads them back with BinaryDictionary
+ */
+public class DictionaryTest {
+    // bundled dictionary, tests run from the module directory
+    private static final File EN_DICT = new File("src/main/assets/dictionaries/en.dict");
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    /**
+     * Words and bigrams collected through the callbacks
+     */
+    private static class Collector implements BinaryDictionary.Visitor {
+        final List<String> words = new ArrayList<>();
+        final Map<String, Integer> frequencies = new HashMap<>();
+        final Map<String, Integer> bigrams = new HashMap<>();
+
+        @Override
+        public void onWord(String word, int frequency) {
+            words.add(word);
+            frequencies.put(word, frequency);
+        }
+
+        @Override
+        public void onBigram(String first, String second, int frequency) {
+            bigrams.put(first + " " + second, frequency);
+        }
+    }
+
+    private static BinaryDictionary build(DictionaryWriter writer) throws IOException {
+        return new BinaryDictionary(writer.build());
+    }
+
+    @Test
+    public void roundTrip() throws Exception {
+        DictionaryWriter writer = new DictionaryWriter();
+        writer.addWord("the", 255);
+        writer.addWord("then", 120);
+        writer.addWord("there", 180);
+        writer.addWord("a", 200);
+        writer.addWord("\u00f1and\u00fa", 10);
+        writer.addWord("overflow", 1000);
+        writer.addBigram("the", "a", 50);
+        writer.addBigram("the", "there", 60);
+        writer.addBigram("thank", "you", 90);
+
+        File file = mFolder.newFile("test.dict");
+        DictionaryWriter.save(writer.build(), file);
+        BinaryDictionary dict = BinaryDictionary.open(file);
+
+        assertEquals(255, dict.getFrequency("the"));
+        assertEquals(120, dict.getFrequency("then"));
+        assertEquals(10, dict.getFrequency("\u00f1and\u00fa"));
+        assertEquals(BinaryDictionary.MAX_FREQUENCY, dict.getFrequency("overflow"));
+        // prefixes and unknown words
+        assertEquals(0, dict.getFrequency("th"));
+        assertEquals(0, dict.getFrequency("these"));
+        assertEquals(0, dict.getFrequency(""));
+        // words added by a bigram
+        assertEquals(1, dict.getFrequency("you"));
+
+        Collector next = new Collector();
+        dict.getBigrams("the", next);
+        assertEquals(2, next.words.size());
+        assertEquals(50, (int) next.frequencies.get("a"));
+        assertEquals(60, (int) next.frequencies.get("there"));
+        Collector none = new Collector();
+        dict.getBigrams("then", none);
+        assertTrue(none.words.isEmpty());
+
+        Collector all = new Collector();
+        dict.forEach(all);
+        assertEquals(8, all.frequencies.size());
+        assertEquals(180, (int) all.frequencies.get("there"));
+        assertEquals(3, all.bigrams.size());
+        assertEquals(90, (int) all.bigrams.get("thank you"));
+    }
+
+    @Test
+    public void completionsInDescendingFrequency() throws Exception {
+        DictionaryWriter writer = new DictionaryWriter();
+        writer.addWord("to", 100);
+        writer.addWord("the", 250);
+        writer.addWord("then", 120);
+        writer.addWord("there", 180);
+        writer.addWord("th", 20);
+        writer.addWord("thermal", 200);
+        writer.addWord("a", 240);
+        BinaryDictionary dict = build(writer);
+
+        Collector c = new Collector();
+        dict.getCompletions("th", 10, c);
+        assertEquals(Arrays.asList("the", "thermal", "there", "then", "th"), c.words);
+
+        c = new Collector();
+        dict.getCompletions("th", 2, c);
+        assertEquals(Arrays.asList("the", "thermal"), c.words);
+
+        c = new Collector();
+        dict.getCompletions("", 3, c);
+        assertEquals(Arrays.asList("the", "a", "thermal"), c.words);
+
+        c = new Collector();
+        dict.getCompletions("x", 10, c);
+        dict.getCompletions("th", 0, c);
+        assertTrue(c.words.isEmpty());
+    }
+
+    @Test
+    public void readWordList() throws Exception {
+        File list = mFolder.newFile("words.txt");
+        write(list, "# comment\n\nhello 200\n  world\t150 \nhello world 80\n");
+        DictionaryWriter writer = new DictionaryWriter();
+        writer.readWordList(list);
+        BinaryDictionary dict = build(writer);
+        assertEquals(200, dict.getFrequency("hello"));
+        assertEquals(150, dict.getFrequency("world"));
+        Collector c = new Collector();
+        dict.getBigrams("hello", c);
+        assertEquals(80, (int) c.frequencies.get("world"));
+
+        File bad = mFolder.newFile("bad.txt");
+        write(bad, "hello 200\nworld\n");
+        try {
+            new DictionaryWriter().readWordList(bad);
+            fail();
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().endsWith(":2: malformed entry"));
+        }
+    }
+
+    @Test
+    public void bundledDictionary() throws Exception {
+        BinaryDictionary dict = BinaryDictionary.open(EN_DICT);
+        assertEquals(BinaryDictionary.MAX_FREQUENCY, dict.getFrequency("the"));
+        assertTrue(dict.getFrequency("people") > 0);
+
+        Collector c = new Collector();
+        dict.getCompletions("th", 3, c);
+        assertEquals("the", c.words.get(0));
+
+        Collector all = new Collector();
+        dict.forEach(all);
+        assertTrue(all.words.size() > 500);
+        assertFalse(all.bigrams.isEmpty());
+
+        // the bundled file is built from the word list
+        DictionaryWriter writer = new DictionaryWriter();
+        writer.readWordList(new File("dictionaries/en.txt"));
+        Collector rebuilt = new Collector();
+        build(writer).forEach(rebuilt);
+        assertEquals(rebuilt.frequencies, all.frequencies);
+        assertEquals(rebuilt.bigrams, all.bigrams);
+    }
+
+    @Test
+    public void evictionForgetsBigrams() throws Exception {
+        UserDictionary user = new UserDictionary();
+        user.learn("say", null);
+        user.learn("say", null);
+        user.learn("hello", "say");
+
+        // fill the dictionary with words more frequent than "hello"
+        for (int i = 0; i < 5000; i++) {
+            String word = String.format("w%04d", i);
+            user.learn(word, null);
+            user.learn(word, null);
+        }
+        assertEquals(0, user.getFrequency("hello"));
+        assertTrue(user.getFrequency("say") > 0);
+
+        Collector c = new Collector();
+        user.getBigrams("say", c);
+        assertTrue(c.words.isEmpty());
+
+        // not brought back by the saved copy
+        BinaryDictionary saved = new BinaryDictionary(user.snapshot().build());
+        assertEquals(0, saved.getFrequency("hello"));
+        UserDictionary reloaded = new UserDictionary();
+        reloaded.load(saved);
+        assertEquals(0, reloaded.getFrequency("hello"));
+    }
+
+    @Test
+    public void completionsBenchmark() throws Exception {
+        final int words = 120000;
+        Random random = new Random(1);
+        Map<String, Integer> entries = new HashMap<>();
+        while (entries.size() < words) {
+            char[] w = new char[3 + random.nextInt(8)];
+            for (int i = 0; i < w.length; i++) w[i] = (char) ('a' + random.nextInt(26));
+            entries.put(new String(w), 1 + random.nextInt(BinaryDictionary.MAX_FREQUENCY));
+        }
+
+        DictionaryWriter writer = new DictionaryWriter();
+        for (Map.Entry<String, Integer> e : entries.entrySet()) writer.addWord(e.getKey(), e.getValue());
+        long start = System.nanoTime();
+        BinaryDictionary dict = build(writer);
+        long buildTime = System.nanoTime() - start;
+
+        String[] prefixes = new String[1000];
+        for (int i = 0; i < prefixes.length; i++) {
+            prefixes[i] = new String(new char[] {
+                    (char) ('a' + random.nextInt(26)), (char) ('a' + random.nextInt(26)) });
+        }
+
+        // same frequencies as the best words of a linear scan
+        for (int i = 0; i < 20; i++) {
+            List<Integer> expected = new ArrayList<>();
+            for (Map.Entry<String, Integer> e : entries.entrySet()) {
+                if (e.getKey().startsWith(prefixes[i])) expected.add(e.getValue());
+            }
+            Collections.sort(expected, Collections.<Integer>reverseOrder());
+            Collector c = new Collector();
+            dict.getCompletions(prefixes[i], 5, c);
+            List<Integer> found = new ArrayList<>();
+            for (String w : c.words) {
+                assertTrue(w.startsWith(prefixes[i]));
+                found.add(c.frequencies.get(w));
+            }
+            assertEquals(expected.subList(0, Math.min(5, expected.size())), found);
+        }
+
+        final int[] count = new int[1];
+        BinaryDictionary.WordCallback callback = new BinaryDictionary.WordCallback() {
+            @Override
+            public void onWord(String word, int frequency) {
+                count[0]++;
+            }
+        };
+        long best = Long.MAX_VALUE;
+        for (int run = 0; run < 5; run++) {
+            start = System.nanoTime();
+            for (String prefix : prefixes) dict.getCompletions(prefix, 5, callback);
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        assertTrue(count[0] > 0);
+        System.out.println("BinaryDictionary: " + words + " words, " + writer.build().capacity() +
+                " bytes, built in " + (buildTime / 1000000) + " ms, " +
+                (best / prefixes.length) + " ns/completion");
+    }
+
+    private static void write(File file, String text) throws IOException {
+        Writer out = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+        try {
+            out.write(text);
+        } finally {
+            out.close();
+        }
+    }
+}
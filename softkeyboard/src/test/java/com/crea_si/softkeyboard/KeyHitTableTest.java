@@ -0,0 +1,273 @@
+/*
+ * Copyright (C) 2015-17 Cesar Mauri Loba (CREA Software Systems)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.crea_si.softkeyboard;
+
+import android.inputmethodservice.Keyboard;
+
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Compares the hit table with the brute force lookup of KeyboardView on the bundled layouts
+ */
+public class KeyHitTableTest {
+    private static final String[] LAYOUTS = {
+            "qwerty", "qwerty_es", "qwerty_ca", "qwerty_de", "symbols", "symbols_shift", "navigation"
+    };
+
+    private static final String ANDROID_NS = "http://schemas.android.com/apk/res/android";
+
+    // resolution of a phone in portrait and landscape
+    private static final int[][] DISPLAYS = { { 1080, 131 }, { 1920, 152 } };
+
+    /**
+     * Layout built from the XML as Keyboard does (see Keyboard.loadKeyboard)
+     */
+    private static class Layout {
+        final List<KeyHitTable.Shape> keys = new ArrayList<>();
+        int width;
+        int height;
+
+        KeyHitTable.Shape[] shapes() {
+            return keys.toArray(new KeyHitTable.Shape[keys.size()]);
+        }
+    }
+
+    private static Map<String, Integer> sKeyCodes;
+
+    private static Map<String, Integer> keyCodes() throws Exception {
+        if (sKeyCodes != null) return sKeyCodes;
+        sKeyCodes = new HashMap<>();
+        NodeList items = parse("src/main/res/values/keycodes.xml").getElementsByTagName("integer");
+        for (int i = 0; i < items.getLength(); i++) {
+            Element e = (Element) items.item(i);
+            sKeyCodes.put("@integer/" + e.getAttribute("name"), Integer.parseInt(e.getTextContent().trim()));
+        }
+        return sKeyCodes;
+    }
+
+    private static Document parse(String path) throws Exception {
+        DocumentBuilderFactory f = DocumentBuilderFactory.newInstance();
+        f.setNamespaceAware(true);
+        return f.newDocumentBuilder().parse(new File(path));
+    }
+
+    // "10%p", "0px" or "@dimen/key_height"
+    private static int dimension(Element e, String name, int displayWidth, int keyHeight, int def) {
+        String v = e.getAttributeNS(ANDROID_NS, name);
+        if (v.isEmpty()) return def;
+        if (v.endsWith("%p")) {
+            return Math.round(displayWidth * Float.parseFloat(v.substring(0, v.length() - 2)) / 100);
+        }
+        if (v.equals("@dimen/key_height")) return keyHeight;
+        if (v.endsWith("px")) return Integer.parseInt(v.substring(0, v.length() - 2));
+        throw new IllegalArgumentException("Unsupported dimension: " + v);
+    }
+
+    private static int edgeFlags(String v) {
+        int flags = 0;
+        for (String f : v.split("\\|")) {
+            if (f.equals("left")) flags |= Keyboard.EDGE_LEFT;
+            else if (f.equals("right")) flags |= Keyboard.EDGE_RIGHT;
+            else if (f.equals("top")) flags |= Keyboard.EDGE_TOP;
+            else if (f.equals("bottom")) flags |= Keyboard.EDGE_BOTTOM;
+        }
+        return flags;
+    }
+
+    private static int code(Element key) throws Exception {
+        String codes = key.getAttributeNS(ANDROID_NS, "codes");
+        if (codes.isEmpty()) return key.getAttributeNS(ANDROID_NS, "keyLabel").charAt(0);
+        Integer c = keyCodes().get(codes);
+        return (c != null ? c : Integer.parseInt(codes.split(",")[0].trim()));
+    }
+
+    private static Layout load(String name, int displayWidth, int keyHeight) throws Exception {
+        Element kb = parse("src/main/res/xml/" + name + ".xml").getDocumentElement();
+        final int kbWidth = dimension(kb, "keyWidth", displayWidth, keyHeight, displayWidth / 10);
+        final int kbHeight = dimension(kb, "keyHeight", displayWidth, keyHeight, keyHeight);
+        final int kbGap = dimension(kb, "horizontalGap", displayWidth, keyHeight, 0);
+        final int kbVGap = dimension(kb, "verticalGap", displayWidth, keyHeight, 0);
+
+        Layout layout = new Layout();
+        int y = 0;
+        NodeList rows = kb.getElementsByTagName("Row");
+        for (int r = 0; r < rows.getLength(); r++) {
+            Element row = (Element) rows.item(r);
+            final int rowWidth = dimension(row, "keyWidth", displayWidth, keyHeight, kbWidth);
+            final int rowHeight = dimension(row, "keyHeight", displayWidth, keyHeight, kbHeight);
+            final int rowGap = dimension(row, "horizontalGap", displayWidth, keyHeight, kbGap);
+            final int rowVGap = dimension(row, "verticalGap", displayWidth, keyHeight, kbVGap);
+            final int rowEdges = edgeFlags(row.getAttributeNS(ANDROID_NS, "rowEdgeFlags"));
+
+            int x = 0;
+            for (Node n = row.getFirstChild(); n != null; n = n.getNextSibling()) {
+                if (!(n instanceof Element) || !n.getNodeName().equals("Key")) continue;
+                Element key = (Element) n;
+                KeyHitTable.Shape s = new KeyHitTable.Shape();
+                s.width = dimension(key, "keyWidth", displayWidth, keyHeight, rowWidth);
+                s.height = dimension(key, "keyHeight", displayWidth, keyHeight, rowHeight);
+                s.gap = dimension(key, "horizontalGap", displayWidth, keyHeight, rowGap);
+                s.x = x + s.gap;
+                s.y = y;
+                s.edgeFlags = rowEdges | edgeFlags(key.getAttributeNS(ANDROID_NS, "keyEdgeFlags"));
+                s.code = code(key);
+                s.insideOffsetY = LatinKeyboard.insideOffsetY(s.code);
+                layout.keys.add(s);
+
+                x += s.gap + s.width;
+                layout.width = Math.max(layout.width, x);
+            }
+            y += rowVGap + rowHeight;
+        }
+        layout.height = y - kbVGap;
+        return layout;
+    }
+
+    /**
+     * KeyboardView.getKeyIndices with proximity correction, testing all the keys
+     */
+    private static int bruteForce(KeyHitTable.Shape[] keys, int threshold, int x, int y) {
+        int primary = KeyHitTable.NOT_A_KEY;
+        int closest = KeyHitTable.NOT_A_KEY;
+        int closestDist = threshold + 1;
+        for (int i = 0; i < keys.length; i++) {
+            final KeyHitTable.Shape k = keys[i];
+            int dist = 0;
+            boolean inside = k.isInside(x, y);
+            if (inside) primary = i;
+            if (((dist = k.squaredDistanceFrom(x, y)) < threshold || inside) && k.code > 32) {
+                if (dist < closestDist) {
+                    closestDist = dist;
+                    closest = i;
+                }
+            }
+        }
+        return (primary != KeyHitTable.NOT_A_KEY ? primary : closest);
+    }
+
+    // KeyboardView.computeProximityThreshold
+    private static int proximityThreshold(KeyHitTable.Shape[] keys) {
+        int dimensionSum = 0;
+        for (KeyHitTable.Shape k : keys) dimensionSum += Math.min(k.width, k.height) + k.gap;
+        int threshold = (int) (dimensionSum * 1.4f / keys.length);
+        return threshold * threshold;
+    }
+
+    @Test
+    public void layoutsAreLoaded() throws Exception {
+        for (String name : LAYOUTS) {
+            Layout l = load(name, 1080, 131);
+            assertTrue(name, l.keys.size() >= 10);
+            assertTrue(name, l.width >= 1000);
+            assertEquals(name, 0, l.height % 131);
+        }
+        // first key of the qwerty layout
+        Layout qwerty = load("qwerty", 1080, 131);
+        assertEquals('q', qwerty.keys.get(0).code);
+        assertEquals(108, qwerty.keys.get(0).width);
+    }
+
+    @Test
+    public void sameKeyAsKeyboardView() throws Exception {
+        for (int[] display : DISPLAYS) {
+            for (String name : LAYOUTS) {
+                Layout l = load(name, display[0], display[1]);
+                KeyHitTable.Shape[] keys = l.shapes();
+                KeyHitTable table = new KeyHitTable(keys, l.width, l.height);
+                int threshold = proximityThreshold(keys);
+
+                // every pixel of the keyboard and a band around it
+                for (int y = -60; y < l.height + 60; y++) {
+                    for (int x = -60; x < l.width + 60; x++) {
+                        int expected = bruteForce(keys, threshold, x, y);
+                        int actual = table.findKey(x, y);
+                        if (expected != actual) {
+                            assertEquals(name + " " + display[0] + " at (" + x + ", " + y + ")",
+                                    expected, actual);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void closeKeyHasReducedTarget() {
+        KeyHitTable.Shape done = new KeyHitTable.Shape();
+        done.width = 100;
+        done.height = 100;
+        done.code = Keyboard.KEYCODE_CANCEL;
+        done.insideOffsetY = LatinKeyboard.insideOffsetY(done.code);
+        KeyHitTable table = new KeyHitTable(new KeyHitTable.Shape[] { done }, 100, 100);
+        assertEquals(KeyHitTable.NOT_A_KEY, table.findKey(50, 5));
+        assertEquals(0, table.findKey(50, 50));
+    }
+
+    @Test
+    public void emptyKeyboard() {
+        KeyHitTable table = new KeyHitTable(new KeyHitTable.Shape[0], 0, 0);
+        assertEquals(KeyHitTable.NOT_A_KEY, table.findKey(10, 10));
+    }
+
+    @Test
+    public void lookupBenchmark() throws Exception {
+        Layout l = load("qwerty", 1080, 131);
+        KeyHitTable.Shape[] keys = l.shapes();
+        KeyHitTable table = new KeyHitTable(keys, l.width, l.height);
+        int threshold = proximityThreshold(keys);
+
+        Random random = new Random(3);
+        final int lookups = 100000;
+        int[] xs = new int[lookups];
+        int[] ys = new int[lookups];
+        for (int i = 0; i < lookups; i++) {
+            xs[i] = random.nextInt(l.width);
+            ys[i] = random.nextInt(l.height);
+        }
+
+        long bestTable = Long.MAX_VALUE;
+        long bestBrute = Long.MAX_VALUE;
+        int sum = 0;
+        for (int run = 0; run < 5; run++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < lookups; i++) sum += table.findKey(xs[i], ys[i]);
+            bestTable = Math.min(bestTable, System.nanoTime() - start);
+
+            start = System.nanoTime();
+            for (int i = 0; i < lookups; i++) sum -= bruteForce(keys, threshold, xs[i], ys[i]);
+            bestBrute = Math.min(bestBrute, System.nanoTime() - start);
+        }
+        assertEquals(0, sum);
+        System.out.println("KeyHitTable: " + (bestTable / lookups) + " ns/lookup, brute force: " +
+                (bestBrute / lookups) + " ns/lookup, " + keys.length + " keys");
+    }
+}